@@ -15,7 +15,10 @@ exports.handler = async (event) => {
     
     var userTableSql = 'CREATE TABLE user (id INT NOT NULL AUTO_INCREMENT, cognito_id NVARCHAR(50) NOT NULL UNIQUE, userName NVARCHAR(50) NOT NULL UNIQUE, email NVARCHAR(50), phoneNumber NVARCHAR(25), displayName NVARCHAR(25), registrationDate DATETIME DEFAULT CURRENT_TIMESTAMP, lastUpdatedDate DATETIME DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP, lastLoginDate DATETIME, challenge TEXT, PRIMARY KEY (id));';
     var registrationRequestsTableSql = 'CREATE TABLE registrationRequests (_key TEXT, _value TEXT, creationDate DATETIME DEFAULT CURRENT_TIMESTAMP, lastUpdatedDate DATETIME DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP);';
-    var credentialRegistrationsTableSql = 'CREATE TABLE credentialRegistrations (username TEXT, userHandle TEXT, credentialId NVARCHAR(1023), registration TEXT, creationDate DATETIME DEFAULT CURRENT_TIMESTAMP, lastUsedDate DATETIME, lastUpdatedDate DATETIME DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP, active BOOL DEFAULT TRUE);';
+    // Keyed by SHA-256 of the raw username, user handle and credential ID; see RegistrationSchema in JavaWebAuthnLib
+    var credentialRegistrationsTableSql = 'CREATE TABLE credentialRegistrationsV2 (credentialIdHash BINARY(32) NOT NULL, usernameHash BINARY(32) NOT NULL, userHandleHash BINARY(32) NOT NULL, username TEXT NOT NULL, userHandle VARBINARY(64) NOT NULL, credentialId VARBINARY(1023) NOT NULL, registration TEXT NOT NULL, creationDate DATETIME DEFAULT CURRENT_TIMESTAMP, lastUsedDate DATETIME, lastUpdatedDate DATETIME DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP, active BOOL DEFAULT TRUE, aaguid BINARY(16), PRIMARY KEY (credentialIdHash), KEY usernameHash (usernameHash), KEY userHandleHash (userHandleHash), KEY aaguid (aaguid, credentialIdHash));';
+    // Advanced on every change to a user's credentials; see UserGenerations in JavaWebAuthnLib
+    var userGenerationsTableSql = 'CREATE TABLE userGenerations (usernameHash BINARY(32) NOT NULL, generation BIGINT NOT NULL, PRIMARY KEY (usernameHash));';
     var assertionRequestsTableSql = 'CREATE TABLE assertionRequests (_key TEXT, _value TEXT, creationDate DATETIME DEFAULT CURRENT_TIMESTAMP, lastUpdatedDate DATETIME DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP);';
     var serverVerifiedPinTableSql = 'CREATE TABLE serverVerifiedPin (pinId INT NOT NULL AUTO_INCREMENT, pinCode TEXT NOT NULL, user_id INT NOT NULL UNIQUE, creationDate DATETIME DEFAULT CURRENT_TIMESTAMP, lastUpdatedDate DATETIME DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP, counter INT, counterResetTime BIGINT, PRIMARY KEY (pinId));';
     // Add foreign key and CASCADE DELETE to the serverVerifiedPin table
@@ -30,27 +33,30 @@ exports.handler = async (event) => {
         if(await createTables(registrationRequestsTableSql)){
             console.log('Created [registrationRequests] table successfully');
             if(await createTables(credentialRegistrationsTableSql)){
-                console.log('Created [credentialRegistrations] table successfully');
-                if(await createTables(assertionRequestsTableSql)){
-                    console.log('Created [assertionRequests] table successfully');
-                    if(await createTables(serverVerifiedPinTableSql)){
-                        console.log('Created [serverVerifiedPin] table successfully');
-                        if(await createTables(addServerVerifiedPinFK)){
-                            console.log('Added foreign key to serverVerifiedPin table successfully');
-                            if(await createTables(recoveryCodesTableSql)){
-                                console.log('Created [recoveryCodes] table successfully');
-                                if(await createTables(addRecoveryCodesFK)){
-                                    console.log('Added foreign key to recoveryCodes table successfully');
-                                        if(await createTables(showTablesSql)){
-                                            console.log('Completed database schema creation');
-                                            return response;
-                                        } else {console.log('Failed to execute show tables');}
-                                } else {console.log('Failed to create FK on recoveryCodes table');}
-                            } else {console.log('Failed to create recoveryCodes table');}
-                        } else {console.log('Failed to execute serverVerifiedPin FK');}
-                    } else {console.log('Failed to create [serverVerifiedPin] table');}
-                } else {console.log('Failed to create [assertionRequests] table');}
-            } else {console.log('Failed to create [credentialRegistrations] table');}
+                console.log('Created [credentialRegistrationsV2] table successfully');
+                if(await createTables(userGenerationsTableSql)){
+                    console.log('Created [userGenerations] table successfully');
+                    if(await createTables(assertionRequestsTableSql)){
+                        console.log('Created [assertionRequests] table successfully');
+                        if(await createTables(serverVerifiedPinTableSql)){
+                            console.log('Created [serverVerifiedPin] table successfully');
+                            if(await createTables(addServerVerifiedPinFK)){
+                                console.log('Added foreign key to serverVerifiedPin table successfully');
+                                if(await createTables(recoveryCodesTableSql)){
+                                    console.log('Created [recoveryCodes] table successfully');
+                                    if(await createTables(addRecoveryCodesFK)){
+                                        console.log('Added foreign key to recoveryCodes table successfully');
+                                            if(await createTables(showTablesSql)){
+                                                console.log('Completed database schema creation');
+                                                return response;
+                                            } else {console.log('Failed to execute show tables');}
+                                    } else {console.log('Failed to create FK on recoveryCodes table');}
+                                } else {console.log('Failed to create recoveryCodes table');}
+                            } else {console.log('Failed to execute serverVerifiedPin FK');}
+                        } else {console.log('Failed to create [serverVerifiedPin] table');}
+                    } else {console.log('Failed to create [assertionRequests] table');}
+                } else {console.log('Failed to create [userGenerations] table');}
+            } else {console.log('Failed to create [credentialRegistrationsV2] table');}
         } else {console.log('Failed to create [registrationRequests] table');}
     } else {console.log('Failed to create [user] table');}
     
@@ -0,0 +1,172 @@
+package com.yubicolabs;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.yubico.internal.util.CollectionUtil;
+import com.yubico.webauthn.AssertionResult;
+import com.yubico.webauthn.RegisteredCredential;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.PublicKeyCredentialDescriptor;
+import com.yubico.webauthn.data.exception.HexException;
+import com.yubicolabs.data.CredentialRegistration;
+import java.time.Clock;
+import java.util.Collection;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Backend-independent part of a {@link RegistrationStorage}: everything that can be derived from the registrations
+ * themselves. Implementations supply the queries against their store.
+ */
+@Slf4j
+public abstract class AbstractRegistrationStorage implements RegistrationStorage, RegistrationKeySource {
+
+    protected final Clock clock = Clock.systemDefaultZone();
+    protected final Gson gson = new GsonBuilder().create();
+
+    protected abstract Collection<CredentialRegistration> getByCredentialId(ByteArray credentialId);
+
+    protected abstract boolean updateRegistration(String username, ByteArray credentialId, CredentialRegistration reg);
+
+    /**
+     * Reads a registration that is about to be written back whole. Backends with a reader endpoint override this to
+     * read from the writer, so that a lagging replica's copy never overwrites a newer one.
+     */
+    protected Optional<CredentialRegistration> getRegistrationForUpdate(String username, ByteArray credentialId) {
+        return getRegistrationByUsernameAndCredentialId(username, credentialId);
+    }
+
+    /**
+     * @return the key of a registration row, from the JSON-encoded column values
+     */
+    protected RegistrationKey toRegistrationKey(String username, String userHandle, String credentialId) {
+        return new RegistrationKey(
+            gson.fromJson(username, String.class),
+            gson.fromJson(userHandle, ByteArray.class),
+            gson.fromJson(credentialId, ByteArray.class));
+    }
+
+    /**
+     * @return the AAGUID of the registration's authenticator model, as stored in the {@code aaguid} column, if its
+     * attestation metadata was found in the MDS
+     */
+    protected static Optional<byte[]> aaguid(CredentialRegistration reg) {
+        return reg.getAttestationMetadata() == null
+            ? Optional.empty()
+            : reg.getAttestationMetadata().flatMap(metadata -> parseAaguid(metadata.getAaguid()));
+    }
+
+    /**
+     * @param aaguid an AAGUID in GUID form or as 32 hex digits
+     */
+    static Optional<byte[]> parseAaguid(String aaguid) {
+        if (aaguid == null) {
+            return Optional.empty();
+        }
+        final String hex = aaguid.replace("-", "");
+        try {
+            final byte[] bytes = ByteArray.fromHex(hex).getBytes();
+            return bytes.length == 16 ? Optional.of(bytes) : Optional.empty();
+        } catch (HexException e) {
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    public void updateCredentialNickname(String username, ByteArray credentialId, String nickname) {
+        CredentialRegistration registration = getRegistrationForUpdate(username, credentialId)
+            .orElseThrow(() -> new NoSuchElementException(String.format(
+                "Credential \"%s\" is not registered to user \"%s\"",
+                credentialId, username
+            )));
+
+        updateRegistration(
+            username,
+            credentialId,
+            registration
+                .withCredentialNickname(Optional.of(nickname))
+                .withLastUpdatedTime(clock.instant())
+        );
+    }
+
+    @Override
+    public Set<PublicKeyCredentialDescriptor> getCredentialIdsForUsername(String username) {
+        return getRegistrationsByUsername(username).stream()
+            .map(registration -> PublicKeyCredentialDescriptor.builder()
+                .id(registration.getCredential().getCredentialId())
+                .build())
+            .collect(Collectors.toSet());
+    }
+
+    @Override
+    public Optional<String> getUsernameForUserHandle(ByteArray userHandle) {
+        return getRegistrationsByUserHandle(userHandle).stream()
+            .findAny()
+            .map(CredentialRegistration::getUsername);
+    }
+
+    @Override
+    public Optional<ByteArray> getUserHandleForUsername(String username) {
+        return getRegistrationsByUsername(username).stream()
+            .findAny()
+            .map(reg -> reg.getUserIdentity().getId());
+    }
+
+    @Override
+    public void updateSignatureCount(AssertionResult result) {
+        CredentialRegistration registration = getRegistrationForUpdate(result.getUsername(), result.getCredentialId())
+            .orElseThrow(() -> new NoSuchElementException(String.format(
+                "Credential \"%s\" is not registered to user \"%s\"",
+                result.getCredentialId(), result.getUsername()
+            )));
+
+        updateRegistration(
+            result.getUsername(),
+            result.getCredentialId(),
+            registration.withSignatureCount(result.getSignatureCount()).withLastUsedTime(clock.instant())
+        );
+    }
+
+    @Override
+    public Optional<CredentialRegistration> getRegistrationByUsernameAndCredentialId(String username, ByteArray id) {
+        return getRegistrationsByUsername(username).stream()
+            .filter(credReg -> id.equals(credReg.getCredential().getCredentialId()))
+            .findFirst();
+    }
+
+    @Override
+    public Optional<RegisteredCredential> lookup(ByteArray credentialId, ByteArray userHandle) {
+        Optional<CredentialRegistration> registrationMaybe = getByCredentialId(credentialId).stream()
+            .findAny();
+
+        log.debug("lookup credential ID: {}, user handle: {}; result: {}", credentialId, userHandle, registrationMaybe);
+        return registrationMaybe.flatMap(registration ->
+            Optional.of(
+                RegisteredCredential.builder()
+                    .credentialId(registration.getCredential().getCredentialId())
+                    .userHandle(registration.getUserIdentity().getId())
+                    .publicKeyCose(registration.getCredential().getPublicKeyCose())
+                    .signatureCount(registration.getSignatureCount())
+                    .build()
+            )
+        );
+    }
+
+    @Override
+    public Set<RegisteredCredential> lookupAll(ByteArray credentialId) {
+        return CollectionUtil.immutableSet(
+            getByCredentialId(credentialId).stream()
+                .map(reg -> RegisteredCredential.builder()
+                    .credentialId(reg.getCredential().getCredentialId())
+                    .userHandle(reg.getUserIdentity().getId())
+                    .publicKeyCose(reg.getCredential().getPublicKeyCose())
+                    .signatureCount(reg.getSignatureCount())
+                    .build()
+                )
+                .collect(Collectors.toSet()));
+    }
+
+}
@@ -14,19 +14,15 @@ import com.yubico.fido.metadata.AAGUID;
 import com.yubico.fido.metadata.AAID;
 import com.yubico.fido.metadata.AttachmentHint;
 import com.yubico.fido.metadata.AuthenticatorGetInfo;
-import com.yubico.fido.metadata.FidoMetadataDownloader;
-import com.yubico.fido.metadata.FidoMetadataService;
-import com.yubico.fido.metadata.MetadataBLOB;
 import com.yubico.internal.util.JacksonCodecs;
+import com.yubico.webauthn.AssertionRequest;
 import com.yubico.webauthn.AssertionResult;
 import com.yubico.webauthn.FinishAssertionOptions;
 import com.yubico.webauthn.FinishRegistrationOptions;
 import com.yubico.webauthn.RegisteredCredential;
 import com.yubico.webauthn.RegistrationResult;
-import com.yubico.webauthn.RelyingParty;
 import com.yubico.webauthn.StartAssertionOptions;
 import com.yubico.webauthn.StartRegistrationOptions;
-import com.yubico.webauthn.data.AttestationConveyancePreference;
 import com.yubico.webauthn.data.AuthenticatorSelectionCriteria;
 import com.yubico.webauthn.data.AuthenticatorTransport;
 import com.yubico.webauthn.data.ByteArray;
@@ -42,6 +38,7 @@ import com.yubicolabs.data.AssertionResponse;
 import com.yubicolabs.data.AttestationRegistration;
 import com.yubico.webauthn.data.AuthenticatorAttachment;
 import com.yubicolabs.data.CredentialRegistration;
+import com.yubicolabs.data.CredentialSnapshot;
 import com.yubicolabs.data.RegistrationRequest;
 import com.yubicolabs.data.RegistrationResponse;
 
@@ -52,8 +49,8 @@ import java.security.cert.X509Certificate;
 import java.security.cert.PKIXRevocationChecker.Option;
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.SecureRandom;
 import java.time.Clock;
+import java.time.Instant;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
@@ -63,8 +60,8 @@ import java.util.Optional;
 
 import lombok.extern.java.Log;
 import lombok.extern.slf4j.Slf4j;
-import java.io.File;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -83,7 +80,7 @@ import com.yubico.fido.metadata.MetadataStatement;
 @Slf4j
 public class App implements RequestHandler<Object, Object> {
 
-    private static final SecureRandom random = new SecureRandom();
+    private static final RandomSource random = RandomSource.getInstance();
 
     private final Clock clock = Clock.systemDefaultZone();
 
@@ -92,45 +89,24 @@ public class App implements RequestHandler<Object, Object> {
     private final ObjectMapper jsonMapper = JacksonCodecs.json();
     private final Gson gson = new GsonBuilder().setPrettyPrinting().create();
 
-    private final AssertionRequestStorage assertRequestStorage = new AssertionRequestStorage();
-    private final RegistrationRequestStorage registerRequestStorage = new RegistrationRequestStorage();
-    private final RegistrationStorage userStorage = new RDSRegistrationStorage();
-
     private static final String METADATA_PATH = "/metadata.json";
 
-    private final FidoMetadataService mds = initMDS();
+    private final CachingMetadataService mds = CachingMetadataService.getInstance();
 
-    private FidoMetadataService initMDS() {
-        try {
-            MetadataBLOB downloader = FidoMetadataDownloader.builder()
-                    .expectLegalHeader(
-                            "Retrieval and use of this BLOB indicates acceptance of the appropriate agreement located at https://fidoalliance.org/metadata/metadata-legal-terms/")
-                    .useDefaultTrustRoot()
-                    .useTrustRootCacheFile(new File("/tmp/fido-mds-trust-root-cache.bin"))
-                    .useDefaultBlob()
-                    .useBlobCacheFile(new File("/tmp/fido-mds-blob-cache.bin"))
-                    .build()
-                    .loadCachedBlob();
-
-            FidoMetadataService mds = FidoMetadataService.builder()
-                    .useBlob(downloader)
-                    .build();
-            return mds;
-        } catch (Exception e) {
-            log.info("Error initializing MDS: {}", gson.toJson(e));
-            return null;
-        }
-    }
+    private final TenantRegistry tenants = new TenantRegistry(
+            new Tenant("default", Config.getRpIdentity(), Config.getOrigins(), StorageFactory.defaultTenantStorage(),
+                    Config.isMembershipFilterEnabled(), mds),
+            Config.getTenants(),
+            Config.getTenantCacheSize(),
+            config -> new Tenant(
+                    config.getId(),
+                    config.getRpIdentity(),
+                    config.getOrigins(),
+                    StorageFactory.tenantStorage(config.getDatabase()),
+                    false,
+                    mds));
 
-    private final RelyingParty rp = RelyingParty.builder()
-            .identity(Config.getRpIdentity())
-            .credentialRepository(this.userStorage)
-            .origins(Config.getOrigins())
-            .attestationConveyancePreference(Optional.of(AttestationConveyancePreference.DIRECT))
-            .attestationTrustSource(mds)
-            .allowUntrustedAttestation(true)
-            .validateSignatureCounter(true)
-            .build();
+    private final Warmup warmup = new Warmup(mds, jsonMapper, gson);
 
     public App() {
         jsonMapper.disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
@@ -148,42 +124,61 @@ public class App implements RequestHandler<Object, Object> {
 
         final String type;
         final JsonObject object;
+        final Tenant tenant;
         try {
             log.debug("handleRequest() input: {}", input.toString());
 
             object = gson.fromJson(input.toString(), JsonObject.class);
             type = object.get("type").getAsString();
+            tenant = tenants.acquire(Optional.ofNullable(object.get("tenant")).map(JsonElement::getAsString));
         } catch (JsonSyntaxException e) {
             log.error("JSON error in finishRegistration; input: {}", input, e);
             return e;
+        } catch (IllegalArgumentException e) {
+            log.error("Cannot serve request", e);
+            return e;
         }
-        log.debug("type: {}", type);
+        log.debug("type: {}, tenant: {}", type, tenant.getId());
 
+        RequestDeadline.begin(context, Config.getDeadlineReserve(), Config.getStorageRetryBudget());
+        tenant.getRegistrations().beginRequest();
+        try {
+            return dispatch(tenant, type, object, input);
+        } finally {
+            tenant.getRegistrations().endRequest();
+            RequestDeadline.end();
+            tenant.release();
+        }
+    }
+
+    private Object dispatch(final Tenant tenant, final String type, final JsonObject object, final Object input) {
         switch (type) {
             case "startRegistration":
-                return startRegistration(object);
+                return startRegistration(tenant, object);
             case "finishRegistration":
-                return finishRegistration(object);
+                return finishRegistration(tenant, object);
             case "startAuthentication":
-                return startAuthentication(object);
+                return startAuthentication(tenant, object);
             case "finishAuthentication":
-                return finishAuthentication(object);
+                return finishAuthentication(tenant, object);
             case "getCredentialIdsForUsername":
-                return getCredentialIdsForUsername(object);
+                return getCredentialIdsForUsername(tenant, object);
             case "getRegistrationsByUsername":
-                return getRegistrationsByUsername(object);
+                return getRegistrationsByUsername(tenant, object);
             case "updateCredentialNickname":
-                return updateCredentialNickname(object);
+                return updateCredentialNickname(tenant, object);
             case "removeRegistrationByUsername":
-                return removeRegistrationByUsername(object);
+                return removeRegistrationByUsername(tenant, object);
             case "removeAllRegistrations":
-                return removeAllRegistrations(object);
+                return removeAllRegistrations(tenant, object);
+            case "warmup":
+                return warmup(tenant);
             default:
                 return input;
         }
     }
 
-    Object startRegistration(JsonObject jsonRequest) {
+    Object startRegistration(Tenant tenant, JsonObject jsonRequest) {
 
         String username = jsonRequest.get("username").getAsString();
         String displayName = jsonRequest.get("displayName").getAsString();
@@ -197,15 +192,21 @@ public class App implements RequestHandler<Object, Object> {
                 "startRegistration username: {}, displayName: {}, requireResidentKey: {}, uid {}",
                 username, displayName, requireResidentKey, uid);
 
+        // Fetch existing registrations while the rest of the request is prepared
+        final CompletableFuture<Collection<CredentialRegistration>> pendingRegistrations = tenant.getRegistrations()
+                .getRegistrationsByUsernameAsync(username);
+
         ByteArray id;
         try {
             id = ByteArray.fromBase64Url(uid);
         } catch (Base64UrlException e) {
             log.error("ByteArray.fromBase64Url exception", e);
+            pendingRegistrations.cancel(true);
             return e;
         }
+        final ByteArray requestId = generateRandom(32);
 
-        final Collection<CredentialRegistration> registrations = userStorage.getRegistrationsByUsername(username);
+        final Collection<CredentialRegistration> registrations = StorageExecutor.await(pendingRegistrations);
         final Optional<UserIdentity> existingUser = registrations.stream().findAny()
                 .map(CredentialRegistration::getUserIdentity);
 
@@ -221,8 +222,8 @@ public class App implements RequestHandler<Object, Object> {
                 displayName,
                 "New Credential",
                 requireResidentKey,
-                generateRandom(32),
-                rp.startRegistration(
+                requestId,
+                tenant.getRp().startRegistration(
                         StartRegistrationOptions.builder()
                                 .user(registrationUserId)
                                 .authenticatorSelection(AuthenticatorSelectionCriteria.builder()
@@ -235,7 +236,7 @@ public class App implements RequestHandler<Object, Object> {
                                         .build())
                                 .build()));
         log.debug("request: {}", request);
-        registerRequestStorage.put(request.getRequestId(), request);
+        tenant.getRegistrationRequests().put(request.getRequestId(), request);
 
         String registerRequestJson = gson.toJson(request, RegistrationRequest.class);
         log.debug("registerRequestJson: {}", registerRequestJson);
@@ -252,146 +253,218 @@ public class App implements RequestHandler<Object, Object> {
         return null;
     }
 
-    Object finishRegistration(JsonObject responseJson) {
+    Object finishRegistration(Tenant tenant, JsonObject responseJson) {
         log.debug("finishRegistration responseJson: {}", responseJson);
 
+        final Optional<Object> remembered = tenant.getFinishResults().getIfPresent("finishRegistration", responseJson);
+        if (remembered.isPresent()) {
+            log.info("Returning the outcome of an identical finishRegistration already finished");
+            return remembered.get();
+        }
+
+        final String json = responseJson.toString();
+        final Optional<Exception> oversized = tenant.getPrecheck().checkSize(json);
+        if (oversized.isPresent()) {
+            return oversized.get();
+        }
+
         RegistrationResponse response;
         try {
-            response = jsonMapper.readValue(responseJson.toString(), RegistrationResponse.class);
+            response = jsonMapper.readValue(json, RegistrationResponse.class);
         } catch (Exception e) {
             log.error("JSON error in finishRegistration. Failed to decode response object.", e);
-            return e;
+            return tenant.getPrecheck().malformed(e);
         }
 
         log.debug("response: {}", response);
 
-        RegistrationRequest request = registerRequestStorage.getIfPresent(response.getRequestId());
+        final Optional<Exception> rejected = tenant.getPrecheck().checkRegistration(response);
+        if (rejected.isPresent()) {
+            return rejected.get();
+        }
+
+        RegistrationRequest request = tenant.getRegistrationRequests().getIfPresent(response.getRequestId());
         log.debug("request: {}", request);
-        registerRequestStorage.invalidate(response.getRequestId());
+        // The request is single-use whatever the outcome; delete it while the response is verified and stored
+        CompletableFuture<Boolean> invalidated = tenant.getRegistrationRequests().invalidateAsync(response.getRequestId());
 
-        if (request == null) {
-            String msg = "fail finishRegistration - no such registration in progress: {}" + response.getRequestId();
-            log.error(msg);
-            return new Exception(msg);
-        } else {
-            try {
-                com.yubico.webauthn.RegistrationResult registration = rp.finishRegistration(
-                        FinishRegistrationOptions.builder()
-                                .request(request.getPublicKeyCredentialCreationOptions())
-                                .response(response.getCredential())
-                                .build());
-                log.debug("registration: {}", registration);
-
-                return addRegistration(
-                        request.getPublicKeyCredentialCreationOptions().getUser(),
-                        response,
-                        registration,
-                        request);
-            } catch (RegistrationFailedException e) {
-                log.error("Registration failed!", e);
-                return e;
-            } catch (Exception e) {
-                log.error("Registration failed unexpectedly; this is likely a bug.", e);
-                return e;
-            }
+        try {
+            return tenant.getFinishResults().finish("finishRegistration", responseJson, request, () -> {
+                String msg = "fail finishRegistration - no such registration in progress: {}" + response.getRequestId();
+                log.error(msg);
+                return new Exception(msg);
+            }, found -> verifyRegistration(tenant, found, response));
+        } finally {
+            StorageExecutor.await(invalidated);
+        }
+    }
+
+    private Object verifyRegistration(Tenant tenant, RegistrationRequest request, RegistrationResponse response) {
+        try {
+            com.yubico.webauthn.RegistrationResult registration = tenant.getRp().finishRegistration(
+                    FinishRegistrationOptions.builder()
+                            .request(request.getPublicKeyCredentialCreationOptions())
+                            .response(response.getCredential())
+                            .build());
+            log.debug("registration: {}", registration);
+
+            return addRegistration(
+                    tenant,
+                    request.getPublicKeyCredentialCreationOptions().getUser(),
+                    response,
+                    registration,
+                    request);
+        } catch (RegistrationFailedException e) {
+            log.error("Registration failed!", e);
+            return e;
+        } catch (Exception e) {
+            log.error("Registration failed unexpectedly; this is likely a bug.", e);
+            return e;
         }
     }
 
-    Object startAuthentication(JsonObject jsonRequest) {
+    Object startAuthentication(Tenant tenant, JsonObject jsonRequest) {
         JsonElement jsonElement = jsonRequest.get("username");
         Optional<String> username = Optional.ofNullable(jsonElement).map(JsonElement::getAsString);
 
         log.debug("startAuthentication username: {}", username);
 
-        if (username.isPresent() && !userStorage.userExists(username.get())) {
+        if (username.isPresent() && !tenant.getRegistrations().userExists(username.get())) {
             String msg = "The username \"" + username + "\" is not registered.";
             return new Exception(msg);
         } else {
+            AssertionRequest assertionRequest = tenant.getRp().startAssertion(
+                    StartAssertionOptions.builder()
+                            .username(username)
+                            .userVerification(UserVerificationRequirement.PREFERRED)
+                            .build());
+            Long generation = null;
+            List<CredentialSnapshot> snapshot = null;
+            if (username.isPresent() && Config.isAssertionCredentialSnapshot()) {
+                // Read before the credentials, so a change in between shows up as a newer generation at finish
+                generation = tenant.getGenerations().get(username.get());
+                snapshot = credentialSnapshot(tenant, username.get());
+            }
             AssertionRequestWrapper request = new AssertionRequestWrapper(
                     generateRandom(32),
-                    rp.startAssertion(
-                            StartAssertionOptions.builder()
-                                    .username(username)
-                                    .userVerification(UserVerificationRequirement.PREFERRED)
-                                    .build()));
+                    assertionRequest,
+                    snapshot,
+                    generation);
 
             log.debug("request: {}", request);
-            assertRequestStorage.put(request.getRequestId(), request);
+            tenant.getAssertionRequests().put(request.getRequestId(), request);
 
-            String authRequestJson = gson.toJson(request, AssertionRequestWrapper.class);
+            // The snapshot stays on the server
+            String authRequestJson = gson.toJson(
+                    new AssertionRequestWrapper(request.getRequestId(), assertionRequest),
+                    AssertionRequestWrapper.class);
             log.debug("authRequestJson: {}", authRequestJson);
 
             return authRequestJson;
         }
     }
 
-    Object finishAuthentication(JsonObject responseJson) {
+    Object finishAuthentication(Tenant tenant, JsonObject responseJson) {
         log.debug("finishAuthentication responseJson: {}", responseJson);
 
+        final Optional<Object> remembered = tenant.getFinishResults().getIfPresent("finishAuthentication", responseJson);
+        if (remembered.isPresent()) {
+            log.info("Returning the outcome of an identical finishAuthentication already finished");
+            return remembered.get();
+        }
+
+        final String json = responseJson.toString();
+        final Optional<Exception> oversized = tenant.getPrecheck().checkSize(json);
+        if (oversized.isPresent()) {
+            return oversized.get();
+        }
+
         final AssertionResponse response;
         try {
-            response = jsonMapper.readValue(responseJson.toString(), AssertionResponse.class);
+            response = jsonMapper.readValue(json, AssertionResponse.class);
         } catch (Exception e) {
             log.error("Assertion failed! Failed to decode response object", e);
-            return e;
+            return tenant.getPrecheck().malformed(e);
         }
         log.debug("finishAuthentication response: {}", response);
 
-        AssertionRequestWrapper request = assertRequestStorage.getIfPresent(response.getRequestId());
+        final Optional<Exception> rejected = tenant.getPrecheck().checkAssertion(response);
+        if (rejected.isPresent()) {
+            return rejected.get();
+        }
+
+        AssertionRequestWrapper request = tenant.getAssertionRequests().getIfPresent(response.getRequestId());
         log.debug("finishAuthentication request: {}", request);
-        assertRequestStorage.invalidate(response.getRequestId());
+        if (request != null) {
+            CredentialSnapshots.current(request, tenant.getGenerations()).ifPresent(credentials ->
+                    tenant.getRegistrations().rememberCredentials(request.getUsername().get(), credentials));
+        }
+        // The request is single-use whatever the outcome; delete it while the assertion is verified
+        CompletableFuture<Boolean> invalidated = tenant.getAssertionRequests().invalidateAsync(response.getRequestId());
 
-        if (request == null) {
-            String msg = "Assertion failed!" + "No such assertion in progress: " + response.getRequestId();
-            log.error(msg);
-            return new Exception(msg);
-        } else {
-            try {
-                FinishAssertionOptions finishAssertionOptions = FinishAssertionOptions.builder()
-                        .request(request.getRequest())
-                        .response(response.getCredential())
-                        .build();
-                log.debug("finishAuthentication finishAssertionOptions: {}", finishAssertionOptions);
-
-                AssertionResult result = rp.finishAssertion(
-                        FinishAssertionOptions.builder()
-                                .request(request.getRequest())
-                                .response(response.getCredential())
-                                .build());
-
-                if (result.isSuccess()) {
-                    try {
-                        userStorage.updateSignatureCount(result);
-                    } catch (Exception e) {
-                        log.error(
-                                "Failed to update signature count for user \"{}\", credential \"{}\"",
-                                result.getUsername(),
-                                response.getCredential().getId(),
-                                e);
-                    }
-
-                    log.debug("result: {}", result);
-                    return result;
-                } else {
-                    String msg = "Assertion failed: Invalid assertion.";
-                    log.error(msg);
-                    return new Exception(msg);
+        try {
+            return tenant.getFinishResults().finish("finishAuthentication", responseJson, request, () -> {
+                String msg = "Assertion failed!" + "No such assertion in progress: " + response.getRequestId();
+                log.error(msg);
+                return new Exception(msg);
+            }, found -> verifyAssertion(tenant, found, response));
+        } finally {
+            StorageExecutor.await(invalidated);
+        }
+    }
+
+    private Object verifyAssertion(Tenant tenant, AssertionRequestWrapper request, AssertionResponse response) {
+        try {
+            FinishAssertionOptions finishAssertionOptions = FinishAssertionOptions.builder()
+                    .request(request.getRequest())
+                    .response(response.getCredential())
+                    .build();
+            log.debug("finishAuthentication finishAssertionOptions: {}", finishAssertionOptions);
+
+            AssertionResult result = tenant.getRp().finishAssertion(
+                    FinishAssertionOptions.builder()
+                            .request(request.getRequest())
+                            .response(response.getCredential())
+                            .build());
+
+            if (result.isSuccess()) {
+                try {
+                    tenant.getRegistrations().updateSignatureCount(result);
+                } catch (Exception e) {
+                    log.error(
+                            "Failed to update signature count for user \"{}\", credential \"{}\"",
+                            result.getUsername(),
+                            response.getCredential().getId(),
+                            e);
                 }
-            } catch (AssertionFailedException e) {
-                log.debug("Assertion failed", e);
-                return e;
-            } catch (Exception e) {
-                log.error("Assertion failed unexpectedly; this is likely a bug.", e);
-                return e;
+
+                log.debug("result: {}", result);
+                return result;
+            } else {
+                String msg = "Assertion failed: Invalid assertion.";
+                log.error(msg);
+                return new Exception(msg);
             }
+        } catch (AssertionFailedException e) {
+            log.debug("Assertion failed", e);
+            return e;
+        } catch (Exception e) {
+            log.error("Assertion failed unexpectedly; this is likely a bug.", e);
+            return e;
         }
     }
 
-    Object getCredentialIdsForUsername(JsonObject jsonRequest) {
+    Object warmup(Tenant tenant) {
+        String report = gson.toJson(warmup.run(tenant, generateRandom(32)));
+        log.info("warmup: {}", report);
+        return report;
+    }
+
+    Object getCredentialIdsForUsername(Tenant tenant, JsonObject jsonRequest) {
         String username = jsonRequest.get("username").getAsString();
         log.trace("getCredentialIdsForUsername username: {}", username);
 
-        Collection<PublicKeyCredentialDescriptor> credentials = userStorage.getCredentialIdsForUsername(username);
+        Collection<PublicKeyCredentialDescriptor> credentials = tenant.getRegistrations().getCredentialIdsForUsername(username);
         log.debug("credentials: {}", credentials);
 
         String credentialsRequestJson = gson.toJson(credentials, Collection.class);
@@ -400,11 +473,11 @@ public class App implements RequestHandler<Object, Object> {
         return credentialsRequestJson;
     }
 
-    Object getRegistrationsByUsername(JsonObject jsonRequest) {
+    Object getRegistrationsByUsername(Tenant tenant, JsonObject jsonRequest) {
         String username = jsonRequest.get("username").getAsString();
         log.trace("getRegistrationsByUsername username: {}", username);
 
-        Collection<CredentialRegistration> credentials = userStorage.getRegistrationsByUsername(username);
+        Collection<CredentialRegistration> credentials = tenant.getRegistrations().getRegistrationsByUsername(username);
         log.debug("credentials: {}", credentials);
 
         String credentialsRequestJson = gson.toJson(credentials, Collection.class);
@@ -414,7 +487,7 @@ public class App implements RequestHandler<Object, Object> {
 
     }
 
-    Object updateCredentialNickname(JsonObject jsonRequest) {
+    Object updateCredentialNickname(Tenant tenant, JsonObject jsonRequest) {
         String username = jsonRequest.get("username").getAsString();
         String credentialId = jsonRequest.get("credentialId").getAsString();
         String nickname = jsonRequest.get("nickname").getAsString();
@@ -423,7 +496,7 @@ public class App implements RequestHandler<Object, Object> {
 
         try {
             ByteArray id = ByteArray.fromBase64Url(credentialId);
-            userStorage.updateCredentialNickname(username, id, nickname);
+            tenant.getRegistrations().updateCredentialNickname(username, id, nickname);
             return true;
         } catch (Exception e) {
             log.error("updateCredentialNickname error", e);
@@ -431,7 +504,7 @@ public class App implements RequestHandler<Object, Object> {
         }
     }
 
-    Object removeRegistrationByUsername(JsonObject jsonRequest) {
+    Object removeRegistrationByUsername(Tenant tenant, JsonObject jsonRequest) {
         String username = jsonRequest.get("username").getAsString();
         String credentialId = jsonRequest.get("credentialId").getAsString();
         log.trace("removeRegistrationByUsername username: {}", username);
@@ -439,8 +512,8 @@ public class App implements RequestHandler<Object, Object> {
         try {
             ByteArray id = ByteArray.fromBase64Url(credentialId);
 
-            return userStorage.getRegistrationByUsernameAndCredentialId(username, id)
-                    .map(registration -> userStorage.removeRegistrationByUsername(username, registration))
+            return tenant.getRegistrations().getRegistrationByUsernameAndCredentialId(username, id)
+                    .map(registration -> tenant.getRegistrations().removeRegistrationByUsername(username, registration))
                     .orElse(false);
         } catch (Exception e) {
             log.error("removeRegistrationByUsername error", e);
@@ -448,31 +521,42 @@ public class App implements RequestHandler<Object, Object> {
         }
     }
 
-    Object removeAllRegistrations(JsonObject jsonRequest) {
+    Object removeAllRegistrations(Tenant tenant, JsonObject jsonRequest) {
         String username = jsonRequest.get("username").getAsString();
         log.trace("removeAllRegistrations username: {}", username);
 
-        return userStorage.removeAllRegistrations(username);
+        return tenant.getRegistrations().removeAllRegistrations(username);
+    }
+
+    /**
+     * The user's credentials as read for this request. Verifying an assertion against them later replaces the
+     * credential lookups with a read of the user's generation; it does not save a round trip overall, since the
+     * generation is also read here and the signature count update still reads the registration it writes back.
+     * Signature counts in it can lag behind a concurrent login by the same credential.
+     */
+    private List<CredentialSnapshot> credentialSnapshot(Tenant tenant, String username) {
+        return tenant.getRegistrations().getRegistrationsByUsername(username).stream()
+                .map(reg -> CredentialSnapshot.of(RegisteredCredential.builder()
+                        .credentialId(reg.getCredential().getCredentialId())
+                        .userHandle(reg.getUserIdentity().getId())
+                        .publicKeyCose(reg.getCredential().getPublicKeyCose())
+                        .signatureCount(reg.getSignatureCount())
+                        .build()))
+                .collect(Collectors.toList());
     }
 
     private static ByteArray generateRandom(int length) {
-        byte[] bytes = new byte[length];
-        random.nextBytes(bytes);
-        return new ByteArray(bytes);
+        return new ByteArray(random.nextBytes(length));
     }
 
     private CredentialRegistration addRegistration(
+            Tenant tenant,
             UserIdentity userIdentity,
             RegistrationResponse response,
             RegistrationResult result,
             RegistrationRequest request) {
         Optional<AttestationRegistration> attestationMetadata = buildAttestationResult(result);
-        Optional<String> nickname = Optional.empty();
-        if (attestationMetadata.isPresent()) {
-            if (attestationMetadata.get().description != null) {
-                nickname = Optional.ofNullable(attestationMetadata.get().description);
-            }
-        }
+        Optional<String> nickname = attestationMetadata.map(metadata -> metadata.description);
         if (!nickname.isPresent()) {
             log.debug("addRegistration Evaluate AuthSelection: No attestation found");
             Optional<AuthenticatorSelectionCriteria> evaluate = request.publicKeyCredentialCreationOptions
@@ -491,6 +575,7 @@ public class App implements RequestHandler<Object, Object> {
             nickname = Optional.ofNullable("My Security Key");
         }
         return addRegistration(
+                tenant,
                 userIdentity,
                 nickname,
                 response.getCredential().getResponse().getAttestation().getAuthenticatorData().getSignatureCounter(),
@@ -506,18 +591,20 @@ public class App implements RequestHandler<Object, Object> {
     }
 
     private CredentialRegistration addRegistration(
+            Tenant tenant,
             UserIdentity userIdentity,
             Optional<String> nickname,
             long signatureCount,
             RegisteredCredential credential,
             Optional<AttestationRegistration> attestationMetadata,
             RegistrationRequest request) {
+        Instant now = clock.instant();
         CredentialRegistration reg = CredentialRegistration.builder()
                 .userIdentity(userIdentity)
                 .credentialNickname(nickname)
-                .registrationTime(clock.instant())
-                .lastUsedTime(clock.instant())
-                .lastUpdatedTime(clock.instant())
+                .registrationTime(now)
+                .lastUsedTime(now)
+                .lastUpdatedTime(now)
                 .credential(credential)
                 .signatureCount(signatureCount)
                 .registrationRequest(request)
@@ -529,7 +616,7 @@ public class App implements RequestHandler<Object, Object> {
                 userIdentity,
                 nickname,
                 credential);
-        userStorage.addRegistrationByUsername(userIdentity.getName(), reg);
+        tenant.getRegistrations().addRegistrationByUsername(userIdentity.getName(), reg);
         return reg;
     }
 
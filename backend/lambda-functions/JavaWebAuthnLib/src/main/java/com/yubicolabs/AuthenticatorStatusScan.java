@@ -0,0 +1,413 @@
+package com.yubicolabs;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.yubico.fido.metadata.AuthenticatorStatus;
+import com.yubico.fido.metadata.MetadataBLOB;
+import com.yubico.fido.metadata.MetadataBLOBPayloadEntry;
+import com.yubico.fido.metadata.StatusReport;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.exception.Base64UrlException;
+import com.yubico.webauthn.data.exception.HexException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Operator entry point for finding the credentials of authenticator models whose MDS status has changed, e.g. when an
+ * attestation key is reported compromised. Deploy the WebAuthn function's code with the handler
+ * {@code com.yubicolabs.AuthenticatorStatusScan::handleRequest} and the same environment, then invoke it with one of:
+ *
+ * <ul>
+ * <li>{@code {"step": "create"}} adds the {@code aaguid} column and its index to {@code credentialRegistrationsV2} and
+ * creates {@code authenticatorStatuses}. Run it before deploying a WebAuthn function that writes the column.</li>
+ * <li>{@code {"step": "backfill"}} fills the column of registrations stored before it existed. While the result has a
+ * {@code cursor}, invoke again passing it on.</li>
+ * <li>{@code {"step": "scan", "aaguids": ["..."]}} lists the credentials of the given authenticator models.</li>
+ * <li>{@code {"step": "refresh"}} loads the MDS BLOB and scans the models whose latest status has newly become one of
+ * {@code statuses} since the previous refresh. Meant to be invoked on a schedule.</li>
+ * </ul>
+ *
+ * <p>A scan splits the credential ID hash space of each model into {@code parallelism} ranges, which are read
+ * concurrently one page of {@code batchSize} keys at a time. Credentials found are logged and, given a {@code path},
+ * appended to that file one JSON object per line. A scan that runs out of time returns {@code cursors}; invoke
+ * {@code {"step": "scan", "cursors": {...}}} to finish it.
+ */
+@Slf4j
+public class AuthenticatorStatusScan implements RequestHandler<Object, Object> {
+
+    private static final int DEFAULT_BATCH_SIZE = 500;
+    private static final int DEFAULT_PARALLELISM = 4;
+    private static final Set<String> DEFAULT_STATUSES = new HashSet<>(Arrays.asList(
+        AuthenticatorStatus.REVOKED.name(),
+        AuthenticatorStatus.ATTESTATION_KEY_COMPROMISE.name(),
+        AuthenticatorStatus.USER_VERIFICATION_BYPASS.name(),
+        AuthenticatorStatus.USER_KEY_REMOTE_COMPROMISE.name(),
+        AuthenticatorStatus.USER_KEY_PHYSICAL_COMPROMISE.name()));
+
+    // Longer than any credential ID hash, and greater than all of them
+    private static final ByteArray END = new ByteArray(repeat((byte) 0xff, 33));
+
+    private final Gson gson = new Gson();
+    private final RegistrationAaguidIndex index;
+
+    public AuthenticatorStatusScan() {
+        this(StorageFactory.registrationAaguidIndex());
+    }
+
+    public AuthenticatorStatusScan(RegistrationAaguidIndex index) {
+        this.index = index;
+    }
+
+    @Override
+    public Object handleRequest(final Object input, final Context context) {
+        log.info("EVENT: {}", gson.toJson(input));
+
+        final JsonObject object = gson.fromJson(gson.toJson(input), JsonObject.class);
+        final String step = object.get("step").getAsString();
+        final int batchSize = object.has("batchSize") ? object.get("batchSize").getAsInt() : DEFAULT_BATCH_SIZE;
+        final int parallelism = object.has("parallelism") ? object.get("parallelism").getAsInt() : DEFAULT_PARALLELISM;
+        final Optional<Path> path = object.has("path") ? Optional.of(Paths.get(object.get("path").getAsString())) : Optional.empty();
+
+        RequestDeadline.begin(context, Config.getDeadlineReserve(), Config.getStorageRetryBudget());
+        try {
+            final Map<String, Object> result;
+            switch (step) {
+                case "create":
+                    index.createAaguidIndex();
+                    result = new LinkedHashMap<>();
+                    break;
+                case "backfill":
+                    result = backfill(object.has("cursor") ? object.get("cursor").getAsString() : "", batchSize);
+                    break;
+                case "scan":
+                    final List<Range> ranges;
+                    if (object.has("cursors")) {
+                        final Map<String, String> cursors = new LinkedHashMap<>();
+                        object.getAsJsonObject("cursors").entrySet().forEach(cursor -> cursors.put(cursor.getKey(), cursor.getValue().getAsString()));
+                        ranges = ranges(cursors);
+                    } else {
+                        ranges = ranges(StreamSupport.stream(object.getAsJsonArray("aaguids").spliterator(), false)
+                            .map(aaguid -> parseAaguid(aaguid.getAsString()))
+                            .collect(Collectors.toList()), parallelism);
+                    }
+                    result = scan(ranges, parallelism, batchSize, path).toResult();
+                    break;
+                case "refresh":
+                    final Set<String> statuses = object.has("statuses")
+                        ? StreamSupport.stream(object.getAsJsonArray("statuses").spliterator(), false).map(JsonElement::getAsString).collect(Collectors.toSet())
+                        : DEFAULT_STATUSES;
+                    result = refresh(loadBlob(), statuses, parallelism, batchSize, path);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown scan step: " + step);
+            }
+            result.put("step", step);
+            log.info("{}: {}", step, result);
+            return result;
+        } finally {
+            RequestDeadline.end();
+        }
+    }
+
+    Map<String, Object> backfill(String cursor, int batchSize) {
+        int scanned = 0;
+        int updated = 0;
+        Optional<String> next = Optional.of(cursor);
+        long slowestBatchNanos = 0;
+
+        while (next.isPresent() && RequestDeadline.current().remainingNanos() > 2 * slowestBatchNanos) {
+            final long start = System.nanoTime();
+            final RegistrationBackfillBatch batch = index.backfillAaguids(next.get(), batchSize);
+            slowestBatchNanos = Math.max(slowestBatchNanos, System.nanoTime() - start);
+
+            scanned += batch.getScanned();
+            updated += batch.getUpdated();
+            next = batch.getNext();
+        }
+
+        final Map<String, Object> result = new LinkedHashMap<>();
+        result.put("scanned", scanned);
+        result.put("updated", updated);
+        next.ifPresent(c -> result.put("cursor", c));
+        Metrics.of("AuthenticatorStatusScan").count("BackfillScanned", scanned).count("BackfillUpdated", updated).publish();
+        return result;
+    }
+
+    /**
+     * Scans the models whose latest status in the BLOB is one of {@code statuses} and differs from the one recorded by
+     * the previous refresh, then records the statuses of all models. The status of a model whose scan did not finish
+     * is left as it was, so the next refresh scans it again.
+     */
+    Map<String, Object> refresh(MetadataBLOB blob, Set<String> statuses, int parallelism, int batchSize, Optional<Path> path) {
+        final Map<ByteArray, String> previous = index.getAuthenticatorStatuses();
+        final Map<ByteArray, String> current = new HashMap<>();
+        for (MetadataBLOBPayloadEntry entry : blob.getPayload().getEntries()) {
+            entry.getAaguid().ifPresent(aaguid -> latestStatus(entry)
+                .ifPresent(status -> current.put(aaguid.asBytes(), status.name())));
+        }
+
+        final List<ByteArray> changed = current.entrySet().stream()
+            .filter(status -> statuses.contains(status.getValue()) && !status.getValue().equals(previous.get(status.getKey())))
+            .map(Map.Entry::getKey)
+            .collect(Collectors.toList());
+        changed.forEach(aaguid -> log.warn("Authenticator model {} is now {}", aaguid.getHex(), current.get(aaguid)));
+
+        final ScanOutcome outcome = scan(ranges(changed, parallelism), parallelism, batchSize, path);
+
+        final Set<String> unfinished = outcome.getCursors().keySet().stream()
+            .map(key -> key.substring(0, key.indexOf('/')))
+            .collect(Collectors.toSet());
+        final Map<ByteArray, String> recorded = current.entrySet().stream()
+            .filter(status -> !status.getValue().equals(previous.get(status.getKey())))
+            .filter(status -> !unfinished.contains(status.getKey().getHex()))
+            .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+        index.putAuthenticatorStatuses(recorded);
+
+        final Map<String, Object> result = outcome.toResult();
+        result.put("blob", blob.getPayload().getNo());
+        result.put("changed", changed.stream().map(ByteArray::getHex).collect(Collectors.toList()));
+        Metrics.of("AuthenticatorStatusScan").count("ModelsChanged", changed.size()).publish();
+        return result;
+    }
+
+    /**
+     * Reads the given ranges concurrently until each is exhausted or its next page might not be read before the
+     * deadline.
+     */
+    ScanOutcome scan(List<Range> ranges, int parallelism, int batchSize, Optional<Path> path) {
+        final RequestDeadline deadline = RequestDeadline.current();
+        final AtomicInteger found = new AtomicInteger();
+        final Map<String, String> cursors = new LinkedHashMap<>();
+
+        try (Sink sink = new Sink(path)) {
+            final ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, ranges.size())));
+            try {
+                final List<Future<Optional<ByteArray>>> remaining = new ArrayList<>();
+                for (Range range : ranges) {
+                    remaining.add(pool.submit(() -> scan(range, deadline, batchSize, key -> {
+                        found.incrementAndGet();
+                        sink.write(range.getAaguid(), key);
+                    })));
+                }
+                for (int i = 0; i < ranges.size(); i++) {
+                    final Range range = ranges.get(i);
+                    remaining.get(i).get().ifPresent(after -> cursors.put(range.cursorKey(), after.getBase64Url()));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new StorageException("Interrupted during the scan; rerun it", e);
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof RuntimeException
+                    ? (RuntimeException) e.getCause()
+                    : new StorageException("Scan failed", e.getCause());
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+
+        Metrics.of("AuthenticatorStatusScan").count("CredentialsFound", found.get()).publish();
+        return new ScanOutcome(found.get(), cursors);
+    }
+
+    /**
+     * @return where to continue, if the range was not read to its end
+     */
+    private Optional<ByteArray> scan(Range range, RequestDeadline deadline, int batchSize, Consumer<RegistrationKey> consumer) {
+        ByteArray after = range.getAfter();
+        long slowestBatchNanos = 0;
+        while (deadline.remainingNanos() > 2 * slowestBatchNanos) {
+            final long start = System.nanoTime();
+            final RegistrationKeyPage page = index.scanByAaguid(range.getAaguid(), after, range.getBefore(), batchSize);
+            page.getKeys().forEach(consumer);
+            slowestBatchNanos = Math.max(slowestBatchNanos, System.nanoTime() - start);
+
+            if (!page.getNext().isPresent()) {
+                return Optional.empty();
+            }
+            after = page.getNext().get();
+        }
+        return Optional.of(after);
+    }
+
+    /**
+     * Splits the credential ID hash space of each model into {@code partitions} ranges of equal width.
+     */
+    static List<Range> ranges(List<ByteArray> aaguids, int partitions) {
+        if (partitions < 1 || partitions > 256) {
+            throw new IllegalArgumentException("parallelism must be between 1 and 256");
+        }
+        final List<Range> ranges = new ArrayList<>();
+        for (ByteArray aaguid : aaguids) {
+            for (int partition = 0; partition < partitions; partition++) {
+                ranges.add(new Range(aaguid, partition, partitions, lowerBound(partition, partitions)));
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * @param cursors as returned by an unfinished scan
+     */
+    static List<Range> ranges(Map<String, String> cursors) {
+        final List<Range> ranges = new ArrayList<>();
+        cursors.forEach((key, after) -> {
+            final String[] parts = key.split("/");
+            try {
+                ranges.add(new Range(ByteArray.fromHex(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), ByteArray.fromBase64Url(after)));
+            } catch (HexException | Base64UrlException | RuntimeException e) {
+                throw new IllegalArgumentException("Malformed cursor: " + key, e);
+            }
+        });
+        return ranges;
+    }
+
+    private static ByteArray lowerBound(int partition, int partitions) {
+        // A hash starting with the byte is greater than the byte alone
+        return partition == 0 ? new ByteArray(new byte[0]) : new ByteArray(new byte[] { (byte) (partition * 256 / partitions) });
+    }
+
+    private static ByteArray parseAaguid(String aaguid) {
+        return AbstractRegistrationStorage.parseAaguid(aaguid)
+            .map(ByteArray::new)
+            .orElseThrow(() -> new IllegalArgumentException("Malformed AAGUID: " + aaguid));
+    }
+
+    /**
+     * @return the status of the report with the latest effective date, later reports winning ties
+     */
+    private static Optional<AuthenticatorStatus> latestStatus(MetadataBLOBPayloadEntry entry) {
+        return entry.getStatusReports().stream()
+            .reduce((a, b) -> effectiveDate(b).compareTo(effectiveDate(a)) >= 0 ? b : a)
+            .map(StatusReport::getStatus);
+    }
+
+    private static LocalDate effectiveDate(StatusReport report) {
+        return report.getEffectiveDate().orElse(LocalDate.MIN);
+    }
+
+    private static MetadataBLOB loadBlob() {
+        try {
+            return FidoMetadata.loadBlob();
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to load the MDS BLOB", e);
+        }
+    }
+
+    private static byte[] repeat(byte value, int count) {
+        final byte[] bytes = new byte[count];
+        Arrays.fill(bytes, value);
+        return bytes;
+    }
+
+    /**
+     * One model's credentials whose credential ID hash lies in one partition of the hash space, from a cursor on.
+     */
+    @Value
+    static class Range {
+        ByteArray aaguid;
+        int partition;
+        int partitions;
+        ByteArray after;
+
+        ByteArray getBefore() {
+            return partition == partitions - 1 ? END : new ByteArray(new byte[] { (byte) ((partition + 1) * 256 / partitions) });
+        }
+
+        String cursorKey() {
+            return aaguid.getHex() + "/" + partition + "/" + partitions;
+        }
+    }
+
+    @Value
+    static class ScanOutcome {
+        int found;
+
+        /** Where each unfinished range continues, by {@link Range#cursorKey}. */
+        Map<String, String> cursors;
+
+        Map<String, Object> toResult() {
+            final Map<String, Object> result = new LinkedHashMap<>();
+            result.put("found", found);
+            if (!cursors.isEmpty()) {
+                result.put("cursors", cursors);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Where found credentials go: the log, and the output file if there is one.
+     */
+    private class Sink implements AutoCloseable {
+        private final Optional<Writer> out;
+
+        Sink(Optional<Path> path) {
+            try {
+                this.out = path.isPresent()
+                    ? Optional.of(Files.newBufferedWriter(path.get(), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND))
+                    : Optional.empty();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to open " + path.get(), e);
+            }
+        }
+
+        synchronized void write(ByteArray aaguid, RegistrationKey key) {
+            log.info("Credential {} of user {} is of authenticator model {}", key.getCredentialId().getBase64Url(), key.getUsername(), aaguid.getHex());
+            if (!out.isPresent()) {
+                return;
+            }
+            final Map<String, String> line = new LinkedHashMap<>();
+            line.put("aaguid", aaguid.getHex());
+            line.put("username", key.getUsername());
+            line.put("userHandle", key.getUserHandle().getBase64Url());
+            line.put("credentialId", key.getCredentialId().getBase64Url());
+            try {
+                out.get().write(gson.toJson(line));
+                out.get().write('\n');
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to write the scan output", e);
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                if (out.isPresent()) {
+                    out.get().close();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to write the scan output", e);
+            }
+        }
+    }
+
+}
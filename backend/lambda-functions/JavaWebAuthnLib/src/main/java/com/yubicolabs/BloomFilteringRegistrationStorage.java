@@ -0,0 +1,410 @@
+package com.yubicolabs;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import com.yubico.webauthn.AssertionResult;
+import com.yubico.webauthn.RegisteredCredential;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.PublicKeyCredentialDescriptor;
+import com.yubicolabs.data.CredentialRegistration;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Answers reads for unknown usernames, user handles and credential IDs without asking the delegate.
+ *
+ * <p>Keeps a Bloom filter of the keys of all stored registrations. A key the filter has definitely never seen cannot be
+ * registered, so the read is answered as empty on the spot; every other read goes to the delegate. The filter is
+ * rebuilt from a full key scan in the background every {@code rebuildInterval}, and registrations added by this
+ * instance go into it directly. Registrations added by other instances are picked up by scanning recent rows: on a
+ * miss, if the filter has not been refreshed for {@code refreshInterval}, it is refreshed before the miss is trusted.
+ * A registration made elsewhere can therefore be reported as unknown for at most {@code refreshInterval}.
+ *
+ * <p>Removed registrations stay in the filter until the next rebuild; they only cost a query.
+ *
+ * <p>Publishes its hit counts, expected false positive rate and size through {@link Metrics}.
+ */
+@Slf4j
+public class BloomFilteringRegistrationStorage implements RegistrationStorage {
+
+    private static final long MIN_EXPECTED_KEYS = 10000;
+    private static final Duration METRICS_INTERVAL = Duration.ofMinutes(1);
+
+    // Rows created this long before a scan started are scanned again; creation dates only have second precision and
+    // a registration may commit after the scan that should have seen it
+    private static final Duration SCAN_OVERLAP = Duration.ofSeconds(10);
+
+    private static final byte USERNAME = 1;
+    private static final byte USER_HANDLE = 2;
+    private static final byte CREDENTIAL_ID = 3;
+
+    private final RegistrationStorage delegate;
+    private final RegistrationKeySource keySource;
+    private final double falsePositiveProbability;
+    private final Duration refreshInterval;
+    private final Duration rebuildInterval;
+    private final Clock clock;
+    private final Executor background;
+
+    private final AtomicBoolean rebuilding = new AtomicBoolean();
+    private final Object refreshLock = new Object();
+    private volatile Filter filter;
+
+    private final LongAdder checks = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+    private final LongAdder falsePositives = new LongAdder();
+    private volatile Instant metricsPublishedAt = Instant.MIN;
+
+    public BloomFilteringRegistrationStorage(RegistrationStorage delegate, RegistrationKeySource keySource) {
+        this(
+            delegate,
+            keySource,
+            Config.getMembershipFilterFalsePositiveProbability(),
+            Config.getMembershipFilterRefreshInterval(),
+            Config.getMembershipFilterRebuildInterval(),
+            Clock.systemUTC(),
+            Executors.newSingleThreadExecutor(r -> {
+                final Thread thread = new Thread(r, "membership-filter");
+                thread.setDaemon(true);
+                return thread;
+            })
+        );
+    }
+
+    /**
+     * @param falsePositiveProbability target false positive probability of a freshly built filter
+     * @param refreshInterval          how long a miss may be trusted without looking for new registrations
+     * @param rebuildInterval          how often the filter is rebuilt from a full scan
+     * @param background               runs the rebuilds
+     */
+    public BloomFilteringRegistrationStorage(
+        RegistrationStorage delegate,
+        RegistrationKeySource keySource,
+        double falsePositiveProbability,
+        Duration refreshInterval,
+        Duration rebuildInterval,
+        Clock clock,
+        Executor background
+    ) {
+        this.delegate = delegate;
+        this.keySource = keySource;
+        this.falsePositiveProbability = falsePositiveProbability;
+        this.refreshInterval = refreshInterval;
+        this.rebuildInterval = rebuildInterval;
+        this.clock = clock;
+        this.background = background;
+    }
+
+    @Override
+    public boolean addRegistrationByUsername(String username, CredentialRegistration reg) {
+        remember(reg);
+        return delegate.addRegistrationByUsername(username, reg);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> addRegistrationByUsernameAsync(String username, CredentialRegistration reg) {
+        remember(reg);
+        return delegate.addRegistrationByUsernameAsync(username, reg);
+    }
+
+    @Override
+    public boolean userExists(String username) {
+        if (!mightContain(key(username))) {
+            return false;
+        }
+        final boolean result = delegate.userExists(username);
+        countFalsePositive(!result);
+        return result;
+    }
+
+    @Override
+    public Collection<CredentialRegistration> getRegistrationsByUsername(String username) {
+        if (!mightContain(key(username))) {
+            return Collections.emptyList();
+        }
+        return countFalsePositive(delegate.getRegistrationsByUsername(username));
+    }
+
+    @Override
+    public CompletableFuture<Collection<CredentialRegistration>> getRegistrationsByUsernameAsync(String username) {
+        if (!mightContain(key(username))) {
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        }
+        return delegate.getRegistrationsByUsernameAsync(username).thenApply(this::countFalsePositive);
+    }
+
+    @Override
+    public Collection<CredentialRegistration> getRegistrationsByUserHandle(ByteArray userHandle) {
+        if (!mightContain(key(USER_HANDLE, userHandle))) {
+            return Collections.emptyList();
+        }
+        return countFalsePositive(delegate.getRegistrationsByUserHandle(userHandle));
+    }
+
+    @Override
+    public CompletableFuture<Collection<CredentialRegistration>> getRegistrationsByUserHandleAsync(ByteArray userHandle) {
+        if (!mightContain(key(USER_HANDLE, userHandle))) {
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        }
+        return delegate.getRegistrationsByUserHandleAsync(userHandle).thenApply(this::countFalsePositive);
+    }
+
+    @Override
+    public Optional<CredentialRegistration> getRegistrationByUsernameAndCredentialId(String username, ByteArray credentialId) {
+        if (!mightContain(key(username), key(CREDENTIAL_ID, credentialId))) {
+            return Optional.empty();
+        }
+        return delegate.getRegistrationByUsernameAndCredentialId(username, credentialId);
+    }
+
+    @Override
+    public Set<PublicKeyCredentialDescriptor> getCredentialIdsForUsername(String username) {
+        if (!mightContain(key(username))) {
+            return Collections.emptySet();
+        }
+        return countFalsePositive(delegate.getCredentialIdsForUsername(username));
+    }
+
+    @Override
+    public Optional<ByteArray> getUserHandleForUsername(String username) {
+        if (!mightContain(key(username))) {
+            return Optional.empty();
+        }
+        return delegate.getUserHandleForUsername(username);
+    }
+
+    @Override
+    public Optional<String> getUsernameForUserHandle(ByteArray userHandle) {
+        if (!mightContain(key(USER_HANDLE, userHandle))) {
+            return Optional.empty();
+        }
+        return delegate.getUsernameForUserHandle(userHandle);
+    }
+
+    @Override
+    public Optional<RegisteredCredential> lookup(ByteArray credentialId, ByteArray userHandle) {
+        if (!mightContain(key(CREDENTIAL_ID, credentialId), key(USER_HANDLE, userHandle))) {
+            return Optional.empty();
+        }
+        return delegate.lookup(credentialId, userHandle);
+    }
+
+    @Override
+    public Set<RegisteredCredential> lookupAll(ByteArray credentialId) {
+        if (!mightContain(key(CREDENTIAL_ID, credentialId))) {
+            return Collections.emptySet();
+        }
+        return countFalsePositive(delegate.lookupAll(credentialId));
+    }
+
+    @Override
+    public boolean removeRegistrationByUsername(String username, CredentialRegistration credentialRegistration) {
+        return delegate.removeRegistrationByUsername(username, credentialRegistration);
+    }
+
+    @Override
+    public boolean removeAllRegistrations(String username) {
+        return delegate.removeAllRegistrations(username);
+    }
+
+    @Override
+    public void updateSignatureCount(AssertionResult result) {
+        delegate.updateSignatureCount(result);
+    }
+
+    @Override
+    public void updateCredentialNickname(String username, ByteArray credentialId, String nickname) {
+        delegate.updateCredentialNickname(username, credentialId, nickname);
+    }
+
+    /**
+     * Starts a rebuild now, rather than on first use.
+     */
+    public void rebuildInBackground() {
+        if (rebuilding.compareAndSet(false, true)) {
+            background.execute(() -> {
+                try {
+                    rebuild();
+                } catch (Exception e) {
+                    log.error("Failed to build membership filter", e);
+                } finally {
+                    rebuilding.set(false);
+                }
+            });
+        }
+    }
+
+    private boolean mightContain(byte[]... keys) {
+        checks.increment();
+        final Filter current = filter;
+        if (current == null || clock.instant().isAfter(current.builtAt.plus(rebuildInterval))) {
+            rebuildInBackground();
+        }
+        publishMetricsIfDue(current);
+
+        if (current == null || current.containsAll(keys)) {
+            return true;
+        }
+
+        try {
+            synchronized (refreshLock) {
+                if (!clock.instant().isBefore(current.refreshedAt.plus(refreshInterval))) {
+                    refresh(current);
+                }
+            }
+        } catch (Exception e) {
+            log.warn("Failed to refresh membership filter; not trusting it", e);
+            return true;
+        }
+
+        if (current.containsAll(keys)) {
+            return true;
+        }
+        rejections.increment();
+        return false;
+    }
+
+    private void rebuild() {
+        final Instant start = clock.instant();
+        final List<byte[]> keys = new ArrayList<>();
+        keySource.forEachRegistrationKey(key -> keys.addAll(keys(key)));
+
+        final Filter rebuilt = new Filter(
+            BloomFilter.create(Funnels.byteArrayFunnel(), Math.max(MIN_EXPECTED_KEYS, keys.size() * 2L), falsePositiveProbability),
+            start);
+        keys.forEach(rebuilt.bloom::put);
+        refresh(rebuilt, start);
+        filter = rebuilt;
+
+        log.info("Built membership filter of {} keys in {} ms", keys.size(), Duration.between(start, clock.instant()).toMillis());
+        publishMetrics(rebuilt);
+    }
+
+    private void refresh(Filter target) {
+        refresh(target, target.refreshedAt);
+    }
+
+    private void refresh(Filter target, Instant since) {
+        final Instant start = clock.instant();
+        keySource.forEachRegistrationKeySince(
+            Duration.between(since, start).plus(SCAN_OVERLAP),
+            key -> keys(key).forEach(target.bloom::put));
+        target.refreshedAt = start;
+    }
+
+    private void remember(CredentialRegistration reg) {
+        final Filter current = filter;
+        if (current != null) {
+            current.bloom.put(key(reg.getUsername()));
+            current.bloom.put(key(USER_HANDLE, reg.getUserIdentity().getId()));
+            current.bloom.put(key(CREDENTIAL_ID, reg.getCredential().getCredentialId()));
+        }
+    }
+
+    /**
+     * A read that got past the filter but found nothing was a false positive.
+     */
+    private <C extends Collection<?>> C countFalsePositive(C result) {
+        countFalsePositive(result.isEmpty());
+        return result;
+    }
+
+    private void countFalsePositive(boolean notFound) {
+        if (notFound && filter != null) {
+            falsePositives.increment();
+        }
+    }
+
+    private void publishMetricsIfDue(Filter current) {
+        final Instant now = clock.instant();
+        if (current != null && now.isAfter(metricsPublishedAt.plus(METRICS_INTERVAL))) {
+            metricsPublishedAt = now;
+            publishMetrics(current);
+        }
+    }
+
+    private void publishMetrics(Filter current) {
+        Metrics.of("membershipFilter")
+            .count("Checks", checks.sumThenReset())
+            .count("Rejections", rejections.sumThenReset())
+            .count("FalsePositives", falsePositives.sumThenReset())
+            .count("Keys", current.bloom.approximateElementCount())
+            .value("ExpectedFalsePositiveRate", current.bloom.expectedFpp())
+            .bytes("Size", current.sizeBytes)
+            .publish();
+    }
+
+    private static List<byte[]> keys(RegistrationKey key) {
+        final List<byte[]> result = new ArrayList<>(3);
+        result.add(key(key.getUsername()));
+        result.add(key(USER_HANDLE, key.getUserHandle()));
+        result.add(key(CREDENTIAL_ID, key.getCredentialId()));
+        return result;
+    }
+
+    private static byte[] key(String username) {
+        return key(USERNAME, username.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] key(byte type, ByteArray value) {
+        return key(type, value.getBytes());
+    }
+
+    private static byte[] key(byte type, byte[] value) {
+        final byte[] result = new byte[value.length + 1];
+        result[0] = type;
+        System.arraycopy(value, 0, result, 1, value.length);
+        return result;
+    }
+
+    private static final class Filter {
+        final BloomFilter<byte[]> bloom;
+        final Instant builtAt;
+        final long sizeBytes;
+        volatile Instant refreshedAt;
+
+        Filter(BloomFilter<byte[]> bloom, Instant builtAt) {
+            this.bloom = bloom;
+            this.builtAt = builtAt;
+            this.refreshedAt = builtAt;
+            this.sizeBytes = sizeOf(bloom);
+        }
+
+        boolean containsAll(byte[]... keys) {
+            for (byte[] key : keys) {
+                if (!bloom.mightContain(key)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static long sizeOf(BloomFilter<byte[]> bloom) {
+            final CountingOutputStream out = new CountingOutputStream(ByteStreams.nullOutputStream());
+            try {
+                bloom.writeTo(out);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return out.getCount();
+        }
+    }
+
+}
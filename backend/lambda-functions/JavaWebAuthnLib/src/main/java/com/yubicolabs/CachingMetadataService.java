@@ -0,0 +1,223 @@
+package com.yubicolabs;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.yubico.fido.metadata.FidoMetadataService;
+import com.yubico.fido.metadata.MetadataBLOB;
+import com.yubico.fido.metadata.MetadataBLOBPayloadEntry;
+import com.yubico.webauthn.RegistrationResult;
+import com.yubico.webauthn.attestation.AttestationTrustSource;
+import com.yubico.webauthn.data.ByteArray;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * {@link FidoMetadataService} that remembers which trust roots and metadata entries it found for each attestation
+ * certificate chain, since most registrations come from a few authenticator batches sharing one chain.
+ *
+ * <p>Results are keyed by a SHA-256 fingerprint of the chain, the AAGUID and the number of the BLOB they were found
+ * in. Every {@code refreshInterval} the BLOB is reloaded; when its number changes the cache is emptied, so no result
+ * outlives the BLOB it came from. Until a BLOB has been loaded no trust roots or entries are found, which leaves every
+ * attestation untrusted rather than failing registrations.
+ *
+ * <p>Path validation against the returned roots still runs inside {@code RelyingParty} for every registration; what
+ * is cached is the search of the BLOB and the {@code CertStore} built for it.
+ */
+@Slf4j
+public class CachingMetadataService implements AttestationTrustSource {
+
+    private static CachingMetadataService instance;
+    public static synchronized CachingMetadataService getInstance() {
+        if (instance == null) {
+            instance = new CachingMetadataService(
+                FidoMetadata::loadBlob,
+                Config.getAttestationCacheSize(),
+                Config.getMetadataRefreshInterval(),
+                Clock.systemUTC());
+        }
+        return instance;
+    }
+
+    private final SnapshotLoader loader;
+    private final Duration refreshInterval;
+    private final Clock clock;
+    private final Cache<HashCode, TrustRootsResult> trustRoots;
+    private final Cache<HashCode, Set<MetadataBLOBPayloadEntry>> entries;
+
+    private volatile Snapshot snapshot;
+    private volatile long nextRefreshMillis;
+
+    /**
+     * @param loader    loads the current BLOB, as {@link FidoMetadata#loadBlob()} does
+     * @param cacheSize maximum number of chains remembered, for trust roots and entries each
+     */
+    public CachingMetadataService(Callable<MetadataBLOB> loader, long cacheSize, Duration refreshInterval, Clock clock) {
+        this(() -> Snapshot.of(loader.call()), cacheSize, refreshInterval, clock);
+    }
+
+    /**
+     * @param loader loads the current BLOB and the search over it
+     */
+    CachingMetadataService(SnapshotLoader loader, long cacheSize, Duration refreshInterval, Clock clock) {
+        this.loader = loader;
+        this.refreshInterval = refreshInterval;
+        this.clock = clock;
+        this.trustRoots = CacheBuilder.newBuilder().maximumSize(Math.max(cacheSize, 1)).build();
+        this.entries = CacheBuilder.newBuilder().maximumSize(Math.max(cacheSize, 1)).build();
+        refresh();
+    }
+
+    @Override
+    public TrustRootsResult findTrustRoots(List<X509Certificate> attestationCertificateChain, Optional<ByteArray> aaguid) {
+        refreshIfDue();
+        final Snapshot current = snapshot;
+        if (current == null) {
+            return TrustRootsResult.builder().trustRoots(Collections.emptySet()).build();
+        }
+        final Optional<HashCode> key = fingerprint(current, attestationCertificateChain, aaguid);
+        if (!key.isPresent()) {
+            return current.getSearch().findTrustRoots(attestationCertificateChain, aaguid);
+        }
+        return lookup(trustRoots, key.get(), "TrustRoots",
+            () -> current.getSearch().findTrustRoots(attestationCertificateChain, aaguid));
+    }
+
+    /**
+     * @see FidoMetadataService#findEntries(RegistrationResult)
+     */
+    public Set<MetadataBLOBPayloadEntry> findEntries(RegistrationResult result) {
+        refreshIfDue();
+        final Snapshot current = snapshot;
+        if (current == null) {
+            return Collections.emptySet();
+        }
+        final Optional<HashCode> key = fingerprint(current,
+            result.getAttestationTrustPath().orElse(Collections.emptyList()),
+            Optional.of(result.getAaguid()));
+        if (!key.isPresent()) {
+            return current.getSearch().findEntries(result);
+        }
+        return lookup(entries, key.get(), "Entries", () -> current.getSearch().findEntries(result));
+    }
+
+    /**
+     * @return the number of the BLOB in use, or nothing if none could be loaded yet
+     */
+    public Optional<Integer> getBlobNumber() {
+        refreshIfDue();
+        return Optional.ofNullable(snapshot).map(Snapshot::getNumber);
+    }
+
+    private <T> T lookup(Cache<HashCode, T> cache, HashCode key, String name, Callable<T> find) {
+        final T cached = cache.getIfPresent(key);
+        if (cached != null) {
+            Metrics.of("AttestationTrust").count(name + "Hits", 1).publish();
+            return cached;
+        }
+        try {
+            final T result = cache.get(key, find);
+            Metrics.of("AttestationTrust").count(name + "Misses", 1).publish();
+            return result;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to search the metadata BLOB", e.getCause());
+        }
+    }
+
+    private void refreshIfDue() {
+        if (clock.millis() >= nextRefreshMillis) {
+            refresh();
+        }
+    }
+
+    private synchronized void refresh() {
+        if (clock.millis() < nextRefreshMillis) {
+            return;
+        }
+        nextRefreshMillis = clock.millis() + refreshInterval.toMillis();
+        final Snapshot loaded;
+        try {
+            loaded = loader.load();
+        } catch (Exception e) {
+            log.warn("Failed to load the metadata BLOB; keeping BLOB {}", snapshot == null ? "none" : snapshot.getNumber(), e);
+            return;
+        }
+        final int number = loaded.getNumber();
+        if (snapshot != null && snapshot.getNumber() == number) {
+            return;
+        }
+        snapshot = loaded;
+        trustRoots.invalidateAll();
+        entries.invalidateAll();
+        log.info("Using metadata BLOB {}", number);
+    }
+
+    /**
+     * @return the cache key, or nothing if a certificate cannot be encoded, in which case the caller should not cache
+     */
+    private static Optional<HashCode> fingerprint(Snapshot snapshot, List<X509Certificate> chain, Optional<ByteArray> aaguid) {
+        final Hasher hasher = Hashing.sha256().newHasher().putInt(snapshot.getNumber()).putInt(chain.size());
+        try {
+            for (X509Certificate certificate : chain) {
+                final byte[] encoded = certificate.getEncoded();
+                hasher.putInt(encoded.length).putBytes(encoded);
+            }
+        } catch (CertificateEncodingException e) {
+            log.debug("Not caching trust for an unencodable attestation certificate", e);
+            return Optional.empty();
+        }
+        if (aaguid.isPresent()) {
+            hasher.putBoolean(true).putBytes(aaguid.get().getBytes());
+        } else {
+            hasher.putBoolean(false);
+        }
+        return Optional.of(hasher.hash());
+    }
+
+    /**
+     * The part of {@link FidoMetadataService} searched on a cache miss.
+     */
+    interface Search {
+        TrustRootsResult findTrustRoots(List<X509Certificate> attestationCertificateChain, Optional<ByteArray> aaguid);
+
+        Set<MetadataBLOBPayloadEntry> findEntries(RegistrationResult result);
+    }
+
+    interface SnapshotLoader {
+        Snapshot load() throws Exception;
+    }
+
+    @Value
+    static class Snapshot {
+        int number;
+        Search search;
+
+        static Snapshot of(MetadataBLOB blob) {
+            final FidoMetadataService service = FidoMetadataService.builder().useBlob(blob).build();
+            return new Snapshot(blob.getPayload().getNo(), new Search() {
+                @Override
+                public TrustRootsResult findTrustRoots(List<X509Certificate> chain, Optional<ByteArray> aaguid) {
+                    return service.findTrustRoots(chain, aaguid);
+                }
+
+                @Override
+                public Set<MetadataBLOBPayloadEntry> findEntries(RegistrationResult result) {
+                    return service.findEntries(result);
+                }
+            });
+        }
+    }
+
+}
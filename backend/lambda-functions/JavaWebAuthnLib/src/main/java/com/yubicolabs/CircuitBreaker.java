@@ -0,0 +1,127 @@
+package com.yubicolabs;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Consecutive-failure circuit breaker.
+ *
+ * <p>After {@code failureThreshold} failed calls in a row the circuit opens and calls fail immediately with
+ * {@link CircuitOpenException}. Once {@code openDuration} has passed a single trial call is let through; its success
+ * closes the circuit again, its failure re-opens it.
+ */
+@Slf4j
+public class CircuitBreaker {
+
+    enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final String name;
+    private final int failureThreshold;
+    private final Duration openDuration;
+    private final Clock clock;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private Instant openedAt = Instant.MIN;
+
+    public CircuitBreaker(String name, int failureThreshold, Duration openDuration, Clock clock) {
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.openDuration = openDuration;
+        this.clock = clock;
+    }
+
+    public <T> T call(Supplier<T> call) {
+        acquirePermission();
+        final T result;
+        try {
+            result = call.get();
+        } catch (RuntimeException e) {
+            record(e);
+            throw e;
+        }
+        onSuccess();
+        return result;
+    }
+
+    /**
+     * Like {@link #call}, for a call that completes asynchronously; the outcome is recorded when its future completes.
+     */
+    public <T> CompletableFuture<T> callAsync(Supplier<CompletableFuture<T>> call) {
+        final CompletableFuture<T> result;
+        try {
+            acquirePermission();
+            result = call.get();
+        } catch (CircuitOpenException e) {
+            return StorageExecutor.failed(e);
+        } catch (RuntimeException e) {
+            record(e);
+            return StorageExecutor.failed(e);
+        }
+        return result.whenComplete((value, e) -> record(e));
+    }
+
+    public synchronized boolean isClosed() {
+        return state == State.CLOSED;
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    private synchronized void acquirePermission() {
+        if (state == State.OPEN) {
+            if (clock.instant().isBefore(openedAt.plus(openDuration))) {
+                throw new CircuitOpenException(name);
+            }
+            log.info("Circuit {} half-open; letting a trial call through", name);
+            state = State.HALF_OPEN;
+        } else if (state == State.HALF_OPEN) {
+            // A trial call is already in flight
+            throw new CircuitOpenException(name);
+        }
+    }
+
+    private synchronized void onSuccess() {
+        if (state != State.CLOSED) {
+            log.info("Circuit {} closed", name);
+        }
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+    }
+
+    private void record(Throwable e) {
+        final Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        if (cause != null && isFailure(cause)) {
+            onFailure(cause);
+        } else {
+            onSuccess();
+        }
+    }
+
+    private synchronized void onFailure(Throwable e) {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+            if (state != State.OPEN) {
+                log.warn("Circuit {} opened after {} consecutive failure(s)", name, consecutiveFailures, e);
+            }
+            state = State.OPEN;
+            openedAt = clock.instant();
+        }
+    }
+
+    /**
+     * Errors that describe the request rather than the health of the backend do not count towards opening the
+     * circuit.
+     */
+    private static boolean isFailure(Throwable e) {
+        return !(e instanceof NoSuchElementException || e instanceof IllegalArgumentException);
+    }
+
+}
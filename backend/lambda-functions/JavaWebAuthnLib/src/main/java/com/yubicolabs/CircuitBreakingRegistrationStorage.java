@@ -0,0 +1,391 @@
+package com.yubicolabs;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.yubico.webauthn.AssertionResult;
+import com.yubico.webauthn.RegisteredCredential;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.PublicKeyCredentialDescriptor;
+import com.yubicolabs.data.CredentialRegistration;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Guards a {@link RegistrationStorage} with a {@link CircuitBreaker}.
+ *
+ * <p>While the circuit is open every call fails fast, except:
+ * <ul>
+ *   <li>{@code lookup}, {@code lookupAll} and the username/user handle mappings, which are answered from a bounded
+ *   cache of the last values read successfully, as long as those are younger than the staleness window;</li>
+ *   <li>{@code updateSignatureCount}, which is queued and written once the circuit closes.</li>
+ * </ul>
+ * Credentials served from the cache carry the signature count as of the last read, so counter regressions that
+ * happened during the outage are not detected for them. Deferred updates are flushed after the next successful
+ * blocking call only, so that asynchronous calls never block the thread completing them.
+ *
+ * <p>Changes made through other instances are caught through {@link UserGenerations}: before a blocking read of a
+ * user it knows the username of, the cache reads their generation, at most once per check interval, and if it moved
+ * since it was recorded drops everything it holds for them. Entries of a user whose generation was never recorded are
+ * dropped the same way the first time it is. The generation read goes through the circuit like any other call; when it
+ * fails the cached entries are kept, since that is when they are needed. What the cache cannot see is a change made
+ * elsewhere after the last check, or before it for entries read by credential ID alone that it cannot tie to a user;
+ * those are served until they leave the staleness window.
+ */
+@Slf4j
+public class CircuitBreakingRegistrationStorage implements RegistrationStorage {
+
+    private static final int MAX_DEFERRED_SIGNATURE_COUNTS = 1000;
+
+    private final RegistrationStorage delegate;
+    private final CircuitBreaker breaker;
+    private final UserGenerations generations;
+    private final boolean staleReadsEnabled;
+
+    private final Cache<ByteArray, Set<RegisteredCredential>> credentials;
+    private final Cache<String, ByteArray> userHandles;
+    private final Cache<ByteArray, String> usernames;
+    private final Cache<String, Long> userGenerations;
+    private final Cache<String, Boolean> checkedRecently;
+
+    private final Map<ByteArray, AssertionResult> deferredSignatureCounts = new LinkedHashMap<>();
+
+    public CircuitBreakingRegistrationStorage(RegistrationStorage delegate, UserGenerations generations) {
+        this(
+            delegate,
+            generations,
+            new CircuitBreaker(
+                "credentialStorage",
+                Config.getCircuitFailureThreshold(),
+                Config.getCircuitOpenDuration(),
+                Clock.systemUTC()),
+            Config.getStaleCacheSize(),
+            Config.getStaleCacheWindow(),
+            Config.getStaleCacheCheckInterval()
+        );
+    }
+
+    /**
+     * @param generations    the generations the cached values are checked against
+     * @param staleCacheSize maximum number of credentials kept for stale reads, or 0 to always fail fast
+     * @param staleness      how old a cached value may be and still be served while the circuit is open
+     * @param checkInterval  how long a user's generation, once read, is taken to be current; zero reads it every time
+     */
+    public CircuitBreakingRegistrationStorage(
+        RegistrationStorage delegate,
+        UserGenerations generations,
+        CircuitBreaker breaker,
+        long staleCacheSize,
+        Duration staleness,
+        Duration checkInterval
+    ) {
+        this.delegate = delegate;
+        this.breaker = breaker;
+        this.generations = generations;
+        this.staleReadsEnabled = staleCacheSize > 0;
+        this.credentials = CacheBuilder.newBuilder()
+            .maximumSize(Math.max(staleCacheSize, 1))
+            .expireAfterWrite(staleness)
+            .build();
+        this.userHandles = CacheBuilder.newBuilder()
+            .maximumSize(Math.max(staleCacheSize, 1))
+            .expireAfterWrite(staleness)
+            .build();
+        this.usernames = CacheBuilder.newBuilder()
+            .maximumSize(Math.max(staleCacheSize, 1))
+            .expireAfterWrite(staleness)
+            .build();
+        this.userGenerations = CacheBuilder.newBuilder()
+            .maximumSize(Math.max(staleCacheSize, 1))
+            .expireAfterWrite(staleness)
+            .build();
+        this.checkedRecently = CacheBuilder.newBuilder()
+            .maximumSize(Math.max(staleCacheSize, 1))
+            .expireAfterWrite(checkInterval)
+            .build();
+    }
+
+    @Override
+    public boolean addRegistrationByUsername(String username, CredentialRegistration reg) {
+        return call(() -> delegate.addRegistrationByUsername(username, reg));
+    }
+
+    @Override
+    public Collection<CredentialRegistration> getRegistrationsByUsername(String username) {
+        checkGeneration(username, null);
+        final Collection<CredentialRegistration> result = call(() -> delegate.getRegistrationsByUsername(username));
+        remember(result);
+        return result;
+    }
+
+    @Override
+    public Optional<CredentialRegistration> getRegistrationByUsernameAndCredentialId(String username, ByteArray credentialId) {
+        return call(() -> delegate.getRegistrationByUsernameAndCredentialId(username, credentialId));
+    }
+
+    @Override
+    public Collection<CredentialRegistration> getRegistrationsByUserHandle(ByteArray userHandle) {
+        checkGeneration(userHandle);
+        final Collection<CredentialRegistration> result = call(() -> delegate.getRegistrationsByUserHandle(userHandle));
+        remember(result);
+        return result;
+    }
+
+    @Override
+    public boolean userExists(String username) {
+        return call(() -> delegate.userExists(username));
+    }
+
+    @Override
+    public boolean removeRegistrationByUsername(String username, CredentialRegistration credentialRegistration) {
+        credentials.invalidate(credentialRegistration.getCredential().getCredentialId());
+        return call(() -> delegate.removeRegistrationByUsername(username, credentialRegistration));
+    }
+
+    @Override
+    public boolean removeAllRegistrations(String username) {
+        forget(username);
+        return call(() -> delegate.removeAllRegistrations(username));
+    }
+
+    @Override
+    public void updateSignatureCount(AssertionResult result) {
+        if (!breaker.isClosed()) {
+            defer(result);
+            return;
+        }
+        try {
+            call(() -> {
+                delegate.updateSignatureCount(result);
+                return null;
+            });
+        } catch (CircuitOpenException e) {
+            defer(result);
+        }
+    }
+
+    @Override
+    public void updateCredentialNickname(String username, ByteArray credentialId, String nickname) {
+        call(() -> {
+            delegate.updateCredentialNickname(username, credentialId, nickname);
+            return null;
+        });
+    }
+
+    @Override
+    public Set<PublicKeyCredentialDescriptor> getCredentialIdsForUsername(String username) {
+        return call(() -> delegate.getCredentialIdsForUsername(username));
+    }
+
+    @Override
+    public Optional<ByteArray> getUserHandleForUsername(String username) {
+        try {
+            checkGeneration(username, null);
+            final Optional<ByteArray> result = call(() -> delegate.getUserHandleForUsername(username));
+            result.ifPresent(userHandle -> rememberUser(username, userHandle));
+            return result;
+        } catch (CircuitOpenException e) {
+            return Optional.ofNullable(staleOrThrow(userHandles.getIfPresent(username), e));
+        }
+    }
+
+    @Override
+    public Optional<String> getUsernameForUserHandle(ByteArray userHandle) {
+        try {
+            checkGeneration(userHandle);
+            final Optional<String> result = call(() -> delegate.getUsernameForUserHandle(userHandle));
+            result.ifPresent(username -> rememberUser(username, userHandle));
+            return result;
+        } catch (CircuitOpenException e) {
+            return Optional.ofNullable(staleOrThrow(usernames.getIfPresent(userHandle), e));
+        }
+    }
+
+    @Override
+    public Optional<RegisteredCredential> lookup(ByteArray credentialId, ByteArray userHandle) {
+        try {
+            checkGeneration(userHandle);
+            final Optional<RegisteredCredential> result = call(() -> delegate.lookup(credentialId, userHandle));
+            result.ifPresent(credential -> credentials.put(credentialId, Collections.singleton(credential)));
+            return result;
+        } catch (CircuitOpenException e) {
+            return staleOrThrow(credentials.getIfPresent(credentialId), e).stream()
+                .filter(credential -> credential.getUserHandle().equals(userHandle))
+                .findAny();
+        }
+    }
+
+    @Override
+    public Set<RegisteredCredential> lookupAll(ByteArray credentialId) {
+        try {
+            final Set<RegisteredCredential> result = call(() -> delegate.lookupAll(credentialId));
+            if (!result.isEmpty()) {
+                credentials.put(credentialId, result);
+            }
+            return result;
+        } catch (CircuitOpenException e) {
+            return staleOrThrow(credentials.getIfPresent(credentialId), e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Boolean> addRegistrationByUsernameAsync(String username, CredentialRegistration reg) {
+        return breaker.callAsync(() -> delegate.addRegistrationByUsernameAsync(username, reg));
+    }
+
+    @Override
+    public CompletableFuture<Collection<CredentialRegistration>> getRegistrationsByUsernameAsync(String username) {
+        return breaker.callAsync(() -> delegate.getRegistrationsByUsernameAsync(username))
+            .thenApply(result -> {
+                remember(result);
+                return result;
+            });
+    }
+
+    @Override
+    public CompletableFuture<Collection<CredentialRegistration>> getRegistrationsByUserHandleAsync(ByteArray userHandle) {
+        return breaker.callAsync(() -> delegate.getRegistrationsByUserHandleAsync(userHandle))
+            .thenApply(result -> {
+                remember(result);
+                return result;
+            });
+    }
+
+    private <T> T call(Supplier<T> call) {
+        final T result = breaker.call(call);
+        flushDeferredSignatureCounts();
+        return result;
+    }
+
+    private void checkGeneration(ByteArray userHandle) {
+        final String username = usernames.getIfPresent(userHandle);
+        if (username != null) {
+            checkGeneration(username, userHandle);
+        }
+    }
+
+    /**
+     * Drops what is cached for the user if their generation moved since it was recorded, then records it. Done before
+     * the read, so that a change racing with it moves the generation past the one recorded. A failure other than the
+     * open circuit is the read's failure: it is counted once by the circuit and the read itself is not attempted.
+     */
+    private void checkGeneration(String username, ByteArray userHandle) {
+        if (!staleReadsEnabled || checkedRecently.getIfPresent(username) != null) {
+            return;
+        }
+        final long generation;
+        try {
+            generation = breaker.call(() -> generations.get(username));
+        } catch (CircuitOpenException e) {
+            // The read fails fast as well, and may be answered from what is cached
+            return;
+        }
+        final Long recorded = userGenerations.getIfPresent(username);
+        if (recorded == null || recorded != generation) {
+            forget(username, userHandle);
+            userGenerations.put(username, generation);
+        }
+        checkedRecently.put(username, Boolean.TRUE);
+    }
+
+    private <T> T staleOrThrow(T cached, CircuitOpenException e) {
+        if (staleReadsEnabled && cached != null) {
+            log.debug("Serving stale credential data while circuit is open");
+            return cached;
+        }
+        throw e;
+    }
+
+    private void remember(Collection<CredentialRegistration> registrations) {
+        registrations.forEach(reg -> {
+            rememberUser(reg.getUsername(), reg.getUserIdentity().getId());
+            credentials.put(
+                reg.getCredential().getCredentialId(),
+                Collections.singleton(RegisteredCredential.builder()
+                    .credentialId(reg.getCredential().getCredentialId())
+                    .userHandle(reg.getUserIdentity().getId())
+                    .publicKeyCose(reg.getCredential().getPublicKeyCose())
+                    .signatureCount(reg.getSignatureCount())
+                    .build()));
+        });
+    }
+
+    private void rememberUser(String username, ByteArray userHandle) {
+        userHandles.put(username, userHandle);
+        usernames.put(userHandle, username);
+    }
+
+    private void forget(String username) {
+        forget(username, null);
+    }
+
+    private void forget(String username, ByteArray knownUserHandle) {
+        final ByteArray userHandle = knownUserHandle != null ? knownUserHandle : userHandles.getIfPresent(username);
+        userHandles.invalidate(username);
+        userGenerations.invalidate(username);
+        checkedRecently.invalidate(username);
+        if (userHandle != null) {
+            usernames.invalidate(userHandle);
+            credentials.asMap().values().removeIf(creds -> creds.stream()
+                .anyMatch(credential -> credential.getUserHandle().equals(userHandle)));
+        }
+    }
+
+    private void defer(AssertionResult result) {
+        synchronized (deferredSignatureCounts) {
+            final AssertionResult previous = deferredSignatureCounts.get(result.getCredentialId());
+            if (previous == null || previous.getSignatureCount() < result.getSignatureCount()) {
+                deferredSignatureCounts.remove(result.getCredentialId());
+                deferredSignatureCounts.put(result.getCredentialId(), result);
+            }
+            if (deferredSignatureCounts.size() > MAX_DEFERRED_SIGNATURE_COUNTS) {
+                final ByteArray eldest = deferredSignatureCounts.keySet().iterator().next();
+                log.warn("Dropping deferred signature count update for credential {}", eldest);
+                deferredSignatureCounts.remove(eldest);
+            }
+            log.info("Deferred signature count update for credential {} while circuit is open", result.getCredentialId());
+        }
+    }
+
+    private void flushDeferredSignatureCounts() {
+        final List<AssertionResult> pending;
+        synchronized (deferredSignatureCounts) {
+            if (deferredSignatureCounts.isEmpty()) {
+                return;
+            }
+            pending = new ArrayList<>(deferredSignatureCounts.values());
+            deferredSignatureCounts.clear();
+        }
+
+        log.info("Writing {} deferred signature count update(s)", pending.size());
+        final List<AssertionResult> failed = pending.stream()
+            .filter(result -> {
+                try {
+                    breaker.call(() -> {
+                        delegate.updateSignatureCount(result);
+                        return null;
+                    });
+                    return false;
+                } catch (CircuitOpenException e) {
+                    return true;
+                } catch (Exception e) {
+                    log.error("Failed to write deferred signature count for credential {}", result.getCredentialId(), e);
+                    return !breaker.isClosed();
+                }
+            })
+            .collect(Collectors.toList());
+        failed.forEach(this::defer);
+    }
+
+}
@@ -0,0 +1,12 @@
+package com.yubicolabs;
+
+/**
+ * Thrown instead of calling a backend whose {@link CircuitBreaker} is open.
+ */
+public class CircuitOpenException extends RuntimeException {
+
+    public CircuitOpenException(String name) {
+        super(String.format("Circuit \"%s\" is open", name));
+    }
+
+}
@@ -1,6 +1,17 @@
 package com.yubicolabs;
 
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
 import com.yubico.webauthn.data.RelyingPartyIdentity;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.stream.Collectors;
@@ -12,11 +23,111 @@ import lombok.extern.slf4j.Slf4j;
 public class Config {
 
     private static final int DEFAULT_PORT = 8080;
+    private static final String DEFAULT_STORAGE_TIMEOUTS = "default=3000,lookup=1000,getRegistrationsByUsername=1000,getRegistrationsByUserHandle=1000,userExists=1000,getRequest=1000,route=1000,getGeneration=1000,scanRegistrationKeys=60000";
+    private static final long DEFAULT_STORAGE_HEDGE_DELAY_MS = 250;
+    private static final int DEFAULT_STORAGE_RETRY_BUDGET = 3;
+    private static final long DEFAULT_DEADLINE_RESERVE_MS = 500;
+    private static final int DEFAULT_CIRCUIT_FAILURE_THRESHOLD = 5;
+    private static final long DEFAULT_CIRCUIT_OPEN_MS = 10000;
+    private static final long DEFAULT_STALE_CACHE_SIZE = 10000;
+    private static final long DEFAULT_STALE_CACHE_WINDOW_S = 300;
+    private static final long DEFAULT_STALE_CACHE_CHECK_INTERVAL_MS = 1000;
+    private static final int DEFAULT_JDBC_POOL_SIZE = 4;
+    private static final String DEFAULT_EMBEDDED_DIRECTORY = "/tmp/webauthn";
+    private static final long DEFAULT_READ_YOUR_WRITES_MS = 5000;
+    private static final long DEFAULT_READER_MAX_LAG_MS = 1000;
+    private static final long DEFAULT_READER_LAG_PROBE_MS = 1000;
+    private static final String DEFAULT_READER_LAG_SQL = "SELECT REPLICA_LAG_IN_MILLISECONDS AS lag FROM information_schema.REPLICA_HOST_STATUS WHERE SERVER_ID = @@aurora_server_id";
+    private static final double DEFAULT_MEMBERSHIP_FILTER_FPP = 0.01;
+    private static final long DEFAULT_MEMBERSHIP_FILTER_REFRESH_S = 5;
+    private static final long DEFAULT_MEMBERSHIP_FILTER_REBUILD_S = 3600;
+    private static final long DEFAULT_ATTESTATION_CACHE_SIZE = 1000;
+    private static final long DEFAULT_METADATA_REFRESH_S = 3600;
+    private static final int DEFAULT_TENANT_CACHE_SIZE = 32;
+    private static final long DEFAULT_FINISH_RESULT_CACHE_SIZE = 1000;
+    private static final long DEFAULT_FINISH_RESULT_WINDOW_S = 60;
+    private static final int DEFAULT_MAX_RESPONSE_SIZE = 65536;
+    private static final int DEFAULT_RANDOM_STRIPES = 16;
+    private static final int DEFAULT_RANDOM_BUFFER_BYTES = 1024;
+    private static final long DEFAULT_RANDOM_RESEED_S = 600;
 
     private final Set<String> origins;
     private final int port;
     private final RelyingPartyIdentity rpIdentity;
 
+    private final Map<String, Duration> storageTimeouts = computeStorageTimeouts();
+    private final Optional<Duration> storageHedgeDelay = computeStorageHedgeDelay();
+    private final int storageRetryBudget = computeStorageRetryBudget();
+    private final Duration deadlineReserve = computeDeadlineReserve();
+    private final int circuitFailureThreshold = computeCircuitFailureThreshold();
+    private final Duration circuitOpenDuration = computeCircuitOpenDuration();
+    private final long staleCacheSize = computeStaleCacheSize();
+    private final Duration staleCacheWindow = computeStaleCacheWindow();
+    private final Duration staleCacheCheckInterval = computeStaleCacheCheckInterval();
+    private final Optional<String> dataApiEndpoint = getOptionalEnv("YUBICO_WEBAUTHN_DATA_API_ENDPOINT");
+    private final StorageBackend storageBackend = computeStorageBackend();
+    private final RegistrationSchema registrationSchema = computeRegistrationSchema();
+    private final Optional<String> dataApiReader = getOptionalEnv("YUBICO_WEBAUTHN_DATA_API_READER");
+    private final Duration readYourWritesWindow = Duration.ofMillis(getOptionalEnv("YUBICO_WEBAUTHN_READ_YOUR_WRITES_MS")
+        .map(Long::parseLong)
+        .orElse(DEFAULT_READ_YOUR_WRITES_MS));
+    private final Duration readerMaxLag = Duration.ofMillis(getOptionalEnv("YUBICO_WEBAUTHN_READER_MAX_LAG_MS")
+        .map(Long::parseLong)
+        .orElse(DEFAULT_READER_MAX_LAG_MS));
+    private final Duration readerLagProbeInterval = Duration.ofMillis(getOptionalEnv("YUBICO_WEBAUTHN_READER_LAG_PROBE_MS")
+        .map(Long::parseLong)
+        .orElse(DEFAULT_READER_LAG_PROBE_MS));
+    private final Optional<String> readerLagSql = Optional.of(getOptionalEnv("YUBICO_WEBAUTHN_READER_LAG_SQL")
+        .orElse(DEFAULT_READER_LAG_SQL))
+        .filter(sql -> !"none".equals(sql));
+    private final Map<String, String> shards = computeShards();
+    private final List<String> shardPlacement = getOptionalEnv("YUBICO_WEBAUTHN_SHARD_PLACEMENT")
+        .map(value -> Stream.of(value.split(",")).map(String::trim).filter(name -> !name.isEmpty()).collect(Collectors.toList()))
+        .orElseGet(() -> new ArrayList<>(shards.keySet()));
+    private final boolean assertionCredentialSnapshot = getOptionalEnv("YUBICO_WEBAUTHN_ASSERTION_CREDENTIAL_SNAPSHOT")
+        .map(Boolean::parseBoolean)
+        .orElse(false);
+    private final boolean membershipFilterEnabled = getOptionalEnv("YUBICO_WEBAUTHN_MEMBERSHIP_FILTER")
+        .map(Boolean::parseBoolean)
+        .orElse(false);
+    private final double membershipFilterFalsePositiveProbability = getOptionalEnv("YUBICO_WEBAUTHN_MEMBERSHIP_FILTER_FPP")
+        .map(Double::parseDouble)
+        .orElse(DEFAULT_MEMBERSHIP_FILTER_FPP);
+    private final Duration membershipFilterRefreshInterval = Duration.ofSeconds(getOptionalEnv("YUBICO_WEBAUTHN_MEMBERSHIP_FILTER_REFRESH_S")
+        .map(Long::parseLong)
+        .orElse(DEFAULT_MEMBERSHIP_FILTER_REFRESH_S));
+    private final Duration membershipFilterRebuildInterval = Duration.ofSeconds(getOptionalEnv("YUBICO_WEBAUTHN_MEMBERSHIP_FILTER_REBUILD_S")
+        .map(Long::parseLong)
+        .orElse(DEFAULT_MEMBERSHIP_FILTER_REBUILD_S));
+    private final long attestationCacheSize = getOptionalEnv("YUBICO_WEBAUTHN_ATTESTATION_CACHE_SIZE")
+        .map(Long::parseLong)
+        .orElse(DEFAULT_ATTESTATION_CACHE_SIZE);
+    private final Duration metadataRefreshInterval = Duration.ofSeconds(getOptionalEnv("YUBICO_WEBAUTHN_METADATA_REFRESH_S")
+        .map(Long::parseLong)
+        .orElse(DEFAULT_METADATA_REFRESH_S));
+    private final Map<String, TenantConfig> tenants = computeTenants();
+    private final int tenantCacheSize = getOptionalEnv("YUBICO_WEBAUTHN_TENANT_CACHE_SIZE")
+        .map(Integer::parseInt)
+        .orElse(DEFAULT_TENANT_CACHE_SIZE);
+    private final long finishResultCacheSize = getOptionalEnv("YUBICO_WEBAUTHN_FINISH_RESULT_CACHE_SIZE")
+        .map(Long::parseLong)
+        .orElse(DEFAULT_FINISH_RESULT_CACHE_SIZE);
+    private final Duration finishResultWindow = Duration.ofSeconds(getOptionalEnv("YUBICO_WEBAUTHN_FINISH_RESULT_WINDOW_S")
+        .map(Long::parseLong)
+        .orElse(DEFAULT_FINISH_RESULT_WINDOW_S));
+    private final int maxResponseSize = getOptionalEnv("YUBICO_WEBAUTHN_MAX_RESPONSE_SIZE")
+        .map(Integer::parseInt)
+        .orElse(DEFAULT_MAX_RESPONSE_SIZE);
+    private final int randomStripes = getOptionalEnv("YUBICO_WEBAUTHN_RANDOM_STRIPES")
+        .map(Integer::parseInt)
+        .orElse(DEFAULT_RANDOM_STRIPES);
+    private final int randomBufferSize = getOptionalEnv("YUBICO_WEBAUTHN_RANDOM_BUFFER_BYTES")
+        .map(Integer::parseInt)
+        .orElse(DEFAULT_RANDOM_BUFFER_BYTES);
+    private final Duration randomReseedInterval = Duration.ofSeconds(getOptionalEnv("YUBICO_WEBAUTHN_RANDOM_RESEED_S")
+        .map(Long::parseLong)
+        .orElse(DEFAULT_RANDOM_RESEED_S));
+
     private Config(Set<String> origins, int port, RelyingPartyIdentity rpIdentity) {
         this.origins = origins;
         this.port = port;
@@ -43,6 +154,255 @@ public class Config {
         return getInstance().rpIdentity;
     }
 
+    public static Map<String, Duration> getStorageTimeouts() {
+        return getInstance().storageTimeouts;
+    }
+
+    public static Optional<Duration> getStorageHedgeDelay() {
+        return getInstance().storageHedgeDelay;
+    }
+
+    public static int getStorageRetryBudget() {
+        return getInstance().storageRetryBudget;
+    }
+
+    public static Duration getDeadlineReserve() {
+        return getInstance().deadlineReserve;
+    }
+
+    public static int getCircuitFailureThreshold() {
+        return getInstance().circuitFailureThreshold;
+    }
+
+    public static Duration getCircuitOpenDuration() {
+        return getInstance().circuitOpenDuration;
+    }
+
+    public static long getStaleCacheSize() {
+        return getInstance().staleCacheSize;
+    }
+
+    public static Duration getStaleCacheWindow() {
+        return getInstance().staleCacheWindow;
+    }
+
+    /**
+     * How long a user's generation, once read, is taken to be current by the stale-read cache.
+     */
+    public static Duration getStaleCacheCheckInterval() {
+        return getInstance().staleCacheCheckInterval;
+    }
+
+    /**
+     * Overrides the regional RDS Data API endpoint, e.g. to point at a local stand-in.
+     */
+    public static Optional<String> getDataApiEndpoint() {
+        return getInstance().dataApiEndpoint;
+    }
+
+    public static StorageBackend getStorageBackend() {
+        return getInstance().storageBackend;
+    }
+
+    /**
+     * Which credential registration table is read and written; see {@link RegistrationSchema} for migrating to v2.
+     */
+    public static RegistrationSchema getRegistrationSchema() {
+        return getInstance().registrationSchema;
+    }
+
+    /**
+     * Whether username-based assertion requests carry a snapshot of the user's credentials, so that finishing them
+     * reads the user's generation instead of looking their credentials up. The signature count update still reads the
+     * registration.
+     */
+    public static boolean isAssertionCredentialSnapshot() {
+        return getInstance().assertionCredentialSnapshot;
+    }
+
+    /**
+     * Whether unknown usernames, user handles and credential IDs are rejected in memory, see
+     * {@link BloomFilteringRegistrationStorage}.
+     */
+    public static boolean isMembershipFilterEnabled() {
+        return getInstance().membershipFilterEnabled;
+    }
+
+    public static double getMembershipFilterFalsePositiveProbability() {
+        return getInstance().membershipFilterFalsePositiveProbability;
+    }
+
+    public static Duration getMembershipFilterRefreshInterval() {
+        return getInstance().membershipFilterRefreshInterval;
+    }
+
+    public static Duration getMembershipFilterRebuildInterval() {
+        return getInstance().membershipFilterRebuildInterval;
+    }
+
+    /**
+     * Number of attestation certificate chains whose trust roots and metadata entries are remembered.
+     */
+    public static long getAttestationCacheSize() {
+        return getInstance().attestationCacheSize;
+    }
+
+    /**
+     * How often the FIDO metadata BLOB is reloaded; a new BLOB empties the attestation cache.
+     */
+    public static Duration getMetadataRefreshInterval() {
+        return getInstance().metadataRefreshInterval;
+    }
+
+    /**
+     * Relying parties served besides the default one, by tenant ID; see {@link #computeTenants()}.
+     */
+    public static Map<String, TenantConfig> getTenants() {
+        return getInstance().tenants;
+    }
+
+    /**
+     * Number of tenants whose relying party and storage are kept ready; the least recently used beyond that are closed.
+     */
+    public static int getTenantCacheSize() {
+        return getInstance().tenantCacheSize;
+    }
+
+    /**
+     * Number of finish outcomes remembered per tenant for retried invocations; see {@link FinishResultCache}.
+     */
+    public static long getFinishResultCacheSize() {
+        return getInstance().finishResultCacheSize;
+    }
+
+    /**
+     * How long a finish outcome is remembered for an identical retry; zero disables it.
+     */
+    public static Duration getFinishResultWindow() {
+        return getInstance().finishResultWindow;
+    }
+
+    /**
+     * Largest finish response accepted, in characters of its JSON; larger ones are rejected before decoding.
+     */
+    public static int getMaxResponseSize() {
+        return getInstance().maxResponseSize;
+    }
+
+    /**
+     * Number of independent generators request IDs are drawn from; see {@link RandomSource}.
+     */
+    public static int getRandomStripes() {
+        return getInstance().randomStripes;
+    }
+
+    /**
+     * Random bytes each generator draws at a time and serves request IDs from; zero draws each ID separately.
+     */
+    public static int getRandomBufferSize() {
+        return getInstance().randomBufferSize;
+    }
+
+    /**
+     * How often each generator is reseeded.
+     */
+    public static Duration getRandomReseedInterval() {
+        return getInstance().randomReseedInterval;
+    }
+
+    /**
+     * Reader for the Data API backend, as {@code clusterArn[|secretArn[|database]]}, e.g. a cluster replicating the
+     * main one; omitted parts default to those of the main database.
+     */
+    public static Optional<String> getDataApiReader() {
+        return getInstance().dataApiReader;
+    }
+
+    /**
+     * How long reads of a key this instance wrote keep going to the writer, see {@link ReplicaRouting}.
+     */
+    public static Duration getReadYourWritesWindow() {
+        return getInstance().readYourWritesWindow;
+    }
+
+    public static Duration getReaderMaxLag() {
+        return getInstance().readerMaxLag;
+    }
+
+    public static Duration getReaderLagProbeInterval() {
+        return getInstance().readerLagProbeInterval;
+    }
+
+    /**
+     * Query run on the reader returning its replica lag in milliseconds as {@code lag}; Aurora MySQL's by default, or
+     * empty when set to "none" to assume replicas are current.
+     */
+    public static Optional<String> getReaderLagSql() {
+        return getInstance().readerLagSql;
+    }
+
+    /**
+     * The databases credential registrations are sharded over by name, in configuration order; empty when not sharded.
+     * Each target is a JDBC URL with the JDBC backend, and {@code clusterArn[|secretArn[|database]]} with the Data API
+     * backend, where omitted parts default to those of the main database.
+     */
+    public static Map<String, String> getShards() {
+        return getInstance().shards;
+    }
+
+    /**
+     * Names of the shards that new users are placed on; all shards unless YUBICO_WEBAUTHN_SHARD_PLACEMENT is set.
+     */
+    public static List<String> getShardPlacement() {
+        return getInstance().shardPlacement;
+    }
+
+    /**
+     * Only read when the JDBC storage backend is selected.
+     */
+    public static String getJdbcUrl() {
+        return getEnv("YUBICO_WEBAUTHN_JDBC_URL");
+    }
+
+    /**
+     * Reader endpoint for the JDBC backend, e.g. the cluster's {@code cluster-ro} endpoint.
+     */
+    public static Optional<String> getJdbcReaderUrl() {
+        return getOptionalEnv("YUBICO_WEBAUTHN_JDBC_READER_URL");
+    }
+
+    public static Optional<String> getJdbcUsername() {
+        return getOptionalEnv("YUBICO_WEBAUTHN_JDBC_USERNAME");
+    }
+
+    public static Optional<String> getJdbcPassword() {
+        // Read directly so the value is never logged
+        return Optional.ofNullable(System.getenv("YUBICO_WEBAUTHN_JDBC_PASSWORD"));
+    }
+
+    public static int getJdbcPoolSize() {
+        return getOptionalEnv("YUBICO_WEBAUTHN_JDBC_POOL_SIZE")
+            .map(Integer::parseInt)
+            .orElse(DEFAULT_JDBC_POOL_SIZE);
+    }
+
+    /**
+     * Directory of the embedded storage backend's files. Only read when the embedded storage backend is selected.
+     */
+    public static String getEmbeddedDirectory() {
+        return getOptionalEnv("YUBICO_WEBAUTHN_EMBEDDED_DIRECTORY")
+            .orElse(DEFAULT_EMBEDDED_DIRECTORY);
+    }
+
+    /**
+     * Whether the embedded storage backend forces every write to disk before returning.
+     */
+    public static boolean isEmbeddedSync() {
+        return getOptionalEnv("YUBICO_WEBAUTHN_EMBEDDED_SYNC")
+            .map(Boolean::parseBoolean)
+            .orElse(true);
+    }
+
     private static Set<String> computeOrigins() {
         // RVW: Remove the YUBICO_ prefix from env vars? Maybe even YUBICO_WEBAUTHN_ ?
         final Set<String> result = Stream.of(getEnv("YUBICO_WEBAUTHN_ALLOWED_ORIGINS").split(","))
@@ -68,6 +428,158 @@ public class Config {
         return result;
     }
 
+    /**
+     * Parses a comma separated list of operation=milliseconds pairs, for example
+     * "default=3000,lookup=800". Entries not given fall back to {@link #DEFAULT_STORAGE_TIMEOUTS}.
+     */
+    private static Map<String, Duration> computeStorageTimeouts() {
+        final Map<String, Duration> result = new HashMap<>(parseTimeouts(DEFAULT_STORAGE_TIMEOUTS));
+        getOptionalEnv("YUBICO_WEBAUTHN_STORAGE_TIMEOUTS")
+            .map(Config::parseTimeouts)
+            .ifPresent(result::putAll);
+
+        log.info("Storage timeouts: {}", result);
+
+        return Collections.unmodifiableMap(result);
+    }
+
+    private static Map<String, Duration> parseTimeouts(String value) {
+        return Stream.of(value.split(","))
+            .map(String::trim)
+            .filter(entry -> !entry.isEmpty())
+            .map(entry -> entry.split("=", 2))
+            .collect(Collectors.toMap(
+                entry -> entry[0].trim(),
+                entry -> Duration.ofMillis(Long.parseLong(entry[1].trim()))
+            ));
+    }
+
+    private static Optional<Duration> computeStorageHedgeDelay() {
+        final long millis = getOptionalEnv("YUBICO_WEBAUTHN_STORAGE_HEDGE_DELAY_MS")
+            .map(Long::parseLong)
+            .orElse(DEFAULT_STORAGE_HEDGE_DELAY_MS);
+        return millis > 0 ? Optional.of(Duration.ofMillis(millis)) : Optional.empty();
+    }
+
+    private static int computeStorageRetryBudget() {
+        return getOptionalEnv("YUBICO_WEBAUTHN_STORAGE_RETRY_BUDGET")
+            .map(Integer::parseInt)
+            .orElse(DEFAULT_STORAGE_RETRY_BUDGET);
+    }
+
+    private static Duration computeDeadlineReserve() {
+        return Duration.ofMillis(getOptionalEnv("YUBICO_WEBAUTHN_DEADLINE_RESERVE_MS")
+            .map(Long::parseLong)
+            .orElse(DEFAULT_DEADLINE_RESERVE_MS));
+    }
+
+    private static int computeCircuitFailureThreshold() {
+        return getOptionalEnv("YUBICO_WEBAUTHN_CIRCUIT_FAILURE_THRESHOLD")
+            .map(Integer::parseInt)
+            .orElse(DEFAULT_CIRCUIT_FAILURE_THRESHOLD);
+    }
+
+    private static Duration computeCircuitOpenDuration() {
+        return Duration.ofMillis(getOptionalEnv("YUBICO_WEBAUTHN_CIRCUIT_OPEN_MS")
+            .map(Long::parseLong)
+            .orElse(DEFAULT_CIRCUIT_OPEN_MS));
+    }
+
+    /**
+     * Number of credentials kept for serving reads while the storage circuit is open; 0 disables stale reads.
+     */
+    private static long computeStaleCacheSize() {
+        return getOptionalEnv("YUBICO_WEBAUTHN_STALE_CACHE_SIZE")
+            .map(Long::parseLong)
+            .orElse(DEFAULT_STALE_CACHE_SIZE);
+    }
+
+    private static Duration computeStaleCacheWindow() {
+        return Duration.ofSeconds(getOptionalEnv("YUBICO_WEBAUTHN_STALE_CACHE_WINDOW_S")
+            .map(Long::parseLong)
+            .orElse(DEFAULT_STALE_CACHE_WINDOW_S));
+    }
+
+    private static Duration computeStaleCacheCheckInterval() {
+        return Duration.ofMillis(getOptionalEnv("YUBICO_WEBAUTHN_STALE_CACHE_CHECK_INTERVAL_MS")
+            .map(Long::parseLong)
+            .orElse(DEFAULT_STALE_CACHE_CHECK_INTERVAL_MS));
+    }
+
+    private static StorageBackend computeStorageBackend() {
+        final StorageBackend result = getOptionalEnv("YUBICO_WEBAUTHN_STORAGE_BACKEND")
+            .map(StorageBackend::fromValue)
+            .orElse(StorageBackend.DATA_API);
+
+        log.info("Storage backend: {}", result);
+
+        return result;
+    }
+
+    /**
+     * Parses a semicolon separated list of name=target pairs, for example "a=jdbc:mysql://a/webauthn;b=jdbc:mysql://b/webauthn".
+     */
+    private static Map<String, String> computeShards() {
+        final Map<String, String> result = new LinkedHashMap<>();
+        getOptionalEnv("YUBICO_WEBAUTHN_SHARDS").ifPresent(value -> Stream.of(value.split(";"))
+            .map(String::trim)
+            .filter(entry -> !entry.isEmpty())
+            .map(entry -> entry.split("=", 2))
+            .forEach(entry -> result.put(entry[0].trim(), entry[1].trim())));
+
+        if (!result.isEmpty()) {
+            log.info("Registration shards: {}", result.keySet());
+        }
+
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * Parses YUBICO_WEBAUTHN_TENANTS, a JSON object from tenant ID to
+     * {@code {"rpId": ..., "rpName": ..., "origins": [...], "database": ...}}.
+     *
+     * @throws IllegalArgumentException if a tenant has no {@code database}; registrations are keyed by username alone,
+     * so tenants sharing a database would see and remove each other's credentials
+     */
+    private static Map<String, TenantConfig> computeTenants() {
+        final Map<String, TenantConfig> result = new LinkedHashMap<>();
+        getOptionalEnv("YUBICO_WEBAUTHN_TENANTS").ifPresent(value -> {
+            final JsonObject tenants = new Gson().fromJson(value, JsonObject.class);
+            for (Map.Entry<String, JsonElement> entry : tenants.entrySet()) {
+                final JsonObject tenant = entry.getValue().getAsJsonObject();
+                if (!tenant.has("database")) {
+                    throw new IllegalArgumentException("Tenant " + entry.getKey() + " has no database of its own");
+                }
+                final Set<String> origins = new LinkedHashSet<>();
+                tenant.getAsJsonArray("origins").forEach(origin -> origins.add(origin.getAsString()));
+                result.put(entry.getKey(), new TenantConfig(
+                    entry.getKey(),
+                    RelyingPartyIdentity.builder()
+                        .id(tenant.get("rpId").getAsString())
+                        .name(tenant.get("rpName").getAsString())
+                        .build(),
+                    Collections.unmodifiableSet(origins),
+                    tenant.get("database").getAsString()));
+            }
+        });
+
+        if (!result.isEmpty()) {
+            log.info("Tenants: {}", result.keySet());
+        }
+
+        return Collections.unmodifiableMap(result);
+    }
+
+    private static RegistrationSchema computeRegistrationSchema() {
+        final RegistrationSchema result = getOptionalEnv("YUBICO_WEBAUTHN_REGISTRATION_SCHEMA")
+            .map(RegistrationSchema::fromValue)
+            .orElse(RegistrationSchema.V2);
+
+        log.info("Registration schema: {}", result);
+
+        return result;
+    }
+
     private static String getEnv(final String name) {
         final String result = System.getenv(name);
         log.debug("{}: {}", name, result);
@@ -0,0 +1,49 @@
+package com.yubicolabs;
+
+import com.yubico.webauthn.RegisteredCredential;
+import com.yubicolabs.data.AssertionRequestWrapper;
+import com.yubicolabs.data.CredentialSnapshot;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Decides whether the credential snapshot carried by an assertion request may stand in for reading the user's
+ * credentials at finish.
+ *
+ * <p>A snapshot is only used if it was taken together with the user's {@link UserGenerations generation} and that
+ * generation has not moved since, so a credential removed or changed between start and finish is always read again.
+ * A snapshot without a generation, or one whose generation cannot be read, is never used.
+ */
+@Slf4j
+public final class CredentialSnapshots {
+
+    private CredentialSnapshots() {
+    }
+
+    /**
+     * @return the snapshot's credentials, if the snapshot is still current
+     */
+    public static Optional<List<RegisteredCredential>> current(AssertionRequestWrapper request, UserGenerations generations) {
+        if (!request.getUsername().isPresent()
+            || !request.getCredentialSnapshot().isPresent()
+            || !request.getCredentialGeneration().isPresent()) {
+            return Optional.empty();
+        }
+        final String username = request.getUsername().get();
+        try {
+            if (generations.get(username) != request.getCredentialGeneration().get()) {
+                log.debug("Credentials of \"{}\" changed since the assertion started; not using the snapshot", username);
+                return Optional.empty();
+            }
+        } catch (RuntimeException e) {
+            log.warn("Failed to check credential generation; not using the snapshot", e);
+            return Optional.empty();
+        }
+        return Optional.of(request.getCredentialSnapshot().get().stream()
+            .map(CredentialSnapshot::toRegisteredCredential)
+            .collect(Collectors.toList()));
+    }
+
+}
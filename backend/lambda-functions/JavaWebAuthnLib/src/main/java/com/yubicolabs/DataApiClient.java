@@ -0,0 +1,142 @@
+package com.yubicolabs;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import lombok.extern.slf4j.Slf4j;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.services.rdsdata.RdsDataAsyncClient;
+import software.amazon.awssdk.services.rdsdata.RdsDataAsyncClientBuilder;
+import software.amazon.awssdk.services.rdsdata.model.ColumnMetadata;
+import software.amazon.awssdk.services.rdsdata.model.ExecuteStatementRequest;
+import software.amazon.awssdk.services.rdsdata.model.ExecuteStatementResponse;
+
+/**
+ * Non-blocking RDS Data API client shared by all storage classes.
+ *
+ * <p>One instance per container owns a single Netty connection pool, so statements issued by different storage classes
+ * reuse warm HTTPS connections and independent statements can be in flight at the same time.
+ */
+@Slf4j
+public class DataApiClient {
+
+    private static final int MAX_CONCURRENCY = 50;
+    private static final Duration CONNECTION_TIMEOUT = Duration.ofSeconds(2);
+    private static final Duration CONNECTION_MAX_IDLE_TIME = Duration.ofMinutes(5);
+
+    private static DataApiClient instance;
+    public static synchronized DataApiClient getInstance() {
+        if (instance == null) {
+            instance = new DataApiClient(
+                buildClient(Config.getDataApiEndpoint().map(URI::create).orElse(null)),
+                System.getenv("DBAuroraClusterArn"),
+                System.getenv("DBSecretsStoreArn"),
+                System.getenv("DatabaseName")
+            );
+        }
+        return instance;
+    }
+
+    private static Optional<DataApiClient> readerInstance;
+    public static synchronized Optional<DataApiClient> getReaderInstance() {
+        if (readerInstance == null) {
+            readerInstance = Config.getDataApiReader().map(target -> getInstance().withTarget(target));
+        }
+        return readerInstance;
+    }
+
+    private final RdsDataAsyncClient client;
+    private final String resourceArn;
+    private final String secretArn;
+    private final String database;
+
+    public DataApiClient(RdsDataAsyncClient client, String resourceArn, String secretArn, String database) {
+        this.client = client;
+        this.resourceArn = resourceArn;
+        this.secretArn = secretArn;
+        this.database = database;
+    }
+
+    /**
+     * @return a client for another database, sharing this one's connection pool; null arguments keep this one's value
+     */
+    public DataApiClient withTarget(String resourceArn, String secretArn, String database) {
+        return new DataApiClient(
+            client,
+            resourceArn != null ? resourceArn : this.resourceArn,
+            secretArn != null ? secretArn : this.secretArn,
+            database != null ? database : this.database);
+    }
+
+    /**
+     * @param target {@code resourceArn[|secretArn[|database]]}
+     */
+    public DataApiClient withTarget(String target) {
+        final String[] parts = target.split("\\|", 3);
+        return withTarget(parts[0], parts.length > 1 ? parts[1] : null, parts.length > 2 ? parts[2] : null);
+    }
+
+    /**
+     * @param endpoint Data API endpoint to use instead of the regional default, or null
+     */
+    static RdsDataAsyncClient buildClient(URI endpoint) {
+        final RdsDataAsyncClientBuilder builder = RdsDataAsyncClient.builder()
+            .httpClientBuilder(NettyNioAsyncHttpClient.builder()
+                .maxConcurrency(MAX_CONCURRENCY)
+                .connectionTimeout(CONNECTION_TIMEOUT)
+                .connectionMaxIdleTime(CONNECTION_MAX_IDLE_TIME));
+
+        if (endpoint != null) {
+            log.info("Data API endpoint: {}", endpoint);
+            builder.endpointOverride(endpoint);
+        }
+        return builder.build();
+    }
+
+    public CompletableFuture<List<DataApiRow>> query(String sql, SqlParameters parameters) {
+        return execute(sql, parameters, true).thenApply(DataApiClient::toRows);
+    }
+
+    /**
+     * @return the number of rows affected
+     */
+    public CompletableFuture<Long> update(String sql, SqlParameters parameters) {
+        return execute(sql, parameters, false)
+            .thenApply(response -> response.numberOfRecordsUpdated() == null ? 0L : response.numberOfRecordsUpdated());
+    }
+
+    private CompletableFuture<ExecuteStatementResponse> execute(String sql, SqlParameters parameters, boolean includeResultMetadata) {
+        log.trace("execute sql: {}", sql);
+        return client.executeStatement(ExecuteStatementRequest.builder()
+            .resourceArn(resourceArn)
+            .secretArn(secretArn)
+            .database(database)
+            .sql(sql)
+            .parameters(parameters.asList())
+            .includeResultMetadata(includeResultMetadata)
+            .build());
+    }
+
+    private static List<DataApiRow> toRows(ExecuteStatementResponse response) {
+        if (response.records() == null || response.records().isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        final List<ColumnMetadata> metadata = response.columnMetadata();
+        final Map<String, Integer> columns = new HashMap<>();
+        for (int i = 0; i < metadata.size(); i++) {
+            columns.put(metadata.get(i).name(), i);
+        }
+
+        return response.records().stream()
+            .map(fields -> new DataApiRow(columns, fields))
+            .collect(Collectors.toList());
+    }
+
+}
@@ -0,0 +1,44 @@
+package com.yubicolabs;
+
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import software.amazon.awssdk.services.rdsdata.model.Field;
+
+/**
+ * One result row of a Data API query, with fields addressed by column name.
+ */
+public final class DataApiRow {
+
+    private final Map<String, Integer> columns;
+    private final List<Field> fields;
+
+    DataApiRow(Map<String, Integer> columns, List<Field> fields) {
+        this.columns = columns;
+        this.fields = fields;
+    }
+
+    public String getString(String column) {
+        final Field field = field(column);
+        return Boolean.TRUE.equals(field.isNull()) ? null : field.stringValue();
+    }
+
+    public Long getLong(String column) {
+        final Field field = field(column);
+        return Boolean.TRUE.equals(field.isNull()) ? null : field.longValue();
+    }
+
+    public byte[] getBytes(String column) {
+        final Field field = field(column);
+        return Boolean.TRUE.equals(field.isNull()) || field.blobValue() == null ? null : field.blobValue().asByteArray();
+    }
+
+    private Field field(String column) {
+        final Integer index = columns.get(column);
+        if (index == null) {
+            throw new NoSuchElementException("No such column in result: " + column);
+        }
+        return fields.get(index);
+    }
+
+}
@@ -0,0 +1,37 @@
+package com.yubicolabs;
+
+import com.yubico.webauthn.data.ByteArray;
+import com.yubicolabs.data.AssertionRequestWrapper;
+import java.time.Clock;
+
+/**
+ * {@link AssertionRequestStorage} in the {@code assertionRequests} table of an {@link EmbeddedDatabase}.
+ */
+public class EmbeddedAssertionRequestStorage implements AssertionRequestStorage {
+
+    private final EmbeddedRequests<AssertionRequestWrapper> requests;
+
+    public EmbeddedAssertionRequestStorage() {
+        this(EmbeddedDatabase.getInstance());
+    }
+
+    public EmbeddedAssertionRequestStorage(EmbeddedDatabase database) {
+        this.requests = new EmbeddedRequests<>(database.table("assertionRequests"), AssertionRequestWrapper.class, Clock.systemUTC());
+    }
+
+    @Override
+    public boolean put(ByteArray key, AssertionRequestWrapper value) {
+        return requests.put(key, value);
+    }
+
+    @Override
+    public boolean invalidate(ByteArray key) {
+        return requests.invalidate(key);
+    }
+
+    @Override
+    public AssertionRequestWrapper getIfPresent(ByteArray key) {
+        return requests.getIfPresent(key);
+    }
+
+}
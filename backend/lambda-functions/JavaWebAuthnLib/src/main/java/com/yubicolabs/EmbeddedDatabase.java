@@ -0,0 +1,84 @@
+package com.yubicolabs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The directory of the embedded storage backend, holding one {@link EmbeddedTable} per file. A lock file keeps a
+ * second process from opening the same directory; within a process, share the instance.
+ */
+@Slf4j
+public class EmbeddedDatabase implements Closeable {
+
+    private static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static EmbeddedDatabase instance;
+    public static synchronized EmbeddedDatabase getInstance() {
+        if (instance == null) {
+            instance = new EmbeddedDatabase(Paths.get(Config.getEmbeddedDirectory()), DEFAULT_SEGMENT_SIZE, Config.isEmbeddedSync());
+        }
+        return instance;
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final boolean sync;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final Map<String, EmbeddedTable> tables = new LinkedHashMap<>();
+
+    /**
+     * @param segmentSize see {@link MappedLog}; bounds the size of one stored value
+     */
+    public EmbeddedDatabase(Path directory, int segmentSize, boolean sync) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.sync = sync;
+        try {
+            Files.createDirectories(directory);
+            lockChannel = FileChannel.open(directory.resolve(".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            lock = tryLock(lockChannel);
+        } catch (IOException e) {
+            throw new StorageException("Failed to open " + directory, e);
+        }
+        if (lock == null) {
+            throw new StorageException(directory + " is in use by another process or instance", null);
+        }
+        log.info("Opened embedded storage in {}", directory);
+    }
+
+    public synchronized EmbeddedTable table(String name) {
+        return tables.computeIfAbsent(name, n -> new EmbeddedTable(directory.resolve(n + ".log"), segmentSize, sync));
+    }
+
+    @Override
+    public synchronized void close() {
+        tables.values().forEach(EmbeddedTable::close);
+        tables.clear();
+        try {
+            lock.release();
+            lockChannel.close();
+        } catch (IOException e) {
+            throw new StorageException("Failed to close " + directory, e);
+        }
+    }
+
+    private static FileLock tryLock(FileChannel channel) throws IOException {
+        try {
+            return channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,37 @@
+package com.yubicolabs;
+
+import com.yubico.webauthn.data.ByteArray;
+import com.yubicolabs.data.RegistrationRequest;
+import java.time.Clock;
+
+/**
+ * {@link RegistrationRequestStorage} in the {@code registrationRequests} table of an {@link EmbeddedDatabase}.
+ */
+public class EmbeddedRegistrationRequestStorage implements RegistrationRequestStorage {
+
+    private final EmbeddedRequests<RegistrationRequest> requests;
+
+    public EmbeddedRegistrationRequestStorage() {
+        this(EmbeddedDatabase.getInstance());
+    }
+
+    public EmbeddedRegistrationRequestStorage(EmbeddedDatabase database) {
+        this.requests = new EmbeddedRequests<>(database.table("registrationRequests"), RegistrationRequest.class, Clock.systemUTC());
+    }
+
+    @Override
+    public boolean put(ByteArray key, RegistrationRequest value) {
+        return requests.put(key, value);
+    }
+
+    @Override
+    public boolean invalidate(ByteArray key) {
+        return requests.invalidate(key);
+    }
+
+    @Override
+    public RegistrationRequest getIfPresent(ByteArray key) {
+        return requests.getIfPresent(key);
+    }
+
+}
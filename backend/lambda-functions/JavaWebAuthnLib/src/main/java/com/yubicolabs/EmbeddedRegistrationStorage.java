@@ -0,0 +1,211 @@
+package com.yubicolabs;
+
+import com.yubico.webauthn.data.ByteArray;
+import com.yubicolabs.data.CredentialRegistration;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * {@link RegistrationStorage} in the {@code credentialRegistrations} table of an {@link EmbeddedDatabase}, for a single
+ * node without Aurora.
+ *
+ * <p>Registrations are stored by credential ID. The keys of every registration are held in memory, indexed by
+ * username and user handle, so every lookup is a hash lookup followed by one read of the mapped file. Writes are
+ * serialized; reads do not wait for them except during compaction.
+ */
+@Slf4j
+public class EmbeddedRegistrationStorage extends AbstractRegistrationStorage {
+
+    private static EmbeddedRegistrationStorage instance;
+    public static synchronized EmbeddedRegistrationStorage getInstance() {
+        if (instance == null) {
+            instance = new EmbeddedRegistrationStorage(EmbeddedDatabase.getInstance());
+        }
+        return instance;
+    }
+
+    private final EmbeddedTable table;
+    private final Map<ByteArray, Indexed> keys = new ConcurrentHashMap<>();
+    private final Map<String, Set<ByteArray>> byUsername = new ConcurrentHashMap<>();
+    private final Map<ByteArray, Set<ByteArray>> byUserHandle = new ConcurrentHashMap<>();
+
+    /**
+     * Only one instance may use the database's registrations, since each keeps its own indexes of them.
+     */
+    public EmbeddedRegistrationStorage(EmbeddedDatabase database) {
+        this.table = database.table("credentialRegistrations");
+        table.forEach((credentialId, value) -> index(credentialId, decodeKey(credentialId, value)));
+        log.info("Indexed {} embedded credential registrations", keys.size());
+    }
+
+    @Override
+    protected Collection<CredentialRegistration> getByCredentialId(ByteArray credentialId) {
+        return table.get(credentialId)
+            .map(value -> Collections.singletonList(decodeRegistration(value)))
+            .orElse(Collections.emptyList());
+    }
+
+    @Override
+    protected synchronized boolean updateRegistration(String username, ByteArray credentialId, CredentialRegistration reg) {
+        final Indexed indexed = keys.get(credentialId);
+        if (indexed == null || !indexed.getKey().getUsername().equals(username)) {
+            return false;
+        }
+        table.put(credentialId, encode(indexed, reg));
+        return true;
+    }
+
+    @Override
+    public synchronized boolean addRegistrationByUsername(String username, CredentialRegistration reg) {
+        final ByteArray credentialId = reg.getCredential().getCredentialId();
+        if (keys.containsKey(credentialId)) {
+            throw new StorageException("Credential " + credentialId + " is already registered", null);
+        }
+        final Indexed indexed = new Indexed(
+            new RegistrationKey(username, reg.getUserIdentity().getId(), credentialId),
+            clock.millis());
+        table.put(credentialId, encode(indexed, reg));
+        index(credentialId, indexed);
+        return true;
+    }
+
+    @Override
+    public Collection<CredentialRegistration> getRegistrationsByUsername(String username) {
+        return registrations(byUsername.get(username));
+    }
+
+    @Override
+    public Collection<CredentialRegistration> getRegistrationsByUserHandle(ByteArray userHandle) {
+        return registrations(byUserHandle.get(userHandle));
+    }
+
+    @Override
+    public boolean userExists(String username) {
+        return byUsername.containsKey(username);
+    }
+
+    @Override
+    public synchronized boolean removeRegistrationByUsername(String username, CredentialRegistration credentialRegistration) {
+        final ByteArray credentialId = credentialRegistration.getCredential().getCredentialId();
+        final Indexed indexed = keys.get(credentialId);
+        if (indexed == null || !indexed.getKey().getUsername().equals(username)) {
+            return false;
+        }
+        table.delete(credentialId);
+        unindex(credentialId, indexed);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean removeAllRegistrations(String username) {
+        final Set<ByteArray> credentialIds = byUsername.getOrDefault(username, Collections.emptySet());
+        for (ByteArray credentialId : credentialIds.toArray(new ByteArray[0])) {
+            table.delete(credentialId);
+            unindex(credentialId, keys.get(credentialId));
+        }
+        return true;
+    }
+
+    @Override
+    public void forEachRegistrationKey(Consumer<RegistrationKey> consumer) {
+        keys.values().forEach(indexed -> consumer.accept(indexed.getKey()));
+    }
+
+    @Override
+    public void forEachRegistrationKeySince(Duration age, Consumer<RegistrationKey> consumer) {
+        final long since = clock.millis() - age.toMillis();
+        keys.values().stream()
+            .filter(indexed -> indexed.getCreatedAt() >= since)
+            .forEach(indexed -> consumer.accept(indexed.getKey()));
+    }
+
+    private Collection<CredentialRegistration> registrations(Set<ByteArray> credentialIds) {
+        if (credentialIds == null) {
+            return Collections.emptyList();
+        }
+        return credentialIds.stream()
+            .map(table::get)
+            .filter(Optional::isPresent)
+            .map(value -> decodeRegistration(value.get()))
+            .collect(Collectors.toList());
+    }
+
+    private void index(ByteArray credentialId, Indexed indexed) {
+        keys.put(credentialId, indexed);
+        byUsername.computeIfAbsent(indexed.getKey().getUsername(), k -> ConcurrentHashMap.newKeySet()).add(credentialId);
+        byUserHandle.computeIfAbsent(indexed.getKey().getUserHandle(), k -> ConcurrentHashMap.newKeySet()).add(credentialId);
+    }
+
+    private void unindex(ByteArray credentialId, Indexed indexed) {
+        keys.remove(credentialId);
+        byUsername.computeIfPresent(indexed.getKey().getUsername(), (k, ids) -> without(ids, credentialId));
+        byUserHandle.computeIfPresent(indexed.getKey().getUserHandle(), (k, ids) -> without(ids, credentialId));
+    }
+
+    private static Set<ByteArray> without(Set<ByteArray> credentialIds, ByteArray credentialId) {
+        credentialIds.remove(credentialId);
+        return credentialIds.isEmpty() ? null : credentialIds;
+    }
+
+    /*
+     * A value is the creation time, the user handle and username, then the registration as JSON; the fields before
+     * the JSON are all the indexes need, so opening the table never parses a registration.
+     */
+
+    private byte[] encode(Indexed indexed, CredentialRegistration reg) {
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.writeLong(indexed.getCreatedAt());
+            out.writeShort(indexed.getKey().getUserHandle().size());
+            out.write(indexed.getKey().getUserHandle().getBytes());
+            out.writeUTF(indexed.getKey().getUsername());
+            out.write(gson.toJson(reg).getBytes(StandardCharsets.UTF_8));
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Indexed decodeKey(ByteArray credentialId, byte[] value) {
+        try {
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(value));
+            final long createdAt = in.readLong();
+            final byte[] userHandle = new byte[in.readUnsignedShort()];
+            in.readFully(userHandle);
+            return new Indexed(new RegistrationKey(in.readUTF(), new ByteArray(userHandle), credentialId), createdAt);
+        } catch (IOException e) {
+            throw new StorageException("Corrupt registration of credential " + credentialId, e);
+        }
+    }
+
+    private CredentialRegistration decodeRegistration(byte[] value) {
+        final int userHandleLength = ((value[8] & 0xff) << 8) | (value[9] & 0xff);
+        final int usernameOffset = 10 + userHandleLength;
+        final int usernameLength = ((value[usernameOffset] & 0xff) << 8) | (value[usernameOffset + 1] & 0xff);
+        final int jsonOffset = usernameOffset + 2 + usernameLength;
+        return gson.fromJson(new String(value, jsonOffset, value.length - jsonOffset, StandardCharsets.UTF_8), CredentialRegistration.class);
+    }
+
+    @Value
+    private static class Indexed {
+        RegistrationKey key;
+        long createdAt;
+    }
+
+}
@@ -0,0 +1,87 @@
+package com.yubicolabs;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.yubico.webauthn.data.ByteArray;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Pending requests of one type in an {@link EmbeddedTable}, shared by the embedded request storages. Like the SQL
+ * backends, a request expires an hour after it was stored; expired requests are swept at most once per minute, when
+ * a request is stored.
+ */
+@Slf4j
+class EmbeddedRequests<T> {
+
+    private static final Duration TIME_TO_LIVE = Duration.ofHours(1);
+    private static final Duration SWEEP_INTERVAL = Duration.ofMinutes(1);
+
+    private final Gson gson = new GsonBuilder().create();
+
+    private final EmbeddedTable table;
+    private final Class<T> type;
+    private final Clock clock;
+    private long sweptAt;
+
+    EmbeddedRequests(EmbeddedTable table, Class<T> type, Clock clock) {
+        this.table = table;
+        this.type = type;
+        this.clock = clock;
+    }
+
+    boolean put(ByteArray key, T value) {
+        final long now = clock.millis();
+        sweepIfDue(now);
+        final byte[] json = gson.toJson(value).getBytes(StandardCharsets.UTF_8);
+        table.put(key, ByteBuffer.allocate(8 + json.length).putLong(now).put(json).array());
+        return true;
+    }
+
+    boolean invalidate(ByteArray key) {
+        table.delete(key);
+        return true;
+    }
+
+    T getIfPresent(ByteArray key) {
+        final Optional<byte[]> value = table.get(key);
+        if (!value.isPresent()) {
+            return null;
+        }
+        if (isExpired(value.get(), clock.millis())) {
+            table.delete(key);
+            return null;
+        }
+        return gson.fromJson(new String(value.get(), 8, value.get().length - 8, StandardCharsets.UTF_8), type);
+    }
+
+    private void sweepIfDue(long now) {
+        synchronized (this) {
+            if (now - sweptAt < SWEEP_INTERVAL.toMillis()) {
+                return;
+            }
+            sweptAt = now;
+        }
+        final List<ByteArray> expired = new ArrayList<>();
+        table.forEach((key, value) -> {
+            if (isExpired(value, now)) {
+                expired.add(key);
+            }
+        });
+        expired.forEach(table::delete);
+        if (!expired.isEmpty()) {
+            log.debug("Swept {} expired {}", expired.size(), type.getSimpleName());
+        }
+    }
+
+    private static boolean isExpired(byte[] value, long now) {
+        return ByteBuffer.wrap(value).getLong() < now - TIME_TO_LIVE.toMillis();
+    }
+
+}
@@ -0,0 +1,197 @@
+package com.yubicolabs;
+
+import com.yubico.webauthn.data.ByteArray;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Persistent map from keys to values, stored as a {@link MappedLog} of puts and deletes with an in-memory index of
+ * where each key's latest value is.
+ *
+ * <p>Once superseded records make up most of the log, the live ones are copied to a new file which then replaces the
+ * log in one rename, so a crash during compaction leaves either the old log or the new one.
+ */
+@Slf4j
+public class EmbeddedTable implements Closeable {
+
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+
+    private final Path path;
+    private final int segmentSize;
+    private final boolean sync;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private Map<ByteArray, Long> offsets = new HashMap<>();
+    private MappedLog records;
+    private long liveBytes;
+
+    public EmbeddedTable(Path path, int segmentSize, boolean sync) {
+        this.path = path;
+        this.segmentSize = segmentSize;
+        this.sync = sync;
+
+        try {
+            Files.deleteIfExists(compactionPath());
+        } catch (IOException e) {
+            throw new StorageException("Failed to remove interrupted compaction of " + path, e);
+        }
+        this.records = new MappedLog(path, segmentSize, sync, (offset, payload) -> {
+            final ByteArray key = key(payload);
+            if (payload[0] == PUT) {
+                offsets.put(key, offset);
+            } else {
+                offsets.remove(key);
+            }
+        });
+        offsets.values().forEach(offset -> liveBytes += recordBytes(offset));
+        log.debug("Opened {} with {} keys", path, offsets.size());
+    }
+
+    public Optional<byte[]> get(ByteArray key) {
+        lock.readLock().lock();
+        try {
+            final Long offset = offsets.get(key);
+            return offset == null ? Optional.empty() : Optional.of(value(records.read(offset)));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean containsKey(ByteArray key) {
+        lock.readLock().lock();
+        try {
+            return offsets.containsKey(key);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void put(ByteArray key, byte[] value) {
+        lock.writeLock().lock();
+        try {
+            final long offset = records.append(record(PUT, key, value));
+            final Long previous = offsets.put(key, offset);
+            liveBytes += recordBytes(offset) - (previous == null ? 0 : recordBytes(previous));
+            compactIfDue();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return whether the key had a value
+     */
+    public boolean delete(ByteArray key) {
+        lock.writeLock().lock();
+        try {
+            final Long previous = offsets.remove(key);
+            if (previous == null) {
+                return false;
+            }
+            records.append(record(DELETE, key, new byte[0]));
+            liveBytes -= recordBytes(previous);
+            compactIfDue();
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Visits every key and its value. Writes wait until the visit is done.
+     */
+    public void forEach(BiConsumer<ByteArray, byte[]> consumer) {
+        lock.readLock().lock();
+        try {
+            offsets.forEach((key, offset) -> consumer.accept(key, value(records.read(offset))));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return offsets.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            records.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void compactIfDue() {
+        if (records.size() > segmentSize && liveBytes * 2 < records.size()) {
+            compact();
+        }
+    }
+
+    private void compact() {
+        final long before = records.size();
+        final Map<ByteArray, Long> compacted = new HashMap<>();
+        final MappedLog copy = new MappedLog(compactionPath(), segmentSize, false, (offset, payload) -> { });
+        offsets.forEach((key, offset) -> compacted.put(key, copy.append(records.read(offset))));
+        copy.close();
+
+        records.close();
+        try {
+            Files.move(compactionPath(), path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new StorageException("Failed to replace " + path + " with its compaction", e);
+        }
+        records = new MappedLog(path, segmentSize, sync, (offset, payload) -> { });
+        offsets = compacted;
+        liveBytes = records.size();
+        log.info("Compacted {} from {} to {} bytes", path, before, records.size());
+    }
+
+    private Path compactionPath() {
+        return Paths.get(path + ".compact");
+    }
+
+    private long recordBytes(long offset) {
+        return records.recordSize(offset);
+    }
+
+    private static byte[] record(byte op, ByteArray key, byte[] value) {
+        return ByteBuffer.allocate(1 + 4 + key.size() + value.length)
+            .put(op)
+            .putInt(key.size())
+            .put(key.getBytes())
+            .put(value)
+            .array();
+    }
+
+    private static ByteArray key(byte[] record) {
+        final int length = ByteBuffer.wrap(record, 1, 4).getInt();
+        return new ByteArray(Arrays.copyOfRange(record, 5, 5 + length));
+    }
+
+    private static byte[] value(byte[] record) {
+        final int length = ByteBuffer.wrap(record, 1, 4).getInt();
+        return Arrays.copyOfRange(record, 5 + length, record.length);
+    }
+
+}
@@ -0,0 +1,44 @@
+package com.yubicolabs;
+
+import com.yubico.webauthn.data.ByteArray;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * {@link UserGenerations} in the {@code userGenerations} table of an {@link EmbeddedDatabase}.
+ */
+public class EmbeddedUserGenerations implements UserGenerations {
+
+    private final EmbeddedTable table;
+
+    public EmbeddedUserGenerations() {
+        this(EmbeddedDatabase.getInstance());
+    }
+
+    public EmbeddedUserGenerations(EmbeddedDatabase database) {
+        this.table = database.table("userGenerations");
+    }
+
+    @Override
+    public void createTables() {
+        // Tables are created when first opened
+    }
+
+    @Override
+    public long get(String username) {
+        return table.get(new ByteArray(KeyHash.username(username)))
+            .map(value -> ByteBuffer.wrap(value).getLong())
+            .orElse(0L);
+    }
+
+    @Override
+    public CompletableFuture<Void> advanceAsync(String username) {
+        return StorageExecutor.completed(() -> {
+            synchronized (table) {
+                table.put(new ByteArray(KeyHash.username(username)), ByteBuffer.allocate(8).putLong(get(username) + 1).array());
+            }
+            return null;
+        });
+    }
+
+}
@@ -0,0 +1,28 @@
+package com.yubicolabs;
+
+import com.yubico.fido.metadata.FidoMetadataDownloader;
+import com.yubico.fido.metadata.MetadataBLOB;
+import java.io.File;
+
+/**
+ * The FIDO Metadata Service BLOB, verified against the FIDO Alliance trust root. The BLOB and trust root are cached
+ * in /tmp, so a warm container only downloads a new BLOB once the cached one is due for an update.
+ */
+public final class FidoMetadata {
+
+    private FidoMetadata() {
+    }
+
+    public static MetadataBLOB loadBlob() throws Exception {
+        return FidoMetadataDownloader.builder()
+            .expectLegalHeader(
+                "Retrieval and use of this BLOB indicates acceptance of the appropriate agreement located at https://fidoalliance.org/metadata/metadata-legal-terms/")
+            .useDefaultTrustRoot()
+            .useTrustRootCacheFile(new File("/tmp/fido-mds-trust-root-cache.bin"))
+            .useDefaultBlob()
+            .useBlobCacheFile(new File("/tmp/fido-mds-blob-cache.bin"))
+            .build()
+            .loadCachedBlob();
+    }
+
+}
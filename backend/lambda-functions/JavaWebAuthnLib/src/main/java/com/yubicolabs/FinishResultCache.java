@@ -0,0 +1,83 @@
+package com.yubicolabs;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Remembers the outcome of each finishRegistration and finishAuthentication for a short while, so that a caller
+ * retrying an invocation that timed out on its side gets the original outcome back. Without it the retry fails, since
+ * the request was used up by the first attempt, and only after verifying the response and reading storage again.
+ *
+ * <p>Outcomes are keyed by the operation, the request ID and a SHA-256 of the credential as sent, so only an identical
+ * retry of the same response is answered from here. Only outcomes of a found request are remembered; a response to an
+ * unknown or expired request is still rejected the usual way. The cache lives in the container, so a retry that lands
+ * in another container fails as before.
+ */
+@Slf4j
+public class FinishResultCache {
+
+    private final Cache<HashCode, Object> results;
+
+    /**
+     * @param window how long an outcome is remembered; zero disables the cache
+     */
+    public FinishResultCache(long cacheSize, Duration window) {
+        this.results = CacheBuilder.newBuilder()
+            .maximumSize(window.isZero() ? 0 : Math.max(cacheSize, 1))
+            .expireAfterWrite(window.toMillis(), TimeUnit.MILLISECONDS)
+            .build();
+    }
+
+    /**
+     * @param response the response as received, with its {@code requestId} and {@code credential}
+     * @return the outcome of an identical earlier response, if remembered
+     */
+    public Optional<Object> getIfPresent(String operation, JsonObject response) {
+        final Optional<Object> remembered = key(operation, response).map(results::getIfPresent);
+        Metrics.of("FinishResults").count(operation + (remembered.isPresent() ? "Hits" : "Misses"), 1).publish();
+        return remembered;
+    }
+
+    /**
+     * Verifies a response against its pending request and remembers the outcome, whether it was accepted or rejected.
+     *
+     * @param request the pending request, or null if it was not found
+     * @param missing the outcome when the request was not found, which is not remembered
+     * @param verify  verifies the response against the request
+     */
+    public <R> Object finish(String operation, JsonObject response, R request, Supplier<Object> missing, Function<R, Object> verify) {
+        if (request == null) {
+            return missing.get();
+        }
+        final Object outcome = verify.apply(request);
+        key(operation, response).ifPresent(key -> results.put(key, outcome));
+        return outcome;
+    }
+
+    private static Optional<HashCode> key(String operation, JsonObject response) {
+        final JsonElement requestId = response.get("requestId");
+        final JsonElement credential = response.get("credential");
+        if (requestId == null || !requestId.isJsonPrimitive() || credential == null) {
+            return Optional.empty();
+        }
+        final byte[] id = requestId.getAsString().getBytes(StandardCharsets.UTF_8);
+        final byte[] body = credential.toString().getBytes(StandardCharsets.UTF_8);
+        return Optional.of(Hashing.sha256().newHasher()
+            .putString(operation, StandardCharsets.UTF_8)
+            .putInt(id.length).putBytes(id)
+            .putInt(body.length).putBytes(body)
+            .hash());
+    }
+
+}
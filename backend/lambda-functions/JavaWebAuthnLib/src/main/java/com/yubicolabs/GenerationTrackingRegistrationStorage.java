@@ -0,0 +1,153 @@
+package com.yubicolabs;
+
+import com.yubico.webauthn.AssertionResult;
+import com.yubico.webauthn.RegisteredCredential;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.PublicKeyCredentialDescriptor;
+import com.yubicolabs.data.CredentialRegistration;
+import java.util.Collection;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Advances the user's {@link UserGenerations generation} after each change to their credentials, so that copies of
+ * them held elsewhere can tell they are out of date.
+ *
+ * <p>Two copies outlive a request: the credential snapshot of an assertion request, checked when the assertion
+ * finishes, and the stale-read cache of {@link CircuitBreakingRegistrationStorage}, checked before each read of the
+ * user while the circuit is closed.
+ *
+ * <p>The generation moves after the change is written: a copy read in between carries the old generation and is
+ * caught by the advance, while moving it first would let a copy of the old credentials carry the new one. Signature
+ * count updates leave the generation alone; copies accept counts that lag behind.
+ *
+ * <p>A failed advance is logged and counted as {@code UserGenerations/AdvanceFailed}, not thrown: the change itself is
+ * written, and the caller would otherwise report it as failed. Copies of the user's credentials may then be used
+ * until their next change, within the bounds each copy already has.
+ */
+@Slf4j
+public class GenerationTrackingRegistrationStorage implements RegistrationStorage {
+
+    private final RegistrationStorage delegate;
+    private final UserGenerations generations;
+
+    public GenerationTrackingRegistrationStorage(RegistrationStorage delegate, UserGenerations generations) {
+        this.delegate = delegate;
+        this.generations = generations;
+    }
+
+    @Override
+    public boolean addRegistrationByUsername(String username, CredentialRegistration reg) {
+        final boolean added = delegate.addRegistrationByUsername(username, reg);
+        advance(username);
+        return added;
+    }
+
+    @Override
+    public CompletableFuture<Boolean> addRegistrationByUsernameAsync(String username, CredentialRegistration reg) {
+        return delegate.addRegistrationByUsernameAsync(username, reg)
+            .thenCompose(added -> generations.advanceAsync(username)
+                .handle((advanced, e) -> {
+                    if (e != null) {
+                        advanceFailed(username, e);
+                    }
+                    return added;
+                }));
+    }
+
+    @Override
+    public boolean removeRegistrationByUsername(String username, CredentialRegistration credentialRegistration) {
+        final boolean removed = delegate.removeRegistrationByUsername(username, credentialRegistration);
+        advance(username);
+        return removed;
+    }
+
+    @Override
+    public boolean removeAllRegistrations(String username) {
+        final boolean removed = delegate.removeAllRegistrations(username);
+        advance(username);
+        return removed;
+    }
+
+    @Override
+    public void updateCredentialNickname(String username, ByteArray credentialId, String nickname) {
+        delegate.updateCredentialNickname(username, credentialId, nickname);
+        advance(username);
+    }
+
+    @Override
+    public void updateSignatureCount(AssertionResult result) {
+        delegate.updateSignatureCount(result);
+    }
+
+    @Override
+    public Collection<CredentialRegistration> getRegistrationsByUsername(String username) {
+        return delegate.getRegistrationsByUsername(username);
+    }
+
+    @Override
+    public Optional<CredentialRegistration> getRegistrationByUsernameAndCredentialId(String username, ByteArray credentialId) {
+        return delegate.getRegistrationByUsernameAndCredentialId(username, credentialId);
+    }
+
+    @Override
+    public Collection<CredentialRegistration> getRegistrationsByUserHandle(ByteArray userHandle) {
+        return delegate.getRegistrationsByUserHandle(userHandle);
+    }
+
+    @Override
+    public boolean userExists(String username) {
+        return delegate.userExists(username);
+    }
+
+    @Override
+    public CompletableFuture<Collection<CredentialRegistration>> getRegistrationsByUsernameAsync(String username) {
+        return delegate.getRegistrationsByUsernameAsync(username);
+    }
+
+    @Override
+    public CompletableFuture<Collection<CredentialRegistration>> getRegistrationsByUserHandleAsync(ByteArray userHandle) {
+        return delegate.getRegistrationsByUserHandleAsync(userHandle);
+    }
+
+    @Override
+    public Set<PublicKeyCredentialDescriptor> getCredentialIdsForUsername(String username) {
+        return delegate.getCredentialIdsForUsername(username);
+    }
+
+    @Override
+    public Optional<ByteArray> getUserHandleForUsername(String username) {
+        return delegate.getUserHandleForUsername(username);
+    }
+
+    @Override
+    public Optional<String> getUsernameForUserHandle(ByteArray userHandle) {
+        return delegate.getUsernameForUserHandle(userHandle);
+    }
+
+    @Override
+    public Optional<RegisteredCredential> lookup(ByteArray credentialId, ByteArray userHandle) {
+        return delegate.lookup(credentialId, userHandle);
+    }
+
+    @Override
+    public Set<RegisteredCredential> lookupAll(ByteArray credentialId) {
+        return delegate.lookupAll(credentialId);
+    }
+
+    private void advance(String username) {
+        try {
+            generations.advance(username);
+        } catch (RuntimeException e) {
+            advanceFailed(username, e);
+        }
+    }
+
+    private static void advanceFailed(String username, Throwable e) {
+        log.error("Failed to advance the generation of user {} after a change to their credentials", username, e);
+        Metrics.of("UserGenerations").count("AdvanceFailed", 1).publish();
+    }
+
+}
@@ -0,0 +1,78 @@
+package com.yubicolabs;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubicolabs.data.AssertionRequestWrapper;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * {@link AssertionRequestStorage} over JDBC, storing the same rows as {@link RDSAssertionRequestStorage}.
+ */
+@Slf4j
+public class JdbcAssertionRequestStorage implements AssertionRequestStorage {
+
+    private final Gson gson = new GsonBuilder().create();
+
+    private final JdbcClient client;
+    private final StorageExecutor executor;
+
+    public JdbcAssertionRequestStorage() {
+        this(JdbcClient.getInstance(), StorageExecutor.getInstance());
+    }
+
+    public JdbcAssertionRequestStorage(JdbcClient client, StorageExecutor executor) {
+        this.client = client;
+        this.executor = executor;
+    }
+
+    @Override
+    public boolean put(ByteArray key, AssertionRequestWrapper value) {
+        return StorageExecutor.await(putAsync(key, value));
+    }
+
+    @Override
+    public boolean invalidate(ByteArray key) {
+        return StorageExecutor.await(invalidateAsync(key));
+    }
+
+    @Override
+    public AssertionRequestWrapper getIfPresent(ByteArray key) {
+        return StorageExecutor.await(getIfPresentAsync(key));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> putAsync(ByteArray key, AssertionRequestWrapper value) {
+        final String SQL = "INSERT INTO assertionRequests (_key, _value) VALUES (?, ?)";
+
+        return executor.submitWrite("putRequest", () -> client.update(SQL, gson.toJson(key), gson.toJson(value)))
+            .thenApply(updated -> true);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> invalidateAsync(ByteArray key) {
+        final String SQL = "DELETE FROM assertionRequests WHERE _key = ?";
+
+        return executor.submitWrite("invalidateRequest", () -> client.update(SQL, gson.toJson(key)))
+            .thenApply(updated -> true);
+    }
+
+    @Override
+    public CompletableFuture<AssertionRequestWrapper> getIfPresentAsync(ByteArray key) {
+        // Clear entries older than 1 hour
+        final String SQL1 = "DELETE FROM assertionRequests WHERE creationDate < CURRENT_TIMESTAMP - INTERVAL '1' HOUR";
+
+        CompletableFuture<Integer> expired = executor.submitWrite("expireRequests", () -> client.update(SQL1));
+
+        final String SQL = "SELECT _value FROM assertionRequests WHERE _key = ? AND creationDate >= CURRENT_TIMESTAMP - INTERVAL '1' HOUR";
+
+        // Get entry; it applies the same cutoff as the cleanup, so the two statements can run concurrently
+        CompletableFuture<List<String>> result = executor.submitRead("getRequest", () -> client.query(SQL, row -> row.getString("_value"), gson.toJson(key)));
+
+        return result.thenCombine(expired, (values, deleted) ->
+            values.isEmpty() ? null : gson.fromJson(values.get(0), AssertionRequestWrapper.class));
+    }
+
+}
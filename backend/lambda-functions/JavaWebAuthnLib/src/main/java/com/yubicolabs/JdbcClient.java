@@ -0,0 +1,117 @@
+package com.yubicolabs;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import javax.sql.DataSource;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Thin JDBC helper over a pooled {@link DataSource}, shared by the JDBC storage classes.
+ *
+ * <p>Statements are always prepared with positional parameters; against MySQL drivers the pool enables client- and
+ * server-side prepared statement caching, so repeated statements skip parsing on both ends.
+ */
+@Slf4j
+public class JdbcClient {
+
+    @FunctionalInterface
+    public interface RowMapper<T> {
+        T map(ResultSet row) throws SQLException;
+    }
+
+    private static JdbcClient instance;
+    public static synchronized JdbcClient getInstance() {
+        if (instance == null) {
+            instance = new JdbcClient(createDataSource(
+                Config.getJdbcUrl(),
+                Config.getJdbcUsername().orElse(null),
+                Config.getJdbcPassword().orElse(null),
+                Config.getJdbcPoolSize()
+            ));
+        }
+        return instance;
+    }
+
+    private static Optional<JdbcClient> readerInstance;
+    public static synchronized Optional<JdbcClient> getReaderInstance() {
+        if (readerInstance == null) {
+            readerInstance = Config.getJdbcReaderUrl().map(url -> new JdbcClient(createDataSource(
+                url,
+                Config.getJdbcUsername().orElse(null),
+                Config.getJdbcPassword().orElse(null),
+                Config.getJdbcPoolSize()
+            )));
+        }
+        return readerInstance;
+    }
+
+    private final DataSource dataSource;
+
+    public JdbcClient(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    public static HikariDataSource createDataSource(String url, String username, String password, int poolSize) {
+        final HikariConfig config = new HikariConfig();
+        config.setPoolName("webauthn-storage");
+        config.setJdbcUrl(url);
+        config.setUsername(username);
+        config.setPassword(password);
+        config.setMaximumPoolSize(poolSize);
+        config.setMinimumIdle(1);
+
+        if (url.startsWith("jdbc:mysql:") || url.startsWith("jdbc:mariadb:")) {
+            config.addDataSourceProperty("cachePrepStmts", "true");
+            config.addDataSourceProperty("prepStmtCacheSize", "64");
+            config.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
+            config.addDataSourceProperty("useServerPrepStmts", "true");
+            config.addDataSourceProperty("useLocalSessionState", "true");
+        }
+
+        log.info("JDBC storage: {} (pool size {})", url.replaceAll("\\?.*", ""), poolSize);
+        return new HikariDataSource(config);
+    }
+
+    public <T> List<T> query(String sql, RowMapper<T> mapper, Object... parameters) {
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = prepare(connection, sql, parameters);
+             ResultSet rows = statement.executeQuery()) {
+            final List<T> result = new ArrayList<>();
+            while (rows.next()) {
+                result.add(mapper.map(rows));
+            }
+            return result;
+        } catch (SQLException e) {
+            throw new StorageException("Query failed: " + sql, e);
+        }
+    }
+
+    /**
+     * @return the number of rows affected
+     */
+    public int update(String sql, Object... parameters) {
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = prepare(connection, sql, parameters)) {
+            return statement.executeUpdate();
+        } catch (SQLException e) {
+            throw new StorageException("Update failed: " + sql, e);
+        }
+    }
+
+    private static PreparedStatement prepare(Connection connection, String sql, Object... parameters) throws SQLException {
+        log.trace("prepare sql: {}", sql);
+        final PreparedStatement statement = connection.prepareStatement(sql);
+        for (int i = 0; i < parameters.length; i++) {
+            statement.setObject(i + 1, parameters[i]);
+        }
+        return statement;
+    }
+
+}
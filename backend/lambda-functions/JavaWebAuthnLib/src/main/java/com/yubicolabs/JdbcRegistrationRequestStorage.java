@@ -0,0 +1,78 @@
+package com.yubicolabs;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubicolabs.data.RegistrationRequest;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * {@link RegistrationRequestStorage} over JDBC, storing the same rows as {@link RDSRegistrationRequestStorage}.
+ */
+@Slf4j
+public class JdbcRegistrationRequestStorage implements RegistrationRequestStorage {
+
+    private final Gson gson = new GsonBuilder().create();
+
+    private final JdbcClient client;
+    private final StorageExecutor executor;
+
+    public JdbcRegistrationRequestStorage() {
+        this(JdbcClient.getInstance(), StorageExecutor.getInstance());
+    }
+
+    public JdbcRegistrationRequestStorage(JdbcClient client, StorageExecutor executor) {
+        this.client = client;
+        this.executor = executor;
+    }
+
+    @Override
+    public boolean put(ByteArray key, RegistrationRequest value) {
+        return StorageExecutor.await(putAsync(key, value));
+    }
+
+    @Override
+    public boolean invalidate(ByteArray key) {
+        return StorageExecutor.await(invalidateAsync(key));
+    }
+
+    @Override
+    public RegistrationRequest getIfPresent(ByteArray key) {
+        return StorageExecutor.await(getIfPresentAsync(key));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> putAsync(ByteArray key, RegistrationRequest value) {
+        final String SQL = "INSERT INTO registrationRequests (_key, _value) VALUES (?, ?)";
+
+        return executor.submitWrite("putRequest", () -> client.update(SQL, gson.toJson(key), gson.toJson(value)))
+            .thenApply(updated -> true);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> invalidateAsync(ByteArray key) {
+        final String SQL = "DELETE FROM registrationRequests WHERE _key = ?";
+
+        return executor.submitWrite("invalidateRequest", () -> client.update(SQL, gson.toJson(key)))
+            .thenApply(updated -> true);
+    }
+
+    @Override
+    public CompletableFuture<RegistrationRequest> getIfPresentAsync(ByteArray key) {
+        // Clear entries older than 1 hour
+        final String SQL1 = "DELETE FROM registrationRequests WHERE creationDate < CURRENT_TIMESTAMP - INTERVAL '1' HOUR";
+
+        CompletableFuture<Integer> expired = executor.submitWrite("expireRequests", () -> client.update(SQL1));
+
+        final String SQL = "SELECT _value FROM registrationRequests WHERE _key = ? AND creationDate >= CURRENT_TIMESTAMP - INTERVAL '1' HOUR";
+
+        // Get entry; it applies the same cutoff as the cleanup, so the two statements can run concurrently
+        CompletableFuture<List<String>> result = executor.submitRead("getRequest", () -> client.query(SQL, row -> row.getString("_value"), gson.toJson(key)));
+
+        return result.thenCombine(expired, (values, deleted) ->
+            values.isEmpty() ? null : gson.fromJson(values.get(0), RegistrationRequest.class));
+    }
+
+}
@@ -0,0 +1,98 @@
+package com.yubicolabs;
+
+import com.yubico.webauthn.data.ByteArray;
+import java.util.List;
+import java.util.Optional;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * {@link RegistrationRoutes} over JDBC, storing the same rows as {@link RDSRegistrationRoutes}.
+ */
+@Slf4j
+public class JdbcRegistrationRoutes implements RegistrationRoutes {
+
+    private final JdbcClient client;
+    private final StorageExecutor executor;
+
+    public JdbcRegistrationRoutes() {
+        this(JdbcClient.getInstance(), StorageExecutor.getInstance());
+    }
+
+    public JdbcRegistrationRoutes(JdbcClient client, StorageExecutor executor) {
+        this.client = client;
+        this.executor = executor;
+    }
+
+    @Override
+    public void createTables() {
+        executor.write("createTables", () -> client.update(CREATE_TABLE_SQL));
+    }
+
+    @Override
+    public Optional<RegistrationRoute> forUsername(String username) {
+        return route(USERNAME, KeyHash.username(username));
+    }
+
+    @Override
+    public Optional<RegistrationRoute> forUserHandle(ByteArray userHandle) {
+        return route(USER_HANDLE, KeyHash.userHandle(userHandle));
+    }
+
+    @Override
+    public Optional<RegistrationRoute> forCredentialId(ByteArray credentialId) {
+        return route(CREDENTIAL_ID, KeyHash.credentialId(credentialId));
+    }
+
+    @Override
+    public void add(String shard, RegistrationKey key) {
+        final String SQL = "INSERT IGNORE INTO registrationRoutes (kind, keyHash, userHandleHash, userHandle, shard) VALUES "
+            + "(" + USERNAME + ", ?, ?, ?, ?), (" + USER_HANDLE + ", ?, ?, ?, ?), (" + CREDENTIAL_ID + ", ?, ?, ?, ?)";
+
+        final byte[] userHandleHash = KeyHash.userHandle(key.getUserHandle());
+        final byte[] userHandle = key.getUserHandle().getBytes();
+
+        executor.write("addRoutes", () -> client.update(SQL,
+            KeyHash.username(key.getUsername()), userHandleHash, userHandle, shard,
+            userHandleHash, userHandleHash, userHandle, shard,
+            KeyHash.credentialId(key.getCredentialId()), userHandleHash, userHandle, shard));
+    }
+
+    @Override
+    public void removeCredential(ByteArray credentialId) {
+        final String SQL = "DELETE FROM registrationRoutes WHERE kind = " + CREDENTIAL_ID + " AND keyHash = ?";
+
+        executor.write("removeRoutes", () -> client.update(SQL, (Object) KeyHash.credentialId(credentialId)));
+    }
+
+    @Override
+    public void removeUser(ByteArray userHandle) {
+        final String SQL = "DELETE FROM registrationRoutes WHERE userHandleHash = ?";
+
+        executor.write("removeRoutes", () -> client.update(SQL, (Object) KeyHash.userHandle(userHandle)));
+    }
+
+    @Override
+    public void moveUser(ByteArray userHandle, String shard) {
+        final String SQL = "UPDATE registrationRoutes SET shard = ? WHERE userHandleHash = ?";
+
+        executor.write("moveRoutes", () -> client.update(SQL, shard, KeyHash.userHandle(userHandle)));
+    }
+
+    @Override
+    public List<ByteArray> userHandlesOn(String shard, byte[] afterHash, int limit) {
+        final String SQL = "SELECT userHandle FROM registrationRoutes WHERE shard = ? AND kind = " + USER_HANDLE + " AND keyHash > ? ORDER BY keyHash LIMIT ?";
+
+        return executor.scan("scanRoutes", () -> client.query(SQL, row -> new ByteArray(row.getBytes("userHandle")), shard, afterHash, limit));
+    }
+
+    private Optional<RegistrationRoute> route(int kind, byte[] keyHash) {
+        final String SQL = "SELECT shard, userHandle FROM registrationRoutes WHERE kind = " + kind + " AND keyHash = ?";
+
+        return executor.read("route", () -> client.query(SQL,
+            row -> new RegistrationRoute(row.getString("shard"), new ByteArray(row.getBytes("userHandle"))),
+            (Object) keyHash))
+            .stream()
+            .findAny();
+    }
+
+}
@@ -0,0 +1,570 @@
+package com.yubicolabs;
+
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.exception.Base64UrlException;
+import com.yubicolabs.data.CredentialRegistration;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * {@link RegistrationStorage} over JDBC, storing the same rows as {@link RDSRegistrationStorage}.
+ */
+@Slf4j
+public class JdbcRegistrationStorage extends AbstractRegistrationStorage implements RegistrationSchemaMigrator, RegistrationBulkStore, RegistrationAaguidIndex {
+
+    private static final String CREATE_V2_SQL = "CREATE TABLE IF NOT EXISTS credentialRegistrationsV2 ("
+        + "credentialIdHash BINARY(32) NOT NULL, "
+        + "usernameHash BINARY(32) NOT NULL, "
+        + "userHandleHash BINARY(32) NOT NULL, "
+        + "username TEXT NOT NULL, "
+        + "userHandle VARBINARY(64) NOT NULL, "
+        + "credentialId VARBINARY(1023) NOT NULL, "
+        + "registration TEXT NOT NULL, "
+        + "creationDate DATETIME DEFAULT CURRENT_TIMESTAMP, "
+        + "lastUsedDate DATETIME, "
+        + "lastUpdatedDate DATETIME DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP, "
+        + "active BOOL DEFAULT TRUE, "
+        + "aaguid BINARY(16), "
+        + "PRIMARY KEY (credentialIdHash), "
+        + "KEY usernameHash (usernameHash), "
+        + "KEY userHandleHash (userHandleHash), "
+        + "KEY aaguid (aaguid, credentialIdHash))";
+
+    private final JdbcClient client;
+    private final JdbcClient reader;
+    private final ReplicaRouting replicas;
+    private final StorageExecutor executor;
+    private final RegistrationSchema schema;
+    private final SingleFlight singleFlight = SingleFlight.getInstance();
+
+    public JdbcRegistrationStorage() {
+        this(JdbcClient.getInstance(), JdbcClient.getReaderInstance(), StorageExecutor.getInstance(), Config.getRegistrationSchema());
+    }
+
+    public JdbcRegistrationStorage(JdbcClient client, StorageExecutor executor) {
+        this(client, executor, RegistrationSchema.V2);
+    }
+
+    public JdbcRegistrationStorage(JdbcClient client, StorageExecutor executor, RegistrationSchema schema) {
+        this(client, client, ReplicaRouting.writerOnly(), executor, schema);
+    }
+
+    private JdbcRegistrationStorage(JdbcClient client, Optional<JdbcClient> reader, StorageExecutor executor, RegistrationSchema schema) {
+        this(
+            client,
+            reader.orElse(client),
+            reader
+                .map(r -> ReplicaRouting.fromConfig(Config.getReaderLagSql().map(sql -> () -> measureLag(executor, r, sql))))
+                .orElseGet(ReplicaRouting::writerOnly),
+            executor,
+            schema);
+    }
+
+    /**
+     * @param reader client for the reader endpoint, used for reads that {@code replicas} allows there
+     */
+    public JdbcRegistrationStorage(JdbcClient client, JdbcClient reader, ReplicaRouting replicas, StorageExecutor executor, RegistrationSchema schema) {
+        this.client = client;
+        this.reader = reader;
+        this.replicas = replicas;
+        this.executor = executor;
+        this.schema = schema;
+    }
+
+    @Override
+    protected Collection<CredentialRegistration> getByCredentialId(ByteArray credentialId) {
+        if (schema.readsV2()) {
+            final String SQL = "SELECT registration FROM credentialRegistrationsV2 WHERE credentialIdHash = ?";
+
+            return read("lookup", credentialId, List::isEmpty, SQL, this::toRegistration, KeyHash.credentialId(credentialId));
+        }
+
+        final String SQL = "SELECT registration FROM credentialRegistrations WHERE credentialId = ?";
+
+        return read("lookup", credentialId, List::isEmpty, SQL, this::toRegistration, gson.toJson(credentialId));
+    }
+
+    @Override
+    protected Optional<CredentialRegistration> getRegistrationForUpdate(String username, ByteArray credentialId) {
+        // Marked before the read, which then goes to the writer and is not shared with one already in flight
+        wrote(username, credentialId);
+        return super.getRegistrationForUpdate(username, credentialId);
+    }
+
+    @Override
+    protected boolean updateRegistration(String username, ByteArray credentialId, CredentialRegistration reg) {
+        wrote(username, credentialId);
+
+        final String SQL = "UPDATE credentialRegistrations SET registration = ? WHERE username = ? AND credentialId = ?";
+        final String V2_SQL = "UPDATE credentialRegistrationsV2 SET registration = ?, aaguid = ? WHERE credentialIdHash = ? AND usernameHash = ?";
+
+        executor.write("updateRegistration", () -> update("updateRegistration", false,
+            SQL, new Object[] { gson.toJson(reg), gson.toJson(username), gson.toJson(credentialId) },
+            V2_SQL, new Object[] { gson.toJson(reg), aaguid(reg).orElse(null), KeyHash.credentialId(credentialId), KeyHash.username(username) }));
+
+        return true;
+    }
+
+    @Override
+    public boolean addRegistrationByUsername(String username, CredentialRegistration reg) {
+        return StorageExecutor.await(addRegistrationByUsernameAsync(username, reg));
+    }
+
+    @Override
+    public Collection<CredentialRegistration> getRegistrationsByUsername(String username) {
+        return StorageExecutor.await(getRegistrationsByUsernameAsync(username));
+    }
+
+    @Override
+    public Collection<CredentialRegistration> getRegistrationsByUserHandle(ByteArray userHandle) {
+        return StorageExecutor.await(getRegistrationsByUserHandleAsync(userHandle));
+    }
+
+    @Override
+    public boolean userExists(String username) {
+        if (schema.readsV2()) {
+            final String SQL = "SELECT EXISTS(SELECT 1 FROM credentialRegistrationsV2 WHERE usernameHash = ?) AS registered";
+
+            return read("userExists", username, rows -> !rows.get(0), SQL, row -> row.getBoolean("registered"), KeyHash.username(username)).get(0);
+        }
+
+        final String SQL = "SELECT EXISTS(SELECT 1 FROM credentialRegistrations WHERE username = ?) AS registered";
+
+        return read("userExists", username, rows -> !rows.get(0), SQL, row -> row.getBoolean("registered"), gson.toJson(username)).get(0);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> addRegistrationByUsernameAsync(String username, CredentialRegistration reg) {
+        final String SQL = "INSERT INTO credentialRegistrations (username, userHandle, credentialId, registration) VALUES (?, ?, ?, ?)";
+        final String V2_SQL = "INSERT INTO credentialRegistrationsV2 (credentialIdHash, usernameHash, userHandleHash, username, userHandle, credentialId, registration, aaguid) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+
+        final ByteArray userHandle = reg.getUserIdentity().getId();
+        final ByteArray credentialId = reg.getCredential().getCredentialId();
+        wrote(username, userHandle, credentialId);
+
+        return executor.submitWrite("addRegistration", () -> update("addRegistration", false,
+            SQL, new Object[] { gson.toJson(username), gson.toJson(userHandle), gson.toJson(credentialId), gson.toJson(reg) },
+            V2_SQL, new Object[] {
+                KeyHash.credentialId(credentialId), KeyHash.username(username), KeyHash.userHandle(userHandle),
+                username, userHandle.getBytes(), credentialId.getBytes(), gson.toJson(reg), aaguid(reg).orElse(null) }))
+            .thenApply(updated -> true);
+    }
+
+    @Override
+    public CompletableFuture<Collection<CredentialRegistration>> getRegistrationsByUsernameAsync(String username) {
+        if (schema.readsV2()) {
+            final String SQL = "SELECT registration FROM credentialRegistrationsV2 WHERE usernameHash = ?";
+
+            return submitRead("getRegistrationsByUsername", username, List::isEmpty, SQL, this::toRegistration, KeyHash.username(username));
+        }
+
+        final String SQL = "SELECT registration FROM credentialRegistrations WHERE username = ?";
+
+        return submitRead("getRegistrationsByUsername", username, List::isEmpty, SQL, this::toRegistration, gson.toJson(username));
+    }
+
+    @Override
+    public CompletableFuture<Collection<CredentialRegistration>> getRegistrationsByUserHandleAsync(ByteArray userHandle) {
+        if (schema.readsV2()) {
+            final String SQL = "SELECT registration FROM credentialRegistrationsV2 WHERE userHandleHash = ?";
+
+            return submitRead("getRegistrationsByUserHandle", userHandle, List::isEmpty, SQL, this::toRegistration, KeyHash.userHandle(userHandle));
+        }
+
+        final String SQL = "SELECT registration FROM credentialRegistrations WHERE userHandle = ?";
+
+        return submitRead("getRegistrationsByUserHandle", userHandle, List::isEmpty, SQL, this::toRegistration, gson.toJson(userHandle));
+    }
+
+    @Override
+    public boolean removeRegistrationByUsername(String username, CredentialRegistration credentialRegistration) {
+        final String SQL = "DELETE FROM credentialRegistrations WHERE username = ? AND credentialId = ?";
+        final String V2_SQL = "DELETE FROM credentialRegistrationsV2 WHERE credentialIdHash = ? AND usernameHash = ?";
+
+        final ByteArray credentialId = credentialRegistration.getCredential().getCredentialId();
+        wrote(username, credentialRegistration.getUserIdentity().getId(), credentialId);
+
+        return executor.write("removeRegistration", () -> update("removeRegistration", true,
+            SQL, new Object[] { gson.toJson(username), gson.toJson(credentialId) },
+            V2_SQL, new Object[] { KeyHash.credentialId(credentialId), KeyHash.username(username) })) > 0;
+    }
+
+    @Override
+    public boolean removeAllRegistrations(String username) {
+        wroteAllOf(username);
+
+        final String SQL = "DELETE FROM credentialRegistrations WHERE username = ?";
+        final String V2_SQL = "DELETE FROM credentialRegistrationsV2 WHERE usernameHash = ?";
+
+        executor.write("removeAllRegistrations", () -> update("removeAllRegistrations", true,
+            SQL, new Object[] { gson.toJson(username) },
+            V2_SQL, new Object[] { KeyHash.username(username) }));
+
+        return true;
+    }
+
+    @Override
+    public void forEachRegistrationKey(Consumer<RegistrationKey> consumer) {
+        if (schema.readsV2()) {
+            final String SQL = "SELECT username, userHandle, credentialId FROM credentialRegistrationsV2";
+
+            executor.scan("scanRegistrationKeys", () -> scanClient().query(SQL, JdbcRegistrationStorage::toRegistrationKeyV2)).forEach(consumer);
+            return;
+        }
+
+        final String SQL = "SELECT username, userHandle, credentialId FROM credentialRegistrations";
+
+        executor.scan("scanRegistrationKeys", () -> scanClient().query(SQL, this::toRegistrationKey)).forEach(consumer);
+    }
+
+    @Override
+    public void forEachRegistrationKeySince(Duration age, Consumer<RegistrationKey> consumer) {
+        // The interval is a number computed here, so it is safe to inline; not all dialects take it as a parameter
+        final String since = "creationDate >= CURRENT_TIMESTAMP - INTERVAL '" + age.getSeconds() + "' SECOND";
+
+        if (schema.readsV2()) {
+            final String SQL = "SELECT username, userHandle, credentialId FROM credentialRegistrationsV2 WHERE " + since;
+
+            executor.scan("scanRegistrationKeys", () -> scanClient().query(SQL, JdbcRegistrationStorage::toRegistrationKeyV2)).forEach(consumer);
+            return;
+        }
+
+        final String SQL = "SELECT username, userHandle, credentialId FROM credentialRegistrations WHERE " + since;
+
+        executor.scan("scanRegistrationKeys", () -> scanClient().query(SQL, this::toRegistrationKey)).forEach(consumer);
+    }
+
+    @Override
+    public void createTables() {
+        executor.write("createTables", () -> client.update(CREATE_V2_SQL));
+    }
+
+    @Override
+    public RegistrationMigrationBatch migrateBatch(String after, int limit, boolean dryRun) {
+        final String PAGE_SQL = "SELECT username, userHandle, credentialId, registration FROM credentialRegistrations WHERE credentialId > ? ORDER BY credentialId LIMIT ?";
+        final String MIGRATED_SQL = "SELECT usernameHash, registration FROM credentialRegistrationsV2 WHERE credentialIdHash = ?";
+        final String COPY_SQL = "INSERT INTO credentialRegistrationsV2 (credentialIdHash, usernameHash, userHandleHash, username, userHandle, credentialId, registration, creationDate, lastUsedDate, lastUpdatedDate, active) "
+            + "SELECT ?, ?, ?, ?, ?, ?, registration, creationDate, lastUsedDate, lastUpdatedDate, active FROM credentialRegistrations "
+            + "WHERE credentialId = ? AND username = ? AND NOT EXISTS (SELECT 1 FROM credentialRegistrationsV2 WHERE credentialIdHash = ?) LIMIT 1";
+        final String REPAIR_SQL = "UPDATE credentialRegistrationsV2 SET registration = ? "
+            + "WHERE credentialIdHash = ? AND usernameHash = ? "
+            + "AND EXISTS (SELECT 1 FROM credentialRegistrations WHERE credentialId = ? AND username = ? AND registration = ?)";
+
+        List<String[]> rows = executor.scan("migrateRegistrations", () -> client.query(PAGE_SQL,
+            row -> new String[] { row.getString("username"), row.getString("userHandle"), row.getString("credentialId"), row.getString("registration") },
+            after, limit));
+
+        RegistrationMigrationBatch.Tally tally = new RegistrationMigrationBatch.Tally();
+        for (String[] row : rows) {
+            RegistrationKey key = toRegistrationKey(row[0], row[1], row[2]);
+            String registration = row[3];
+            byte[] credentialIdHash = KeyHash.credentialId(key.getCredentialId());
+            byte[] usernameHash = KeyHash.username(key.getUsername());
+
+            Optional<Object[]> migrated = executor.scan("migrateRegistrations", () -> client.query(MIGRATED_SQL,
+                m -> new Object[] { m.getBytes("usernameHash"), m.getString("registration") },
+                (Object) credentialIdHash))
+                .stream()
+                .findAny();
+            RegistrationMigrationBatch.Outcome outcome = RegistrationMigrationBatch.compare(key, registration,
+                migrated.map(m -> (byte[]) m[0]).orElse(null),
+                migrated.map(m -> (String) m[1]).orElse(null));
+
+            if (!dryRun && outcome == RegistrationMigrationBatch.Outcome.COPIED) {
+                int updated = executor.write("migrateRegistrations", () -> client.update(COPY_SQL,
+                    credentialIdHash, usernameHash, KeyHash.userHandle(key.getUserHandle()),
+                    key.getUsername(), key.getUserHandle().getBytes(), key.getCredentialId().getBytes(),
+                    row[2], row[0], credentialIdHash));
+                if (updated == 0) {
+                    // Changed by a concurrent write since it was read; the next pass sees the new state
+                    outcome = RegistrationMigrationBatch.Outcome.UNCHANGED;
+                }
+            } else if (!dryRun && outcome == RegistrationMigrationBatch.Outcome.REPAIRED) {
+                int updated = executor.write("migrateRegistrations", () -> client.update(REPAIR_SQL,
+                    registration, credentialIdHash, usernameHash, row[2], row[0], registration));
+                if (updated == 0) {
+                    outcome = RegistrationMigrationBatch.Outcome.UNCHANGED;
+                }
+            }
+            if (outcome == RegistrationMigrationBatch.Outcome.CONFLICT) {
+                log.warn("Credential {} of user {} is stored in credentialRegistrationsV2 for a different user", key.getCredentialId(), key.getUsername());
+            }
+            tally.add(outcome);
+        }
+
+        return tally.build(rows.size() < limit
+            ? Optional.empty()
+            : Optional.of(rows.get(rows.size() - 1)[2]));
+    }
+
+    @Override
+    public long countRows(RegistrationSchema schema) {
+        final String SQL = "SELECT COUNT(*) AS n FROM " + (schema.readsV2() ? "credentialRegistrationsV2" : "credentialRegistrations");
+
+        return executor.scan("countRegistrations", () -> client.query(SQL, row -> row.getLong("n")).get(0));
+    }
+
+    @Override
+    public RegistrationExportPage exportPage(String after, int limit) {
+        if (schema.readsV2()) {
+            final String SQL = "SELECT credentialIdHash, registration FROM credentialRegistrationsV2 WHERE credentialIdHash > ? ORDER BY credentialIdHash LIMIT ?";
+
+            final List<Object[]> rows = executor.scan("exportRegistrations", () -> scanClient().query(SQL,
+                row -> new Object[] { row.getBytes("credentialIdHash"), row.getString("registration") },
+                hashCursor(after), limit));
+            return exportPage(rows, limit, last -> new ByteArray((byte[]) last[0]).getBase64Url());
+        }
+
+        final String SQL = "SELECT credentialId, registration FROM credentialRegistrations WHERE credentialId > ? ORDER BY credentialId LIMIT ?";
+
+        final List<Object[]> rows = executor.scan("exportRegistrations", () -> scanClient().query(SQL,
+            row -> new Object[] { row.getString("credentialId"), row.getString("registration") },
+            after, limit));
+        return exportPage(rows, limit, last -> (String) last[0]);
+    }
+
+    @Override
+    public int importBatch(List<CredentialRegistration> registrations) {
+        requireV2();
+        if (registrations.isEmpty()) {
+            return 0;
+        }
+
+        final String SQL = "INSERT IGNORE INTO credentialRegistrationsV2 (credentialIdHash, usernameHash, userHandleHash, username, userHandle, credentialId, registration, aaguid) VALUES "
+            + String.join(", ", Collections.nCopies(registrations.size(), "(?, ?, ?, ?, ?, ?, ?, ?)"));
+
+        final List<Object> parameters = new ArrayList<>();
+        for (CredentialRegistration reg : registrations) {
+            final String username = reg.getUsername();
+            final ByteArray userHandle = reg.getUserIdentity().getId();
+            final ByteArray credentialId = reg.getCredential().getCredentialId();
+            wrote(username, userHandle, credentialId);
+            Collections.addAll(parameters,
+                KeyHash.credentialId(credentialId), KeyHash.username(username), KeyHash.userHandle(userHandle),
+                username, userHandle.getBytes(), credentialId.getBytes(), gson.toJson(reg), aaguid(reg).orElse(null));
+        }
+
+        return executor.write("importRegistrations", () -> client.update(SQL, parameters.toArray()));
+    }
+
+    @Override
+    public void createAaguidIndex() {
+        final String EXISTS_SQL = "SELECT COUNT(*) AS n FROM information_schema.COLUMNS "
+            + "WHERE TABLE_SCHEMA = SCHEMA() AND LOWER(TABLE_NAME) = 'credentialregistrationsv2' AND LOWER(COLUMN_NAME) = 'aaguid'";
+        final String ALTER_SQL = "ALTER TABLE credentialRegistrationsV2 ADD COLUMN aaguid BINARY(16), ADD KEY aaguid (aaguid, credentialIdHash)";
+
+        if (executor.scan("createTables", () -> client.query(EXISTS_SQL, row -> row.getLong("n")).get(0)) == 0) {
+            executor.write("createTables", () -> client.update(ALTER_SQL));
+        }
+        executor.write("createTables", () -> client.update(CREATE_STATUS_TABLE_SQL));
+    }
+
+    @Override
+    public RegistrationBackfillBatch backfillAaguids(String after, int limit) {
+        requireV2();
+        final String PAGE_SQL = "SELECT credentialIdHash, aaguid, registration FROM credentialRegistrationsV2 WHERE credentialIdHash > ? ORDER BY credentialIdHash LIMIT ?";
+        final String UPDATE_SQL = "UPDATE credentialRegistrationsV2 SET aaguid = ? WHERE credentialIdHash = ? AND registration = ?";
+
+        final List<Object[]> rows = executor.scan("backfillAaguids", () -> client.query(PAGE_SQL,
+            row -> new Object[] { row.getBytes("credentialIdHash"), row.getBytes("aaguid"), row.getString("registration") },
+            hashCursor(after), limit));
+
+        int updated = 0;
+        for (Object[] row : rows) {
+            final byte[] aaguid = aaguid(gson.fromJson((String) row[2], CredentialRegistration.class)).orElse(null);
+            if (!Arrays.equals(aaguid, (byte[]) row[1])) {
+                updated += executor.write("backfillAaguids", () -> client.update(UPDATE_SQL, aaguid, row[0], row[2]));
+            }
+        }
+
+        return new RegistrationBackfillBatch(rows.size(), updated, rows.size() < limit
+            ? Optional.empty()
+            : Optional.of(new ByteArray((byte[]) rows.get(rows.size() - 1)[0]).getBase64Url()));
+    }
+
+    @Override
+    public RegistrationKeyPage scanByAaguid(ByteArray aaguid, ByteArray after, ByteArray before, int limit) {
+        requireV2();
+        final String SQL = "SELECT username, userHandle, credentialId, credentialIdHash FROM credentialRegistrationsV2 "
+            + "WHERE aaguid = ? AND credentialIdHash > ? AND credentialIdHash < ? ORDER BY credentialIdHash LIMIT ?";
+
+        final List<Object[]> rows = executor.scan("scanByAaguid", () -> scanClient().query(SQL,
+            row -> new Object[] { toRegistrationKeyV2(row), row.getBytes("credentialIdHash") },
+            aaguid.getBytes(), after.getBytes(), before.getBytes(), limit));
+
+        return new RegistrationKeyPage(
+            rows.stream().map(row -> (RegistrationKey) row[0]).collect(Collectors.toList()),
+            rows.size() < limit ? Optional.empty() : Optional.of(new ByteArray((byte[]) rows.get(rows.size() - 1)[1])));
+    }
+
+    @Override
+    public Map<ByteArray, String> getAuthenticatorStatuses() {
+        final String SQL = "SELECT aaguid, status FROM authenticatorStatuses";
+
+        final Map<ByteArray, String> statuses = new HashMap<>();
+        executor.scan("getAuthenticatorStatuses", () -> client.query(SQL, row -> new Object[] { row.getBytes("aaguid"), row.getString("status") }))
+            .forEach(row -> statuses.put(new ByteArray((byte[]) row[0]), (String) row[1]));
+        return statuses;
+    }
+
+    @Override
+    public void putAuthenticatorStatuses(Map<ByteArray, String> statuses) {
+        if (statuses.isEmpty()) {
+            return;
+        }
+        final String SQL = "INSERT INTO authenticatorStatuses (aaguid, status) VALUES "
+            + String.join(", ", Collections.nCopies(statuses.size(), "(?, ?)"))
+            + " ON DUPLICATE KEY UPDATE status = VALUES(status)";
+
+        final List<Object> parameters = new ArrayList<>();
+        statuses.forEach((aaguid, status) -> Collections.addAll(parameters, aaguid.getBytes(), status));
+        executor.write("putAuthenticatorStatuses", () -> client.update(SQL, parameters.toArray()));
+    }
+
+    /**
+     * Runs a point read through the executor, sharing it with concurrent identical reads through {@link SingleFlight}.
+     */
+    private <T> List<T> read(String operation, Object key, Predicate<List<T>> mightBeStale, String sql, JdbcClient.RowMapper<T> mapper, Object... parameters) {
+        return singleFlight.blocking(operation, key, new Object[] { this, sql, parameters },
+            () -> executor.read(operation, () -> query(key, mightBeStale, sql, mapper, parameters)));
+    }
+
+    private <T> CompletableFuture<Collection<T>> submitRead(String operation, Object key, Predicate<List<T>> mightBeStale, String sql, JdbcClient.RowMapper<T> mapper, Object... parameters) {
+        return singleFlight.async(operation, key, new Object[] { this, sql, parameters },
+            () -> executor.submitRead(operation, () -> query(key, mightBeStale, sql, mapper, parameters)));
+    }
+
+    /**
+     * Runs a point read on the reader when {@link ReplicaRouting} allows, and again on the writer if the reader fails
+     * or its answer {@code mightBeStale}: a registration written elsewhere within the lag bound is then still found.
+     */
+    private <T> List<T> query(Object key, Predicate<List<T>> mightBeStale, String sql, JdbcClient.RowMapper<T> mapper, Object... parameters) {
+        if (replicas.useReader(key)) {
+            try {
+                final List<T> rows = reader.query(sql, mapper, parameters);
+                if (!mightBeStale.test(rows)) {
+                    return rows;
+                }
+                replicas.fellBack(null);
+            } catch (StorageException e) {
+                replicas.fellBack(e);
+            }
+        }
+        return client.query(sql, mapper, parameters);
+    }
+
+    /**
+     * Marks the user handle and credential IDs of all of a user's registrations as written, read from the writer since
+     * the username is marked first, so that reads by any of them after a removal see it.
+     */
+    private void wroteAllOf(String username) {
+        wrote(username);
+        wrote(getRegistrationsByUsername(username).stream()
+            .flatMap(reg -> Stream.of(reg.getUserIdentity().getId(), reg.getCredential().getCredentialId()))
+            .toArray());
+    }
+
+    private void wrote(Object... keys) {
+        replicas.wrote(keys);
+        singleFlight.wrote(keys);
+    }
+
+    private void requireV2() {
+        if (schema != RegistrationSchema.V2) {
+            throw new IllegalStateException("credentialRegistrationsV2 is not authoritative yet; finish migrating to v2 first");
+        }
+    }
+
+    private JdbcClient scanClient() {
+        return replicas.useReader(null) ? reader : client;
+    }
+
+    private static Duration measureLag(StorageExecutor executor, JdbcClient reader, String sql) {
+        final List<Long> lag = executor.scan("replicaLag", () -> reader.query(sql, row -> row.getLong("lag")));
+        if (lag.isEmpty()) {
+            throw new StorageException("Replica lag query returned no lag", null);
+        }
+        return Duration.ofMillis(lag.get(0));
+    }
+
+    /**
+     * Runs a write against the table(s) of the configured schema. While writing both, a failure on either table fails
+     * the operation. Removals run on v2 first, so that a failure never leaves v2 with a row v1 no longer has, which
+     * the backfill would not find; other writes run on v1 first, and the backfill copies or repairs a v2 row they leave
+     * missing or outdated.
+     */
+    private int update(String operation, boolean removal, String sql, Object[] parameters, String v2Sql, Object[] v2Parameters) {
+        switch (schema) {
+            case V1:
+                return client.update(sql, parameters);
+            case V2:
+                return client.update(v2Sql, v2Parameters);
+            case DUAL:
+            default:
+                if (removal) {
+                    // A row removed from either table counts, as the two may differ until backfilled
+                    final int removed = updateV2(operation, v2Sql, v2Parameters);
+                    return Math.max(removed, client.update(sql, parameters));
+                }
+                final int updated = client.update(sql, parameters);
+                updateV2(operation, v2Sql, v2Parameters);
+                return updated;
+        }
+    }
+
+    private int updateV2(String operation, String v2Sql, Object[] v2Parameters) {
+        try {
+            return client.update(v2Sql, v2Parameters);
+        } catch (StorageException e) {
+            log.warn("{} on credentialRegistrationsV2 failed", operation, e);
+            Metrics.of("RegistrationSchema").count("DualWriteFailures", 1).publish();
+            throw e;
+        }
+    }
+
+    private static RegistrationExportPage exportPage(List<Object[]> rows, int limit, Function<Object[], String> cursor) {
+        return new RegistrationExportPage(
+            rows.stream().map(row -> (String) row[1]).collect(Collectors.toList()),
+            rows.size() < limit ? Optional.empty() : Optional.of(cursor.apply(rows.get(rows.size() - 1))));
+    }
+
+    private static byte[] hashCursor(String after) {
+        try {
+            return ByteArray.fromBase64Url(after).getBytes();
+        } catch (Base64UrlException e) {
+            throw new IllegalArgumentException("Malformed cursor", e);
+        }
+    }
+
+    private RegistrationKey toRegistrationKey(ResultSet row) throws SQLException {
+        return toRegistrationKey(row.getString("username"), row.getString("userHandle"), row.getString("credentialId"));
+    }
+
+    private static RegistrationKey toRegistrationKeyV2(ResultSet row) throws SQLException {
+        return new RegistrationKey(
+            row.getString("username"),
+            new ByteArray(row.getBytes("userHandle")),
+            new ByteArray(row.getBytes("credentialId")));
+    }
+
+    private CredentialRegistration toRegistration(ResultSet row) throws SQLException {
+        return gson.fromJson(row.getString("registration"), CredentialRegistration.class);
+    }
+
+}
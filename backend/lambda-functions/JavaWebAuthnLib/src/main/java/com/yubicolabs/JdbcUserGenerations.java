@@ -0,0 +1,62 @@
+package com.yubicolabs;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * {@link UserGenerations} over JDBC, storing the same rows as {@link RDSUserGenerations}.
+ */
+@Slf4j
+public class JdbcUserGenerations implements UserGenerations {
+
+    private final JdbcClient client;
+    private final StorageExecutor executor;
+
+    public JdbcUserGenerations() {
+        this(JdbcClient.getInstance(), StorageExecutor.getInstance());
+    }
+
+    public JdbcUserGenerations(JdbcClient client, StorageExecutor executor) {
+        this.client = client;
+        this.executor = executor;
+    }
+
+    @Override
+    public void createTables() {
+        executor.write("createTables", () -> client.update(CREATE_TABLE_SQL));
+    }
+
+    @Override
+    public long get(String username) {
+        final String SQL = "SELECT generation FROM userGenerations WHERE usernameHash = ?";
+
+        return executor.read("getGeneration", () -> client.query(SQL, row -> row.getLong("generation"), (Object) KeyHash.username(username)))
+            .stream()
+            .findAny()
+            .orElse(0L);
+    }
+
+    @Override
+    public CompletableFuture<Void> advanceAsync(String username) {
+        final String SQL = "INSERT INTO userGenerations (usernameHash, generation) VALUES (?, 1) ON DUPLICATE KEY UPDATE generation = generation + 1";
+
+        return executor.submitWrite("advanceGeneration", () -> client.update(SQL, (Object) KeyHash.username(username)))
+            .thenApply(updated -> null);
+    }
+
+    @Override
+    public void advanceAll(Collection<String> usernames) {
+        if (usernames.isEmpty()) {
+            return;
+        }
+        final String SQL = "INSERT INTO userGenerations (usernameHash, generation) VALUES "
+            + String.join(", ", Collections.nCopies(usernames.size(), "(?, 1)"))
+            + " ON DUPLICATE KEY UPDATE generation = generation + 1";
+
+        final Object[] parameters = usernames.stream().map(KeyHash::username).toArray();
+        executor.write("advanceGeneration", () -> client.update(SQL, parameters));
+    }
+
+}
@@ -0,0 +1,32 @@
+package com.yubicolabs;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.yubico.webauthn.data.ByteArray;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The fixed-width keys of {@code credentialRegistrationsV2}: SHA-256 of the raw username, user handle or credential
+ * ID. Credential IDs can be up to 1023 bytes, so hashing keeps every index entry at 32 bytes whatever the
+ * authenticator produced.
+ */
+public final class KeyHash {
+
+    private static final HashFunction SHA_256 = Hashing.sha256();
+
+    private KeyHash() {
+    }
+
+    public static byte[] username(String username) {
+        return SHA_256.hashString(username, StandardCharsets.UTF_8).asBytes();
+    }
+
+    public static byte[] userHandle(ByteArray userHandle) {
+        return SHA_256.hashBytes(userHandle.getBytes()).asBytes();
+    }
+
+    public static byte[] credentialId(ByteArray credentialId) {
+        return SHA_256.hashBytes(credentialId.getBytes()).asBytes();
+    }
+
+}
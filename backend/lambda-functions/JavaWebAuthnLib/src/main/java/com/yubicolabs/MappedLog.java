@@ -0,0 +1,196 @@
+package com.yubicolabs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Append-only log of checksummed records in a memory-mapped file, the persistence of {@link EmbeddedTable}.
+ *
+ * <p>The file is mapped in fixed-size segments and grows a segment at a time. A record is a 4-byte length, the CRC32
+ * of the payload and the payload, and never spans two segments: the rest of a segment too small for the next record
+ * is skipped with a length of -1. The length is written last, so a record only becomes visible once complete.
+ *
+ * <p>Opening the log replays it up to the first empty or damaged record, which marks its end. Anything after a
+ * damaged record is what remains of a write cut short by a crash, and is zeroed so that it can never be mistaken for
+ * a record once the log has grown past it again.
+ */
+@Slf4j
+public class MappedLog implements Closeable {
+
+    private static final int HEADER_BYTES = 8;
+    private static final int SKIP = -1;
+
+    private final FileChannel channel;
+    private final int segmentSize;
+    private final boolean sync;
+    private final List<MappedByteBuffer> segments = new CopyOnWriteArrayList<>();
+    private volatile long end;
+
+    /**
+     * @param segmentSize bytes mapped at a time, and one more than the largest record
+     * @param sync        whether every append is forced to disk before it returns; without, a crash of the machine
+     *                    (not only of the process) can lose the latest appends
+     * @param replay      called with the offset and payload of every record, in order
+     */
+    public MappedLog(Path path, int segmentSize, boolean sync, BiConsumer<Long, byte[]> replay) {
+        this.segmentSize = segmentSize;
+        this.sync = sync;
+        try {
+            Files.createDirectories(path.toAbsolutePath().getParent());
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            final long size = channel.size();
+            for (long start = 0; start < Math.max(size, 1); start += segmentSize) {
+                map();
+            }
+        } catch (IOException e) {
+            throw new StorageException("Failed to open " + path, e);
+        }
+        this.end = recover(replay);
+    }
+
+    /**
+     * @return the offset of the record
+     */
+    public synchronized long append(byte[] payload) {
+        if (HEADER_BYTES + payload.length >= segmentSize) {
+            throw new IllegalArgumentException("Record of " + payload.length + " bytes exceeds the segment size");
+        }
+
+        long offset = end;
+        int position = (int) (offset % segmentSize);
+        if (position + HEADER_BYTES + payload.length > segmentSize) {
+            if (position + 4 <= segmentSize) {
+                segment(offset).putInt(position, SKIP);
+                if (sync) {
+                    segment(offset).force();
+                }
+            }
+            offset += segmentSize - position;
+            position = 0;
+        }
+        while (offset / segmentSize >= segments.size()) {
+            map();
+        }
+
+        final ByteBuffer segment = segment(offset).duplicate();
+        segment.position(position + HEADER_BYTES);
+        segment.put(payload);
+        segment.putInt(position + 4, crc(payload));
+        segment.putInt(position, payload.length);
+        if (sync) {
+            segment(offset).force();
+        }
+
+        end = offset + HEADER_BYTES + payload.length;
+        return offset;
+    }
+
+    public byte[] read(long offset) {
+        final ByteBuffer segment = segment(offset).duplicate();
+        final int position = (int) (offset % segmentSize);
+        final byte[] payload = new byte[segment.getInt(position)];
+        segment.position(position + HEADER_BYTES);
+        segment.get(payload);
+        return payload;
+    }
+
+    /**
+     * @return bytes the record at the offset takes up, header included
+     */
+    public int recordSize(long offset) {
+        return HEADER_BYTES + segment(offset).getInt((int) (offset % segmentSize));
+    }
+
+    /**
+     * @return bytes up to the end of the last record
+     */
+    public long size() {
+        return end;
+    }
+
+    public void force() {
+        segments.forEach(MappedByteBuffer::force);
+    }
+
+    @Override
+    public void close() {
+        try {
+            force();
+            channel.close();
+        } catch (IOException e) {
+            throw new StorageException("Failed to close log", e);
+        }
+    }
+
+    private long recover(BiConsumer<Long, byte[]> replay) {
+        long offset = 0;
+        while (offset / segmentSize < segments.size()) {
+            final ByteBuffer segment = segment(offset).duplicate();
+            final int position = (int) (offset % segmentSize);
+            final int length = position + 4 <= segmentSize ? segment.getInt(position) : SKIP;
+            if (length == SKIP) {
+                offset += segmentSize - position;
+                continue;
+            }
+            if (length == 0) {
+                return offset;
+            }
+            if (length < 0 || position + HEADER_BYTES + length > segmentSize) {
+                return truncate(offset);
+            }
+            final byte[] payload = new byte[length];
+            segment.position(position + HEADER_BYTES);
+            segment.get(payload);
+            if (segment.getInt(position + 4) != crc(payload)) {
+                return truncate(offset);
+            }
+            replay.accept(offset, payload);
+            offset += HEADER_BYTES + length;
+        }
+        return offset;
+    }
+
+    private long truncate(long offset) {
+        log.warn("Damaged record at offset {}; discarding the rest of the log", offset);
+        final byte[] zeros = new byte[64 * 1024];
+        for (int i = (int) (offset / segmentSize); i < segments.size(); i++) {
+            final ByteBuffer segment = segments.get(i).duplicate();
+            segment.position(i == offset / segmentSize ? (int) (offset % segmentSize) : 0);
+            while (segment.hasRemaining()) {
+                segment.put(zeros, 0, Math.min(zeros.length, segment.remaining()));
+            }
+            segments.get(i).force();
+        }
+        return offset;
+    }
+
+    private MappedByteBuffer segment(long offset) {
+        return segments.get((int) (offset / segmentSize));
+    }
+
+    private void map() {
+        try {
+            segments.add(channel.map(FileChannel.MapMode.READ_WRITE, (long) segments.size() * segmentSize, segmentSize));
+        } catch (IOException e) {
+            throw new StorageException("Failed to grow log", e);
+        }
+    }
+
+    private static int crc(byte[] payload) {
+        final CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+}
@@ -0,0 +1,286 @@
+package com.yubicolabs;
+
+import com.yubico.webauthn.AssertionResult;
+import com.yubico.webauthn.RegisteredCredential;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.PublicKeyCredentialDescriptor;
+import com.yubicolabs.data.CredentialRegistration;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Runs each {@link RegistrationStorage} read at most once per request.
+ *
+ * <p>Between {@link #beginRequest} and {@link #endRequest} on a thread, results are remembered and the derived reads
+ * ({@code getCredentialIdsForUsername}, {@code getUserHandleForUsername}, ...) are answered from the remembered
+ * registrations of the user instead of querying them again. Any write forgets everything remembered for the request.
+ * Outside a request every call goes straight to the delegate.
+ *
+ * <p>If the delegate's circuit is open, derived reads fall back to the delegate's own method so that its stale cache
+ * can still answer them.
+ *
+ * <p>A request can also be seeded with credentials it already has, see {@link #rememberCredentials}.
+ */
+@Slf4j
+public class MemoizingRegistrationStorage implements RegistrationStorage {
+
+    private final RegistrationStorage delegate;
+    private final ThreadLocal<Memo> current = new ThreadLocal<>();
+
+    public MemoizingRegistrationStorage(RegistrationStorage delegate) {
+        this.delegate = delegate;
+    }
+
+    public void beginRequest() {
+        current.set(new Memo());
+    }
+
+    public void endRequest() {
+        current.remove();
+    }
+
+    /**
+     * Answers {@code lookup}, {@code lookupAll} and the username/user handle mappings of the current request from the
+     * given credentials of the user, instead of the delegate. Does nothing outside a request.
+     */
+    public void rememberCredentials(String username, Collection<RegisteredCredential> credentials) {
+        final Memo memo = current.get();
+        if (memo == null || credentials.isEmpty()) {
+            return;
+        }
+        final ByteArray userHandle = credentials.iterator().next().getUserHandle();
+        memo.userHandles.put(username, CompletableFuture.completedFuture(Optional.of(userHandle)));
+        memo.usernames.put(userHandle, CompletableFuture.completedFuture(Optional.of(username)));
+        credentials.forEach(credential -> {
+            memo.lookups.put(
+                new CredentialKey(credential.getCredentialId(), credential.getUserHandle()),
+                CompletableFuture.completedFuture(Optional.of(credential)));
+            memo.lookupAlls.put(
+                credential.getCredentialId(),
+                CompletableFuture.completedFuture(Collections.singleton(credential)));
+        });
+    }
+
+    @Override
+    public boolean addRegistrationByUsername(String username, CredentialRegistration reg) {
+        return write(() -> delegate.addRegistrationByUsername(username, reg));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> addRegistrationByUsernameAsync(String username, CredentialRegistration reg) {
+        return write(() -> delegate.addRegistrationByUsernameAsync(username, reg));
+    }
+
+    @Override
+    public Collection<CredentialRegistration> getRegistrationsByUsername(String username) {
+        return StorageExecutor.await(getRegistrationsByUsernameAsync(username));
+    }
+
+    @Override
+    public CompletableFuture<Collection<CredentialRegistration>> getRegistrationsByUsernameAsync(String username) {
+        final Memo memo = current.get();
+        return memo == null
+            ? delegate.getRegistrationsByUsernameAsync(username)
+            : memo.get(memo.byUsername, username, delegate::getRegistrationsByUsernameAsync);
+    }
+
+    @Override
+    public Collection<CredentialRegistration> getRegistrationsByUserHandle(ByteArray userHandle) {
+        return StorageExecutor.await(getRegistrationsByUserHandleAsync(userHandle));
+    }
+
+    @Override
+    public CompletableFuture<Collection<CredentialRegistration>> getRegistrationsByUserHandleAsync(ByteArray userHandle) {
+        final Memo memo = current.get();
+        return memo == null
+            ? delegate.getRegistrationsByUserHandleAsync(userHandle)
+            : memo.get(memo.byUserHandle, userHandle, delegate::getRegistrationsByUserHandleAsync);
+    }
+
+    @Override
+    public boolean userExists(String username) {
+        final Memo memo = current.get();
+        if (memo == null) {
+            return delegate.userExists(username);
+        }
+        final CompletableFuture<Collection<CredentialRegistration>> registrations = memo.byUsername.get(username);
+        if (registrations != null) {
+            return !StorageExecutor.await(registrations).isEmpty();
+        }
+        return StorageExecutor.await(memo.get(memo.exists, username, name -> StorageExecutor.completed(() -> delegate.userExists(name))));
+    }
+
+    @Override
+    public Optional<CredentialRegistration> getRegistrationByUsernameAndCredentialId(String username, ByteArray credentialId) {
+        if (current.get() == null) {
+            return delegate.getRegistrationByUsernameAndCredentialId(username, credentialId);
+        }
+        return getRegistrationsByUsername(username).stream()
+            .filter(reg -> credentialId.equals(reg.getCredential().getCredentialId()))
+            .findFirst();
+    }
+
+    @Override
+    public Set<PublicKeyCredentialDescriptor> getCredentialIdsForUsername(String username) {
+        if (current.get() == null) {
+            return delegate.getCredentialIdsForUsername(username);
+        }
+        return derive(
+            () -> getRegistrationsByUsername(username).stream()
+                .map(reg -> PublicKeyCredentialDescriptor.builder()
+                    .id(reg.getCredential().getCredentialId())
+                    .build())
+                .collect(Collectors.toSet()),
+            () -> delegate.getCredentialIdsForUsername(username));
+    }
+
+    @Override
+    public Optional<ByteArray> getUserHandleForUsername(String username) {
+        final Memo memo = current.get();
+        if (memo == null) {
+            return delegate.getUserHandleForUsername(username);
+        }
+        if (memo.userHandles.containsKey(username)) {
+            return StorageExecutor.await(memo.userHandles.get(username));
+        }
+        return derive(
+            () -> getRegistrationsByUsername(username).stream()
+                .findAny()
+                .map(reg -> reg.getUserIdentity().getId()),
+            () -> delegate.getUserHandleForUsername(username));
+    }
+
+    @Override
+    public Optional<String> getUsernameForUserHandle(ByteArray userHandle) {
+        final Memo memo = current.get();
+        if (memo == null) {
+            return delegate.getUsernameForUserHandle(userHandle);
+        }
+        if (memo.usernames.containsKey(userHandle)) {
+            return StorageExecutor.await(memo.usernames.get(userHandle));
+        }
+        return derive(
+            () -> getRegistrationsByUserHandle(userHandle).stream()
+                .findAny()
+                .map(CredentialRegistration::getUsername),
+            () -> delegate.getUsernameForUserHandle(userHandle));
+    }
+
+    @Override
+    public Optional<RegisteredCredential> lookup(ByteArray credentialId, ByteArray userHandle) {
+        final Memo memo = current.get();
+        if (memo == null) {
+            return delegate.lookup(credentialId, userHandle);
+        }
+        return StorageExecutor.await(memo.get(memo.lookups, new CredentialKey(credentialId, userHandle),
+            key -> StorageExecutor.completed(() -> delegate.lookup(credentialId, userHandle))));
+    }
+
+    @Override
+    public Set<RegisteredCredential> lookupAll(ByteArray credentialId) {
+        final Memo memo = current.get();
+        if (memo == null) {
+            return delegate.lookupAll(credentialId);
+        }
+        return StorageExecutor.await(memo.get(memo.lookupAlls, credentialId,
+            id -> StorageExecutor.completed(() -> delegate.lookupAll(id))));
+    }
+
+    @Override
+    public boolean removeRegistrationByUsername(String username, CredentialRegistration credentialRegistration) {
+        return write(() -> delegate.removeRegistrationByUsername(username, credentialRegistration));
+    }
+
+    @Override
+    public boolean removeAllRegistrations(String username) {
+        return write(() -> delegate.removeAllRegistrations(username));
+    }
+
+    @Override
+    public void updateSignatureCount(AssertionResult result) {
+        write(() -> {
+            delegate.updateSignatureCount(result);
+            return null;
+        });
+    }
+
+    @Override
+    public void updateCredentialNickname(String username, ByteArray credentialId, String nickname) {
+        write(() -> {
+            delegate.updateCredentialNickname(username, credentialId, nickname);
+            return null;
+        });
+    }
+
+    private <T> T write(Supplier<T> call) {
+        final Memo memo = current.get();
+        if (memo != null) {
+            memo.clear();
+        }
+        return call.get();
+    }
+
+    private static <T> T derive(Supplier<T> fromRegistrations, Supplier<T> fromDelegate) {
+        try {
+            return fromRegistrations.get();
+        } catch (CircuitOpenException e) {
+            log.debug("Circuit open; asking the delegate directly");
+            return fromDelegate.get();
+        }
+    }
+
+    private static final class Memo {
+        final Map<String, CompletableFuture<Collection<CredentialRegistration>>> byUsername = new ConcurrentHashMap<>();
+        final Map<ByteArray, CompletableFuture<Collection<CredentialRegistration>>> byUserHandle = new ConcurrentHashMap<>();
+        final Map<String, CompletableFuture<Boolean>> exists = new ConcurrentHashMap<>();
+        final Map<String, CompletableFuture<Optional<ByteArray>>> userHandles = new ConcurrentHashMap<>();
+        final Map<ByteArray, CompletableFuture<Optional<String>>> usernames = new ConcurrentHashMap<>();
+        final Map<CredentialKey, CompletableFuture<Optional<RegisteredCredential>>> lookups = new ConcurrentHashMap<>();
+        final Map<ByteArray, CompletableFuture<Set<RegisteredCredential>>> lookupAlls = new ConcurrentHashMap<>();
+
+        /**
+         * Starts the read unless it is already known or in flight. Failed reads are not remembered.
+         */
+        <K, V> CompletableFuture<V> get(Map<K, CompletableFuture<V>> results, K key, Function<K, CompletableFuture<V>> read) {
+            final CompletableFuture<V> known = results.get(key);
+            if (known != null) {
+                return known;
+            }
+            final CompletableFuture<V> result = read.apply(key);
+            results.put(key, result);
+            result.whenComplete((value, e) -> {
+                if (e != null) {
+                    results.remove(key, result);
+                }
+            });
+            return result;
+        }
+
+        void clear() {
+            byUsername.clear();
+            byUserHandle.clear();
+            exists.clear();
+            userHandles.clear();
+            usernames.clear();
+            lookups.clear();
+            lookupAlls.clear();
+        }
+    }
+
+    @Value
+    private static class CredentialKey {
+        ByteArray credentialId;
+        ByteArray userHandle;
+    }
+
+}
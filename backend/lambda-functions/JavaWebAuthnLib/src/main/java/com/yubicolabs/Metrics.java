@@ -0,0 +1,84 @@
+package com.yubicolabs;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import java.time.Clock;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Publishes metrics as CloudWatch embedded metric format log lines, which CloudWatch Logs turns into metrics in the
+ * {@value #NAMESPACE} namespace with a {@code Component} dimension.
+ *
+ * <p>The lines go to the {@code metrics} logger, which log4j2.xml writes without a prefix so they stay valid JSON.
+ */
+@Slf4j(topic = "metrics")
+public final class Metrics {
+
+    static final String NAMESPACE = "WebAuthnKit";
+
+    private static final Gson gson = new Gson();
+    private static final Clock clock = Clock.systemUTC();
+
+    private final String component;
+    private final JsonArray definitions = new JsonArray();
+    private final JsonObject values = new JsonObject();
+
+    private Metrics(String component) {
+        this.component = component;
+    }
+
+    public static Metrics of(String component) {
+        return new Metrics(component);
+    }
+
+    public Metrics count(String name, long value) {
+        return add(name, "Count", value);
+    }
+
+    public Metrics bytes(String name, long value) {
+        return add(name, "Bytes", value);
+    }
+
+    public Metrics milliseconds(String name, double value) {
+        return add(name, "Milliseconds", value);
+    }
+
+    public Metrics value(String name, double value) {
+        return add(name, "None", value);
+    }
+
+    public void publish() {
+        final JsonObject metricDirective = new JsonObject();
+        metricDirective.addProperty("Namespace", NAMESPACE);
+        final JsonArray dimensionSet = new JsonArray();
+        dimensionSet.add("Component");
+        final JsonArray dimensions = new JsonArray();
+        dimensions.add(dimensionSet);
+        metricDirective.add("Dimensions", dimensions);
+        metricDirective.add("Metrics", definitions);
+
+        final JsonArray directives = new JsonArray();
+        directives.add(metricDirective);
+        final JsonObject metadata = new JsonObject();
+        metadata.addProperty("Timestamp", clock.millis());
+        metadata.add("CloudWatchMetrics", directives);
+
+        final JsonObject line = new JsonObject();
+        line.add("_aws", metadata);
+        line.addProperty("Component", component);
+        values.entrySet().forEach(entry -> line.add(entry.getKey(), entry.getValue()));
+
+        log.info(gson.toJson(line));
+    }
+
+    private Metrics add(String name, String unit, Number value) {
+        final JsonObject definition = new JsonObject();
+        definition.addProperty("Name", name);
+        definition.addProperty("Unit", unit);
+        definitions.add(definition);
+        values.addProperty(name, value);
+        return this;
+    }
+
+}
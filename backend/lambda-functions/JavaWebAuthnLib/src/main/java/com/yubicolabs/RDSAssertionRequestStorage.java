@@ -0,0 +1,95 @@
+package com.yubicolabs;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubicolabs.data.AssertionRequestWrapper;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import lombok.extern.slf4j.Slf4j;
+
+
+@Slf4j
+public class RDSAssertionRequestStorage implements AssertionRequestStorage {
+
+    private final Gson gson = new GsonBuilder().create();
+
+    private final DataApiClient client;
+    private final StorageExecutor executor;
+
+    public RDSAssertionRequestStorage() {
+        this(DataApiClient.getInstance(), StorageExecutor.getInstance());
+    }
+
+    public RDSAssertionRequestStorage(DataApiClient client, StorageExecutor executor) {
+        this.client = client;
+        this.executor = executor;
+    }
+
+    @Override
+    public boolean put(ByteArray key, AssertionRequestWrapper value) {
+        return StorageExecutor.await(putAsync(key, value));
+    }
+
+    @Override
+    public boolean invalidate(ByteArray key) {
+        return StorageExecutor.await(invalidateAsync(key));
+    }
+
+    @Override
+    public AssertionRequestWrapper getIfPresent(ByteArray key) {
+        return StorageExecutor.await(getIfPresentAsync(key));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> putAsync(ByteArray key, AssertionRequestWrapper value) {
+
+        String keyJsonOutput = gson.toJson(key);
+        String valueJsonOutput = gson.toJson(value);
+
+        final String SQL = "INSERT INTO assertionRequests (_key, _value) VALUES( :keyJsonOutput, :valueJsonOutput)";
+
+        return executor.writeAsync("putRequest", () -> client.update(SQL, SqlParameters.builder()
+            .string("keyJsonOutput", keyJsonOutput)
+            .string("valueJsonOutput", valueJsonOutput)
+            .build()))
+            .thenApply(updated -> true);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> invalidateAsync(ByteArray key) {
+
+        String keyJsonOutput = gson.toJson(key);
+
+        final String SQL = "DELETE FROM assertionRequests WHERE _key = :keyJsonOutput";
+
+        return executor.writeAsync("invalidateRequest", () -> client.update(SQL, SqlParameters.builder()
+            .string("keyJsonOutput", keyJsonOutput)
+            .build()))
+            .thenApply(updated -> true);
+    }
+
+    @Override
+    public CompletableFuture<AssertionRequestWrapper> getIfPresentAsync(ByteArray key) {
+        log.debug("getIfPresent key: {}", key);
+
+        String keyJsonOutput = gson.toJson(key);
+        log.debug("getIfPresent keyJsonOutput: {}", keyJsonOutput);
+
+        // Clear entries older than 1 hour
+        final String SQL1 = "DELETE FROM assertionRequests WHERE creationDate < DATE_SUB( NOW( ) , INTERVAL 1 HOUR )";
+
+        CompletableFuture<Long> expired = executor.writeAsync("expireRequests", () -> client.update(SQL1, SqlParameters.NONE));
+
+        final String SQL = "SELECT _value FROM assertionRequests WHERE _key = :keyJsonOutput AND creationDate >= DATE_SUB( NOW( ) , INTERVAL 1 HOUR )";
+
+        // Get entry; it applies the same cutoff as the cleanup, so the two statements can run concurrently
+        CompletableFuture<List<DataApiRow>> result = executor.readAsync("getRequest", () -> client.query(SQL, SqlParameters.builder()
+            .string("keyJsonOutput", keyJsonOutput)
+            .build()));
+
+        return result.thenCombine(expired, (rows, deleted) ->
+            rows.isEmpty() ? null : gson.fromJson(rows.get(0).getString("_value"), AssertionRequestWrapper.class));
+    }
+
+}
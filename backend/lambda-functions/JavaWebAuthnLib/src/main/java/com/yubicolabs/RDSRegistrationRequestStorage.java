@@ -0,0 +1,94 @@
+package com.yubicolabs;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubicolabs.data.RegistrationRequest;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import lombok.extern.slf4j.Slf4j;
+
+
+
+@Slf4j
+public class RDSRegistrationRequestStorage implements RegistrationRequestStorage {
+
+    private final Gson gson = new GsonBuilder().create();
+
+    private final DataApiClient client;
+    private final StorageExecutor executor;
+
+    public RDSRegistrationRequestStorage() {
+        this(DataApiClient.getInstance(), StorageExecutor.getInstance());
+    }
+
+    public RDSRegistrationRequestStorage(DataApiClient client, StorageExecutor executor) {
+        this.client = client;
+        this.executor = executor;
+    }
+
+    @Override
+    public boolean put(ByteArray key, RegistrationRequest value) {
+        return StorageExecutor.await(putAsync(key, value));
+    }
+
+    @Override
+    public boolean invalidate(ByteArray key) {
+        return StorageExecutor.await(invalidateAsync(key));
+    }
+
+    @Override
+    public RegistrationRequest getIfPresent(ByteArray key) {
+        return StorageExecutor.await(getIfPresentAsync(key));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> putAsync(ByteArray key, RegistrationRequest value) {
+
+        String keyJsonOutput = gson.toJson(key);
+        String valueJsonOutput = gson.toJson(value);
+
+        final String SQL = "INSERT INTO registrationRequests (_key, _value) VALUES( :keyJsonOutput, :valueJsonOutput)";
+
+        return executor.writeAsync("putRequest", () -> client.update(SQL, SqlParameters.builder()
+            .string("keyJsonOutput", keyJsonOutput)
+            .string("valueJsonOutput", valueJsonOutput)
+            .build()))
+            .thenApply(updated -> true);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> invalidateAsync(ByteArray key) {
+
+        String keyJsonOutput = gson.toJson(key);
+
+        final String SQL = "DELETE FROM registrationRequests WHERE _key = :keyJsonOutput";
+
+        return executor.writeAsync("invalidateRequest", () -> client.update(SQL, SqlParameters.builder()
+            .string("keyJsonOutput", keyJsonOutput)
+            .build()))
+            .thenApply(updated -> true);
+    }
+
+    @Override
+    public CompletableFuture<RegistrationRequest> getIfPresentAsync(ByteArray key) {
+
+        String keyJsonOutput = gson.toJson(key);
+
+        // Clear entries older than 1 hour
+        final String SQL1 = "DELETE FROM registrationRequests WHERE creationDate < DATE_SUB( NOW( ) , INTERVAL 1 HOUR )";
+
+        CompletableFuture<Long> expired = executor.writeAsync("expireRequests", () -> client.update(SQL1, SqlParameters.NONE));
+
+        final String SQL = "SELECT _value FROM registrationRequests WHERE _key = :keyJsonOutput AND creationDate >= DATE_SUB( NOW( ) , INTERVAL 1 HOUR )";
+
+        // Get entry; it applies the same cutoff as the cleanup, so the two statements can run concurrently
+        CompletableFuture<List<DataApiRow>> result = executor.readAsync("getRequest", () -> client.query(SQL, SqlParameters.builder()
+            .string("keyJsonOutput", keyJsonOutput)
+            .build()));
+
+        return result.thenCombine(expired, (rows, deleted) ->
+            rows.isEmpty() ? null : gson.fromJson(rows.get(0).getString("_value"), RegistrationRequest.class));
+    }
+
+}
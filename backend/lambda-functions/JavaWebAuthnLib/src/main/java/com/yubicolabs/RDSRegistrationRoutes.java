@@ -0,0 +1,113 @@
+package com.yubicolabs;
+
+import com.yubico.webauthn.data.ByteArray;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import lombok.extern.slf4j.Slf4j;
+
+@Slf4j
+public class RDSRegistrationRoutes implements RegistrationRoutes {
+
+    private final DataApiClient client;
+    private final StorageExecutor executor;
+
+    public RDSRegistrationRoutes() {
+        this(DataApiClient.getInstance(), StorageExecutor.getInstance());
+    }
+
+    public RDSRegistrationRoutes(DataApiClient client, StorageExecutor executor) {
+        this.client = client;
+        this.executor = executor;
+    }
+
+    @Override
+    public void createTables() {
+        StorageExecutor.await(executor.writeAsync("createTables", () -> client.update(CREATE_TABLE_SQL, SqlParameters.NONE)));
+    }
+
+    @Override
+    public Optional<RegistrationRoute> forUsername(String username) {
+        return route(USERNAME, KeyHash.username(username));
+    }
+
+    @Override
+    public Optional<RegistrationRoute> forUserHandle(ByteArray userHandle) {
+        return route(USER_HANDLE, KeyHash.userHandle(userHandle));
+    }
+
+    @Override
+    public Optional<RegistrationRoute> forCredentialId(ByteArray credentialId) {
+        return route(CREDENTIAL_ID, KeyHash.credentialId(credentialId));
+    }
+
+    @Override
+    public void add(String shard, RegistrationKey key) {
+        final String SQL = "INSERT IGNORE INTO registrationRoutes (kind, keyHash, userHandleHash, userHandle, shard) VALUES "
+            + "(" + USERNAME + ", :usernameHash, :userHandleHash, :userHandle, :shard), "
+            + "(" + USER_HANDLE + ", :userHandleHash, :userHandleHash, :userHandle, :shard), "
+            + "(" + CREDENTIAL_ID + ", :credentialIdHash, :userHandleHash, :userHandle, :shard)";
+
+        StorageExecutor.await(executor.writeAsync("addRoutes", () -> client.update(SQL, SqlParameters.builder()
+            .bytes("usernameHash", KeyHash.username(key.getUsername()))
+            .bytes("userHandleHash", KeyHash.userHandle(key.getUserHandle()))
+            .bytes("credentialIdHash", KeyHash.credentialId(key.getCredentialId()))
+            .bytes("userHandle", key.getUserHandle().getBytes())
+            .string("shard", shard)
+            .build())));
+    }
+
+    @Override
+    public void removeCredential(ByteArray credentialId) {
+        final String SQL = "DELETE FROM registrationRoutes WHERE kind = " + CREDENTIAL_ID + " AND keyHash = :keyHash";
+
+        StorageExecutor.await(executor.writeAsync("removeRoutes", () -> client.update(SQL, SqlParameters.builder()
+            .bytes("keyHash", KeyHash.credentialId(credentialId))
+            .build())));
+    }
+
+    @Override
+    public void removeUser(ByteArray userHandle) {
+        final String SQL = "DELETE FROM registrationRoutes WHERE userHandleHash = :userHandleHash";
+
+        StorageExecutor.await(executor.writeAsync("removeRoutes", () -> client.update(SQL, SqlParameters.builder()
+            .bytes("userHandleHash", KeyHash.userHandle(userHandle))
+            .build())));
+    }
+
+    @Override
+    public void moveUser(ByteArray userHandle, String shard) {
+        final String SQL = "UPDATE registrationRoutes SET shard = :shard WHERE userHandleHash = :userHandleHash";
+
+        StorageExecutor.await(executor.writeAsync("moveRoutes", () -> client.update(SQL, SqlParameters.builder()
+            .string("shard", shard)
+            .bytes("userHandleHash", KeyHash.userHandle(userHandle))
+            .build())));
+    }
+
+    @Override
+    public List<ByteArray> userHandlesOn(String shard, byte[] afterHash, int limit) {
+        final String SQL = "SELECT userHandle FROM registrationRoutes WHERE shard = :shard AND kind = " + USER_HANDLE + " AND keyHash > :after ORDER BY keyHash LIMIT :limit";
+
+        return StorageExecutor.await(executor.scanAsync("scanRoutes", () -> client.query(SQL, SqlParameters.builder()
+            .string("shard", shard)
+            .bytes("after", afterHash)
+            .longValue("limit", limit)
+            .build())))
+            .stream()
+            .map(row -> new ByteArray(row.getBytes("userHandle")))
+            .collect(Collectors.toList());
+    }
+
+    private Optional<RegistrationRoute> route(int kind, byte[] keyHash) {
+        final String SQL = "SELECT shard, userHandle FROM registrationRoutes WHERE kind = " + kind + " AND keyHash = :keyHash";
+
+        return StorageExecutor.await(executor.readAsync("route", () -> client.query(SQL, SqlParameters.builder()
+            .bytes("keyHash", keyHash)
+            .build())))
+            .stream()
+            .findAny()
+            .map(row -> new RegistrationRoute(row.getString("shard"), new ByteArray(row.getBytes("userHandle"))));
+    }
+
+}
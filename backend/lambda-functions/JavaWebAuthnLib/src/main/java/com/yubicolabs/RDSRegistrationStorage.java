@@ -1,278 +1,698 @@
 package com.yubicolabs;
 
-import com.amazon.rdsdata.client.RdsDataClient;
-import com.amazonaws.services.rdsdata.AWSRDSData;
-import com.amazonaws.services.rdsdata.AWSRDSDataClient;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.yubico.internal.util.CollectionUtil;
-import com.yubico.webauthn.AssertionResult;
-import com.yubico.webauthn.CredentialRepository;
-import com.yubico.webauthn.RegisteredCredential;
 import com.yubico.webauthn.data.ByteArray;
-import com.yubico.webauthn.data.PublicKeyCredentialDescriptor;
+import com.yubico.webauthn.data.exception.Base64UrlException;
 import com.yubicolabs.data.CredentialRegistration;
-import com.yubicolabs.data.RegistrationDTO;
-import java.time.Clock;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
-import java.util.NoSuchElementException;
+import java.util.Map;
 import java.util.Optional;
-import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
-import lombok.Data;
+import java.util.stream.Stream;
 import lombok.extern.slf4j.Slf4j;
 
-
-
 @Slf4j
-public class RDSRegistrationStorage implements RegistrationStorage, CredentialRepository {
+public class RDSRegistrationStorage extends AbstractRegistrationStorage implements RegistrationSchemaMigrator, RegistrationBulkStore, RegistrationAaguidIndex {
+
+    // Keeps each page well below the Data API's 1 MB response limit
+    private static final long KEY_PAGE_SIZE = 1000;
+
+    private static final String CREATE_V2_SQL = "CREATE TABLE IF NOT EXISTS credentialRegistrationsV2 ("
+        + "credentialIdHash BINARY(32) NOT NULL, "
+        + "usernameHash BINARY(32) NOT NULL, "
+        + "userHandleHash BINARY(32) NOT NULL, "
+        + "username TEXT NOT NULL, "
+        + "userHandle VARBINARY(64) NOT NULL, "
+        + "credentialId VARBINARY(1023) NOT NULL, "
+        + "registration TEXT NOT NULL, "
+        + "creationDate DATETIME DEFAULT CURRENT_TIMESTAMP, "
+        + "lastUsedDate DATETIME, "
+        + "lastUpdatedDate DATETIME DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP, "
+        + "active BOOL DEFAULT TRUE, "
+        + "aaguid BINARY(16), "
+        + "PRIMARY KEY (credentialIdHash), "
+        + "KEY usernameHash (usernameHash), "
+        + "KEY userHandleHash (userHandleHash), "
+        + "KEY aaguid (aaguid, credentialIdHash))";
+
+    private final DataApiClient client;
+    private final DataApiClient reader;
+    private final ReplicaRouting replicas;
+    private final StorageExecutor executor;
+    private final RegistrationSchema schema;
+    private final SingleFlight singleFlight = SingleFlight.getInstance();
 
-    private static final String RESOURCE_ARN = System.getenv("DBAuroraClusterArn");
-    private static final String SECRET_ARN = System.getenv("DBSecretsStoreArn");
-    private static final String DATABASE = System.getenv("DatabaseName");
+    public RDSRegistrationStorage() {
+        this(DataApiClient.getInstance(), DataApiClient.getReaderInstance(), StorageExecutor.getInstance(), Config.getRegistrationSchema());
+    }
 
-    private final Clock clock = Clock.systemDefaultZone();
-    private final Gson gson = new GsonBuilder().create();
+    public RDSRegistrationStorage(DataApiClient client, StorageExecutor executor) {
+        this(client, executor, RegistrationSchema.V2);
+    }
 
-    private final RdsDataClient client;
+    public RDSRegistrationStorage(DataApiClient client, StorageExecutor executor, RegistrationSchema schema) {
+        this(client, client, ReplicaRouting.writerOnly(), executor, schema);
+    }
 
-    public RDSRegistrationStorage() {
-        AWSRDSData rdsData = AWSRDSDataClient.builder().build();
-        client = RdsDataClient.builder()
-            .rdsDataService(rdsData)
-            .database(DATABASE)
-            .resourceArn(RESOURCE_ARN)
-            .secretArn(SECRET_ARN)
-            .build();
+    private RDSRegistrationStorage(DataApiClient client, Optional<DataApiClient> reader, StorageExecutor executor, RegistrationSchema schema) {
+        this(
+            client,
+            reader.orElse(client),
+            reader
+                .map(r -> ReplicaRouting.fromConfig(Config.getReaderLagSql().map(sql -> () -> measureLag(executor, r, sql))))
+                .orElseGet(ReplicaRouting::writerOnly),
+            executor,
+            schema);
     }
 
-    private Collection<CredentialRegistration> getByCredentialId(ByteArray credentialId) {
+    /**
+     * @param reader   client for the reader endpoint, used for reads that {@code replicas} allows there
+     */
+    public RDSRegistrationStorage(DataApiClient client, DataApiClient reader, ReplicaRouting replicas, StorageExecutor executor, RegistrationSchema schema) {
+        this.client = client;
+        this.reader = reader;
+        this.replicas = replicas;
+        this.executor = executor;
+        this.schema = schema;
+    }
+
+    @Override
+    protected Collection<CredentialRegistration> getByCredentialId(ByteArray credentialId) {
+        if (schema.readsV2()) {
+            final String SQL = "SELECT registration FROM credentialRegistrationsV2 WHERE credentialIdHash = :credentialIdHash";
+
+            return toRegistrations(StorageExecutor.await(read("lookup", credentialId, List::isEmpty, SQL, SqlParameters.builder()
+                .bytes("credentialIdHash", KeyHash.credentialId(credentialId))
+                .build())));
+        }
 
         String keyJsonOutput = gson.toJson(credentialId);
 
         final String SQL = "SELECT registration FROM credentialRegistrations WHERE credentialId = :keyJsonOutput";
 
-        return client.forSql(SQL)
-            .withParamSets(new GetParams(keyJsonOutput))
-            .execute()
-            .mapToList(RegistrationDTO.class)
-            .stream()
-            .map(r -> gson.fromJson(r.registration, CredentialRegistration.class))
-            .collect(Collectors.toList());
+        return toRegistrations(StorageExecutor.await(read("lookup", credentialId, List::isEmpty, SQL, SqlParameters.builder()
+            .string("keyJsonOutput", keyJsonOutput)
+            .build())));
     }
 
-    private boolean updateRegistration(String username, ByteArray credentialId, CredentialRegistration reg) {
+    @Override
+    protected Optional<CredentialRegistration> getRegistrationForUpdate(String username, ByteArray credentialId) {
+        // Marked before the read, which then goes to the writer and is not shared with one already in flight
+        wrote(username, credentialId);
+        return super.getRegistrationForUpdate(username, credentialId);
+    }
+
+    @Override
+    protected boolean updateRegistration(String username, ByteArray credentialId, CredentialRegistration reg) {
         String usernameJsonOutput = gson.toJson(username);
         String credentialIdJsonOutput = gson.toJson(credentialId);
         String registrationJsonOutput = gson.toJson(reg);
 
-        String SQL = "UPDATE credentialRegistrations SET registration= :registrationJsonOutput WHERE username= :usernameJsonOutput AND credentialId= :credentialIdJsonOutput";
+        wrote(username, credentialId);
 
-        client.forSql(SQL)
-            .withParamSets(new UpdateParams(registrationJsonOutput, usernameJsonOutput, credentialIdJsonOutput))
-            .execute();
+        String SQL = "UPDATE credentialRegistrations SET registration= :registrationJsonOutput WHERE username= :usernameJsonOutput AND credentialId= :credentialIdJsonOutput";
+        String V2_SQL = "UPDATE credentialRegistrationsV2 SET registration = :registration, aaguid = :aaguid WHERE credentialIdHash = :credentialIdHash AND usernameHash = :usernameHash";
+
+        StorageExecutor.await(write("updateRegistration", false,
+            SQL, SqlParameters.builder()
+                .string("registrationJsonOutput", registrationJsonOutput)
+                .string("usernameJsonOutput", usernameJsonOutput)
+                .string("credentialIdJsonOutput", credentialIdJsonOutput)
+                .build(),
+            V2_SQL, SqlParameters.builder()
+                .string("registration", registrationJsonOutput)
+                .bytes("aaguid", aaguid(reg).orElse(null))
+                .bytes("credentialIdHash", KeyHash.credentialId(credentialId))
+                .bytes("usernameHash", KeyHash.username(username))
+                .build()));
 
         return true;
     }
 
     @Override
-    public void updateCredentialNickname(String username, ByteArray credentialId, String nickname) {
-        CredentialRegistration registration = getRegistrationByUsernameAndCredentialId(username, credentialId)
-            .orElseThrow(() -> new NoSuchElementException(String.format(
-                "Credential \"%s\" is not registered to user \"%s\"",
-                credentialId, username
-            )));
-
-        updateRegistration(
-            username,
-            credentialId,
-            registration
-                .withCredentialNickname(Optional.of(nickname))
-                .withLastUpdatedTime(clock.instant())
-        );
+    public boolean addRegistrationByUsername(String username, CredentialRegistration reg) {
+        return StorageExecutor.await(addRegistrationByUsernameAsync(username, reg));
     }
 
     @Override
-    public boolean addRegistrationByUsername(String username, CredentialRegistration reg) {
+    public Collection<CredentialRegistration> getRegistrationsByUsername(String username) {
+        return StorageExecutor.await(getRegistrationsByUsernameAsync(username));
+    }
+
+    @Override
+    public Collection<CredentialRegistration> getRegistrationsByUserHandle(ByteArray userHandle) {
+        return StorageExecutor.await(getRegistrationsByUserHandleAsync(userHandle));
+    }
+
+    @Override
+    public boolean userExists(String username) {
+        final String SQL;
+        final SqlParameters parameters;
+        if (schema.readsV2()) {
+            SQL = "SELECT EXISTS(SELECT 1 FROM credentialRegistrationsV2 WHERE usernameHash = :usernameHash) AS registered";
+            parameters = SqlParameters.builder().bytes("usernameHash", KeyHash.username(username)).build();
+        } else {
+            SQL = "SELECT EXISTS(SELECT 1 FROM credentialRegistrations WHERE username = :keyJsonOutput) AS registered";
+            parameters = SqlParameters.builder().string("keyJsonOutput", gson.toJson(username)).build();
+        }
+
+        List<DataApiRow> result = StorageExecutor.await(read("userExists", username, rows -> rows.get(0).getLong("registered") == 0, SQL, parameters));
+
+        return result.get(0).getLong("registered") != 0;
+    }
+
+    @Override
+    public CompletableFuture<Boolean> addRegistrationByUsernameAsync(String username, CredentialRegistration reg) {
         String usernameJsonOutput = gson.toJson(username);
         String userHandleJsonOutput = gson.toJson(reg.getUserIdentity().getId());
         String credentialIdJsonOutput = gson.toJson(reg.getCredential().getCredentialId());
         String registrationJsonOutput = gson.toJson(reg);
 
-        final String SQL = "INSERT INTO credentialRegistrations (username, userHandle, credentialId, registration) VALUES(:usernameJsonOutput, :userHandleJsonOutput, :credentialIdJsonOutput, :registrationJsonOutput)";
-
-        client.forSql(SQL)
-            .withParamSets(new AddParams(usernameJsonOutput, userHandleJsonOutput, credentialIdJsonOutput, registrationJsonOutput))
-            .execute();
+        wrote(username, reg.getUserIdentity().getId(), reg.getCredential().getCredentialId());
 
-        return true;
+        final String SQL = "INSERT INTO credentialRegistrations (username, userHandle, credentialId, registration) VALUES(:usernameJsonOutput, :userHandleJsonOutput, :credentialIdJsonOutput, :registrationJsonOutput)";
+        final String V2_SQL = "INSERT INTO credentialRegistrationsV2 (credentialIdHash, usernameHash, userHandleHash, username, userHandle, credentialId, registration, aaguid) VALUES(:credentialIdHash, :usernameHash, :userHandleHash, :username, :userHandle, :credentialId, :registration, :aaguid)";
+
+        return write("addRegistration", false,
+            SQL, SqlParameters.builder()
+                .string("usernameJsonOutput", usernameJsonOutput)
+                .string("userHandleJsonOutput", userHandleJsonOutput)
+                .string("credentialIdJsonOutput", credentialIdJsonOutput)
+                .string("registrationJsonOutput", registrationJsonOutput)
+                .build(),
+            V2_SQL, v2Row(username, reg.getUserIdentity().getId(), reg.getCredential().getCredentialId())
+                .string("registration", registrationJsonOutput)
+                .bytes("aaguid", aaguid(reg).orElse(null))
+                .build())
+            .thenApply(updated -> true);
     }
 
     @Override
-    public Set<PublicKeyCredentialDescriptor> getCredentialIdsForUsername(String username) {
-        return getRegistrationsByUsername(username).stream()
-            .map(registration -> PublicKeyCredentialDescriptor.builder()
-                .id(registration.getCredential().getCredentialId())
+    public CompletableFuture<Collection<CredentialRegistration>> getRegistrationsByUsernameAsync(String username) {
+        if (schema.readsV2()) {
+            final String SQL = "SELECT registration FROM credentialRegistrationsV2 WHERE usernameHash = :usernameHash";
+
+            return read("getRegistrationsByUsername", username, List::isEmpty, SQL, SqlParameters.builder()
+                .bytes("usernameHash", KeyHash.username(username))
                 .build())
-            .collect(Collectors.toSet());
-    }
+                .thenApply(this::toRegistrations);
+        }
 
-    @Override
-    public Collection<CredentialRegistration> getRegistrationsByUsername(String username) {
         String keyJsonOutput = gson.toJson(username);
 
         final String SQL = "SELECT registration FROM credentialRegistrations WHERE username = :keyJsonOutput";
 
-        return client.forSql(SQL)
-            .withParamSets(new GetParams(keyJsonOutput))
-            .execute()
-            .mapToList(RegistrationDTO.class)
-            .stream()
-            .map(r -> gson.fromJson(r.registration, CredentialRegistration.class))
-            .collect(Collectors.toList());
+        return read("getRegistrationsByUsername", username, List::isEmpty, SQL, SqlParameters.builder()
+            .string("keyJsonOutput", keyJsonOutput)
+            .build())
+            .thenApply(this::toRegistrations);
     }
 
     @Override
-    public Collection<CredentialRegistration> getRegistrationsByUserHandle(ByteArray userHandle) {
+    public CompletableFuture<Collection<CredentialRegistration>> getRegistrationsByUserHandleAsync(ByteArray userHandle) {
+        if (schema.readsV2()) {
+            final String SQL = "SELECT registration FROM credentialRegistrationsV2 WHERE userHandleHash = :userHandleHash";
+
+            return read("getRegistrationsByUserHandle", userHandle, List::isEmpty, SQL, SqlParameters.builder()
+                .bytes("userHandleHash", KeyHash.userHandle(userHandle))
+                .build())
+                .thenApply(this::toRegistrations);
+        }
+
         String keyJsonOutput = gson.toJson(userHandle);
 
         final String SQL = "SELECT registration FROM credentialRegistrations WHERE userHandle = :keyJsonOutput";
 
-        return client.forSql(SQL)
-            .withParamSets(new GetParams(keyJsonOutput))
-            .execute()
-            .mapToList(RegistrationDTO.class)
-            .stream()
-            .map(r -> gson.fromJson(r.registration, CredentialRegistration.class))
-            .collect(Collectors.toList());
+        return read("getRegistrationsByUserHandle", userHandle, List::isEmpty, SQL, SqlParameters.builder()
+            .string("keyJsonOutput", keyJsonOutput)
+            .build())
+            .thenApply(this::toRegistrations);
     }
 
     @Override
-    public Optional<String> getUsernameForUserHandle(ByteArray userHandle) {
-        return getRegistrationsByUserHandle(userHandle).stream()
-            .findAny()
-            .map(CredentialRegistration::getUsername);
+    public boolean removeRegistrationByUsername(String username, CredentialRegistration credentialRegistration) {
+        String usernameJsonOutput = gson.toJson(username);
+        String credentialIdJsonOutput = gson.toJson(credentialRegistration.getCredential().getCredentialId());
+
+        wrote(username, credentialRegistration.getUserIdentity().getId(), credentialRegistration.getCredential().getCredentialId());
+
+        final String SQL = "DELETE FROM credentialRegistrations WHERE username= :usernameJsonOutput AND credentialId= :credentialIdJsonOutput";
+        final String V2_SQL = "DELETE FROM credentialRegistrationsV2 WHERE credentialIdHash = :credentialIdHash AND usernameHash = :usernameHash";
+
+        return StorageExecutor.await(write("removeRegistration", true,
+            SQL, SqlParameters.builder()
+                .string("usernameJsonOutput", usernameJsonOutput)
+                .string("credentialIdJsonOutput", credentialIdJsonOutput)
+                .build(),
+            V2_SQL, SqlParameters.builder()
+                .bytes("credentialIdHash", KeyHash.credentialId(credentialRegistration.getCredential().getCredentialId()))
+                .bytes("usernameHash", KeyHash.username(username))
+                .build())) > 0;
     }
 
     @Override
-    public Optional<ByteArray> getUserHandleForUsername(String username) {
-        return getRegistrationsByUsername(username).stream()
-            .findAny()
-            .map(reg -> reg.getUserIdentity().getId());
+    public boolean removeAllRegistrations(String username) {
+        String usernameJsonOutput = gson.toJson(username);
+
+        wroteAllOf(username);
+
+        final String SQL = "DELETE FROM credentialRegistrations WHERE username= :usernameJsonOutput";
+        final String V2_SQL = "DELETE FROM credentialRegistrationsV2 WHERE usernameHash = :usernameHash";
+
+        StorageExecutor.await(write("removeAllRegistrations", true,
+            SQL, SqlParameters.builder()
+                .string("usernameJsonOutput", usernameJsonOutput)
+                .build(),
+            V2_SQL, SqlParameters.builder()
+                .bytes("usernameHash", KeyHash.username(username))
+                .build()));
+
+        return true;
     }
 
     @Override
-    public void updateSignatureCount(AssertionResult result) {
-        CredentialRegistration registration = getRegistrationByUsernameAndCredentialId(result.getUsername(), result.getCredentialId())
-            .orElseThrow(() -> new NoSuchElementException(String.format(
-                "Credential \"%s\" is not registered to user \"%s\"",
-                result.getCredentialId(), result.getUsername()
-            )));
+    public void forEachRegistrationKey(Consumer<RegistrationKey> consumer) {
+        if (schema.readsV2()) {
+            // Keyset pagination over the primary key, so later pages cost the same as the first
+            final String SQL = "SELECT username, userHandle, credentialId, credentialIdHash FROM credentialRegistrationsV2 WHERE credentialIdHash > :after ORDER BY credentialIdHash LIMIT :limit";
+
+            byte[] after = new byte[0];
+            while (true) {
+                final byte[] pageAfter = after;
+                List<DataApiRow> rows = StorageExecutor.await(executor.scanAsync("scanRegistrationKeys", () -> scanClient().query(SQL, SqlParameters.builder()
+                    .bytes("after", pageAfter)
+                    .longValue("limit", KEY_PAGE_SIZE)
+                    .build())));
+                rows.forEach(row -> consumer.accept(toRegistrationKeyV2(row)));
+                if (rows.size() < KEY_PAGE_SIZE) {
+                    return;
+                }
+                after = rows.get(rows.size() - 1).getBytes("credentialIdHash");
+            }
+        }
+
+        final String SQL = "SELECT username, userHandle, credentialId FROM credentialRegistrations ORDER BY credentialId LIMIT :limit OFFSET :offset";
+
+        for (long offset = 0; ; offset += KEY_PAGE_SIZE) {
+            final long pageOffset = offset;
+            List<DataApiRow> rows = StorageExecutor.await(executor.scanAsync("scanRegistrationKeys", () -> scanClient().query(SQL, SqlParameters.builder()
+                .longValue("limit", KEY_PAGE_SIZE)
+                .longValue("offset", pageOffset)
+                .build())));
+            rows.forEach(row -> consumer.accept(toRegistrationKey(row)));
+            if (rows.size() < KEY_PAGE_SIZE) {
+                return;
+            }
+        }
+    }
 
-        updateRegistration(
-            result.getUsername(),
-            result.getCredentialId(),
-            registration.withSignatureCount(result.getSignatureCount()).withLastUsedTime(clock.instant())
-        );
+    @Override
+    public void forEachRegistrationKeySince(Duration age, Consumer<RegistrationKey> consumer) {
+        if (schema.readsV2()) {
+            final String SQL = "SELECT username, userHandle, credentialId FROM credentialRegistrationsV2 WHERE creationDate >= DATE_SUB( NOW( ) , INTERVAL :ageSeconds SECOND )";
+
+            StorageExecutor.await(executor.scanAsync("scanRegistrationKeys", () -> scanClient().query(SQL, SqlParameters.builder()
+                .longValue("ageSeconds", age.getSeconds())
+                .build())))
+                .forEach(row -> consumer.accept(toRegistrationKeyV2(row)));
+            return;
+        }
+
+        final String SQL = "SELECT username, userHandle, credentialId FROM credentialRegistrations WHERE creationDate >= DATE_SUB( NOW( ) , INTERVAL :ageSeconds SECOND )";
+
+        StorageExecutor.await(executor.scanAsync("scanRegistrationKeys", () -> scanClient().query(SQL, SqlParameters.builder()
+            .longValue("ageSeconds", age.getSeconds())
+            .build())))
+            .forEach(row -> consumer.accept(toRegistrationKey(row)));
     }
 
     @Override
-    public Optional<CredentialRegistration> getRegistrationByUsernameAndCredentialId(String username, ByteArray id) {
-        return getRegistrationsByUsername(username).stream()
-            .filter(credReg -> id.equals(credReg.getCredential().getCredentialId()))
-            .findFirst();
+    public void createTables() {
+        StorageExecutor.await(executor.writeAsync("createTables", () -> client.update(CREATE_V2_SQL, SqlParameters.NONE)));
     }
 
     @Override
-    public boolean removeRegistrationByUsername(String username, CredentialRegistration credentialRegistration) {
-        String usernameJsonOutput = gson.toJson(username);
-        String credentialIdJsonOutput = gson.toJson(credentialRegistration.getCredential().getCredentialId());
+    public RegistrationMigrationBatch migrateBatch(String after, int limit, boolean dryRun) {
+        final String PAGE_SQL = "SELECT username, userHandle, credentialId, registration FROM credentialRegistrations WHERE credentialId > :after ORDER BY credentialId LIMIT :limit";
+        final String MIGRATED_SQL = "SELECT usernameHash, registration FROM credentialRegistrationsV2 WHERE credentialIdHash = :credentialIdHash";
+        final String COPY_SQL = "INSERT INTO credentialRegistrationsV2 (credentialIdHash, usernameHash, userHandleHash, username, userHandle, credentialId, registration, creationDate, lastUsedDate, lastUpdatedDate, active) "
+            + "SELECT :credentialIdHash, :usernameHash, :userHandleHash, :username, :userHandle, :credentialId, registration, creationDate, lastUsedDate, lastUpdatedDate, active FROM credentialRegistrations "
+            + "WHERE credentialId = :credentialIdJson AND username = :usernameJson AND NOT EXISTS (SELECT 1 FROM credentialRegistrationsV2 WHERE credentialIdHash = :credentialIdHash) LIMIT 1";
+        final String REPAIR_SQL = "UPDATE credentialRegistrationsV2 SET registration = :registration "
+            + "WHERE credentialIdHash = :credentialIdHash AND usernameHash = :usernameHash "
+            + "AND EXISTS (SELECT 1 FROM credentialRegistrations WHERE credentialId = :credentialIdJson AND username = :usernameJson AND registration = :registration)";
+
+        List<DataApiRow> rows = StorageExecutor.await(executor.scanAsync("migrateRegistrations", () -> client.query(PAGE_SQL, SqlParameters.builder()
+            .string("after", after)
+            .longValue("limit", limit)
+            .build())));
+
+        RegistrationMigrationBatch.Tally tally = new RegistrationMigrationBatch.Tally();
+        for (DataApiRow row : rows) {
+            RegistrationKey key = toRegistrationKey(row);
+            String registration = row.getString("registration");
+            byte[] credentialIdHash = KeyHash.credentialId(key.getCredentialId());
+
+            Optional<DataApiRow> migrated = StorageExecutor.await(executor.scanAsync("migrateRegistrations", () -> client.query(MIGRATED_SQL, SqlParameters.builder()
+                .bytes("credentialIdHash", credentialIdHash)
+                .build())))
+                .stream()
+                .findAny();
+            RegistrationMigrationBatch.Outcome outcome = RegistrationMigrationBatch.compare(key, registration,
+                migrated.map(m -> m.getBytes("usernameHash")).orElse(null),
+                migrated.map(m -> m.getString("registration")).orElse(null));
+
+            if (!dryRun && (outcome == RegistrationMigrationBatch.Outcome.COPIED || outcome == RegistrationMigrationBatch.Outcome.REPAIRED)) {
+                String statement = outcome == RegistrationMigrationBatch.Outcome.COPIED ? COPY_SQL : REPAIR_SQL;
+                SqlParameters parameters = v2Row(key.getUsername(), key.getUserHandle(), key.getCredentialId())
+                    .string("registration", registration)
+                    .string("credentialIdJson", row.getString("credentialId"))
+                    .string("usernameJson", row.getString("username"))
+                    .build();
+                long updated = StorageExecutor.await(executor.writeAsync("migrateRegistrations", () -> client.update(statement, parameters)));
+                if (updated == 0) {
+                    // Changed by a concurrent write since it was read; the next pass sees the new state
+                    outcome = RegistrationMigrationBatch.Outcome.UNCHANGED;
+                }
+            }
+            if (outcome == RegistrationMigrationBatch.Outcome.CONFLICT) {
+                log.warn("Credential {} of user {} is stored in credentialRegistrationsV2 for a different user", key.getCredentialId(), key.getUsername());
+            }
+            tally.add(outcome);
+        }
+
+        return tally.build(rows.size() < limit
+            ? Optional.empty()
+            : Optional.of(rows.get(rows.size() - 1).getString("credentialId")));
+    }
 
-        final String SQL = "DELETE FROM credentialRegistrations WHERE username= :usernameJsonOutput AND credentialId= :credentialIdJsonOutput";
+    @Override
+    public long countRows(RegistrationSchema schema) {
+        final String SQL = "SELECT COUNT(*) AS n FROM " + (schema.readsV2() ? "credentialRegistrationsV2" : "credentialRegistrations");
 
-        client.forSql(SQL)
-            .withParamSets(new DeleteRegistrationParams(usernameJsonOutput, credentialIdJsonOutput))
-            .execute();
+        return StorageExecutor.await(executor.scanAsync("countRegistrations", () -> client.query(SQL, SqlParameters.NONE)))
+            .get(0)
+            .getLong("n");
+    }
 
-        return true;
+    @Override
+    public RegistrationExportPage exportPage(String after, int limit) {
+        if (schema.readsV2()) {
+            final String SQL = "SELECT credentialIdHash, registration FROM credentialRegistrationsV2 WHERE credentialIdHash > :after ORDER BY credentialIdHash LIMIT :limit";
+
+            final List<DataApiRow> rows = StorageExecutor.await(executor.scanAsync("exportRegistrations", () -> scanClient().query(SQL, SqlParameters.builder()
+                .bytes("after", hashCursor(after))
+                .longValue("limit", limit)
+                .build())));
+            return exportPage(rows, limit, last -> new ByteArray(last.getBytes("credentialIdHash")).getBase64Url());
+        }
+
+        final String SQL = "SELECT credentialId, registration FROM credentialRegistrations WHERE credentialId > :after ORDER BY credentialId LIMIT :limit";
+
+        final List<DataApiRow> rows = StorageExecutor.await(executor.scanAsync("exportRegistrations", () -> scanClient().query(SQL, SqlParameters.builder()
+            .string("after", after)
+            .longValue("limit", limit)
+            .build())));
+        return exportPage(rows, limit, last -> last.getString("credentialId"));
     }
 
     @Override
-    public boolean removeAllRegistrations(String username) {
-        String usernameJsonOutput = gson.toJson(username);
+    public int importBatch(List<CredentialRegistration> registrations) {
+        requireV2();
+        if (registrations.isEmpty()) {
+            return 0;
+        }
+
+        // One Data API round trip for the whole batch, with the parameters of row i suffixed by i
+        final List<String> values = new ArrayList<>();
+        final SqlParameters.Builder parameters = SqlParameters.builder();
+        for (int i = 0; i < registrations.size(); i++) {
+            final CredentialRegistration reg = registrations.get(i);
+            final String username = reg.getUsername();
+            final ByteArray userHandle = reg.getUserIdentity().getId();
+            final ByteArray credentialId = reg.getCredential().getCredentialId();
+            wrote(username, userHandle, credentialId);
+
+            values.add(String.format("(:credentialIdHash%1$d, :usernameHash%1$d, :userHandleHash%1$d, :username%1$d, :userHandle%1$d, :credentialId%1$d, :registration%1$d, :aaguid%1$d)", i));
+            parameters
+                .bytes("credentialIdHash" + i, KeyHash.credentialId(credentialId))
+                .bytes("usernameHash" + i, KeyHash.username(username))
+                .bytes("userHandleHash" + i, KeyHash.userHandle(userHandle))
+                .string("username" + i, username)
+                .bytes("userHandle" + i, userHandle.getBytes())
+                .bytes("credentialId" + i, credentialId.getBytes())
+                .string("registration" + i, gson.toJson(reg))
+                .bytes("aaguid" + i, aaguid(reg).orElse(null));
+        }
+
+        final String SQL = "INSERT IGNORE INTO credentialRegistrationsV2 (credentialIdHash, usernameHash, userHandleHash, username, userHandle, credentialId, registration, aaguid) VALUES "
+            + String.join(", ", values);
+
+        return StorageExecutor.await(executor.writeAsync("importRegistrations", () -> client.update(SQL, parameters.build()))).intValue();
+    }
 
-        final String SQL = "DELETE FROM credentialRegistrations WHERE username= :usernameJsonOutput";
+    @Override
+    public void createAaguidIndex() {
+        final String EXISTS_SQL = "SELECT COUNT(*) AS n FROM information_schema.COLUMNS "
+            + "WHERE TABLE_SCHEMA = SCHEMA() AND LOWER(TABLE_NAME) = 'credentialregistrationsv2' AND LOWER(COLUMN_NAME) = 'aaguid'";
+        // One online DDL statement, so the column never exists without its index
+        final String ALTER_SQL = "ALTER TABLE credentialRegistrationsV2 ADD COLUMN aaguid BINARY(16), ADD KEY aaguid (aaguid, credentialIdHash)";
+
+        final List<DataApiRow> rows = StorageExecutor.await(executor.scanAsync("createTables", () -> client.query(EXISTS_SQL, SqlParameters.NONE)));
+        if (rows.get(0).getLong("n") == 0) {
+            StorageExecutor.await(executor.writeAsync("createTables", () -> client.update(ALTER_SQL, SqlParameters.NONE)));
+        }
+        StorageExecutor.await(executor.writeAsync("createTables", () -> client.update(CREATE_STATUS_TABLE_SQL, SqlParameters.NONE)));
+    }
 
-        client.forSql(SQL)
-            .withParamSets(new DeleteAllParams(usernameJsonOutput))
-            .execute();
+    @Override
+    public RegistrationBackfillBatch backfillAaguids(String after, int limit) {
+        requireV2();
+        final String PAGE_SQL = "SELECT credentialIdHash, aaguid, registration FROM credentialRegistrationsV2 WHERE credentialIdHash > :after ORDER BY credentialIdHash LIMIT :limit";
+        final String UPDATE_SQL = "UPDATE credentialRegistrationsV2 SET aaguid = :aaguid WHERE credentialIdHash = :credentialIdHash AND registration = :registration";
+
+        final List<DataApiRow> rows = StorageExecutor.await(executor.scanAsync("backfillAaguids", () -> client.query(PAGE_SQL, SqlParameters.builder()
+            .bytes("after", hashCursor(after))
+            .longValue("limit", limit)
+            .build())));
+
+        int updated = 0;
+        for (DataApiRow row : rows) {
+            final String registration = row.getString("registration");
+            final byte[] aaguid = aaguid(gson.fromJson(registration, CredentialRegistration.class)).orElse(null);
+            if (!Arrays.equals(aaguid, row.getBytes("aaguid"))) {
+                updated += StorageExecutor.await(executor.writeAsync("backfillAaguids", () -> client.update(UPDATE_SQL, SqlParameters.builder()
+                    .bytes("aaguid", aaguid)
+                    .bytes("credentialIdHash", row.getBytes("credentialIdHash"))
+                    .string("registration", registration)
+                    .build())));
+            }
+        }
+
+        return new RegistrationBackfillBatch(rows.size(), updated, rows.size() < limit
+            ? Optional.empty()
+            : Optional.of(new ByteArray(rows.get(rows.size() - 1).getBytes("credentialIdHash")).getBase64Url()));
+    }
 
-        return true;
+    @Override
+    public RegistrationKeyPage scanByAaguid(ByteArray aaguid, ByteArray after, ByteArray before, int limit) {
+        requireV2();
+        final String SQL = "SELECT username, userHandle, credentialId, credentialIdHash FROM credentialRegistrationsV2 "
+            + "WHERE aaguid = :aaguid AND credentialIdHash > :after AND credentialIdHash < :before ORDER BY credentialIdHash LIMIT :limit";
+
+        final List<DataApiRow> rows = StorageExecutor.await(executor.scanAsync("scanByAaguid", () -> scanClient().query(SQL, SqlParameters.builder()
+            .bytes("aaguid", aaguid.getBytes())
+            .bytes("after", after.getBytes())
+            .bytes("before", before.getBytes())
+            .longValue("limit", limit)
+            .build())));
+
+        return new RegistrationKeyPage(
+            rows.stream().map(RDSRegistrationStorage::toRegistrationKeyV2).collect(Collectors.toList()),
+            rows.size() < limit ? Optional.empty() : Optional.of(new ByteArray(rows.get(rows.size() - 1).getBytes("credentialIdHash"))));
     }
 
     @Override
-    public Optional<RegisteredCredential> lookup(ByteArray credentialId, ByteArray userHandle) {
-        Optional<CredentialRegistration> registrationMaybe = getByCredentialId(credentialId).stream()
-            .findAny();
-
-        log.debug("lookup credential ID: {}, user handle: {}; result: {}", credentialId, userHandle, registrationMaybe);
-        return registrationMaybe.flatMap(registration ->
-            Optional.of(
-                RegisteredCredential.builder()
-                    .credentialId(registration.getCredential().getCredentialId())
-                    .userHandle(registration.getUserIdentity().getId())
-                    .publicKeyCose(registration.getCredential().getPublicKeyCose())
-                    .signatureCount(registration.getSignatureCount())
-                    .build()
-            )
-        );
+    public Map<ByteArray, String> getAuthenticatorStatuses() {
+        final String SQL = "SELECT aaguid, status FROM authenticatorStatuses";
+
+        final Map<ByteArray, String> statuses = new HashMap<>();
+        StorageExecutor.await(executor.scanAsync("getAuthenticatorStatuses", () -> client.query(SQL, SqlParameters.NONE)))
+            .forEach(row -> statuses.put(new ByteArray(row.getBytes("aaguid")), row.getString("status")));
+        return statuses;
     }
 
     @Override
-    public Set<RegisteredCredential> lookupAll(ByteArray credentialId) {
-        return CollectionUtil.immutableSet(
-            getByCredentialId(credentialId).stream()
-                .map(reg -> RegisteredCredential.builder()
-                    .credentialId(reg.getCredential().getCredentialId())
-                    .userHandle(reg.getUserIdentity().getId())
-                    .publicKeyCose(reg.getCredential().getPublicKeyCose())
-                    .signatureCount(reg.getSignatureCount())
-                    .build()
-                )
-                .collect(Collectors.toSet()));
+    public void putAuthenticatorStatuses(Map<ByteArray, String> statuses) {
+        final List<String> values = new ArrayList<>();
+        SqlParameters.Builder parameters = SqlParameters.builder();
+        for (Map.Entry<ByteArray, String> status : statuses.entrySet()) {
+            final int i = values.size();
+            values.add(String.format("(:aaguid%1$d, :status%1$d)", i));
+            parameters
+                .bytes("aaguid" + i, status.getKey().getBytes())
+                .string("status" + i, status.getValue());
+
+            // Keeps each statement well below the Data API's request limits
+            if (values.size() == MAX_IMPORT_BATCH) {
+                putAuthenticatorStatuses(values, parameters.build());
+                values.clear();
+                parameters = SqlParameters.builder();
+            }
+        }
+        if (!values.isEmpty()) {
+            putAuthenticatorStatuses(values, parameters.build());
+        }
+    }
+
+    private void putAuthenticatorStatuses(List<String> values, SqlParameters parameters) {
+        final String SQL = "INSERT INTO authenticatorStatuses (aaguid, status) VALUES " + String.join(", ", values)
+            + " ON DUPLICATE KEY UPDATE status = VALUES(status)";
+
+        StorageExecutor.await(executor.writeAsync("putAuthenticatorStatuses", () -> client.update(SQL, parameters)));
+    }
+
+    /**
+     * Runs a point read on the reader when {@link ReplicaRouting} allows, and again on the writer if the reader fails
+     * or its answer {@code mightBeStale}: a registration written elsewhere within the lag bound is then still found.
+     * Concurrent identical reads share one such read through {@link SingleFlight}.
+     */
+    private CompletableFuture<List<DataApiRow>> read(String operation, Object key, Predicate<List<DataApiRow>> mightBeStale, String sql, SqlParameters parameters) {
+        return singleFlight.async(operation, key, new Object[] { this, sql, parameters.asList() },
+            () -> routedRead(operation, key, mightBeStale, sql, parameters));
+    }
+
+    private CompletableFuture<List<DataApiRow>> routedRead(String operation, Object key, Predicate<List<DataApiRow>> mightBeStale, String sql, SqlParameters parameters) {
+        if (!replicas.useReader(key)) {
+            return executor.readAsync(operation, () -> client.query(sql, parameters));
+        }
+        return executor.readAsync(operation, () -> reader.query(sql, parameters))
+            .handle((rows, e) -> {
+                if (e == null && !mightBeStale.test(rows)) {
+                    return CompletableFuture.completedFuture(rows);
+                }
+                replicas.fellBack(e);
+                return executor.readAsync(operation, () -> client.query(sql, parameters));
+            })
+            .thenCompose(Function.identity());
+    }
+
+    /**
+     * Marks the user handle and credential IDs of all of a user's registrations as written, read from the writer since
+     * the username is marked first, so that reads by any of them after a removal see it.
+     */
+    private void wroteAllOf(String username) {
+        wrote(username);
+        wrote(getRegistrationsByUsername(username).stream()
+            .flatMap(reg -> Stream.of(reg.getUserIdentity().getId(), reg.getCredential().getCredentialId()))
+            .toArray());
+    }
+
+    private void wrote(Object... keys) {
+        replicas.wrote(keys);
+        singleFlight.wrote(keys);
     }
 
-    @Data
-    private static class GetParams {
-        public final String keyJsonOutput;
+    private void requireV2() {
+        if (schema != RegistrationSchema.V2) {
+            throw new IllegalStateException("credentialRegistrationsV2 is not authoritative yet; finish migrating to v2 first");
+        }
     }
 
-    @Data
-    private static class AddParams {
-        public final String usernameJsonOutput;
-        public final String userHandleJsonOutput;
-        public final String credentialIdJsonOutput;
-        public final String registrationJsonOutput;
+    private DataApiClient scanClient() {
+        return replicas.useReader(null) ? reader : client;
     }
 
-    @Data
-    private static class UpdateParams {
-        public final String registrationJsonOutput;
-        public final String usernameJsonOutput;
-        public final String credentialIdJsonOutput;
+    private static Duration measureLag(StorageExecutor executor, DataApiClient reader, String sql) {
+        final List<DataApiRow> rows = StorageExecutor.await(executor.scanAsync("replicaLag", () -> reader.query(sql, SqlParameters.NONE)));
+        if (rows.isEmpty() || rows.get(0).getLong("lag") == null) {
+            throw new StorageException("Replica lag query returned no lag", null);
+        }
+        return Duration.ofMillis(rows.get(0).getLong("lag"));
     }
 
-    @Data
-    private static class DeleteRegistrationParams {
-        public final String usernameJsonOutput;
-        public final String credentialIdJsonOutput;
+    /**
+     * Runs a write against the table(s) of the configured schema. While writing both, a failure on either table fails
+     * the operation. Removals run on v2 first, so that a failure never leaves v2 with a row v1 no longer has, which
+     * the backfill would not find; other writes run on v1 first, and the backfill copies or repairs a v2 row they leave
+     * missing or outdated.
+     */
+    private CompletableFuture<Long> write(String operation, boolean removal, String sql, SqlParameters parameters, String v2Sql, SqlParameters v2Parameters) {
+        switch (schema) {
+            case V1:
+                return executor.writeAsync(operation, () -> client.update(sql, parameters));
+            case V2:
+                return executor.writeAsync(operation, () -> client.update(v2Sql, v2Parameters));
+            case DUAL:
+            default:
+                if (removal) {
+                    // A row removed from either table counts, as the two may differ until backfilled
+                    return writeV2(operation, v2Sql, v2Parameters)
+                        .thenCompose(removed -> executor.writeAsync(operation, () -> client.update(sql, parameters))
+                            .thenApply(updated -> Math.max(removed, updated)));
+                }
+                return executor.writeAsync(operation, () -> client.update(sql, parameters))
+                    .thenCompose(updated -> writeV2(operation, v2Sql, v2Parameters).thenApply(ignored -> updated));
+        }
     }
 
-    @Data
-    private static class DeleteAllParams {
-        public final String usernameJsonOutput;
+    private CompletableFuture<Long> writeV2(String operation, String v2Sql, SqlParameters v2Parameters) {
+        return executor.writeAsync(operation, () -> client.update(v2Sql, v2Parameters))
+            .whenComplete((ignored, e) -> {
+                if (e != null) {
+                    log.warn("{} on credentialRegistrationsV2 failed", operation, e);
+                    Metrics.of("RegistrationSchema").count("DualWriteFailures", 1).publish();
+                }
+            });
+    }
+
+    private static SqlParameters.Builder v2Row(String username, ByteArray userHandle, ByteArray credentialId) {
+        return SqlParameters.builder()
+            .bytes("credentialIdHash", KeyHash.credentialId(credentialId))
+            .bytes("usernameHash", KeyHash.username(username))
+            .bytes("userHandleHash", KeyHash.userHandle(userHandle))
+            .string("username", username)
+            .bytes("userHandle", userHandle.getBytes())
+            .bytes("credentialId", credentialId.getBytes());
+    }
+
+    private static RegistrationExportPage exportPage(List<DataApiRow> rows, int limit, Function<DataApiRow, String> cursor) {
+        return new RegistrationExportPage(
+            rows.stream().map(row -> row.getString("registration")).collect(Collectors.toList()),
+            rows.size() < limit ? Optional.empty() : Optional.of(cursor.apply(rows.get(rows.size() - 1))));
+    }
+
+    private static byte[] hashCursor(String after) {
+        try {
+            return ByteArray.fromBase64Url(after).getBytes();
+        } catch (Base64UrlException e) {
+            throw new IllegalArgumentException("Malformed cursor", e);
+        }
+    }
+
+    private RegistrationKey toRegistrationKey(DataApiRow row) {
+        return toRegistrationKey(row.getString("username"), row.getString("userHandle"), row.getString("credentialId"));
+    }
+
+    private static RegistrationKey toRegistrationKeyV2(DataApiRow row) {
+        return new RegistrationKey(
+            row.getString("username"),
+            new ByteArray(row.getBytes("userHandle")),
+            new ByteArray(row.getBytes("credentialId")));
+    }
+
+    private Collection<CredentialRegistration> toRegistrations(List<DataApiRow> rows) {
+        return rows.stream()
+            .map(row -> gson.fromJson(row.getString("registration"), CredentialRegistration.class))
+            .collect(Collectors.toList());
     }
 
 }
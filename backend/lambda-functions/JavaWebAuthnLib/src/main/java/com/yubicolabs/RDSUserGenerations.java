@@ -0,0 +1,67 @@
+package com.yubicolabs;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import lombok.extern.slf4j.Slf4j;
+
+@Slf4j
+public class RDSUserGenerations implements UserGenerations {
+
+    private final DataApiClient client;
+    private final StorageExecutor executor;
+
+    public RDSUserGenerations() {
+        this(DataApiClient.getInstance(), StorageExecutor.getInstance());
+    }
+
+    public RDSUserGenerations(DataApiClient client, StorageExecutor executor) {
+        this.client = client;
+        this.executor = executor;
+    }
+
+    @Override
+    public void createTables() {
+        StorageExecutor.await(executor.writeAsync("createTables", () -> client.update(CREATE_TABLE_SQL, SqlParameters.NONE)));
+    }
+
+    @Override
+    public long get(String username) {
+        final String SQL = "SELECT generation FROM userGenerations WHERE usernameHash = :usernameHash";
+
+        final List<DataApiRow> rows = StorageExecutor.await(executor.readAsync("getGeneration", () -> client.query(SQL, SqlParameters.builder()
+            .bytes("usernameHash", KeyHash.username(username))
+            .build())));
+        return rows.isEmpty() ? 0 : rows.get(0).getLong("generation");
+    }
+
+    @Override
+    public CompletableFuture<Void> advanceAsync(String username) {
+        final String SQL = "INSERT INTO userGenerations (usernameHash, generation) VALUES (:usernameHash, 1) ON DUPLICATE KEY UPDATE generation = generation + 1";
+
+        return executor.writeAsync("advanceGeneration", () -> client.update(SQL, SqlParameters.builder()
+            .bytes("usernameHash", KeyHash.username(username))
+            .build()))
+            .thenApply(updated -> null);
+    }
+
+    @Override
+    public void advanceAll(Collection<String> usernames) {
+        if (usernames.isEmpty()) {
+            return;
+        }
+        final List<String> values = new ArrayList<>();
+        final SqlParameters.Builder parameters = SqlParameters.builder();
+        for (String username : usernames) {
+            final String name = "usernameHash" + values.size();
+            values.add("(:" + name + ", 1)");
+            parameters.bytes(name, KeyHash.username(username));
+        }
+        final String SQL = "INSERT INTO userGenerations (usernameHash, generation) VALUES " + String.join(", ", values)
+            + " ON DUPLICATE KEY UPDATE generation = generation + 1";
+
+        StorageExecutor.await(executor.writeAsync("advanceGeneration", () -> client.update(SQL, parameters.build())));
+    }
+
+}
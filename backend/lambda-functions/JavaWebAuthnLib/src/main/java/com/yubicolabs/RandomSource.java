@@ -0,0 +1,119 @@
+package com.yubicolabs;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Random bytes for request IDs, drawn from a fixed set of independent generators so that concurrent requests do not
+ * queue on the lock of one shared {@link SecureRandom}.
+ *
+ * <p>Each thread draws from the stripe its ID maps to. A stripe is a DRBG where the JVM has one (Java 9 and later),
+ * otherwise the platform default, and is reseeded from the shared seeder every {@code reseedInterval} on next use.
+ * With a nonzero {@code bufferSize} a stripe fills a buffer of that many bytes at a time and serves requests from it,
+ * trading one larger draw for many small ones; bytes are handed out once and the buffer is dropped on reseed.
+ */
+@Slf4j
+public class RandomSource {
+
+    private static final int SEED_BYTES = 32;
+
+    private static RandomSource instance;
+    public static synchronized RandomSource getInstance() {
+        if (instance == null) {
+            instance = new RandomSource(
+                Config.getRandomStripes(),
+                Config.getRandomBufferSize(),
+                Config.getRandomReseedInterval());
+        }
+        return instance;
+    }
+
+    private final SecureRandom seeder = new SecureRandom();
+    private final Stripe[] stripes;
+    private final long reseedNanos;
+
+    /**
+     * @param bufferSize bytes drawn at a time per stripe; zero draws exactly what is asked for
+     */
+    public RandomSource(int stripes, int bufferSize, Duration reseedInterval) {
+        this(stripes, bufferSize, reseedInterval, RandomSource::newGenerator);
+    }
+
+    /**
+     * @param generators creates the generator of each stripe
+     */
+    RandomSource(int stripes, int bufferSize, Duration reseedInterval, Supplier<SecureRandom> generators) {
+        this.stripes = new Stripe[Math.max(stripes, 1)];
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i] = new Stripe(generators.get(), Math.max(bufferSize, 0));
+        }
+        this.reseedNanos = reseedInterval.toNanos();
+    }
+
+    /**
+     * @return {@code length} fresh random bytes
+     */
+    public byte[] nextBytes(int length) {
+        final byte[] bytes = new byte[length];
+        stripes[(int) (Thread.currentThread().getId() % stripes.length)].fill(bytes);
+        return bytes;
+    }
+
+    private static SecureRandom newGenerator() {
+        try {
+            return SecureRandom.getInstance("DRBG");
+        } catch (NoSuchAlgorithmException e) {
+            log.debug("No DRBG; using the default SecureRandom", e);
+            return new SecureRandom();
+        }
+    }
+
+    private final class Stripe {
+
+        private final SecureRandom random;
+        private final byte[] buffer;
+        private int position;
+        private long reseededAt = System.nanoTime();
+
+        Stripe(SecureRandom random, int bufferSize) {
+            this.random = random;
+            this.buffer = new byte[bufferSize];
+            this.position = bufferSize;
+        }
+
+        synchronized void fill(byte[] bytes) {
+            if (System.nanoTime() - reseededAt >= reseedNanos) {
+                reseed();
+            }
+            if (bytes.length > buffer.length) {
+                random.nextBytes(bytes);
+                return;
+            }
+            if (buffer.length - position < bytes.length) {
+                random.nextBytes(buffer);
+                position = 0;
+            }
+            System.arraycopy(buffer, position, bytes, 0, bytes.length);
+            // Keep no copy of bytes already handed out
+            Arrays.fill(buffer, position, position + bytes.length, (byte) 0);
+            position += bytes.length;
+        }
+
+        private void reseed() {
+            final byte[] seed = new byte[SEED_BYTES];
+            synchronized (seeder) {
+                seeder.nextBytes(seed);
+            }
+            // Supplements the existing seed rather than replacing it
+            random.setSeed(seed);
+            position = buffer.length;
+            reseededAt = System.nanoTime();
+        }
+
+    }
+
+}
@@ -0,0 +1,48 @@
+package com.yubicolabs;
+
+import com.yubico.webauthn.data.ByteArray;
+import java.util.Map;
+
+/**
+ * Credentials by authenticator model, for {@link AuthenticatorStatusScan}: the {@code aaguid} column of
+ * {@code credentialRegistrationsV2} and its index, and the last MDS status seen for each AAGUID.
+ */
+public interface RegistrationAaguidIndex {
+
+    String CREATE_STATUS_TABLE_SQL = "CREATE TABLE IF NOT EXISTS authenticatorStatuses ("
+        + "aaguid BINARY(16) NOT NULL, "
+        + "status VARCHAR(64) NOT NULL, "
+        + "PRIMARY KEY (aaguid))";
+
+    /**
+     * Adds the {@code aaguid} column and its index to {@code credentialRegistrationsV2} unless it already has them, and
+     * creates {@code authenticatorStatuses}.
+     */
+    void createAaguidIndex();
+
+    /**
+     * Sets the {@code aaguid} column of the rows after the given cursor, in key order, from their registration. Each
+     * write re-checks the registration in the same statement, so a row changed concurrently keeps the value its
+     * writer set.
+     *
+     * @param after cursor returned by the previous batch, or an empty string to start from the beginning
+     * @param limit maximum number of rows to examine
+     */
+    RegistrationBackfillBatch backfillAaguids(String after, int limit);
+
+    /**
+     * Reads the keys of the credentials of one authenticator model whose credential ID hash lies strictly between
+     * {@code after} and {@code before}, in hash order.
+     *
+     * @param limit maximum number of keys to return
+     */
+    RegistrationKeyPage scanByAaguid(ByteArray aaguid, ByteArray after, ByteArray before, int limit);
+
+    /**
+     * @return the status recorded for each AAGUID by {@link #putAuthenticatorStatuses}, by name
+     */
+    Map<ByteArray, String> getAuthenticatorStatuses();
+
+    void putAuthenticatorStatuses(Map<ByteArray, String> statuses);
+
+}
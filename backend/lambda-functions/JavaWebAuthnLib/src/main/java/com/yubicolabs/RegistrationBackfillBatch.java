@@ -0,0 +1,20 @@
+package com.yubicolabs;
+
+import java.util.Optional;
+import lombok.NonNull;
+import lombok.Value;
+
+/**
+ * What one {@link RegistrationAaguidIndex#backfillAaguids} call found and did.
+ */
+@Value
+public class RegistrationBackfillBatch {
+
+    int scanned;
+    int updated;
+
+    /** Cursor for the next batch; empty once the last row has been examined. */
+    @NonNull
+    Optional<String> next;
+
+}
@@ -0,0 +1,31 @@
+package com.yubicolabs;
+
+import com.yubicolabs.data.CredentialRegistration;
+import java.util.List;
+
+/**
+ * Storage-side steps of {@link RegistrationTransfer}: reading registrations page by page and writing them many rows
+ * per statement.
+ */
+public interface RegistrationBulkStore {
+
+    /** Most registrations {@link #importBatch} writes in one statement. */
+    int MAX_IMPORT_BATCH = 200;
+
+    /**
+     * Reads the registrations after the given cursor, in key order, as stored.
+     *
+     * @param after cursor returned with the previous page, or an empty string to start from the beginning
+     * @param limit maximum number of registrations to return
+     */
+    RegistrationExportPage exportPage(String after, int limit);
+
+    /**
+     * Inserts registrations into {@code credentialRegistrationsV2} in one statement. A registration whose credential ID
+     * is already stored is skipped, so a batch cut short can simply be written again.
+     *
+     * @return the number of registrations inserted
+     */
+    int importBatch(List<CredentialRegistration> registrations);
+
+}
@@ -0,0 +1,22 @@
+package com.yubicolabs;
+
+import java.util.List;
+import java.util.Optional;
+import lombok.NonNull;
+import lombok.Value;
+
+/**
+ * What one {@link RegistrationBulkStore#exportPage} call read.
+ */
+@Value
+public class RegistrationExportPage {
+
+    /** The registrations as the JSON stored in the {@code registration} column. */
+    @NonNull
+    List<String> registrations;
+
+    /** Cursor for the next page; empty once the last registration has been read. */
+    @NonNull
+    Optional<String> next;
+
+}
@@ -0,0 +1,18 @@
+package com.yubicolabs;
+
+import com.yubico.webauthn.data.ByteArray;
+import lombok.Value;
+
+/**
+ * The lookup keys of one stored registration.
+ */
+@Value
+public class RegistrationKey {
+
+    String username;
+
+    ByteArray userHandle;
+
+    ByteArray credentialId;
+
+}
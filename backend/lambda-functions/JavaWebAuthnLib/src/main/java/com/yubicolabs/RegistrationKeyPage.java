@@ -0,0 +1,22 @@
+package com.yubicolabs;
+
+import com.yubico.webauthn.data.ByteArray;
+import java.util.List;
+import java.util.Optional;
+import lombok.NonNull;
+import lombok.Value;
+
+/**
+ * What one {@link RegistrationAaguidIndex#scanByAaguid} call read.
+ */
+@Value
+public class RegistrationKeyPage {
+
+    @NonNull
+    List<RegistrationKey> keys;
+
+    /** Credential ID hash to continue after; empty once the range has been read to its end. */
+    @NonNull
+    Optional<ByteArray> next;
+
+}
@@ -0,0 +1,18 @@
+package com.yubicolabs;
+
+import java.time.Duration;
+import java.util.function.Consumer;
+
+/**
+ * A store that can list the keys of its registrations, for building in-memory indexes of them.
+ */
+public interface RegistrationKeySource {
+
+    void forEachRegistrationKey(Consumer<RegistrationKey> consumer);
+
+    /**
+     * Like {@link #forEachRegistrationKey}, for registrations created no longer than {@code age} ago only.
+     */
+    void forEachRegistrationKeySince(Duration age, Consumer<RegistrationKey> consumer);
+
+}
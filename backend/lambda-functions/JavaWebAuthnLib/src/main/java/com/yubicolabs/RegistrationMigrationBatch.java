@@ -0,0 +1,73 @@
+package com.yubicolabs;
+
+import java.util.Arrays;
+import java.util.Optional;
+import lombok.NonNull;
+import lombok.Value;
+
+/**
+ * What one {@link RegistrationSchemaMigrator#migrateBatch} call found and did.
+ */
+@Value
+public class RegistrationMigrationBatch {
+
+    public enum Outcome {
+        UNCHANGED,
+        COPIED,
+        REPAIRED,
+        /** The credential ID is stored in v2 for a different user; left for an operator to resolve. */
+        CONFLICT
+    }
+
+    int scanned;
+    int copied;
+    int repaired;
+    int conflicts;
+
+    /** Cursor for the next batch; empty once the last v1 row has been examined. */
+    @NonNull
+    Optional<String> next;
+
+    /**
+     * Compares a v1 row with the v2 row stored under the same credential ID hash, if any.
+     */
+    static Outcome compare(RegistrationKey key, String registration, byte[] migratedUsernameHash, String migratedRegistration) {
+        if (migratedUsernameHash == null) {
+            return Outcome.COPIED;
+        }
+        if (!Arrays.equals(migratedUsernameHash, KeyHash.username(key.getUsername()))) {
+            return Outcome.CONFLICT;
+        }
+        return registration.equals(migratedRegistration) ? Outcome.UNCHANGED : Outcome.REPAIRED;
+    }
+
+    static class Tally {
+        private int scanned;
+        private int copied;
+        private int repaired;
+        private int conflicts;
+
+        void add(Outcome outcome) {
+            scanned++;
+            switch (outcome) {
+                case COPIED:
+                    copied++;
+                    break;
+                case REPAIRED:
+                    repaired++;
+                    break;
+                case CONFLICT:
+                    conflicts++;
+                    break;
+                case UNCHANGED:
+                default:
+                    break;
+            }
+        }
+
+        RegistrationMigrationBatch build(Optional<String> next) {
+            return new RegistrationMigrationBatch(scanned, copied, repaired, conflicts, next);
+        }
+    }
+
+}
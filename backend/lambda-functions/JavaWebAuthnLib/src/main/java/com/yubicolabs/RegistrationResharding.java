@@ -0,0 +1,227 @@
+package com.yubicolabs;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.exception.Base64UrlException;
+import com.yubicolabs.data.CredentialRegistration;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Operator entry point for the shards of a {@link ShardedRegistrationStorage}. Deploy the WebAuthn function's code
+ * with the handler {@code com.yubicolabs.RegistrationResharding::handleRequest} and the same environment, then invoke
+ * it with one of:
+ *
+ * <ul>
+ * <li>{@code {"step": "create"}} creates the routing index and the registration table of every shard, and adds the
+ * {@code aaguid} column to shards created before it existed.</li>
+ * <li>{@code {"step": "index", "shard": "a"}} routes every registration already stored on a shard to it, e.g. the
+ * original database when sharding is first enabled.</li>
+ * <li>{@code {"step": "move", "userHandle": "<base64url>", "shard": "b"}} moves one user.</li>
+ * <li>{@code {"step": "rebalance", "shard": "a"}} moves the users on a shard whose placement is now elsewhere, e.g.
+ * after a shard was appended to, or removed from, YUBICO_WEBAUTHN_SHARD_PLACEMENT. While the result has a
+ * {@code cursor}, invoke again passing it on.</li>
+ * </ul>
+ *
+ * <p>A move copies the user's registrations to the target, repoints their routes, and waits {@code graceSeconds}
+ * (default: longer than the WebAuthn function's timeout) for requests that resolved the old route to finish. It then
+ * repoints the routes again, since a credential those requests registered was routed to the source, copies whatever
+ * they wrote, keeping the most recently changed version of each credential and skipping credentials removed in the
+ * meantime, and deletes the user from the source.
+ */
+@Slf4j
+public class RegistrationResharding implements RequestHandler<Object, Object> {
+
+    private static final int DEFAULT_BATCH_SIZE = 50;
+    private static final long DEFAULT_GRACE_SECONDS = 35;
+
+    private final Gson gson = new Gson();
+    private final ShardedRegistrationStorage storage;
+
+    public RegistrationResharding() {
+        this(StorageFactory.shardedRegistrationStorage()
+            .orElseThrow(() -> new IllegalStateException("Sharding is not configured; set YUBICO_WEBAUTHN_SHARDS")));
+    }
+
+    public RegistrationResharding(ShardedRegistrationStorage storage) {
+        this.storage = storage;
+    }
+
+    @Override
+    public Object handleRequest(final Object input, final Context context) {
+        log.info("EVENT: {}", gson.toJson(input));
+
+        final JsonObject object = gson.fromJson(gson.toJson(input), JsonObject.class);
+        final String step = object.get("step").getAsString();
+        final Duration grace = Duration.ofSeconds(object.has("graceSeconds") ? object.get("graceSeconds").getAsLong() : DEFAULT_GRACE_SECONDS);
+
+        RequestDeadline.begin(context, Config.getDeadlineReserve(), Config.getStorageRetryBudget());
+        try {
+            final Map<String, Object> result = new LinkedHashMap<>();
+            result.put("step", step);
+            switch (step) {
+                case "create":
+                    storage.getRoutes().createTables();
+                    storage.getShards().values().stream()
+                        .filter(shard -> shard instanceof RegistrationSchemaMigrator)
+                        .forEach(shard -> ((RegistrationSchemaMigrator) shard).createTables());
+                    storage.getShards().values().stream()
+                        .filter(shard -> shard instanceof RegistrationAaguidIndex)
+                        .forEach(shard -> ((RegistrationAaguidIndex) shard).createAaguidIndex());
+                    break;
+                case "index":
+                    result.put("indexed", index(object.get("shard").getAsString()));
+                    break;
+                case "move":
+                    final ByteArray userHandle = ByteArray.fromBase64Url(object.get("userHandle").getAsString());
+                    result.put("moved", move(Collections.singletonList(userHandle), object.get("shard").getAsString(), grace));
+                    break;
+                case "rebalance":
+                    final ByteArray cursor = object.has("cursor") ? ByteArray.fromBase64Url(object.get("cursor").getAsString()) : new ByteArray(new byte[0]);
+                    final int batchSize = object.has("batchSize") ? object.get("batchSize").getAsInt() : DEFAULT_BATCH_SIZE;
+                    result.putAll(rebalance(object.get("shard").getAsString(), cursor, batchSize, grace));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown resharding step: " + step);
+            }
+            log.info("{}: {}", step, result);
+            return result;
+        } catch (Base64UrlException e) {
+            throw new IllegalArgumentException("Malformed user handle or cursor", e);
+        } finally {
+            RequestDeadline.end();
+        }
+    }
+
+    int index(String shard) {
+        final int[] indexed = { 0 };
+        storage.getShards().get(shard).forEachRegistrationKey(key -> {
+            storage.getRoutes().add(shard, key);
+            indexed[0]++;
+        });
+        return indexed[0];
+    }
+
+    Map<String, Object> rebalance(String shard, ByteArray cursor, int batchSize, Duration grace) {
+        final Map<String, Object> result = new LinkedHashMap<>();
+        int scanned = 0;
+        int moved = 0;
+        byte[] after = cursor.getBytes();
+
+        // Leave room for one more batch including its grace period
+        long slowestBatchNanos = grace.toNanos();
+        while (RequestDeadline.current().remainingNanos() > 2 * slowestBatchNanos) {
+            final long start = System.nanoTime();
+            final List<ByteArray> userHandles = storage.getRoutes().userHandlesOn(shard, after, batchSize);
+            final Map<String, List<ByteArray>> byTarget = userHandles.stream()
+                .filter(userHandle -> !storage.placementFor(userHandle).equals(shard))
+                .collect(Collectors.groupingBy(storage::placementFor));
+            for (Map.Entry<String, List<ByteArray>> target : byTarget.entrySet()) {
+                moved += move(target.getValue(), target.getKey(), grace);
+            }
+            scanned += userHandles.size();
+            slowestBatchNanos = Math.max(slowestBatchNanos, System.nanoTime() - start);
+
+            if (userHandles.size() < batchSize) {
+                after = null;
+                break;
+            }
+            after = KeyHash.userHandle(userHandles.get(userHandles.size() - 1));
+        }
+
+        result.put("scanned", scanned);
+        result.put("moved", moved);
+        if (after != null) {
+            result.put("cursor", new ByteArray(after).getBase64Url());
+        }
+        Metrics.of("Resharding").count("UsersScanned", scanned).count("UsersMoved", moved).publish();
+        return result;
+    }
+
+    /**
+     * Moves users to the target shard, sharing one grace period.
+     *
+     * @return the number of users moved
+     */
+    int move(List<ByteArray> userHandles, String target, Duration grace) {
+        final AbstractRegistrationStorage to = storage.getShards().get(target);
+        if (to == null) {
+            throw new IllegalArgumentException("Unknown shard: " + target);
+        }
+
+        final Map<ByteArray, AbstractRegistrationStorage> sources = new LinkedHashMap<>();
+        for (ByteArray userHandle : userHandles) {
+            storage.getRoutes().forUserHandle(userHandle)
+                .filter(route -> !route.getShard().equals(target))
+                .ifPresent(route -> {
+                    final AbstractRegistrationStorage from = storage.getShards().get(route.getShard());
+                    copy(from, to, userHandle);
+                    storage.getRoutes().moveUser(userHandle, target);
+                    sources.put(userHandle, from);
+                });
+        }
+        if (sources.isEmpty()) {
+            return 0;
+        }
+
+        try {
+            Thread.sleep(grace.toMillis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException("Interrupted during the resharding grace period; rerun the move", e);
+        }
+
+        sources.forEach((userHandle, from) -> {
+            storage.getRoutes().moveUser(userHandle, target);
+            final Collection<CredentialRegistration> left = copy(from, to, userHandle);
+            left.stream()
+                .map(CredentialRegistration::getUsername)
+                .findAny()
+                .ifPresent(from::removeAllRegistrations);
+        });
+        return sources.size();
+    }
+
+    /**
+     * Brings the target up to date with the source's registrations of a user that still have a route.
+     *
+     * @return the source's registrations of the user
+     */
+    private Collection<CredentialRegistration> copy(AbstractRegistrationStorage from, AbstractRegistrationStorage to, ByteArray userHandle) {
+        final Collection<CredentialRegistration> source = from.getRegistrationsByUserHandle(userHandle);
+        final Map<ByteArray, CredentialRegistration> copied = to.getRegistrationsByUserHandle(userHandle).stream()
+            .collect(Collectors.toMap(reg -> reg.getCredential().getCredentialId(), Function.identity()));
+
+        for (CredentialRegistration reg : source) {
+            final ByteArray credentialId = reg.getCredential().getCredentialId();
+            if (!storage.getRoutes().forCredentialId(credentialId).isPresent()) {
+                // Removed since; copying it would bring it back
+                continue;
+            }
+            final CredentialRegistration current = copied.get(credentialId);
+            if (current == null) {
+                to.addRegistrationByUsername(reg.getUsername(), reg);
+            } else if (lastChanged(reg).isAfter(lastChanged(current))) {
+                to.updateRegistration(reg.getUsername(), credentialId, reg);
+            }
+        }
+        return new ArrayList<>(source);
+    }
+
+    private static Instant lastChanged(CredentialRegistration reg) {
+        return reg.getLastUsedTime().isAfter(reg.getLastUpdatedTime()) ? reg.getLastUsedTime() : reg.getLastUpdatedTime();
+    }
+
+}
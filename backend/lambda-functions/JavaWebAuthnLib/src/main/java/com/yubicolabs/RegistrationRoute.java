@@ -0,0 +1,16 @@
+package com.yubicolabs;
+
+import com.yubico.webauthn.data.ByteArray;
+import lombok.Value;
+
+/**
+ * Where a user's registrations live: the shard, and the user handle that all of the user's routes share.
+ */
+@Value
+public class RegistrationRoute {
+
+    String shard;
+
+    ByteArray userHandle;
+
+}
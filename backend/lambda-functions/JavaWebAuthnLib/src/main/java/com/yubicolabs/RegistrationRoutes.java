@@ -0,0 +1,61 @@
+package com.yubicolabs;
+
+import com.yubico.webauthn.data.ByteArray;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Global routing index of {@link ShardedRegistrationStorage}: maps each username, user handle and credential ID to
+ * the shard holding its registrations, so that lookups by any of them go straight to one shard.
+ *
+ * <p>Rows live in {@code registrationRoutes} in the default database, keyed like {@code credentialRegistrationsV2} by
+ * {@link KeyHash} and holding only the shard name and user handle, so the index stays small enough for one writer.
+ */
+public interface RegistrationRoutes {
+
+    int USERNAME = 1;
+    int USER_HANDLE = 2;
+    int CREDENTIAL_ID = 3;
+
+    String CREATE_TABLE_SQL = "CREATE TABLE IF NOT EXISTS registrationRoutes ("
+        + "kind TINYINT NOT NULL, "
+        + "keyHash BINARY(32) NOT NULL, "
+        + "userHandleHash BINARY(32) NOT NULL, "
+        + "userHandle VARBINARY(64) NOT NULL, "
+        + "shard VARCHAR(64) NOT NULL, "
+        + "PRIMARY KEY (kind, keyHash), "
+        + "KEY userHandleHash (userHandleHash), "
+        + "KEY shard (shard, kind, keyHash))";
+
+    void createTables();
+
+    Optional<RegistrationRoute> forUsername(String username);
+
+    Optional<RegistrationRoute> forUserHandle(ByteArray userHandle);
+
+    Optional<RegistrationRoute> forCredentialId(ByteArray credentialId);
+
+    /**
+     * Routes the keys of a registration to a shard. Keys that already have a route keep it.
+     */
+    void add(String shard, RegistrationKey key);
+
+    void removeCredential(ByteArray credentialId);
+
+    /**
+     * Removes every route of the user, including those of their credentials.
+     */
+    void removeUser(ByteArray userHandle);
+
+    /**
+     * Points every route of the user at another shard in one statement.
+     */
+    void moveUser(ByteArray userHandle, String shard);
+
+    /**
+     * @param afterHash {@link KeyHash#userHandle} of the last user handle of the previous page, or empty to start
+     * @return user handles routed to the shard, in hash order
+     */
+    List<ByteArray> userHandlesOn(String shard, byte[] afterHash, int limit);
+
+}
@@ -0,0 +1,41 @@
+package com.yubicolabs;
+
+import java.util.stream.Stream;
+
+/**
+ * Which credential registration table the storage reads and writes, selected by the
+ * YUBICO_WEBAUTHN_REGISTRATION_SCHEMA environment variable.
+ *
+ * <p>Deployments created before {@code credentialRegistrationsV2} existed move to it online: create the table, run
+ * with {@link #DUAL} while {@link RegistrationSchemaMigration} backfills and verifies it, then switch to {@link #V2}.
+ */
+public enum RegistrationSchema {
+    /** The original {@code credentialRegistrations} table, keyed by unindexed JSON text. */
+    V1("v1"),
+    /** Reads {@code credentialRegistrations} and writes both tables. */
+    DUAL("dual"),
+    /** {@code credentialRegistrationsV2}, keyed by fixed-width hashes of the raw key values. */
+    V2("v2");
+
+    private final String value;
+
+    RegistrationSchema(String value) {
+        this.value = value;
+    }
+
+    public static RegistrationSchema fromValue(String value) {
+        return Stream.of(values())
+            .filter(schema -> schema.value.equals(value))
+            .findAny()
+            .orElseThrow(() -> new IllegalArgumentException("Unknown registration schema: " + value));
+    }
+
+    public boolean readsV2() {
+        return this == V2;
+    }
+
+    @Override
+    public String toString() {
+        return value;
+    }
+}
@@ -0,0 +1,126 @@
+package com.yubicolabs;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Operator entry point for moving credential registrations to {@code credentialRegistrationsV2} without downtime.
+ * Deploy the WebAuthn function's code with the handler {@code com.yubicolabs.RegistrationSchemaMigration::handleRequest}
+ * and the same environment, then invoke it with one step at a time:
+ *
+ * <ol>
+ * <li>{@code {"step": "create"}} creates the v2 table and {@code userGenerations}; then set YUBICO_WEBAUTHN_REGISTRATION_SCHEMA=dual on the
+ * WebAuthn function so that new writes reach both tables.</li>
+ * <li>{@code {"step": "backfill"}} copies and repairs v1 rows for as long as the invocation allows. While the result
+ * has a {@code cursor}, invoke again passing it on.</li>
+ * <li>{@code {"step": "verify"}} walks the tables the same way without writing. Once a pass from the start reports no
+ * copies, repairs or conflicts, set YUBICO_WEBAUTHN_REGISTRATION_SCHEMA=v2.</li>
+ * </ol>
+ *
+ * Every step can be repeated safely.
+ */
+@Slf4j
+public class RegistrationSchemaMigration implements RequestHandler<Object, Object> {
+
+    private static final int DEFAULT_BATCH_SIZE = 100;
+
+    private final Gson gson = new Gson();
+    private final RegistrationSchemaMigrator migrator;
+    private final UserGenerations generations;
+
+    public RegistrationSchemaMigration() {
+        this(StorageFactory.registrationSchemaMigrator(), StorageFactory.userGenerations());
+    }
+
+    public RegistrationSchemaMigration(RegistrationSchemaMigrator migrator, UserGenerations generations) {
+        this.migrator = migrator;
+        this.generations = generations;
+    }
+
+    @Override
+    public Object handleRequest(final Object input, final Context context) {
+        log.info("EVENT: {}", gson.toJson(input));
+
+        final JsonObject object = gson.fromJson(gson.toJson(input), JsonObject.class);
+        final String step = object.get("step").getAsString();
+        final String cursor = object.has("cursor") ? object.get("cursor").getAsString() : "";
+        final int batchSize = object.has("batchSize") ? object.get("batchSize").getAsInt() : DEFAULT_BATCH_SIZE;
+
+        RequestDeadline.begin(context, Config.getDeadlineReserve(), Config.getStorageRetryBudget());
+        try {
+            switch (step) {
+                case "create":
+                    migrator.createTables();
+                    generations.createTables();
+                    return result(step);
+                case "backfill":
+                    return run(step, cursor, batchSize, false);
+                case "verify":
+                    return run(step, cursor, batchSize, true);
+                default:
+                    throw new IllegalArgumentException("Unknown migration step: " + step);
+            }
+        } finally {
+            RequestDeadline.end();
+        }
+    }
+
+    /**
+     * Migrates batches until the v1 table is exhausted or the next batch might not finish before the deadline.
+     */
+    Map<String, Object> run(String step, String cursor, int batchSize, boolean dryRun) {
+        int scanned = 0;
+        int copied = 0;
+        int repaired = 0;
+        int conflicts = 0;
+        Optional<String> next = Optional.of(cursor);
+        long slowestBatchNanos = 0;
+
+        while (next.isPresent() && RequestDeadline.current().remainingNanos() > 2 * slowestBatchNanos) {
+            final long start = System.nanoTime();
+            final RegistrationMigrationBatch batch = migrator.migrateBatch(next.get(), batchSize, dryRun);
+            slowestBatchNanos = Math.max(slowestBatchNanos, System.nanoTime() - start);
+
+            scanned += batch.getScanned();
+            copied += batch.getCopied();
+            repaired += batch.getRepaired();
+            conflicts += batch.getConflicts();
+            next = batch.getNext();
+        }
+
+        final Map<String, Object> result = result(step);
+        result.put("scanned", scanned);
+        result.put(dryRun ? "missing" : "copied", copied);
+        result.put(dryRun ? "diverged" : "repaired", repaired);
+        result.put("conflicts", conflicts);
+        if (next.isPresent()) {
+            result.put("cursor", next.get());
+        } else {
+            result.put("v1Rows", migrator.countRows(RegistrationSchema.V1));
+            result.put("v2Rows", migrator.countRows(RegistrationSchema.V2));
+        }
+
+        Metrics.of("RegistrationSchema")
+            .count(dryRun ? "VerifyScanned" : "BackfillScanned", scanned)
+            .count(dryRun ? "VerifyMissing" : "BackfillCopied", copied)
+            .count(dryRun ? "VerifyDiverged" : "BackfillRepaired", repaired)
+            .count("Conflicts", conflicts)
+            .publish();
+
+        log.info("{}: {}", step, result);
+        return result;
+    }
+
+    private static Map<String, Object> result(String step) {
+        final Map<String, Object> result = new LinkedHashMap<>();
+        result.put("step", step);
+        return result;
+    }
+
+}
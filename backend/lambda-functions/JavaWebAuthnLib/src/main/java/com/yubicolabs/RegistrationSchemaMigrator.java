@@ -0,0 +1,28 @@
+package com.yubicolabs;
+
+/**
+ * Storage-side steps of moving credential registrations from {@code credentialRegistrations} to
+ * {@code credentialRegistrationsV2}, driven by {@link RegistrationSchemaMigration}.
+ */
+public interface RegistrationSchemaMigrator {
+
+    /**
+     * Creates {@code credentialRegistrationsV2} and its indexes unless it already exists.
+     */
+    void createTables();
+
+    /**
+     * Brings the v1 rows after the given cursor, in credential ID order, into the v2 table: missing rows are copied
+     * and rows whose registration differs are overwritten. Each write re-checks the v1 row in the same statement, so
+     * a row removed or changed concurrently through {@link RegistrationSchema#DUAL} writes is never resurrected or
+     * reverted.
+     *
+     * @param after  cursor returned by the previous batch, or an empty string to start from the beginning
+     * @param limit  maximum number of v1 rows to examine
+     * @param dryRun only count what would be copied or repaired
+     */
+    RegistrationMigrationBatch migrateBatch(String after, int limit, boolean dryRun);
+
+    long countRows(RegistrationSchema schema);
+
+}
@@ -6,6 +6,7 @@ import com.yubico.webauthn.data.ByteArray;
 import com.yubicolabs.data.CredentialRegistration;
 import java.util.Collection;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 
 // RVW: This interface can probably be eliminated since there's only one implementation
 public interface RegistrationStorage extends CredentialRepository {
@@ -25,4 +26,21 @@ public interface RegistrationStorage extends CredentialRepository {
     void updateSignatureCount(AssertionResult result);
     
     void updateCredentialNickname(String username, ByteArray credentialId, String nickname);
+
+    /*
+     * Asynchronous variants, so callers can overlap storage calls with other work. By default they run the blocking
+     * call in the calling thread; backends with a non-blocking client override them.
+     */
+
+    default CompletableFuture<Boolean> addRegistrationByUsernameAsync(String username, CredentialRegistration reg) {
+        return StorageExecutor.completed(() -> addRegistrationByUsername(username, reg));
+    }
+
+    default CompletableFuture<Collection<CredentialRegistration>> getRegistrationsByUsernameAsync(String username) {
+        return StorageExecutor.completed(() -> getRegistrationsByUsername(username));
+    }
+
+    default CompletableFuture<Collection<CredentialRegistration>> getRegistrationsByUserHandleAsync(ByteArray userHandle) {
+        return StorageExecutor.completed(() -> getRegistrationsByUserHandle(userHandle));
+    }
 }
\ No newline at end of file
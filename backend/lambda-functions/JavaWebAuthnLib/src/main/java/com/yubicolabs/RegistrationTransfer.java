@@ -0,0 +1,269 @@
+package com.yubicolabs;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.yubicolabs.data.CredentialRegistration;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Operator entry point for copying credential registrations in and out in bulk, e.g. to onboard the users of another
+ * FIDO server. Deploy the WebAuthn function's code with the handler
+ * {@code com.yubicolabs.RegistrationTransfer::handleRequest} and the same environment, with a file system such as
+ * EFS mounted, then invoke it with one of:
+ *
+ * <ul>
+ * <li>{@code {"step": "export", "path": "/mnt/transfer/registrations.ndjson"}} writes every registration to the file,
+ * one JSON object per line. While the result has a {@code cursor}, invoke again passing on {@code cursor} and
+ * {@code offset}.</li>
+ * <li>{@code {"step": "import", "path": "/mnt/transfer/registrations.ndjson"}} inserts the registrations in such a
+ * file, {@code batchSize} rows per statement. While the result has an {@code offset}, invoke again passing it on.</li>
+ * </ul>
+ *
+ * <p>Only one batch is held in memory at a time, whatever the size of the file. An export resumed from an offset first
+ * cuts off whatever a previous invocation wrote past it. An import skips registrations whose credential ID is already
+ * stored, so resuming from the last offset after a failure is safe. Each result reports the rows and bytes moved and
+ * the rate.
+ */
+@Slf4j
+public class RegistrationTransfer implements RequestHandler<Object, Object> {
+
+    private static final int DEFAULT_EXPORT_BATCH_SIZE = 200;
+    private static final int DEFAULT_IMPORT_BATCH_SIZE = 100;
+    private static final int MAX_LINE_BYTES = 1024 * 1024;
+
+    private final Gson gson = new Gson();
+    private final RegistrationBulkStore store;
+    private final UserGenerations generations;
+
+    public RegistrationTransfer() {
+        this(StorageFactory.registrationBulkStore(), StorageFactory.userGenerations());
+    }
+
+    public RegistrationTransfer(RegistrationBulkStore store, UserGenerations generations) {
+        this.store = store;
+        this.generations = generations;
+    }
+
+    @Override
+    public Object handleRequest(final Object input, final Context context) {
+        log.info("EVENT: {}", gson.toJson(input));
+
+        final JsonObject object = gson.fromJson(gson.toJson(input), JsonObject.class);
+        final String step = object.get("step").getAsString();
+        final Path path = Paths.get(object.get("path").getAsString());
+        final long offset = object.has("offset") ? object.get("offset").getAsLong() : 0;
+
+        RequestDeadline.begin(context, Config.getDeadlineReserve(), Config.getStorageRetryBudget());
+        try {
+            switch (step) {
+                case "export":
+                    return export(path,
+                        object.has("cursor") ? object.get("cursor").getAsString() : "",
+                        offset,
+                        object.has("batchSize") ? object.get("batchSize").getAsInt() : DEFAULT_EXPORT_BATCH_SIZE);
+                case "import":
+                    return importFrom(path,
+                        offset,
+                        object.has("batchSize") ? object.get("batchSize").getAsInt() : DEFAULT_IMPORT_BATCH_SIZE);
+                default:
+                    throw new IllegalArgumentException("Unknown transfer step: " + step);
+            }
+        } finally {
+            RequestDeadline.end();
+        }
+    }
+
+    /**
+     * Appends pages of registrations to the file until the store is exhausted or the next page might not be written
+     * before the deadline.
+     *
+     * @param cursor cursor returned by the previous invocation, or an empty string to start a new file
+     * @param offset end of the file as of that cursor
+     */
+    Map<String, Object> export(Path path, String cursor, long offset, int batchSize) {
+        final long start = System.nanoTime();
+        final long from = cursor.isEmpty() ? 0 : offset;
+        long end = from;
+        int exported = 0;
+        Optional<String> next = Optional.of(cursor);
+        long slowestBatchNanos = 0;
+
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            file.truncate(end);
+            file.position(end);
+
+            while (next.isPresent() && RequestDeadline.current().remainingNanos() > 2 * slowestBatchNanos) {
+                final long batchStart = System.nanoTime();
+                final RegistrationExportPage page = store.exportPage(next.get(), batchSize);
+
+                final ByteArrayOutputStream lines = new ByteArrayOutputStream();
+                for (String registration : page.getRegistrations()) {
+                    lines.write(registration.getBytes(StandardCharsets.UTF_8));
+                    lines.write('\n');
+                }
+                final ByteBuffer buffer = ByteBuffer.wrap(lines.toByteArray());
+                while (buffer.hasRemaining()) {
+                    file.write(buffer);
+                }
+
+                end += lines.size();
+                exported += page.getRegistrations().size();
+                next = page.getNext();
+                slowestBatchNanos = Math.max(slowestBatchNanos, System.nanoTime() - batchStart);
+            }
+            file.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write " + path, e);
+        }
+
+        final Map<String, Object> result = result("export", exported, end - from, start);
+        if (next.isPresent()) {
+            result.put("cursor", next.get());
+            result.put("offset", end);
+        }
+        Metrics.of("RegistrationTransfer")
+            .count("Exported", exported)
+            .bytes("ExportedBytes", end - from)
+            .value("ExportedPerSecond", (double) result.get("rowsPerSecond"))
+            .publish();
+
+        log.info("export: {}", result);
+        return result;
+    }
+
+    /**
+     * Inserts batches of registrations read from the file, starting at the given byte offset, until the end of the
+     * file or until the next batch might not be written before the deadline.
+     */
+    Map<String, Object> importFrom(Path path, long offset, int batchSize) {
+        if (batchSize > RegistrationBulkStore.MAX_IMPORT_BATCH) {
+            throw new IllegalArgumentException("batchSize must be at most " + RegistrationBulkStore.MAX_IMPORT_BATCH);
+        }
+
+        final long start = System.nanoTime();
+        long position = offset;
+        int read = 0;
+        int imported = 0;
+        boolean atEnd = false;
+        long slowestBatchNanos = 0;
+
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            file.position(offset);
+            final InputStream in = new BufferedInputStream(Channels.newInputStream(file), 64 * 1024);
+            final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+            while (!atEnd && RequestDeadline.current().remainingNanos() > 2 * slowestBatchNanos) {
+                final long batchStart = System.nanoTime();
+                final List<CredentialRegistration> batch = new ArrayList<>(batchSize);
+                long batchEnd = position;
+                while (batch.size() < batchSize) {
+                    final int length = readLine(in, line);
+                    if (length == 0) {
+                        atEnd = true;
+                        break;
+                    }
+                    final String text = new String(line.toByteArray(), StandardCharsets.UTF_8).trim();
+                    if (!text.isEmpty()) {
+                        batch.add(parse(text, batchEnd));
+                    }
+                    batchEnd += length;
+                }
+
+                imported += store.importBatch(batch);
+                final Set<String> usernames = new LinkedHashSet<>();
+                batch.forEach(reg -> usernames.add(reg.getUsername()));
+                generations.advanceAll(usernames);
+
+                read += batch.size();
+                position = batchEnd;
+                slowestBatchNanos = Math.max(slowestBatchNanos, System.nanoTime() - batchStart);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read " + path, e);
+        }
+
+        final Map<String, Object> result = result("import", read, position - offset, start);
+        result.put("imported", imported);
+        result.put("skipped", read - imported);
+        if (!atEnd) {
+            result.put("offset", position);
+        }
+        Metrics.of("RegistrationTransfer")
+            .count("Imported", imported)
+            .count("ImportSkipped", read - imported)
+            .bytes("ImportedBytes", position - offset)
+            .value("ImportedPerSecond", (double) result.get("rowsPerSecond"))
+            .publish();
+
+        log.info("import: {}", result);
+        return result;
+    }
+
+    private CredentialRegistration parse(String line, long offset) {
+        try {
+            final CredentialRegistration reg = gson.fromJson(line, CredentialRegistration.class);
+            if (reg == null || reg.getUserIdentity() == null || reg.getCredential() == null) {
+                throw new JsonParseException("not a credential registration");
+            }
+            return reg;
+        } catch (JsonParseException e) {
+            throw new IllegalArgumentException("Malformed registration at offset " + offset + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Reads the next line into {@code line}, without its newline.
+     *
+     * @return the number of bytes consumed, newline included; 0 at the end of the file
+     */
+    private static int readLine(InputStream in, ByteArrayOutputStream line) throws IOException {
+        line.reset();
+        int consumed = 0;
+        int b;
+        while ((b = in.read()) != -1) {
+            consumed++;
+            if (b == '\n') {
+                break;
+            }
+            if (line.size() == MAX_LINE_BYTES) {
+                throw new IllegalArgumentException("Line longer than " + MAX_LINE_BYTES + " bytes; is this an export?");
+            }
+            line.write(b);
+        }
+        return consumed;
+    }
+
+    private static Map<String, Object> result(String step, int rows, long bytes, long startNanos) {
+        final double seconds = (System.nanoTime() - startNanos) / 1e9;
+        final Map<String, Object> result = new LinkedHashMap<>();
+        result.put("step", step);
+        result.put("rows", rows);
+        result.put("bytes", bytes);
+        result.put("seconds", seconds);
+        result.put("rowsPerSecond", seconds > 0 ? rows / seconds : 0.0);
+        return result;
+    }
+
+}
@@ -0,0 +1,209 @@
+package com.yubicolabs;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Decides whether a read may be answered by a replica through the reader endpoint or must go to the writer.
+ *
+ * <p>A read goes to the writer when:
+ * <ul>
+ * <li>this instance wrote one of its keys within {@code readYourWritesWindow}, so it sees its own writes;</li>
+ * <li>the replica lag measured most recently exceeds {@code maxLag}, or no measurement is recent enough to trust,
+ * e.g. right after the container thawed;</li>
+ * <li>a read on the reader failed within {@code failureBackoff}.</li>
+ * </ul>
+ *
+ * <p>Lag is measured on demand: a routing decision that finds the last measurement older than {@code probeInterval}
+ * starts a new one in the background, so idle or frozen containers issue no probes. Storage classes additionally
+ * repeat failed reads, and reads that found nothing, on the writer; that covers registrations just written by other
+ * instances within the lag bound.
+ *
+ * <p>Publishes its routing counts and the measured lag through {@link Metrics}.
+ */
+@Slf4j
+public class ReplicaRouting {
+
+    private static final long MAX_RECENT_WRITES = 10000;
+    private static final Duration METRICS_INTERVAL = Duration.ofMinutes(1);
+
+    private final boolean enabled;
+    private final Duration maxLag;
+    private final Duration probeInterval;
+    private final Duration failureBackoff;
+    private final Optional<Supplier<Duration>> lagProbe;
+    private final Clock clock;
+    private final Executor background;
+    private final Cache<Object, Boolean> recentWrites;
+
+    private final AtomicBoolean probing = new AtomicBoolean();
+    private volatile Instant probedAt = Instant.MIN;
+    private volatile Duration lag = Duration.ZERO;
+    private volatile Instant readerFailedAt = Instant.MIN;
+
+    private final LongAdder readerReads = new LongAdder();
+    private final LongAdder writerReads = new LongAdder();
+    private final LongAdder fallbacks = new LongAdder();
+    private volatile Instant metricsPublishedAt = Instant.MIN;
+
+    /**
+     * @param lagProbe measures the replica lag behind the reader endpoint; empty to assume replicas are current
+     */
+    public ReplicaRouting(
+        Duration readYourWritesWindow,
+        Duration maxLag,
+        Duration probeInterval,
+        Duration failureBackoff,
+        Optional<Supplier<Duration>> lagProbe,
+        Clock clock,
+        Executor background
+    ) {
+        this(true, readYourWritesWindow, maxLag, probeInterval, failureBackoff, lagProbe, clock, background);
+    }
+
+    private ReplicaRouting(
+        boolean enabled,
+        Duration readYourWritesWindow,
+        Duration maxLag,
+        Duration probeInterval,
+        Duration failureBackoff,
+        Optional<Supplier<Duration>> lagProbe,
+        Clock clock,
+        Executor background
+    ) {
+        this.enabled = enabled;
+        this.maxLag = maxLag;
+        this.probeInterval = probeInterval;
+        this.failureBackoff = failureBackoff;
+        this.lagProbe = lagProbe;
+        this.clock = clock;
+        this.background = background;
+        this.recentWrites = CacheBuilder.newBuilder()
+            .maximumSize(MAX_RECENT_WRITES)
+            .expireAfterWrite(readYourWritesWindow.toMillis(), TimeUnit.MILLISECONDS)
+            .build();
+    }
+
+    /**
+     * Routing for a store without a reader endpoint: every read goes to the writer.
+     */
+    public static ReplicaRouting writerOnly() {
+        return new ReplicaRouting(false, Duration.ZERO, Duration.ZERO, Duration.ZERO, Duration.ZERO, Optional.empty(), Clock.systemUTC(), Runnable::run);
+    }
+
+    /**
+     * Routing configured from the environment, measuring lag with the given probe.
+     */
+    public static ReplicaRouting fromConfig(Optional<Supplier<Duration>> lagProbe) {
+        return new ReplicaRouting(
+            Config.getReadYourWritesWindow(),
+            Config.getReaderMaxLag(),
+            Config.getReaderLagProbeInterval(),
+            Config.getCircuitOpenDuration(),
+            lagProbe,
+            Clock.systemUTC(),
+            Executors.newSingleThreadExecutor(r -> {
+                final Thread thread = new Thread(r, "replica-lag-probe");
+                thread.setDaemon(true);
+                return thread;
+            }));
+    }
+
+    /**
+     * @param key the username, user handle or credential ID the read is for, or null for reads not tied to one
+     * @return whether the read may go to the reader
+     */
+    public boolean useReader(Object key) {
+        if (!enabled) {
+            return false;
+        }
+        final Instant now = clock.instant();
+        probeIfDue(now);
+
+        final boolean result = (key == null || recentWrites.getIfPresent(key) == null)
+            && readerFailedAt.plus(failureBackoff).isBefore(now)
+            && probedAt.plus(probeInterval.multipliedBy(2)).isAfter(now)
+            && lag.compareTo(maxLag) <= 0;
+
+        (result ? readerReads : writerReads).increment();
+        publishMetricsIfDue(now);
+        return result;
+    }
+
+    /**
+     * Sends reads of the given keys to the writer for the read-your-writes window.
+     */
+    public void wrote(Object... keys) {
+        if (!enabled) {
+            return;
+        }
+        for (Object key : keys) {
+            recentWrites.put(key, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Records that a read on the reader failed or found nothing and was repeated on the writer.
+     *
+     * @param failure the reader's error, or null if it found nothing
+     */
+    public void fellBack(Throwable failure) {
+        fallbacks.increment();
+        if (failure != null) {
+            log.warn("Read on the reader endpoint failed; using the writer for {}", failureBackoff, failure);
+            readerFailedAt = clock.instant();
+        }
+    }
+
+    private void probeIfDue(Instant now) {
+        if (probedAt.plus(probeInterval).isAfter(now) || !probing.compareAndSet(false, true)) {
+            return;
+        }
+        if (!lagProbe.isPresent()) {
+            probedAt = now;
+            probing.set(false);
+            return;
+        }
+        try {
+            background.execute(() -> {
+                try {
+                    lag = lagProbe.get().get();
+                    probedAt = clock.instant();
+                } catch (RuntimeException e) {
+                    log.warn("Replica lag probe failed", e);
+                    readerFailedAt = clock.instant();
+                } finally {
+                    probing.set(false);
+                }
+            });
+        } catch (RuntimeException e) {
+            probing.set(false);
+            throw e;
+        }
+    }
+
+    private void publishMetricsIfDue(Instant now) {
+        if (metricsPublishedAt.plus(METRICS_INTERVAL).isAfter(now)) {
+            return;
+        }
+        metricsPublishedAt = now;
+        Metrics.of("ReplicaRouting")
+            .count("ReaderReads", readerReads.sumThenReset())
+            .count("WriterReads", writerReads.sumThenReset())
+            .count("ReaderFallbacks", fallbacks.sumThenReset())
+            .milliseconds("ReplicaLag", lag.toMillis())
+            .publish();
+    }
+
+}
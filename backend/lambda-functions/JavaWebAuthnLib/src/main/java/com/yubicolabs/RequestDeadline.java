@@ -0,0 +1,73 @@
+package com.yubicolabs;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Time and retry allowance of the request currently being handled.
+ *
+ * <p>{@link App#handleRequest} opens one per invocation from the remaining time in the Lambda {@link Context}; storage
+ * calls made on that thread never wait past it, and hedged or retried reads draw from its shared retry budget.
+ */
+public final class RequestDeadline {
+
+    private static final ThreadLocal<RequestDeadline> CURRENT = new ThreadLocal<>();
+
+    private final long deadlineNanos;
+    private final AtomicInteger retryBudget;
+
+    private RequestDeadline(long deadlineNanos, int retryBudget) {
+        this.deadlineNanos = deadlineNanos;
+        this.retryBudget = new AtomicInteger(retryBudget);
+    }
+
+    /**
+     * Starts tracking a request on the current thread. A null context (local runs and tests) leaves only the
+     * per-operation storage timeouts in effect.
+     */
+    public static RequestDeadline begin(Context context, Duration reserve, int retryBudget) {
+        final long remainingNanos = context == null
+            ? Long.MAX_VALUE / 2
+            : TimeUnit.MILLISECONDS.toNanos(Math.max(0, context.getRemainingTimeInMillis() - reserve.toMillis()));
+
+        final RequestDeadline deadline = new RequestDeadline(System.nanoTime() + remainingNanos, retryBudget);
+        CURRENT.set(deadline);
+        return deadline;
+    }
+
+    public static void end() {
+        CURRENT.remove();
+    }
+
+    /**
+     * @return the deadline of the request on this thread, or an unbounded one when no request is being tracked. Each
+     * storage call still caps its own number of attempts in that case.
+     */
+    public static RequestDeadline current() {
+        final RequestDeadline deadline = CURRENT.get();
+        return deadline != null ? deadline : new RequestDeadline(System.nanoTime() + Long.MAX_VALUE / 2, Integer.MAX_VALUE);
+    }
+
+    public long remainingNanos() {
+        return Math.max(0, deadlineNanos - System.nanoTime());
+    }
+
+    /**
+     * @return the given timeout, shortened so that it does not extend past this deadline.
+     */
+    public long boundNanos(Duration timeout) {
+        return Math.min(timeout.toNanos(), remainingNanos());
+    }
+
+    /**
+     * Takes one hedge or retry from the budget.
+     *
+     * @return false if the budget is exhausted, in which case the caller must not issue another attempt.
+     */
+    public boolean tryAcquireRetry() {
+        return retryBudget.getAndUpdate(n -> n > 0 ? n - 1 : 0) > 0;
+    }
+
+}
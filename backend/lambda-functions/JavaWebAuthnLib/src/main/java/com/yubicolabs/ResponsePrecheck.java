@@ -0,0 +1,138 @@
+package com.yubicolabs;
+
+import com.google.common.hash.Hashing;
+import com.yubico.webauthn.RelyingParty;
+import com.yubico.webauthn.data.AuthenticatorData;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.CollectedClientData;
+import com.yubico.webauthn.data.PublicKeyCredentialType;
+import com.yubicolabs.data.AssertionResponse;
+import com.yubicolabs.data.RegistrationResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.Set;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Rejects finish responses that cannot verify, before the pending request is read or invalidated, so that garbage and
+ * replayed traffic costs no storage round trips.
+ *
+ * <p>Only what can be judged from the response alone is checked: its size, the client data type and origin, that the
+ * challenge is of a plausible length, and that the authenticator data is for this relying party. Everything else,
+ * including that the challenge is the one issued, is left to {@link RelyingParty} as before. Each rejection is
+ * published as a {@code FinishPrecheck} count named after its reason.
+ */
+@Slf4j
+public class ResponsePrecheck {
+
+    private static final String CREATE = "webauthn.create";
+    private static final String GET = "webauthn.get";
+
+    // Challenges are issued as 32 bytes; the specification requires at least 16
+    private static final int MIN_CHALLENGE_BYTES = 16;
+    private static final int MAX_CHALLENGE_BYTES = 64;
+
+    private final Set<String> origins;
+    private final ByteArray rpIdHash;
+    private final int maxResponseSize;
+
+    /**
+     * @param maxResponseSize largest response accepted, in characters of its JSON
+     */
+    public ResponsePrecheck(RelyingParty rp, int maxResponseSize) {
+        this.origins = rp.getOrigins();
+        this.rpIdHash = new ByteArray(Hashing.sha256().hashString(rp.getIdentity().getId(), StandardCharsets.UTF_8).asBytes());
+        this.maxResponseSize = maxResponseSize;
+    }
+
+    /**
+     * @param json the response as received, before it is decoded
+     * @return the rejection, if the response is too large to be genuine
+     */
+    public Optional<Exception> checkSize(String json) {
+        if (json.length() > maxResponseSize) {
+            return reject("Oversized", "Response of " + json.length() + " characters exceeds " + maxResponseSize);
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Counts a response that could not even be decoded.
+     *
+     * @return the decoding failure
+     */
+    public Exception malformed(Exception e) {
+        Metrics.of("FinishPrecheck").count("Malformed", 1).publish();
+        return e;
+    }
+
+    /**
+     * @return the rejection, if the registration response cannot verify
+     */
+    public Optional<Exception> checkRegistration(RegistrationResponse response) {
+        if (response.getRequestId() == null || response.getCredential() == null) {
+            return reject("Incomplete", "Registration response lacks a request ID or credential");
+        }
+        final Optional<Exception> common = check(
+            response.getCredential().getType(), response.getCredential().getResponse().getClientData(), CREATE);
+        if (common.isPresent()) {
+            return common;
+        }
+        final AuthenticatorData authenticatorData = response.getCredential().getResponse().getAttestation().getAuthenticatorData();
+        if (!rpIdHash.equals(authenticatorData.getRpIdHash())) {
+            return reject("RpIdHash", "Authenticator data is for another relying party");
+        }
+        if (!authenticatorData.getAttestedCredentialData().isPresent()) {
+            return reject("AuthenticatorData", "Authenticator data has no attested credential");
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * @return the rejection, if the assertion response cannot verify
+     */
+    public Optional<Exception> checkAssertion(AssertionResponse response) {
+        if (response.getRequestId() == null || response.getCredential() == null) {
+            return reject("Incomplete", "Assertion response lacks a request ID or credential");
+        }
+        final Optional<Exception> common = check(
+            response.getCredential().getType(), response.getCredential().getResponse().getClientData(), GET);
+        if (common.isPresent()) {
+            return common;
+        }
+        final AuthenticatorData authenticatorData;
+        try {
+            authenticatorData = new AuthenticatorData(response.getCredential().getResponse().getAuthenticatorData());
+        } catch (IllegalArgumentException e) {
+            return reject("AuthenticatorData", "Malformed authenticator data: " + e.getMessage());
+        }
+        if (!rpIdHash.equals(authenticatorData.getRpIdHash())) {
+            return reject("RpIdHash", "Authenticator data is for another relying party");
+        }
+        return Optional.empty();
+    }
+
+    private Optional<Exception> check(PublicKeyCredentialType credentialType, CollectedClientData clientData, String type) {
+        if (credentialType != PublicKeyCredentialType.PUBLIC_KEY) {
+            return reject("CredentialType", "Unsupported credential type: " + credentialType);
+        }
+        if (!type.equals(clientData.getType())) {
+            return reject("ClientDataType", "Client data type is " + clientData.getType() + ", expected " + type);
+        }
+        if (!origins.contains(clientData.getOrigin())) {
+            return reject("Origin", "Origin not allowed: " + clientData.getOrigin());
+        }
+        final int challengeSize = clientData.getChallenge().size();
+        if (challengeSize < MIN_CHALLENGE_BYTES || challengeSize > MAX_CHALLENGE_BYTES) {
+            return reject("Challenge", "Challenge of " + challengeSize + " bytes cannot have been issued");
+        }
+        return Optional.empty();
+    }
+
+    private static Optional<Exception> reject(String reason, String message) {
+        log.info("Rejected before verification ({}): {}", reason, message);
+        Metrics.of("FinishPrecheck").count(reason, 1).publish();
+        return Optional.of(new Exception("Rejected before verification: " + message));
+    }
+
+}
@@ -0,0 +1,153 @@
+package com.yubicolabs;
+
+import com.google.common.hash.Hashing;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubicolabs.data.CredentialRegistration;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Consumer;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * {@link RegistrationStorage} spread over several databases, each user's registrations on one of them.
+ *
+ * <p>New users are placed by a consistent hash of their user handle over the shards open for placement, so adding a
+ * shard at the end of that list only claims its share of new users. Every lookup resolves its shard through
+ * {@link RegistrationRoutes} rather than the hash, which lets {@link RegistrationResharding} move existing users
+ * between shards online.
+ */
+@Slf4j
+public class ShardedRegistrationStorage extends AbstractRegistrationStorage {
+
+    private final Map<String, AbstractRegistrationStorage> shards;
+    private final List<String> placement;
+    private final RegistrationRoutes routes;
+
+    /**
+     * @param shards    storage of each shard by name; names are stored in the routing index, so they must never change
+     * @param placement names of the shards that take new users, in a fixed order; append to grow
+     */
+    public ShardedRegistrationStorage(Map<String, AbstractRegistrationStorage> shards, List<String> placement, RegistrationRoutes routes) {
+        if (placement.isEmpty() || !shards.keySet().containsAll(placement)) {
+            throw new IllegalArgumentException("Placement shards " + placement + " must be a non-empty subset of " + shards.keySet());
+        }
+        this.shards = Collections.unmodifiableMap(shards);
+        this.placement = Collections.unmodifiableList(placement);
+        this.routes = routes;
+    }
+
+    Map<String, AbstractRegistrationStorage> getShards() {
+        return shards;
+    }
+
+    RegistrationRoutes getRoutes() {
+        return routes;
+    }
+
+    /**
+     * @return the shard a new user with this user handle is placed on
+     */
+    String placementFor(ByteArray userHandle) {
+        return placement.get(Hashing.consistentHash(Hashing.sha256().hashBytes(userHandle.getBytes()), placement.size()));
+    }
+
+    @Override
+    protected Collection<CredentialRegistration> getByCredentialId(ByteArray credentialId) {
+        return routes.forCredentialId(credentialId)
+            .map(route -> shard(route).getByCredentialId(credentialId))
+            .orElse(Collections.emptyList());
+    }
+
+    @Override
+    protected Optional<CredentialRegistration> getRegistrationForUpdate(String username, ByteArray credentialId) {
+        return routes.forUsername(username)
+            .flatMap(route -> shard(route).getRegistrationForUpdate(username, credentialId));
+    }
+
+    @Override
+    protected boolean updateRegistration(String username, ByteArray credentialId, CredentialRegistration reg) {
+        return routes.forUsername(username)
+            .map(route -> shard(route).updateRegistration(username, credentialId, reg))
+            .orElse(false);
+    }
+
+    @Override
+    public boolean addRegistrationByUsername(String username, CredentialRegistration reg) {
+        final ByteArray userHandle = reg.getUserIdentity().getId();
+        final String shard = routes.forUsername(username)
+            .map(RegistrationRoute::getShard)
+            .orElseGet(() -> placementFor(userHandle));
+
+        // Route first: a failure in between leaves a route to nothing, never a registration nothing routes to
+        routes.add(shard, new RegistrationKey(username, userHandle, reg.getCredential().getCredentialId()));
+        return shards.get(shard).addRegistrationByUsername(username, reg);
+    }
+
+    @Override
+    public Collection<CredentialRegistration> getRegistrationsByUsername(String username) {
+        return routes.forUsername(username)
+            .map(route -> shard(route).getRegistrationsByUsername(username))
+            .orElse(Collections.emptyList());
+    }
+
+    @Override
+    public Collection<CredentialRegistration> getRegistrationsByUserHandle(ByteArray userHandle) {
+        return routes.forUserHandle(userHandle)
+            .map(route -> shard(route).getRegistrationsByUserHandle(userHandle))
+            .orElse(Collections.emptyList());
+    }
+
+    @Override
+    public boolean userExists(String username) {
+        return routes.forUsername(username)
+            .map(route -> shard(route).userExists(username))
+            .orElse(false);
+    }
+
+    @Override
+    public boolean removeRegistrationByUsername(String username, CredentialRegistration credentialRegistration) {
+        final Optional<RegistrationRoute> route = routes.forUsername(username);
+        if (!route.isPresent()) {
+            return false;
+        }
+        final boolean removed = shard(route.get()).removeRegistrationByUsername(username, credentialRegistration);
+        if (removed) {
+            routes.removeCredential(credentialRegistration.getCredential().getCredentialId());
+        }
+        return removed;
+    }
+
+    @Override
+    public boolean removeAllRegistrations(String username) {
+        final Optional<RegistrationRoute> route = routes.forUsername(username);
+        if (!route.isPresent()) {
+            return false;
+        }
+        shard(route.get()).removeAllRegistrations(username);
+        routes.removeUser(route.get().getUserHandle());
+        return true;
+    }
+
+    @Override
+    public void forEachRegistrationKey(Consumer<RegistrationKey> consumer) {
+        shards.values().forEach(shard -> shard.forEachRegistrationKey(consumer));
+    }
+
+    @Override
+    public void forEachRegistrationKeySince(Duration age, Consumer<RegistrationKey> consumer) {
+        shards.values().forEach(shard -> shard.forEachRegistrationKeySince(age, consumer));
+    }
+
+    private AbstractRegistrationStorage shard(RegistrationRoute route) {
+        final AbstractRegistrationStorage shard = shards.get(route.getShard());
+        if (shard == null) {
+            throw new StorageException("Routed to unknown shard: " + route.getShard(), null);
+        }
+        return shard;
+    }
+
+}
@@ -0,0 +1,149 @@
+package com.yubicolabs;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Coalesces concurrent identical storage reads: while a read of a statement with given parameters is in flight, other
+ * callers of the same read share its result instead of issuing their own.
+ *
+ * <p>A flight is joined only if no write to the read's subject (username, user handle or credential ID) was made
+ * through this instance since it started, so callers still see their own writes. Writes are tracked per stripe of
+ * subjects; a collision only starts a flight that could have been shared.
+ *
+ * <p>Publishes, per storage operation, how many reads were made and how many of them were collapsed into another.
+ */
+@Slf4j
+public class SingleFlight {
+
+    private static final int STRIPES = 1024;
+    private static final Duration METRICS_INTERVAL = Duration.ofMinutes(1);
+
+    private static SingleFlight instance;
+    public static synchronized SingleFlight getInstance() {
+        if (instance == null) {
+            instance = new SingleFlight(Clock.systemUTC());
+        }
+        return instance;
+    }
+
+    private final Clock clock;
+    private final Map<Key, CompletableFuture<?>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLongArray writes = new AtomicLongArray(STRIPES);
+
+    private final Map<String, LongAdder> calls = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> collapsed = new ConcurrentHashMap<>();
+    private volatile Instant metricsPublishedAt;
+
+    public SingleFlight(Clock clock) {
+        this.clock = clock;
+        this.metricsPublishedAt = clock.instant();
+    }
+
+    /**
+     * @param subject the username, user handle or credential ID read, or null
+     * @param query   the statement and its parameters; arrays are compared by content
+     */
+    @SuppressWarnings("unchecked")
+    public <T> CompletableFuture<T> async(String operation, Object subject, Object[] query, Supplier<CompletableFuture<T>> call) {
+        final Key key = new Key(operation, query, writes.get(stripe(subject)));
+        count(calls, operation);
+
+        final CompletableFuture<T> flight = new CompletableFuture<>();
+        final CompletableFuture<?> existing = inFlight.putIfAbsent(key, flight);
+        if (existing != null) {
+            count(collapsed, operation);
+            return (CompletableFuture<T>) existing;
+        }
+
+        try {
+            call.get().whenComplete((result, e) -> {
+                inFlight.remove(key, flight);
+                if (e != null) {
+                    flight.completeExceptionally(e);
+                } else {
+                    flight.complete(result);
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.remove(key, flight);
+            flight.completeExceptionally(e);
+        }
+        publishMetricsIfDue();
+        return flight;
+    }
+
+    public <T> T blocking(String operation, Object subject, Object[] query, Supplier<T> call) {
+        return StorageExecutor.await(async(operation, subject, query, () -> StorageExecutor.completed(call)));
+    }
+
+    /**
+     * Keeps later reads of the given subjects from joining flights that started before this write.
+     */
+    public void wrote(Object... subjects) {
+        for (Object subject : subjects) {
+            writes.incrementAndGet(stripe(subject));
+        }
+    }
+
+    private static int stripe(Object subject) {
+        return subject == null ? 0 : Math.floorMod(subject.hashCode(), STRIPES);
+    }
+
+    private static void count(Map<String, LongAdder> counters, String operation) {
+        counters.computeIfAbsent(operation, o -> new LongAdder()).increment();
+    }
+
+    private void publishMetricsIfDue() {
+        final Instant now = clock.instant();
+        if (metricsPublishedAt.plus(METRICS_INTERVAL).isAfter(now)) {
+            return;
+        }
+        metricsPublishedAt = now;
+        final Metrics metrics = Metrics.of("SingleFlight");
+        calls.forEach((operation, count) -> metrics
+            .count(operation + "Reads", count.sumThenReset())
+            .count(operation + "Collapsed", collapsed.computeIfAbsent(operation, o -> new LongAdder()).sumThenReset()));
+        metrics.publish();
+    }
+
+    private static final class Key {
+        private final String operation;
+        private final Object[] query;
+        private final long generation;
+        private final int hashCode;
+
+        Key(String operation, Object[] query, long generation) {
+            this.operation = operation;
+            this.query = query;
+            this.generation = generation;
+            this.hashCode = 31 * (31 * operation.hashCode() + Arrays.deepHashCode(query)) + Long.hashCode(generation);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return generation == other.generation
+                && operation.equals(other.operation)
+                && Arrays.deepEquals(query, other.query);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+}
@@ -0,0 +1,75 @@
+package com.yubicolabs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.services.rdsdata.model.Field;
+import software.amazon.awssdk.services.rdsdata.model.SqlParameter;
+
+/**
+ * Typed named parameters for a Data API statement, bound as {@code :name} in the SQL text.
+ *
+ * <pre>
+ * SqlParameters.builder()
+ *     .string("username", username)
+ *     .bytes("credentialId", credentialId)
+ *     .build();
+ * </pre>
+ */
+public final class SqlParameters {
+
+    public static final SqlParameters NONE = new SqlParameters(Collections.emptyList());
+
+    private final List<SqlParameter> parameters;
+
+    private SqlParameters(List<SqlParameter> parameters) {
+        this.parameters = Collections.unmodifiableList(parameters);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public List<SqlParameter> asList() {
+        return parameters;
+    }
+
+    public static final class Builder {
+
+        private final List<SqlParameter> parameters = new ArrayList<>();
+
+        private Builder() {
+        }
+
+        public Builder string(String name, String value) {
+            return bind(name, value == null ? nullField() : Field.builder().stringValue(value).build());
+        }
+
+        public Builder longValue(String name, long value) {
+            return bind(name, Field.builder().longValue(value).build());
+        }
+
+        public Builder booleanValue(String name, boolean value) {
+            return bind(name, Field.builder().booleanValue(value).build());
+        }
+
+        public Builder bytes(String name, byte[] value) {
+            return bind(name, value == null ? nullField() : Field.builder().blobValue(SdkBytes.fromByteArray(value)).build());
+        }
+
+        public SqlParameters build() {
+            return new SqlParameters(new ArrayList<>(parameters));
+        }
+
+        private Builder bind(String name, Field value) {
+            parameters.add(SqlParameter.builder().name(name).value(value).build());
+            return this;
+        }
+
+        private static Field nullField() {
+            return Field.builder().isNull(true).build();
+        }
+    }
+
+}
@@ -0,0 +1,34 @@
+package com.yubicolabs;
+
+import java.util.stream.Stream;
+
+/**
+ * Where credentials and pending requests are persisted, selected by the YUBICO_WEBAUTHN_STORAGE_BACKEND environment
+ * variable.
+ */
+public enum StorageBackend {
+    /** Aurora through the RDS Data API. */
+    DATA_API("data-api"),
+    /** Any MySQL-compatible database through a pooled JDBC connection, e.g. Aurora behind RDS Proxy. */
+    JDBC("jdbc"),
+    /** Memory-mapped files on local disk, for a single node. */
+    EMBEDDED("embedded");
+
+    private final String value;
+
+    StorageBackend(String value) {
+        this.value = value;
+    }
+
+    public static StorageBackend fromValue(String value) {
+        return Stream.of(values())
+            .filter(backend -> backend.value.equals(value))
+            .findAny()
+            .orElseThrow(() -> new IllegalArgumentException("Unknown storage backend: " + value));
+    }
+
+    @Override
+    public String toString() {
+        return value;
+    }
+}
@@ -0,0 +1,12 @@
+package com.yubicolabs;
+
+/**
+ * Thrown when a storage backend fails to execute a statement.
+ */
+public class StorageException extends RuntimeException {
+
+    public StorageException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+}
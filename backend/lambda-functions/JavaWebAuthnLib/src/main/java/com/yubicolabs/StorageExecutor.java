@@ -0,0 +1,254 @@
+package com.yubicolabs;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Runs storage calls under a per-operation timeout bounded by the current {@link RequestDeadline}.
+ *
+ * <p>Reads are idempotent, so a read that has not answered within the hedge delay gets a second, concurrent attempt and
+ * the first answer wins; a failed read is retried while time remains. Every extra attempt is taken from the request's
+ * retry budget. Writes are never repeated.
+ *
+ * <p>{@link #readAsync} and {@link #writeAsync} take calls that are already asynchronous, such as {@link DataApiClient}
+ * statements. {@link #submitRead} and {@link #submitWrite} run blocking calls on a pool thread; {@link #read} and
+ * {@link #write} also wait for their result.
+ *
+ * <p>{@link #scanAsync} and {@link #scan} are for long reads, such as full table scans: never hedged, so a slow scan
+ * is not duplicated, but retried like any read when it fails.
+ */
+@Slf4j
+public class StorageExecutor {
+
+    static final String DEFAULT_OPERATION = "default";
+
+    private static final int MAX_ATTEMPTS = 3;
+
+    private static StorageExecutor instance;
+    public static synchronized StorageExecutor getInstance() {
+        if (instance == null) {
+            instance = new StorageExecutor(Config.getStorageTimeouts(), Config.getStorageHedgeDelay());
+        }
+        return instance;
+    }
+
+    private final Map<String, Duration> timeouts;
+    private final Optional<Duration> hedgeDelay;
+    private final ExecutorService pool;
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * @param timeouts   timeout per operation name; the {@value #DEFAULT_OPERATION} entry applies to all others
+     * @param hedgeDelay how long a read may run before a hedged attempt is started, or empty to disable hedging
+     */
+    public StorageExecutor(Map<String, Duration> timeouts, Optional<Duration> hedgeDelay) {
+        if (!timeouts.containsKey(DEFAULT_OPERATION)) {
+            throw new IllegalArgumentException("Missing \"" + DEFAULT_OPERATION + "\" storage timeout");
+        }
+        this.timeouts = timeouts;
+        this.hedgeDelay = hedgeDelay;
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.pool = Executors.newCachedThreadPool(r -> daemon(r, "storage-" + threadCount.incrementAndGet()));
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> daemon(r, "storage-timer"));
+    }
+
+    public <T> T read(String operation, Supplier<T> call) {
+        return await(submitRead(operation, call));
+    }
+
+    public <T> T write(String operation, Supplier<T> call) {
+        return await(submitWrite(operation, call));
+    }
+
+    public <T> CompletableFuture<T> submitRead(String operation, Supplier<T> call) {
+        return readAsync(operation, () -> CompletableFuture.supplyAsync(call, pool));
+    }
+
+    public <T> CompletableFuture<T> submitWrite(String operation, Supplier<T> call) {
+        return writeAsync(operation, () -> CompletableFuture.supplyAsync(call, pool));
+    }
+
+    public <T> CompletableFuture<T> readAsync(String operation, Supplier<CompletableFuture<T>> call) {
+        return new Execution<>(operation, call, true, true).start();
+    }
+
+    public <T> CompletableFuture<T> writeAsync(String operation, Supplier<CompletableFuture<T>> call) {
+        return new Execution<>(operation, call, false, false).start();
+    }
+
+    public <T> CompletableFuture<T> scanAsync(String operation, Supplier<CompletableFuture<T>> call) {
+        return new Execution<>(operation, call, false, true).start();
+    }
+
+    public <T> T scan(String operation, Supplier<T> call) {
+        return await(scanAsync(operation, () -> CompletableFuture.supplyAsync(call, pool)));
+    }
+
+    /**
+     * Waits for a storage result, rethrowing its failure unwrapped.
+     */
+    public static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Runs a blocking call in the calling thread and returns its outcome as an already completed future.
+     */
+    public static <T> CompletableFuture<T> completed(Supplier<T> call) {
+        try {
+            return CompletableFuture.completedFuture(call.get());
+        } catch (RuntimeException e) {
+            return failed(e);
+        }
+    }
+
+    public static <T> CompletableFuture<T> failed(Throwable e) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
+    Duration timeoutFor(String operation) {
+        return timeouts.getOrDefault(operation, timeouts.get(DEFAULT_OPERATION));
+    }
+
+    private static Thread daemon(Runnable r, String name) {
+        final Thread thread = new Thread(r, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private class Execution<T> {
+
+        private final String operation;
+        private final Supplier<CompletableFuture<T>> call;
+        private final boolean hedged;
+        private final boolean retried;
+        private final RequestDeadline requestDeadline = RequestDeadline.current();
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+
+        private final List<CompletableFuture<T>> attempts = new ArrayList<>(MAX_ATTEMPTS);
+        private final List<ScheduledFuture<?>> timers = new ArrayList<>(MAX_ATTEMPTS);
+        private int pending = 0;
+
+        Execution(String operation, Supplier<CompletableFuture<T>> call, boolean hedged, boolean retried) {
+            this.operation = operation;
+            this.call = call;
+            this.hedged = hedged;
+            this.retried = retried;
+        }
+
+        CompletableFuture<T> start() {
+            final long timeoutNanos = requestDeadline.boundNanos(timeoutFor(operation));
+            if (timeoutNanos <= 0) {
+                result.completeExceptionally(timeout(timeoutNanos));
+                return result;
+            }
+
+            synchronized (this) {
+                timers.add(scheduler.schedule(
+                    () -> result.completeExceptionally(timeout(timeoutNanos)),
+                    timeoutNanos,
+                    TimeUnit.NANOSECONDS));
+                if (hedged && hedgeDelay.isPresent()) {
+                    scheduleHedge();
+                }
+            }
+
+            result.whenComplete((value, e) -> cancelAll());
+            attempt();
+            return result;
+        }
+
+        private synchronized void scheduleHedge() {
+            timers.add(scheduler.schedule(() -> {
+                synchronized (this) {
+                    if (result.isDone() || attempts.size() >= MAX_ATTEMPTS || !requestDeadline.tryAcquireRetry()) {
+                        return;
+                    }
+                    log.debug("Hedging storage operation {} after {} attempt(s)", operation, attempts.size());
+                    scheduleHedge();
+                }
+                attempt();
+            }, hedgeDelay.get().toNanos(), TimeUnit.NANOSECONDS));
+        }
+
+        private void attempt() {
+            CompletableFuture<T> attempt;
+            try {
+                attempt = call.get();
+            } catch (RuntimeException e) {
+                attempt = failed(e);
+            }
+
+            synchronized (this) {
+                attempts.add(attempt);
+                pending++;
+            }
+            if (result.isDone()) {
+                attempt.cancel(true);
+            }
+            attempt.whenComplete(this::onAttemptComplete);
+        }
+
+        private void onAttemptComplete(T value, Throwable e) {
+            if (e == null) {
+                result.complete(value);
+                return;
+            }
+
+            final boolean retry;
+            synchronized (this) {
+                pending--;
+                if (pending > 0 || result.isDone()) {
+                    log.debug("Storage operation {} attempt failed; awaiting other attempt", operation, e);
+                    return;
+                }
+                retry = retried && attempts.size() < MAX_ATTEMPTS && requestDeadline.tryAcquireRetry();
+            }
+
+            if (retry) {
+                log.warn("Storage operation {} failed; retrying", operation, e);
+                attempt();
+            } else {
+                result.completeExceptionally(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+            }
+        }
+
+        private synchronized void cancelAll() {
+            timers.forEach(timer -> timer.cancel(false));
+            attempts.forEach(attempt -> attempt.cancel(true));
+        }
+
+        private StorageTimeoutException timeout(long timeoutNanos) {
+            final StorageTimeoutException e = new StorageTimeoutException(operation, TimeUnit.NANOSECONDS.toMillis(timeoutNanos));
+            if (!result.isDone()) {
+                log.error(e.getMessage());
+            }
+            return e;
+        }
+    }
+
+}
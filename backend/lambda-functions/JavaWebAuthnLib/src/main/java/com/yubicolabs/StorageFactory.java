@@ -0,0 +1,218 @@
+package com.yubicolabs;
+
+import com.zaxxer.hikari.HikariDataSource;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Builds the storage implementations for the configured {@link StorageBackend}.
+ */
+public final class StorageFactory {
+
+    private StorageFactory() {
+    }
+
+    public static AbstractRegistrationStorage registrationStorage() {
+        final Optional<ShardedRegistrationStorage> sharded = shardedRegistrationStorage();
+        if (sharded.isPresent()) {
+            return sharded.get();
+        }
+        switch (Config.getStorageBackend()) {
+            case JDBC:
+                return new JdbcRegistrationStorage();
+            case EMBEDDED:
+                return EmbeddedRegistrationStorage.getInstance();
+            case DATA_API:
+            default:
+                return new RDSRegistrationStorage();
+        }
+    }
+
+    /**
+     * @return registration storage sharded over the configured shards, if any are
+     */
+    public static Optional<ShardedRegistrationStorage> shardedRegistrationStorage() {
+        final Map<String, String> targets = Config.getShards();
+        if (targets.isEmpty()) {
+            return Optional.empty();
+        }
+
+        final Map<String, AbstractRegistrationStorage> shards = new LinkedHashMap<>();
+        switch (Config.getStorageBackend()) {
+            case JDBC:
+                targets.forEach((name, url) -> shards.put(name, new JdbcRegistrationStorage(
+                    new JdbcClient(JdbcClient.createDataSource(
+                        url,
+                        Config.getJdbcUsername().orElse(null),
+                        Config.getJdbcPassword().orElse(null),
+                        Config.getJdbcPoolSize())),
+                    StorageExecutor.getInstance(),
+                    Config.getRegistrationSchema())));
+                return Optional.of(new ShardedRegistrationStorage(shards, Config.getShardPlacement(), new JdbcRegistrationRoutes()));
+            case EMBEDDED:
+                throw new IllegalStateException("The embedded storage backend cannot be sharded");
+            case DATA_API:
+            default:
+                targets.forEach((name, target) -> shards.put(name, new RDSRegistrationStorage(
+                    DataApiClient.getInstance().withTarget(target),
+                    StorageExecutor.getInstance(),
+                    Config.getRegistrationSchema())));
+                return Optional.of(new ShardedRegistrationStorage(shards, Config.getShardPlacement(), new RDSRegistrationRoutes()));
+        }
+    }
+
+    public static RegistrationSchemaMigrator registrationSchemaMigrator() {
+        switch (Config.getStorageBackend()) {
+            case JDBC:
+                return new JdbcRegistrationStorage();
+            case EMBEDDED:
+                throw new IllegalStateException("The embedded storage backend has no v1 table to migrate");
+            case DATA_API:
+            default:
+                return new RDSRegistrationStorage();
+        }
+    }
+
+    public static RegistrationBulkStore registrationBulkStore() {
+        if (!Config.getShards().isEmpty()) {
+            throw new IllegalStateException("Bulk transfer works on one database; import before sharding, then index the shard");
+        }
+        switch (Config.getStorageBackend()) {
+            case JDBC:
+                return new JdbcRegistrationStorage();
+            case EMBEDDED:
+                throw new IllegalStateException("The embedded storage backend does not support bulk transfer");
+            case DATA_API:
+            default:
+                return new RDSRegistrationStorage();
+        }
+    }
+
+    public static RegistrationAaguidIndex registrationAaguidIndex() {
+        if (!Config.getShards().isEmpty()) {
+            throw new IllegalStateException("Scanning by AAGUID works on one database; sharded registrations are not supported");
+        }
+        switch (Config.getStorageBackend()) {
+            case JDBC:
+                return new JdbcRegistrationStorage();
+            case EMBEDDED:
+                throw new IllegalStateException("The embedded storage backend does not index registrations by AAGUID");
+            case DATA_API:
+            default:
+                return new RDSRegistrationStorage();
+        }
+    }
+
+    public static UserGenerations userGenerations() {
+        switch (Config.getStorageBackend()) {
+            case JDBC:
+                return new JdbcUserGenerations();
+            case EMBEDDED:
+                return new EmbeddedUserGenerations();
+            case DATA_API:
+            default:
+                return new RDSUserGenerations();
+        }
+    }
+
+    /**
+     * The configured registration storage, advancing {@link UserGenerations} on changes, behind its circuit breaker
+     * and, if enabled, the membership filter.
+     */
+    public static RegistrationStorage guardedRegistrationStorage(UserGenerations generations) {
+        return guardedRegistrationStorage(registrationStorage(), generations, Config.isMembershipFilterEnabled());
+    }
+
+    public static RegistrationStorage guardedRegistrationStorage(
+        AbstractRegistrationStorage backend,
+        UserGenerations generations,
+        boolean membershipFilter
+    ) {
+        final RegistrationStorage guarded = new CircuitBreakingRegistrationStorage(
+            new GenerationTrackingRegistrationStorage(backend, generations), generations);
+        if (!membershipFilter) {
+            return guarded;
+        }
+        final BloomFilteringRegistrationStorage filtered = new BloomFilteringRegistrationStorage(guarded, backend);
+        filtered.rebuildInBackground();
+        return filtered;
+    }
+
+    private static TenantStorage defaultTenantStorage;
+
+    /**
+     * The configured storage, as used by the default tenant. Built once, since with JDBC it opens a pool per shard
+     * that is never closed.
+     */
+    public static synchronized TenantStorage defaultTenantStorage() {
+        if (defaultTenantStorage == null) {
+            defaultTenantStorage = new TenantStorage(
+                registrationStorage(),
+                userGenerations(),
+                registrationRequestStorage(),
+                assertionRequestStorage(),
+                Optional.empty());
+        }
+        return defaultTenantStorage;
+    }
+
+    /**
+     * Storage on a tenant's own database, see {@link TenantConfig#getDatabase()}. It is never sharded or read from a
+     * replica.
+     */
+    public static TenantStorage tenantStorage(String database) {
+        final StorageExecutor executor = StorageExecutor.getInstance();
+        switch (Config.getStorageBackend()) {
+            case JDBC:
+                final HikariDataSource dataSource = JdbcClient.createDataSource(
+                    database,
+                    Config.getJdbcUsername().orElse(null),
+                    Config.getJdbcPassword().orElse(null),
+                    Config.getJdbcPoolSize());
+                final JdbcClient jdbc = new JdbcClient(dataSource);
+                return new TenantStorage(
+                    new JdbcRegistrationStorage(jdbc, executor, Config.getRegistrationSchema()),
+                    new JdbcUserGenerations(jdbc, executor),
+                    new JdbcRegistrationRequestStorage(jdbc, executor),
+                    new JdbcAssertionRequestStorage(jdbc, executor),
+                    Optional.of(dataSource));
+            case EMBEDDED:
+                throw new IllegalStateException("The embedded storage backend has one database; tenants cannot have their own");
+            case DATA_API:
+            default:
+                final DataApiClient dataApi = DataApiClient.getInstance().withTarget(database);
+                return new TenantStorage(
+                    new RDSRegistrationStorage(dataApi, executor, Config.getRegistrationSchema()),
+                    new RDSUserGenerations(dataApi, executor),
+                    new RDSRegistrationRequestStorage(dataApi, executor),
+                    new RDSAssertionRequestStorage(dataApi, executor),
+                    Optional.empty());
+        }
+    }
+
+    public static AssertionRequestStorage assertionRequestStorage() {
+        switch (Config.getStorageBackend()) {
+            case JDBC:
+                return new JdbcAssertionRequestStorage();
+            case EMBEDDED:
+                return new EmbeddedAssertionRequestStorage();
+            case DATA_API:
+            default:
+                return new RDSAssertionRequestStorage();
+        }
+    }
+
+    public static RegistrationRequestStorage registrationRequestStorage() {
+        switch (Config.getStorageBackend()) {
+            case JDBC:
+                return new JdbcRegistrationRequestStorage();
+            case EMBEDDED:
+                return new EmbeddedRegistrationRequestStorage();
+            case DATA_API:
+            default:
+                return new RDSRegistrationRequestStorage();
+        }
+    }
+
+}
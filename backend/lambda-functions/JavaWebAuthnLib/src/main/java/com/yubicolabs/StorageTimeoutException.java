@@ -0,0 +1,12 @@
+package com.yubicolabs;
+
+/**
+ * Thrown when a storage operation does not complete within its configured timeout or the remaining request deadline.
+ */
+public class StorageTimeoutException extends RuntimeException {
+
+    public StorageTimeoutException(String operation, long timeoutMillis) {
+        super(String.format("Storage operation \"%s\" did not complete within %d ms", operation, timeoutMillis));
+    }
+
+}
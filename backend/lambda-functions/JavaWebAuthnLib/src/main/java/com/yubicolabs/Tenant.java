@@ -0,0 +1,150 @@
+package com.yubicolabs;
+
+import com.yubico.webauthn.RelyingParty;
+import com.yubico.webauthn.attestation.AttestationTrustSource;
+import com.yubico.webauthn.data.AttestationConveyancePreference;
+import com.yubico.webauthn.data.RelyingPartyIdentity;
+import java.io.Closeable;
+import java.util.Optional;
+import java.util.Set;
+import lombok.AccessLevel;
+import lombok.Getter;
+
+/**
+ * A relying party and the storage of its users, as resolved per request by {@link TenantRegistry}.
+ */
+@Getter
+public class Tenant implements Closeable {
+
+    private final String id;
+    private final RelyingParty rp;
+    private final UserGenerations generations;
+    private final MemoizingRegistrationStorage registrations;
+    private final RegistrationRequestStorage registrationRequests;
+    private final AssertionRequestStorage assertionRequests;
+    private final FinishResultCache finishResults;
+    private final ResponsePrecheck precheck;
+
+    @Getter(AccessLevel.NONE)
+    private final TenantStorage storage;
+
+    @Getter(AccessLevel.NONE)
+    private int inUse;
+    @Getter(AccessLevel.NONE)
+    private boolean retired;
+    @Getter(AccessLevel.NONE)
+    private boolean closed;
+
+    /**
+     * @param storage          closed with the tenant
+     * @param membershipFilter whether to put the membership filter in front of the registrations
+     */
+    public Tenant(
+        String id,
+        RelyingPartyIdentity identity,
+        Set<String> origins,
+        TenantStorage storage,
+        boolean membershipFilter,
+        AttestationTrustSource trustSource
+    ) {
+        this(
+            id,
+            identity,
+            origins,
+            storage,
+            new MemoizingRegistrationStorage(StorageFactory.guardedRegistrationStorage(
+                storage.getRegistrations(), storage.getGenerations(), membershipFilter)),
+            trustSource,
+            new FinishResultCache(Config.getFinishResultCacheSize(), Config.getFinishResultWindow()),
+            Config.getMaxResponseSize());
+    }
+
+    /**
+     * @param registrations the tenant's registrations, as served to requests
+     */
+    Tenant(
+        String id,
+        RelyingPartyIdentity identity,
+        Set<String> origins,
+        TenantStorage storage,
+        MemoizingRegistrationStorage registrations,
+        AttestationTrustSource trustSource,
+        FinishResultCache finishResults,
+        int maxResponseSize
+    ) {
+        this.id = id;
+        this.storage = storage;
+        this.generations = storage.getGenerations();
+        generations.requireTable();
+        this.registrations = registrations;
+        this.registrationRequests = storage.getRegistrationRequests();
+        this.assertionRequests = storage.getAssertionRequests();
+        this.finishResults = finishResults;
+        this.rp = RelyingParty.builder()
+            .identity(identity)
+            .credentialRepository(registrations)
+            .origins(origins)
+            .attestationConveyancePreference(Optional.of(AttestationConveyancePreference.DIRECT))
+            .attestationTrustSource(trustSource)
+            .allowUntrustedAttestation(true)
+            .validateSignatureCounter(true)
+            .build();
+        this.precheck = new ResponsePrecheck(rp, maxResponseSize);
+    }
+
+    /**
+     * Marks the start of a request served by this tenant.
+     *
+     * @return false if the tenant was already closed, in which case it must not be used
+     */
+    synchronized boolean acquire() {
+        if (closed) {
+            return false;
+        }
+        inUse++;
+        return true;
+    }
+
+    /**
+     * Marks the end of a request, closing the tenant if it was retired meanwhile and this was the last one.
+     */
+    public void release() {
+        synchronized (this) {
+            inUse--;
+            if (!retired || inUse > 0 || closed) {
+                return;
+            }
+            closed = true;
+        }
+        storage.close();
+    }
+
+    /**
+     * Closes the tenant once no request is using it any more.
+     */
+    void retire() {
+        synchronized (this) {
+            retired = true;
+            if (inUse > 0 || closed) {
+                return;
+            }
+            closed = true;
+        }
+        storage.close();
+    }
+
+    /**
+     * Closes the tenant's storage at once, whether or not a request is using it.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        storage.close();
+    }
+
+}
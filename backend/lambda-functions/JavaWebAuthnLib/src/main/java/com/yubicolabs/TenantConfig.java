@@ -0,0 +1,26 @@
+package com.yubicolabs;
+
+import com.yubico.webauthn.data.RelyingPartyIdentity;
+import java.util.Set;
+import lombok.Value;
+
+/**
+ * One relying party served alongside the default one, from YUBICO_WEBAUTHN_TENANTS.
+ */
+@Value
+public class TenantConfig {
+
+    String id;
+
+    RelyingPartyIdentity rpIdentity;
+
+    Set<String> origins;
+
+    /**
+     * Where the tenant's registrations and requests are stored: a Data API target
+     * ({@code resourceArn[|secretArn[|database]]}) or, with the JDBC backend, a JDBC URL. Every tenant has its own,
+     * since rows are keyed by username alone.
+     */
+    String database;
+
+}
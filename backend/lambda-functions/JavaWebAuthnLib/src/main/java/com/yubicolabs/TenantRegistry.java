@@ -0,0 +1,75 @@
+package com.yubicolabs;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalNotification;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Resolves the tenant of each request, so that one deployment serves several relying parties.
+ *
+ * <p>Requests without a tenant ID go to the default tenant, configured as before by YUBICO_WEBAUTHN_RP_ID and
+ * YUBICO_WEBAUTHN_ALLOWED_ORIGINS. The others are built on first use from {@link Config#getTenants()} and kept, up to
+ * {@code cacheSize} of them; the least recently used beyond that is closed, along with any connection pool of its own,
+ * once the requests already using it are done, and built again when next needed.
+ */
+@Slf4j
+public class TenantRegistry {
+
+    private final Tenant defaultTenant;
+    private final Map<String, TenantConfig> configs;
+    private final LoadingCache<String, Tenant> tenants;
+
+    /**
+     * @param factory builds a configured tenant
+     */
+    public TenantRegistry(
+        Tenant defaultTenant,
+        Map<String, TenantConfig> configs,
+        int cacheSize,
+        Function<TenantConfig, Tenant> factory
+    ) {
+        this.defaultTenant = defaultTenant;
+        this.configs = configs;
+        this.tenants = CacheBuilder.newBuilder()
+            .maximumSize(Math.max(cacheSize, 1))
+            .removalListener((RemovalNotification<String, Tenant> removed) -> {
+                log.info("Retiring tenant {}: {}", removed.getKey(), removed.getCause());
+                removed.getValue().retire();
+            })
+            .build(CacheLoader.from(id -> {
+                final long start = System.nanoTime();
+                final Tenant tenant = factory.apply(configs.get(id));
+                log.info("Built tenant {} in {} ms", id, (System.nanoTime() - start) / 1_000_000);
+                return tenant;
+            }));
+    }
+
+    /**
+     * Resolves the tenant of a request, which must hand it back with {@link Tenant#release()} when done.
+     *
+     * @param id the tenant named by the request, or empty for the default tenant
+     * @throws IllegalArgumentException if no such tenant is configured
+     */
+    public Tenant acquire(Optional<String> id) {
+        if (!id.isPresent()) {
+            defaultTenant.acquire();
+            return defaultTenant;
+        }
+        if (!configs.containsKey(id.get())) {
+            throw new IllegalArgumentException("Unknown tenant: " + id.get());
+        }
+        while (true) {
+            final Tenant tenant = tenants.getUnchecked(id.get());
+            if (tenant.acquire()) {
+                return tenant;
+            }
+            // Evicted and closed since it was looked up; the next lookup builds it again
+        }
+    }
+
+}
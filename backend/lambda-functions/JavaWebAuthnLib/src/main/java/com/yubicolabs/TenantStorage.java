@@ -0,0 +1,43 @@
+package com.yubicolabs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Optional;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The storage of one tenant, see {@link StorageFactory#tenantStorage}.
+ */
+@Slf4j
+@Value
+public class TenantStorage implements Closeable {
+
+    AbstractRegistrationStorage registrations;
+
+    UserGenerations generations;
+
+    RegistrationRequestStorage registrationRequests;
+
+    AssertionRequestStorage assertionRequests;
+
+    /**
+     * The connection pool opened for the tenant's database, if one was.
+     */
+    @Getter(AccessLevel.NONE)
+    Optional<Closeable> connections;
+
+    @Override
+    public void close() {
+        connections.ifPresent(pool -> {
+            try {
+                pool.close();
+            } catch (IOException e) {
+                log.warn("Failed to close tenant connections", e);
+            }
+        });
+    }
+
+}
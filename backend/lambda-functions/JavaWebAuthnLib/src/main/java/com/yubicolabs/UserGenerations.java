@@ -0,0 +1,57 @@
+package com.yubicolabs;
+
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Per-user generation numbers, advanced by every change to a user's credentials except signature count updates.
+ *
+ * <p>A copy of a user's credentials taken at one generation is still current as long as the generation has not
+ * moved, which one primary-key read tells much more cheaply than reading the credentials again. Rows live in
+ * {@code userGenerations} in the default database, keyed by {@link KeyHash#username}, and are never deleted, so a
+ * generation never returns to an earlier value.
+ */
+public interface UserGenerations {
+
+    String CREATE_TABLE_SQL = "CREATE TABLE IF NOT EXISTS userGenerations ("
+        + "usernameHash BINARY(32) NOT NULL, "
+        + "generation BIGINT NOT NULL, "
+        + "PRIMARY KEY (usernameHash))";
+
+    void createTables();
+
+    /**
+     * Reads a generation, so that a missing {@code userGenerations} table stops the function when it starts rather
+     * than going unnoticed behind every credential change.
+     *
+     * @throws IllegalStateException if the table cannot be read
+     */
+    default void requireTable() {
+        try {
+            get("");
+        } catch (RuntimeException e) {
+            throw new IllegalStateException("Cannot read userGenerations; create it as described in Database.md", e);
+        }
+    }
+
+    /**
+     * Reads the generation from the writer, so a change made through any instance is seen.
+     *
+     * @return the user's generation, 0 if their credentials never changed
+     */
+    long get(String username);
+
+    CompletableFuture<Void> advanceAsync(String username);
+
+    default void advance(String username) {
+        StorageExecutor.await(advanceAsync(username));
+    }
+
+    /**
+     * Advances the generations of many users at once, e.g. after a bulk import.
+     */
+    default void advanceAll(Collection<String> usernames) {
+        usernames.forEach(this::advance);
+    }
+
+}
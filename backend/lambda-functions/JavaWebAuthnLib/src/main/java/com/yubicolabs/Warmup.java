@@ -0,0 +1,144 @@
+package com.yubicolabs;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.yubico.webauthn.AssertionRequest;
+import com.yubico.webauthn.StartAssertionOptions;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubicolabs.data.AssertionRequestWrapper;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Answers the {@code warmup} request of a keep-warm schedule by touching every lazily initialized component a tenant
+ * needs, so that the first real request into the container does not pay for it.
+ *
+ * <p>Nothing is written: storage is warmed with reads of a user and a request that do not exist, and the assertion
+ * request built to warm the relying party is never stored. Each component reports how long it took and its state,
+ * which is {@code ok}, a short description, or the failure; a failed component does not stop the others. The timings
+ * are also published as {@code Warmup} metrics, so cold and warm containers can be told apart.
+ */
+@Slf4j
+public class Warmup {
+
+    /**
+     * Looked up but never registered: sign-up only accepts usernames of letters, digits, {@code _} and {@code -}.
+     */
+    static final String PROBE_USERNAME = "#warmup";
+
+    private final CachingMetadataService mds;
+    private final ObjectMapper jsonMapper;
+    private final Gson gson;
+    private final AtomicLong warmups = new AtomicLong();
+
+    public Warmup(CachingMetadataService mds, ObjectMapper jsonMapper, Gson gson) {
+        this.mds = mds;
+        this.jsonMapper = jsonMapper;
+        this.gson = gson;
+    }
+
+    /**
+     * @param requestId a fresh request ID, which is looked up but never stored
+     * @return the report, with the tenant, how many warmups this container served before, and each component
+     */
+    public JsonObject run(Tenant tenant, ByteArray requestId) {
+        final JsonObject components = new JsonObject();
+        final Metrics metrics = Metrics.of("Warmup");
+
+        time(components, metrics, "Storage", () -> {
+            final long generation = tenant.getGenerations().get(PROBE_USERNAME);
+            tenant.getRegistrations().userExists(PROBE_USERNAME);
+            tenant.getAssertionRequests().getIfPresent(requestId);
+            tenant.getRegistrationRequests().getIfPresent(requestId);
+            return generation == 0 ? "ok" : "probe user has generation " + generation;
+        });
+        time(components, metrics, "Metadata", () -> mds.getBlobNumber()
+            .map(number -> "BLOB " + number)
+            .orElse("no BLOB loaded"));
+        final AssertionRequest[] assertion = new AssertionRequest[1];
+        time(components, metrics, "RelyingParty", () -> {
+            assertion[0] = tenant.getRp().startAssertion(StartAssertionOptions.builder().build());
+            return "ok";
+        });
+        time(components, metrics, "Serializers", () -> {
+            if (assertion[0] == null) {
+                return "skipped";
+            }
+            AssertionRequest.fromJson(assertion[0].toJson());
+            jsonMapper.readTree(jsonMapper.writeValueAsString(assertion[0].getPublicKeyCredentialRequestOptions()));
+            gson.toJson(new AssertionRequestWrapper(requestId, assertion[0]), AssertionRequestWrapper.class);
+            return "ok";
+        });
+        time(components, metrics, "Crypto", Warmup::warmCrypto);
+
+        final JsonObject report = new JsonObject();
+        report.addProperty("type", "warmup");
+        report.addProperty("tenant", tenant.getId());
+        report.addProperty("previousWarmups", warmups.getAndIncrement());
+        report.add("components", components);
+        metrics.publish();
+        return report;
+    }
+
+    private static void time(JsonObject components, Metrics metrics, String name, Callable<String> warm) {
+        final long start = System.nanoTime();
+        String state;
+        try {
+            state = warm.call();
+        } catch (Exception e) {
+            log.warn("Failed to warm up {}", name, e);
+            state = "failed: " + e;
+        }
+        final double millis = (System.nanoTime() - start) / 1e6;
+        metrics.milliseconds(name, millis);
+
+        final JsonObject component = new JsonObject();
+        component.addProperty("ms", millis);
+        component.addProperty("state", state);
+        components.add(name, component);
+    }
+
+    /**
+     * Loads the providers and classes of the signature algorithms {@code RelyingParty} verifies, with a real ES256
+     * signature so the EC arithmetic is compiled too.
+     */
+    private static String warmCrypto() throws Exception {
+        final byte[] data = "warmup".getBytes(StandardCharsets.UTF_8);
+        MessageDigest.getInstance("SHA-256").digest(data);
+
+        final KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        final KeyPair keyPair = generator.generateKeyPair();
+        final Signature signer = Signature.getInstance("SHA256withECDSA");
+        signer.initSign(keyPair.getPrivate());
+        signer.update(data);
+        final byte[] signature = signer.sign();
+        final Signature verifier = Signature.getInstance("SHA256withECDSA");
+        verifier.initVerify(keyPair.getPublic());
+        verifier.update(data);
+        if (!verifier.verify(signature)) {
+            return "ES256 self-check failed";
+        }
+
+        KeyFactory.getInstance("RSA");
+        Signature.getInstance("SHA256withRSA");
+        try {
+            KeyFactory.getInstance("EdDSA");
+            Signature.getInstance("Ed25519");
+        } catch (NoSuchAlgorithmException e) {
+            return "ok, no EdDSA before Java 15";
+        }
+        return "ok";
+    }
+
+}
@@ -2,6 +2,7 @@ package com.yubicolabs.data;
 
 import com.yubico.webauthn.data.ByteArray;
 import com.yubico.webauthn.data.PublicKeyCredentialRequestOptions;
+import java.util.List;
 import java.util.Optional;
 import lombok.NonNull;
 import lombok.Value;
@@ -21,17 +22,47 @@ public class AssertionRequestWrapper {
     @NonNull
     private final com.yubico.webauthn.AssertionRequest request;
 
+    /**
+     * The user's credentials as of the start of the request, if they were captured; null in requests stored without.
+     */
+    private final List<CredentialSnapshot> credentialSnapshot;
+
+    /**
+     * The user's {@link com.yubicolabs.UserGenerations generation} read before the snapshot was taken, if it was.
+     */
+    private final Long credentialGeneration;
+
     public AssertionRequestWrapper(
         @NonNull
         ByteArray requestId,
         @NonNull
             com.yubico.webauthn.AssertionRequest request
+    ) {
+        this(requestId, request, null, null);
+    }
+
+    public AssertionRequestWrapper(
+        @NonNull
+        ByteArray requestId,
+        @NonNull
+            com.yubico.webauthn.AssertionRequest request,
+        List<CredentialSnapshot> credentialSnapshot,
+        Long credentialGeneration
     ) {
         this.requestId = requestId;
         this.publicKeyCredentialRequestOptions = request.getPublicKeyCredentialRequestOptions();
         this.username = request.getUsername();
         this.request = request;
+        this.credentialSnapshot = credentialSnapshot;
+        this.credentialGeneration = credentialGeneration;
+    }
 
+    public Optional<List<CredentialSnapshot>> getCredentialSnapshot() {
+        return Optional.ofNullable(credentialSnapshot);
     }
-    
-}
\ No newline at end of file
+
+    public Optional<Long> getCredentialGeneration() {
+        return Optional.ofNullable(credentialGeneration);
+    }
+
+}
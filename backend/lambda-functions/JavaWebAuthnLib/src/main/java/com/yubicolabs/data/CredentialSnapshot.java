@@ -0,0 +1,44 @@
+package com.yubicolabs.data;
+
+import com.yubico.webauthn.RegisteredCredential;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.exception.Base64UrlException;
+import lombok.Value;
+
+/**
+ * What a relying party needs to verify an assertion by one credential, in a compact form for storing alongside the
+ * assertion request.
+ */
+@Value
+public class CredentialSnapshot {
+
+    String credentialId;
+
+    String userHandle;
+
+    String publicKeyCose;
+
+    long signatureCount;
+
+    public static CredentialSnapshot of(RegisteredCredential credential) {
+        return new CredentialSnapshot(
+            credential.getCredentialId().getBase64Url(),
+            credential.getUserHandle().getBase64Url(),
+            credential.getPublicKeyCose().getBase64Url(),
+            credential.getSignatureCount());
+    }
+
+    public RegisteredCredential toRegisteredCredential() {
+        try {
+            return RegisteredCredential.builder()
+                .credentialId(ByteArray.fromBase64Url(credentialId))
+                .userHandle(ByteArray.fromBase64Url(userHandle))
+                .publicKeyCose(ByteArray.fromBase64Url(publicKeyCose))
+                .signatureCount(signatureCount)
+                .build();
+        } catch (Base64UrlException e) {
+            throw new IllegalStateException("Corrupt credential snapshot", e);
+        }
+    }
+
+}
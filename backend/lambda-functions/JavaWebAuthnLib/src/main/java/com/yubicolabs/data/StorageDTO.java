@@ -1,10 +0,0 @@
-package com.yubicolabs.data;
-
-import lombok.Data;
-
-
-@Data
-public class StorageDTO {
-    public String _key;
-    public String _value;
-}
@@ -0,0 +1,86 @@
+package com.yubico.webauthn;
+
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.upokecenter.cbor.CBORObject;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubicolabs.Microbenchmark;
+import java.math.BigInteger;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+/**
+ * How long {@code RelyingParty} spends turning a stored COSE public key into a JCA key on every assertion, against
+ * looking the same key up in a cache by credential ID. Lives in the library's package to call the package-private
+ * {@link WebAuthnCodecs} that {@code finishAssertion} itself uses.
+ */
+@EnabledIfSystemProperty(named = Microbenchmark.PROPERTY, matches = "true")
+public class PublicKeyImportBenchmark {
+
+    private static final int WARMUP = 20_000;
+    private static final int ITERATIONS = 100_000;
+
+    @Test
+    public void es256() throws Exception {
+        final KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(256);
+        final ECPublicKey key = (ECPublicKey) generator.generateKeyPair().getPublic();
+        run("ES256", WebAuthnCodecs.rawEcKeyToCose(WebAuthnCodecs.ecPublicKeyToRaw(key)));
+    }
+
+    @Test
+    public void rs256() throws Exception {
+        final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        final RSAPublicKey key = (RSAPublicKey) generator.generateKeyPair().getPublic();
+        final CBORObject cose = CBORObject.NewMap()
+            .Add(1, 3)
+            .Add(3, -257)
+            .Add(-1, unsigned(key.getModulus()))
+            .Add(-2, unsigned(key.getPublicExponent()));
+        run("RS256", new ByteArray(cose.EncodeToBytes()));
+    }
+
+    @Test
+    public void edDsa() throws Exception {
+        final KeyPairGenerator generator;
+        try {
+            generator = KeyPairGenerator.getInstance("Ed25519");
+        } catch (NoSuchAlgorithmException e) {
+            assumeTrue(false, "Ed25519 needs Java 15 or later");
+            return;
+        }
+        final byte[] x509 = generator.generateKeyPair().getPublic().getEncoded();
+        final CBORObject cose = CBORObject.NewMap()
+            .Add(1, 1)
+            .Add(3, -8)
+            .Add(-1, 6)
+            .Add(-2, Arrays.copyOfRange(x509, x509.length - 32, x509.length));
+        run("EdDSA", new ByteArray(cose.EncodeToBytes()));
+    }
+
+    private static void run(String algorithm, ByteArray cose) throws Exception {
+        final ByteArray credentialId = new ByteArray(new byte[] { 1, 2, 3, 4 });
+        final Cache<ByteArray, PublicKey> cache = CacheBuilder.newBuilder().maximumSize(10000).build();
+        cache.put(credentialId, WebAuthnCodecs.importCosePublicKey(cose));
+
+        Microbenchmark.report("PublicKeyImport " + algorithm, "importCosePublicKey",
+            Microbenchmark.nanosPerOp(WARMUP, ITERATIONS, () -> WebAuthnCodecs.importCosePublicKey(cose)));
+        Microbenchmark.report("PublicKeyImport " + algorithm, "cache lookup",
+            Microbenchmark.nanosPerOp(WARMUP, ITERATIONS, () -> cache.getIfPresent(credentialId)));
+    }
+
+    private static byte[] unsigned(BigInteger value) {
+        final byte[] bytes = value.toByteArray();
+        return bytes[0] == 0 ? Arrays.copyOfRange(bytes, 1, bytes.length) : bytes;
+    }
+
+}
@@ -0,0 +1,95 @@
+package com.yubicolabs;
+
+import static com.yubicolabs.StorageTestFixtures.credentialId;
+import static com.yubicolabs.StorageTestFixtures.userHandle;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.yubico.webauthn.data.ByteArray;
+import com.yubicolabs.StorageTestFixtures.MutableClock;
+import com.yubicolabs.data.CredentialRegistration;
+import com.zaxxer.hikari.HikariDataSource;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class BloomFilteringRegistrationStorageTest {
+
+    private final AtomicInteger queries = new AtomicInteger();
+    private final MutableClock clock = new MutableClock();
+
+    private HikariDataSource dataSource;
+    private JdbcClient client;
+    private JdbcRegistrationStorage backend;
+    private BloomFilteringRegistrationStorage storage;
+
+    @BeforeEach
+    void createSchema() {
+        dataSource = StorageTestFixtures.h2("filtering");
+        client = new JdbcClient(dataSource) {
+            @Override
+            public <T> List<T> query(String sql, RowMapper<T> mapper, Object... parameters) {
+                queries.incrementAndGet();
+                return super.query(sql, mapper, parameters);
+            }
+        };
+
+        backend = new JdbcRegistrationStorage(client, StorageTestFixtures.executor());
+        backend.createTables();
+        backend.addRegistrationByUsername("foo-user", registration("foo-user", 1));
+
+        storage = new BloomFilteringRegistrationStorage(
+            backend, backend, 0.01, Duration.ofSeconds(5), Duration.ofHours(1), clock, Runnable::run);
+        storage.rebuildInBackground();
+        queries.set(0);
+    }
+
+    @AfterEach
+    void dropSchema() {
+        client.update("DROP ALL OBJECTS");
+        dataSource.close();
+    }
+
+    @Test
+    public void unknownKeys_answeredWithoutQuery() {
+        assertFalse(storage.userExists("bar-user"));
+        assertTrue(storage.lookupAll(new ByteArray(new byte[] { 9, 9 })).isEmpty());
+        assertFalse(storage.getUsernameForUserHandle(new ByteArray(new byte[] { 9, 9 })).isPresent());
+
+        assertEquals(0, queries.get());
+    }
+
+    @Test
+    public void knownKeys_passThrough() {
+        assertTrue(storage.userExists("foo-user"));
+        assertEquals(1, storage.lookupAll(credentialId(1)).size());
+
+        assertEquals(2, queries.get());
+    }
+
+    @Test
+    public void registrationElsewhere_foundOnceRefreshIsDue() {
+        backend.addRegistrationByUsername("bar-user", registration("bar-user", 2));
+
+        assertFalse(storage.userExists("bar-user"));
+
+        clock.advance(Duration.ofSeconds(5));
+        assertTrue(storage.userExists("bar-user"));
+    }
+
+    @Test
+    public void registrationHere_foundImmediately() {
+        storage.addRegistrationByUsername("bar-user", registration("bar-user", 2));
+
+        assertTrue(storage.userExists("bar-user"));
+    }
+
+    private static CredentialRegistration registration(String username, int n) {
+        return StorageTestFixtures.registration(username, userHandle(n), credentialId(n));
+    }
+
+}
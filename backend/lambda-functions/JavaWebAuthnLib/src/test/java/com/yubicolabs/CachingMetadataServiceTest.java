@@ -0,0 +1,128 @@
+package com.yubicolabs;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.yubico.fido.metadata.MetadataBLOBPayloadEntry;
+import com.yubico.webauthn.RegistrationResult;
+import com.yubico.webauthn.attestation.AttestationTrustSource.TrustRootsResult;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubicolabs.CachingMetadataService.Snapshot;
+import com.yubicolabs.StorageTestFixtures.MutableClock;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+public class CachingMetadataServiceTest {
+
+    private static final Duration REFRESH_INTERVAL = Duration.ofHours(1);
+    private static final Optional<ByteArray> AAGUID = Optional.of(new ByteArray(new byte[16]));
+
+    private final MutableClock clock = new MutableClock();
+    private final AtomicInteger loads = new AtomicInteger();
+    private final AtomicInteger searches = new AtomicInteger();
+
+    /** Number of the BLOB the loader returns next, or 0 to fail the load. */
+    private volatile int blobNumber = 1;
+
+    @Test
+    public void sameChain_searchedOnce() {
+        final CachingMetadataService mds = service();
+
+        final TrustRootsResult first = mds.findTrustRoots(Collections.emptyList(), AAGUID);
+        assertSame(first, mds.findTrustRoots(Collections.emptyList(), AAGUID));
+        assertEquals(1, searches.get());
+    }
+
+    @Test
+    public void otherAaguid_searchedAgain() {
+        final CachingMetadataService mds = service();
+
+        mds.findTrustRoots(Collections.emptyList(), AAGUID);
+        mds.findTrustRoots(Collections.emptyList(), Optional.of(new ByteArray(new byte[] { 1 })));
+        mds.findTrustRoots(Collections.emptyList(), Optional.empty());
+        assertEquals(3, searches.get());
+    }
+
+    @Test
+    public void newBlobNumber_emptiesCache() {
+        final CachingMetadataService mds = service();
+        mds.findTrustRoots(Collections.emptyList(), AAGUID);
+
+        // Same BLOB reloaded: results kept
+        clock.advance(REFRESH_INTERVAL);
+        mds.findTrustRoots(Collections.emptyList(), AAGUID);
+        assertEquals(2, loads.get());
+        assertEquals(1, searches.get());
+
+        blobNumber = 2;
+        clock.advance(REFRESH_INTERVAL);
+        mds.findTrustRoots(Collections.emptyList(), AAGUID);
+        assertEquals(Optional.of(2), mds.getBlobNumber());
+        assertEquals(2, searches.get());
+    }
+
+    @Test
+    public void failedReload_keepsBlob() {
+        final CachingMetadataService mds = service();
+        mds.findTrustRoots(Collections.emptyList(), AAGUID);
+
+        blobNumber = 0;
+        clock.advance(REFRESH_INTERVAL);
+        mds.findTrustRoots(Collections.emptyList(), AAGUID);
+        assertEquals(Optional.of(1), mds.getBlobNumber());
+        assertEquals(1, searches.get());
+    }
+
+    @Test
+    public void failedFirstLoad_findsNothingUntilRetried() {
+        blobNumber = 0;
+        final CachingMetadataService mds = service();
+
+        assertEquals(Optional.empty(), mds.getBlobNumber());
+        assertTrue(mds.findTrustRoots(Collections.emptyList(), AAGUID).getTrustRoots().isEmpty());
+        assertEquals(0, searches.get());
+
+        // Not retried before the refresh interval
+        blobNumber = 1;
+        assertEquals(Optional.empty(), mds.getBlobNumber());
+        assertEquals(1, loads.get());
+
+        clock.advance(REFRESH_INTERVAL);
+        assertEquals(Optional.of(1), mds.getBlobNumber());
+        mds.findTrustRoots(Collections.emptyList(), AAGUID);
+        assertEquals(1, searches.get());
+    }
+
+    private CachingMetadataService service() {
+        return new CachingMetadataService(this::load, 10, REFRESH_INTERVAL, clock);
+    }
+
+    private Snapshot load() {
+        loads.incrementAndGet();
+        final int number = blobNumber;
+        if (number == 0) {
+            throw new IllegalStateException("Metadata service unavailable");
+        }
+        return new Snapshot(number, new CachingMetadataService.Search() {
+            @Override
+            public TrustRootsResult findTrustRoots(List<X509Certificate> chain, Optional<ByteArray> aaguid) {
+                searches.incrementAndGet();
+                return TrustRootsResult.builder().trustRoots(Collections.emptySet()).build();
+            }
+
+            @Override
+            public Set<MetadataBLOBPayloadEntry> findEntries(RegistrationResult result) {
+                searches.incrementAndGet();
+                return Collections.emptySet();
+            }
+        });
+    }
+
+}
@@ -0,0 +1,243 @@
+package com.yubicolabs;
+
+import static com.yubicolabs.StorageTestFixtures.credentialId;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.yubico.internal.util.JacksonCodecs;
+import com.yubico.webauthn.AssertionResult;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubicolabs.StorageTestFixtures.MutableClock;
+import com.yubicolabs.data.CredentialRegistration;
+import com.zaxxer.hikari.HikariDataSource;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class CircuitBreakingRegistrationStorageTest {
+
+    private static final ByteArray USER_HANDLE = new ByteArray(new byte[] { 1, 2, 3, 4 });
+
+    private final MutableClock clock = new MutableClock();
+    private final List<ByteArray> signatureCountWrites = new CopyOnWriteArrayList<>();
+    private final AtomicInteger generationReads = new AtomicInteger();
+
+    private volatile boolean down;
+    private HikariDataSource dataSource;
+    private JdbcClient client;
+    private JdbcRegistrationStorage backend;
+    private UserGenerations generations;
+    private CircuitBreakingRegistrationStorage storage;
+
+    @BeforeEach
+    void createSchema() {
+        dataSource = StorageTestFixtures.h2("breaking");
+        client = new JdbcClient(dataSource) {
+            @Override
+            public <T> List<T> query(String sql, RowMapper<T> mapper, Object... parameters) {
+                if (sql.contains("userGenerations")) {
+                    generationReads.incrementAndGet();
+                }
+                failIfDown();
+                return super.query(sql, mapper, parameters);
+            }
+
+            @Override
+            public int update(String sql, Object... parameters) {
+                failIfDown();
+                return super.update(sql, parameters);
+            }
+        };
+        final StorageExecutor executor = StorageTestFixtures.executor();
+
+        backend = new JdbcRegistrationStorage(client, executor);
+        backend.createTables();
+        generations = new JdbcUserGenerations(client, executor);
+        generations.createTables();
+        backend.addRegistrationByUsername("foo-user", registration(1));
+        backend.addRegistrationByUsername("foo-user", registration(2));
+
+        storage = storage(Duration.ofMinutes(5));
+    }
+
+    @AfterEach
+    void dropSchema() {
+        down = false;
+        client.update("DROP ALL OBJECTS");
+        dataSource.close();
+    }
+
+    @Test
+    public void breaker_opensThenHalfOpensThenCloses() {
+        final CircuitBreaker breaker = new CircuitBreaker("test", 2, Duration.ofMinutes(1), clock);
+
+        assertThrows(IllegalStateException.class, () -> breaker.call(this::fail));
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertThrows(IllegalStateException.class, () -> breaker.call(this::fail));
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertThrows(CircuitOpenException.class, () -> breaker.call(() -> "not called"));
+
+        // A failed trial opens the circuit again at once
+        clock.advance(Duration.ofMinutes(1));
+        assertThrows(IllegalStateException.class, () -> breaker.call(this::fail));
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        clock.advance(Duration.ofMinutes(1));
+        assertEquals("trial", breaker.call(() -> {
+            assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+            assertThrows(CircuitOpenException.class, () -> breaker.call(() -> "concurrent"));
+            return "trial";
+        }));
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void staleReads_servedWithinWindowOnly() {
+        storage.getUserHandleForUsername("foo-user");
+        storage.getRegistrationsByUsername("foo-user");
+
+        down = true;
+        assertThrows(IllegalStateException.class, () -> storage.userExists("foo-user"));
+
+        assertEquals(Optional.of(USER_HANDLE), storage.getUserHandleForUsername("foo-user"));
+        assertEquals(Optional.of("foo-user"), storage.getUsernameForUserHandle(USER_HANDLE));
+        assertTrue(storage.lookup(credentialId(2), USER_HANDLE).isPresent());
+        assertEquals(1, storage.lookupAll(credentialId(1)).size());
+        // Full registrations are never served stale
+        assertThrows(CircuitOpenException.class, () -> storage.getRegistrationsByUsername("foo-user"));
+    }
+
+    @Test
+    public void staleReads_notServedBeyondWindow() throws InterruptedException {
+        storage = storage(Duration.ofMillis(50));
+        storage.getRegistrationsByUsername("foo-user");
+        Thread.sleep(100);
+
+        down = true;
+        assertThrows(IllegalStateException.class, () -> storage.userExists("foo-user"));
+
+        assertThrows(CircuitOpenException.class, () -> storage.lookupAll(credentialId(1)));
+        assertThrows(CircuitOpenException.class, () -> storage.getUserHandleForUsername("foo-user"));
+    }
+
+    @Test
+    public void deferredSignatureCounts_cappedAndFlushedOnNextSuccess() throws IOException {
+        down = true;
+        assertThrows(IllegalStateException.class, () -> storage.userExists("foo-user"));
+
+        final ByteArray eldest = new ByteArray(ByteBuffer.allocate(4).putInt(-1).array());
+        storage.updateSignatureCount(assertionResult(eldest, 1));
+        for (int i = 0; i < 999; i++) {
+            storage.updateSignatureCount(assertionResult(new ByteArray(ByteBuffer.allocate(4).putInt(i).array()), 1));
+        }
+        storage.updateSignatureCount(assertionResult(credentialId(1), 6));
+        storage.updateSignatureCount(assertionResult(credentialId(1), 7));
+        assertTrue(signatureCountWrites.isEmpty());
+
+        down = false;
+        clock.advance(Duration.ofMinutes(1));
+        assertTrue(storage.userExists("foo-user"));
+
+        assertEquals(1000, signatureCountWrites.size());
+        assertFalse(signatureCountWrites.contains(eldest));
+        assertEquals(7, backend.getRegistrationByUsernameAndCredentialId("foo-user", credentialId(1)).get().getSignatureCount());
+    }
+
+    @Test
+    public void staleCache_dropsUserOnceGenerationMovedElsewhere() {
+        storage.getUserHandleForUsername("foo-user");
+        storage.getRegistrationsByUsername("foo-user");
+
+        // Another instance removes a credential; this one only learns of it from the generation
+        new GenerationTrackingRegistrationStorage(backend, generations)
+            .removeRegistrationByUsername("foo-user", registration(2));
+        storage.getUserHandleForUsername("foo-user");
+        storage.lookup(credentialId(1), USER_HANDLE);
+
+        down = true;
+        assertThrows(RuntimeException.class, () -> storage.userExists("foo-user"));
+
+        assertEquals(1, storage.lookupAll(credentialId(1)).size());
+        assertThrows(CircuitOpenException.class, () -> storage.lookupAll(credentialId(2)));
+    }
+
+    @Test
+    public void staleCache_keptWhenOutageStartsOnGenerationRead() {
+        storage.getUserHandleForUsername("foo-user");
+        storage.getRegistrationsByUsername("foo-user");
+
+        down = true;
+        assertThrows(IllegalStateException.class, () -> storage.getUserHandleForUsername("foo-user"));
+
+        assertEquals(Optional.of(USER_HANDLE), storage.getUserHandleForUsername("foo-user"));
+        assertEquals(2, storage.lookupAll(credentialId(1)).size() + storage.lookupAll(credentialId(2)).size());
+    }
+
+    @Test
+    public void generationCheck_madeOncePerInterval() {
+        storage = storage(Duration.ofMinutes(5), Duration.ofMinutes(1));
+        generationReads.set(0);
+
+        storage.getUserHandleForUsername("foo-user");
+        storage.getRegistrationsByUsername("foo-user");
+        storage.lookup(credentialId(1), USER_HANDLE);
+
+        assertEquals(1, generationReads.get());
+    }
+
+    private CircuitBreakingRegistrationStorage storage(Duration staleness) {
+        return storage(staleness, Duration.ZERO);
+    }
+
+    private CircuitBreakingRegistrationStorage storage(Duration staleness, Duration checkInterval) {
+        // Counts every signature count write, but only makes those of a registered credential
+        final RegistrationStorage tracked = new GenerationTrackingRegistrationStorage(backend, generations) {
+            @Override
+            public void updateSignatureCount(AssertionResult result) {
+                signatureCountWrites.add(result.getCredentialId());
+                if (result.getCredentialId().equals(credentialId(1))) {
+                    super.updateSignatureCount(result);
+                }
+            }
+        };
+        return new CircuitBreakingRegistrationStorage(
+            tracked,
+            generations,
+            new CircuitBreaker("test", 1, Duration.ofMinutes(1), clock),
+            100,
+            staleness,
+            checkInterval);
+    }
+
+    private String fail() {
+        throw new IllegalStateException("Database unavailable");
+    }
+
+    private void failIfDown() {
+        if (down) {
+            throw new IllegalStateException("Database unavailable");
+        }
+    }
+
+    private static AssertionResult assertionResult(ByteArray credentialId, long signatureCount) throws IOException {
+        return JacksonCodecs.json().readValue(String.format(
+            "{\"success\":true,\"credential\":{\"credentialId\":\"%s\",\"userHandle\":\"%s\",\"publicKeyCose\":\"Cg\","
+                + "\"signatureCount\":0},\"username\":\"foo-user\",\"signatureCount\":%d,\"signatureCounterValid\":true,"
+                + "\"clientExtensionOutputs\":{}}",
+            credentialId.getBase64Url(), USER_HANDLE.getBase64Url(), signatureCount), AssertionResult.class);
+    }
+
+    private static CredentialRegistration registration(int n) {
+        return StorageTestFixtures.registration("foo-user", USER_HANDLE, credentialId(n));
+    }
+
+}
@@ -0,0 +1,95 @@
+package com.yubicolabs;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.rdsdata.RdsDataAsyncClient;
+
+/**
+ * Runs {@link DataApiClient} against a local HTTP stand-in for the RDS Data API.
+ */
+public class DataApiClientTest {
+
+    private final Gson gson = new Gson();
+    private final List<JsonObject> requests = new CopyOnWriteArrayList<>();
+
+    private HttpServer server;
+    private volatile String response;
+    private DataApiClient client;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/Execute", exchange -> {
+            requests.add(gson.fromJson(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8), JsonObject.class));
+            byte[] body = response.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+
+        RdsDataAsyncClient rdsData = RdsDataAsyncClient.builder()
+            .endpointOverride(URI.create("http://localhost:" + server.getAddress().getPort()))
+            .region(Region.US_EAST_1)
+            .credentialsProvider(StaticCredentialsProvider.create(AwsBasicCredentials.create("test", "test")))
+            .build();
+        client = new DataApiClient(rdsData, "cluster-arn", "secret-arn", "webauthn");
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void query_bindsParametersAndMapsColumnsByName() {
+        response = "{\"columnMetadata\":[{\"name\":\"username\"},{\"name\":\"registration\"}],"
+            + "\"records\":[[{\"stringValue\":\"foo-user\"},{\"stringValue\":\"{}\"}]]}";
+
+        List<DataApiRow> rows = client.query(
+            "SELECT username, registration FROM credentialRegistrations WHERE username = :username",
+            SqlParameters.builder().string("username", "foo-user").build()
+        ).join();
+
+        assertEquals(1, rows.size());
+        assertEquals("{}", rows.get(0).getString("registration"));
+        assertEquals("foo-user", rows.get(0).getString("username"));
+
+        JsonObject request = requests.get(0);
+        assertEquals("cluster-arn", request.get("resourceArn").getAsString());
+        assertEquals("webauthn", request.get("database").getAsString());
+        JsonObject parameter = request.getAsJsonArray("parameters").get(0).getAsJsonObject();
+        assertEquals("username", parameter.get("name").getAsString());
+        assertEquals("foo-user", parameter.getAsJsonObject("value").get("stringValue").getAsString());
+    }
+
+    @Test
+    public void update_returnsNumberOfRecordsUpdated() {
+        response = "{\"numberOfRecordsUpdated\":2,\"generatedFields\":[]}";
+
+        long updated = client.update("DELETE FROM assertionRequests", SqlParameters.NONE).join();
+
+        assertEquals(2, updated);
+        assertEquals(1, requests.size());
+    }
+
+}
@@ -0,0 +1,109 @@
+package com.yubicolabs;
+
+import static com.yubicolabs.StorageTestFixtures.credentialId;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.yubico.webauthn.data.ByteArray;
+import com.yubicolabs.data.CredentialRegistration;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Runs the embedded storage classes against files in a temporary directory.
+ */
+public class EmbeddedStorageTest {
+
+    private static final ByteArray USER_HANDLE = new ByteArray(new byte[] { 1, 2, 3, 4 });
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void registrationStorage_survivesReopening() {
+        EmbeddedDatabase database = new EmbeddedDatabase(directory, 4096, true);
+        EmbeddedRegistrationStorage storage = new EmbeddedRegistrationStorage(database);
+
+        storage.addRegistrationByUsername("foo-user", registration("foo-user", 1));
+        storage.addRegistrationByUsername("foo-user", registration("foo-user", 2));
+        storage.updateCredentialNickname("foo-user", credentialId(1), "Backup key");
+        storage.removeRegistrationByUsername("foo-user", registration("foo-user", 2));
+        database.close();
+
+        database = new EmbeddedDatabase(directory, 4096, true);
+        storage = new EmbeddedRegistrationStorage(database);
+
+        assertTrue(storage.userExists("foo-user"));
+        assertEquals(1, storage.getRegistrationsByUserHandle(USER_HANDLE).size());
+        assertEquals(Optional.of("Backup key"), storage.getRegistrationsByUsername("foo-user").iterator().next().getCredentialNickname());
+        assertTrue(storage.lookup(credentialId(1), USER_HANDLE).isPresent());
+        assertFalse(storage.lookup(credentialId(2), USER_HANDLE).isPresent());
+
+        storage.removeAllRegistrations("foo-user");
+        assertFalse(storage.userExists("foo-user"));
+        database.close();
+    }
+
+    @Test
+    public void log_discardsRecordCutShortByCrash() throws IOException {
+        Path path = directory.resolve("test.log");
+        MappedLog log = new MappedLog(path, 4096, true, (offset, payload) -> { });
+        log.append(new byte[] { 1, 2, 3 });
+        long end = log.size();
+        log.close();
+
+        // A header whose payload never made it to disk
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.seek(end);
+            file.writeInt(3);
+            file.writeInt(12345);
+        }
+
+        List<byte[]> replayed = new ArrayList<>();
+        log = new MappedLog(path, 4096, true, (offset, payload) -> replayed.add(payload));
+        assertEquals(1, replayed.size());
+        assertEquals(end, log.size());
+
+        log.append(new byte[] { 4 });
+        log.close();
+
+        replayed.clear();
+        new MappedLog(path, 4096, true, (offset, payload) -> replayed.add(payload)).close();
+        assertEquals(2, replayed.size());
+        assertArrayEquals(new byte[] { 4 }, replayed.get(1));
+    }
+
+    @Test
+    public void table_compactsSupersededValues() throws IOException {
+        Path path = directory.resolve("test.log");
+        EmbeddedTable table = new EmbeddedTable(path, 4096, false);
+        ByteArray key = new ByteArray(new byte[] { 1 });
+        for (int i = 0; i < 1000; i++) {
+            table.put(key, new byte[] { (byte) i });
+        }
+        table.put(new ByteArray(new byte[] { 2 }), new byte[] { 2 });
+        table.delete(new ByteArray(new byte[] { 2 }));
+        table.close();
+
+        assertTrue(Files.size(path) <= 2 * 4096);
+
+        table = new EmbeddedTable(path, 4096, false);
+        assertEquals(1, table.size());
+        assertArrayEquals(new byte[] { (byte) 999 }, table.get(key).get());
+        table.close();
+    }
+
+    private static CredentialRegistration registration(String username, int n) {
+        return StorageTestFixtures.registration(username, USER_HANDLE, credentialId(n));
+    }
+
+}
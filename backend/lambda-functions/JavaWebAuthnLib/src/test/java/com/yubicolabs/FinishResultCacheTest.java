@@ -0,0 +1,76 @@
+package com.yubicolabs;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+public class FinishResultCacheTest {
+
+    private static final String RESPONSE = "{\"type\":\"finishAuthentication\",\"requestId\":\"request1\","
+        + "\"credential\":{\"id\":\"credential1\",\"response\":{\"signature\":\"c2lnbmF0dXJl\"},\"type\":\"public-key\"}}";
+
+    private final Gson gson = new Gson();
+    private final AtomicInteger verifications = new AtomicInteger();
+
+    @Test
+    public void identicalRetry_answeredWithOriginalOutcome() {
+        FinishResultCache cache = new FinishResultCache(10, Duration.ofMinutes(1));
+
+        assertEquals("verified", finish(cache, response(), "request"));
+
+        assertEquals(Optional.of("verified"), cache.getIfPresent("finishAuthentication", response()));
+        assertEquals(1, verifications.get());
+    }
+
+    @Test
+    public void otherCredentialRequestOrOperation_misses() {
+        FinishResultCache cache = new FinishResultCache(10, Duration.ofMinutes(1));
+        finish(cache, response(), "request");
+
+        JsonObject otherSignature = response();
+        otherSignature.getAsJsonObject("credential").getAsJsonObject("response").addProperty("signature", "b3RoZXI");
+        JsonObject otherRequest = response();
+        otherRequest.addProperty("requestId", "request2");
+
+        assertFalse(cache.getIfPresent("finishAuthentication", otherSignature).isPresent());
+        assertFalse(cache.getIfPresent("finishAuthentication", otherRequest).isPresent());
+        assertFalse(cache.getIfPresent("finishRegistration", response()).isPresent());
+    }
+
+    @Test
+    public void zeroWindow_remembersNothing() {
+        FinishResultCache cache = new FinishResultCache(10, Duration.ZERO);
+
+        finish(cache, response(), "request");
+
+        assertFalse(cache.getIfPresent("finishAuthentication", response()).isPresent());
+    }
+
+    @Test
+    public void missingRequest_notRemembered() {
+        FinishResultCache cache = new FinishResultCache(10, Duration.ofMinutes(1));
+
+        assertEquals("missing", finish(cache, response(), null));
+
+        assertFalse(cache.getIfPresent("finishAuthentication", response()).isPresent());
+        assertEquals(0, verifications.get());
+    }
+
+    private Object finish(FinishResultCache cache, JsonObject response, String request) {
+        return cache.finish("finishAuthentication", response, request, () -> "missing", found -> {
+            verifications.incrementAndGet();
+            return "verified";
+        });
+    }
+
+    private JsonObject response() {
+        return gson.fromJson(RESPONSE, JsonObject.class);
+    }
+
+}
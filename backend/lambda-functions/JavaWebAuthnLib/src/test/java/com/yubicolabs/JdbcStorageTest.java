@@ -0,0 +1,410 @@
+package com.yubicolabs;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.yubico.webauthn.AssertionRequest;
+import com.yubico.webauthn.RegisteredCredential;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.PublicKeyCredentialRequestOptions;
+import com.yubico.webauthn.data.UserIdentity;
+import com.yubicolabs.data.AssertionRequestWrapper;
+import com.yubicolabs.data.AttestationRegistration;
+import com.yubicolabs.data.CredentialRegistration;
+import com.yubicolabs.data.CredentialSnapshot;
+import com.yubicolabs.data.RegistrationRequest;
+import com.zaxxer.hikari.HikariDataSource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Runs the JDBC storage classes against an embedded H2 database in MySQL mode.
+ */
+public class JdbcStorageTest {
+
+    private static final ByteArray USER_HANDLE = new ByteArray(new byte[] { 1, 2, 3, 4 });
+    private static final ByteArray CREDENTIAL_ID = new ByteArray(new byte[] { 5, 6, 7, 8 });
+
+    private HikariDataSource dataSource;
+    private JdbcClient client;
+    private StorageExecutor executor;
+
+    @BeforeEach
+    void createSchema() {
+        dataSource = StorageTestFixtures.h2("webauthn");
+        client = new JdbcClient(dataSource);
+        executor = StorageTestFixtures.executor();
+
+        client.update("CREATE TABLE credentialRegistrations (username VARCHAR(1023), userHandle VARCHAR(1023), credentialId VARCHAR(1023), registration TEXT, creationDate DATETIME DEFAULT CURRENT_TIMESTAMP, lastUsedDate DATETIME, lastUpdatedDate DATETIME DEFAULT CURRENT_TIMESTAMP, active BOOL DEFAULT TRUE)");
+        new JdbcRegistrationStorage(client, executor).createTables();
+        client.update("CREATE TABLE registrationRequests (_key VARCHAR(1023), _value TEXT, creationDate DATETIME DEFAULT CURRENT_TIMESTAMP, lastUpdatedDate DATETIME DEFAULT CURRENT_TIMESTAMP)");
+    }
+
+    @AfterEach
+    void dropSchema() {
+        client.update("DROP ALL OBJECTS");
+        dataSource.close();
+    }
+
+    @Test
+    public void registrationStorage_roundTrip() {
+        JdbcRegistrationStorage storage = new JdbcRegistrationStorage(client, executor);
+
+        assertFalse(storage.userExists("foo-user"));
+        storage.addRegistrationByUsername("foo-user", registration("foo-user"));
+
+        assertTrue(storage.userExists("foo-user"));
+        assertEquals(Optional.of(USER_HANDLE), storage.getUserHandleForUsername("foo-user"));
+        assertEquals(Optional.of("foo-user"), storage.getUsernameForUserHandle(USER_HANDLE));
+        assertEquals(1, storage.getCredentialIdsForUsername("foo-user").size());
+        assertEquals(1, storage.lookupAll(CREDENTIAL_ID).size());
+
+        RegisteredCredential credential = storage.lookup(CREDENTIAL_ID, USER_HANDLE).get();
+        assertEquals(42, credential.getSignatureCount());
+
+        storage.updateCredentialNickname("foo-user", CREDENTIAL_ID, "Renamed");
+        assertEquals(
+            Optional.of("Renamed"),
+            storage.getRegistrationByUsernameAndCredentialId("foo-user", CREDENTIAL_ID).get().getCredentialNickname());
+
+        storage.removeAllRegistrations("foo-user");
+        assertFalse(storage.userExists("foo-user"));
+        assertTrue(storage.lookupAll(CREDENTIAL_ID).isEmpty());
+    }
+
+    @Test
+    public void registrationRequestStorage_putGetInvalidate() {
+        JdbcRegistrationRequestStorage storage = new JdbcRegistrationRequestStorage(client, executor);
+        ByteArray requestId = new ByteArray(new byte[] { 9, 9, 9 });
+
+        assertNull(storage.getIfPresent(requestId));
+        storage.put(requestId, new RegistrationRequest("startRegistration", "foo-user", "Foo User", "New Credential", false, requestId, null));
+
+        RegistrationRequest request = storage.getIfPresent(requestId);
+        assertNotNull(request);
+        assertEquals("foo-user", request.getUsername());
+
+        storage.invalidate(requestId);
+        assertNull(storage.getIfPresent(requestId));
+    }
+
+    @Test
+    public void asyncVariants_overlapIndependentCalls() {
+        JdbcRegistrationStorage storage = new JdbcRegistrationStorage(client, executor);
+        JdbcRegistrationRequestStorage requests = new JdbcRegistrationRequestStorage(client, executor);
+        ByteArray requestId = new ByteArray(new byte[] { 9, 9, 9 });
+        requests.put(requestId, new RegistrationRequest("startRegistration", "foo-user", "Foo User", "New Credential", false, requestId, null));
+
+        CompletableFuture<Boolean> invalidated = requests.invalidateAsync(requestId);
+        CompletableFuture<Boolean> added = storage.addRegistrationByUsernameAsync("foo-user", registration("foo-user"));
+        CompletableFuture.allOf(invalidated, added).join();
+
+        assertNull(requests.getIfPresentAsync(requestId).join());
+        assertEquals(1, storage.getRegistrationsByUsernameAsync("foo-user").join().size());
+        assertEquals(1, storage.getRegistrationsByUserHandleAsync(USER_HANDLE).join().size());
+    }
+
+    @Test
+    public void registrationSchema_backfillCopiesAndRepairsV1Rows() {
+        JdbcRegistrationStorage v1 = new JdbcRegistrationStorage(client, executor, RegistrationSchema.V1);
+        JdbcRegistrationStorage dual = new JdbcRegistrationStorage(client, executor, RegistrationSchema.DUAL);
+        JdbcRegistrationStorage v2 = new JdbcRegistrationStorage(client, executor, RegistrationSchema.V2);
+        v1.addRegistrationByUsername("foo-user", registration("foo-user"));
+
+        RegistrationMigrationBatch verified = dual.migrateBatch("", 10, true);
+        assertEquals(1, verified.getCopied());
+        assertFalse(v2.userExists("foo-user"));
+
+        RegistrationMigrationBatch backfilled = dual.migrateBatch("", 10, false);
+        assertEquals(1, backfilled.getCopied());
+        assertFalse(backfilled.getNext().isPresent());
+        assertEquals(Optional.of(USER_HANDLE), v2.getUserHandleForUsername("foo-user"));
+        assertEquals(1, v2.lookupAll(CREDENTIAL_ID).size());
+
+        // A write that only reached v1, e.g. from an instance not yet writing both tables
+        v1.updateCredentialNickname("foo-user", CREDENTIAL_ID, "Renamed");
+        assertEquals(1, dual.migrateBatch("", 10, false).getRepaired());
+        assertEquals(
+            Optional.of("Renamed"),
+            v2.getRegistrationByUsernameAndCredentialId("foo-user", CREDENTIAL_ID).get().getCredentialNickname());
+        assertEquals(0, dual.migrateBatch("", 10, true).getRepaired());
+
+        dual.removeAllRegistrations("foo-user");
+        assertFalse(v1.userExists("foo-user"));
+        assertFalse(v2.userExists("foo-user"));
+        assertEquals(0, dual.countRows(RegistrationSchema.V2));
+    }
+
+    @Test
+    public void registrationSchema_dualRemovalFailsBeforeV1WhenV2Fails() {
+        JdbcRegistrationStorage v1 = new JdbcRegistrationStorage(client, executor, RegistrationSchema.V1);
+        JdbcRegistrationStorage dual = new JdbcRegistrationStorage(client, executor, RegistrationSchema.DUAL);
+        dual.addRegistrationByUsername("foo-user", registration("foo-user"));
+        client.update("ALTER TABLE credentialRegistrationsV2 RENAME TO credentialRegistrationsV2Broken");
+
+        assertThrows(RuntimeException.class, () -> dual.removeAllRegistrations("foo-user"));
+        assertThrows(RuntimeException.class, () -> dual.removeRegistrationByUsername("foo-user", registration("foo-user")));
+        // Still in both tables, so the removal can be retried rather than leave a row only v2 has
+        assertTrue(v1.userExists("foo-user"));
+    }
+
+    @Test
+    public void replicaRouting_readsOwnWritesFromWriter() {
+        HikariDataSource replicaSource = StorageTestFixtures.h2("replica");
+        JdbcClient replica = new JdbcClient(replicaSource);
+        try {
+            JdbcRegistrationStorage replicaWriter = new JdbcRegistrationStorage(replica, executor);
+            replicaWriter.createTables();
+            // The replica lags: it still has the registration under its old nickname
+            replicaWriter.addRegistrationByUsername("foo-user", registration("foo-user").withCredentialNickname(Optional.of("Stale")));
+
+            JdbcRegistrationStorage here = new JdbcRegistrationStorage(client, replica, routing(), executor, RegistrationSchema.V2);
+            JdbcRegistrationStorage elsewhere = new JdbcRegistrationStorage(client, replica, routing(), executor, RegistrationSchema.V2);
+            here.addRegistrationByUsername("foo-user", registration("foo-user"));
+            here.addRegistrationByUsername("bar-user", registration("bar-user").withCredential(RegisteredCredential.builder()
+                .credentialId(new ByteArray(new byte[] { 9 }))
+                .userHandle(USER_HANDLE)
+                .publicKeyCose(new ByteArray(new byte[] { 0x0a }))
+                .signatureCount(0)
+                .build()));
+
+            assertEquals(Optional.of("My Security Key"), nickname(here, "foo-user"));
+            assertEquals(Optional.of("Stale"), nickname(elsewhere, "foo-user"));
+            // Not on the replica yet, so confirmed on the writer
+            assertTrue(elsewhere.userExists("bar-user"));
+        } finally {
+            replica.update("DROP ALL OBJECTS");
+            replicaSource.close();
+        }
+    }
+
+    @Test
+    public void replicaRouting_readsRemovedKeysFromWriter() {
+        HikariDataSource replicaSource = StorageTestFixtures.h2("replica");
+        JdbcClient replica = new JdbcClient(replicaSource);
+        try {
+            JdbcRegistrationStorage replicaWriter = new JdbcRegistrationStorage(replica, executor);
+            replicaWriter.createTables();
+            // The replica lags: it still has the registration after the removal
+            replicaWriter.addRegistrationByUsername("foo-user", registration("foo-user"));
+            new JdbcRegistrationStorage(client, executor).addRegistrationByUsername("foo-user", registration("foo-user"));
+
+            JdbcRegistrationStorage here = new JdbcRegistrationStorage(client, replica, routing(), executor, RegistrationSchema.V2);
+            here.removeAllRegistrations("foo-user");
+
+            assertTrue(here.lookupAll(CREDENTIAL_ID).isEmpty());
+            assertTrue(here.getRegistrationsByUserHandle(USER_HANDLE).isEmpty());
+        } finally {
+            replica.update("DROP ALL OBJECTS");
+            replicaSource.close();
+        }
+    }
+
+    @Test
+    public void replicaRouting_readsForUpdateFromWriter() {
+        HikariDataSource replicaSource = StorageTestFixtures.h2("replica");
+        JdbcClient replica = new JdbcClient(replicaSource);
+        try {
+            JdbcRegistrationStorage replicaWriter = new JdbcRegistrationStorage(replica, executor);
+            replicaWriter.createTables();
+            // The replica lags: it has not seen the signature count of the latest login
+            replicaWriter.addRegistrationByUsername("foo-user", registration("foo-user"));
+            JdbcRegistrationStorage writer = new JdbcRegistrationStorage(client, executor);
+            writer.addRegistrationByUsername("foo-user", registration("foo-user").withSignatureCount(50));
+
+            new JdbcRegistrationStorage(client, replica, routing(), executor, RegistrationSchema.V2)
+                .updateCredentialNickname("foo-user", CREDENTIAL_ID, "Renamed");
+
+            CredentialRegistration updated = writer.getRegistrationsByUsername("foo-user").iterator().next();
+            assertEquals(Optional.of("Renamed"), updated.getCredentialNickname());
+            assertEquals(50, updated.getSignatureCount());
+        } finally {
+            replica.update("DROP ALL OBJECTS");
+            replicaSource.close();
+        }
+    }
+
+    @Test
+    public void userGenerations_advanceOnCredentialChangesOnly() {
+        JdbcUserGenerations generations = new JdbcUserGenerations(client, executor);
+        generations.createTables();
+        RegistrationStorage storage = new GenerationTrackingRegistrationStorage(new JdbcRegistrationStorage(client, executor), generations);
+
+        assertEquals(0, generations.get("foo-user"));
+
+        storage.addRegistrationByUsername("foo-user", registration("foo-user"));
+        assertEquals(1, generations.get("foo-user"));
+
+        storage.updateCredentialNickname("foo-user", CREDENTIAL_ID, "Backup key");
+        assertEquals(2, generations.get("foo-user"));
+
+        storage.removeAllRegistrations("foo-user");
+        assertEquals(3, generations.get("foo-user"));
+        assertEquals(0, generations.get("bar-user"));
+    }
+
+    @Test
+    public void userGenerations_failedAdvanceLeavesChangeStanding() {
+        JdbcUserGenerations generations = new JdbcUserGenerations(client, executor);
+        assertThrows(IllegalStateException.class, generations::requireTable);
+
+        // Without its table every advance fails
+        RegistrationStorage storage = new GenerationTrackingRegistrationStorage(new JdbcRegistrationStorage(client, executor), generations);
+        assertTrue(storage.addRegistrationByUsername("foo-user", registration("foo-user")));
+        storage.updateCredentialNickname("foo-user", CREDENTIAL_ID, "Backup key");
+        assertEquals(Optional.of("Backup key"), nickname(storage, "foo-user"));
+        assertTrue(storage.removeAllRegistrations("foo-user"));
+        assertFalse(storage.userExists("foo-user"));
+
+        generations.createTables();
+        generations.requireTable();
+    }
+
+    @Test
+    public void credentialSnapshot_usedOnlyWhileGenerationUnchanged() {
+        JdbcUserGenerations generations = new JdbcUserGenerations(client, executor);
+        generations.createTables();
+        RegistrationStorage storage = new GenerationTrackingRegistrationStorage(new JdbcRegistrationStorage(client, executor), generations);
+        storage.addRegistrationByUsername("foo-user", registration("foo-user"));
+        List<CredentialSnapshot> snapshot = Collections.singletonList(CredentialSnapshot.of(registration("foo-user").getCredential()));
+
+        AssertionRequestWrapper current = assertionRequest(snapshot, generations.get("foo-user"));
+        assertEquals(1, CredentialSnapshots.current(current, generations).get().size());
+        assertFalse(CredentialSnapshots.current(assertionRequest(snapshot, null), generations).isPresent());
+
+        // Removed between start and finish
+        storage.removeAllRegistrations("foo-user");
+        assertFalse(CredentialSnapshots.current(current, generations).isPresent());
+    }
+
+    @Test
+    public void registrationTransfer_exportsAndImportsInBatches(@TempDir Path directory) throws IOException {
+        JdbcUserGenerations generations = new JdbcUserGenerations(client, executor);
+        generations.createTables();
+        JdbcRegistrationStorage storage = new JdbcRegistrationStorage(client, executor);
+        for (int i = 0; i < 5; i++) {
+            CredentialRegistration reg = registration("user-" + i);
+            storage.addRegistrationByUsername(reg.getUsername(), reg.withCredential(reg.getCredential().toBuilder()
+                .credentialId(new ByteArray(new byte[] { 9, (byte) i }))
+                .build()));
+        }
+        RegistrationTransfer transfer = new RegistrationTransfer(storage, generations);
+        Path file = directory.resolve("registrations.ndjson");
+
+        assertEquals(5, transfer.export(file, "", 0, 2).get("rows"));
+        List<String> exported = Files.readAllLines(file);
+        assertEquals(5, exported.size());
+
+        // Resuming after the first page rewrites the rest of the file
+        RegistrationExportPage first = storage.exportPage("", 2);
+        long offset = String.join("\n", first.getRegistrations()).getBytes(StandardCharsets.UTF_8).length + 1;
+        Map<String, Object> resumed = transfer.export(file, first.getNext().get(), offset, 2);
+        assertEquals(3, resumed.get("rows"));
+        assertFalse(resumed.containsKey("cursor"));
+        assertEquals(exported, Files.readAllLines(file));
+
+        client.update("DELETE FROM credentialRegistrationsV2");
+        Map<String, Object> imported = transfer.importFrom(file, 0, 2);
+        assertEquals(5, imported.get("imported"));
+        assertEquals(Files.size(file), imported.get("bytes"));
+        assertFalse(imported.containsKey("offset"));
+        assertTrue(storage.userExists("user-3"));
+        assertEquals(1, generations.get("user-3"));
+
+        Map<String, Object> repeated = transfer.importFrom(file, 0, 2);
+        assertEquals(0, repeated.get("imported"));
+        assertEquals(5, repeated.get("skipped"));
+    }
+
+    @Test
+    public void authenticatorStatusScan_findsCredentialsByAaguid(@TempDir Path directory) throws IOException {
+        JdbcRegistrationStorage storage = new JdbcRegistrationStorage(client, executor);
+        storage.createAaguidIndex();
+        String model = "cb69481e-8ff7-4039-93ec-0a2729a154a8";
+        for (int i = 0; i < 6; i++) {
+            CredentialRegistration reg = registration("user-" + i);
+            storage.addRegistrationByUsername(reg.getUsername(), reg
+                .withCredential(reg.getCredential().toBuilder().credentialId(new ByteArray(new byte[] { 9, (byte) i })).build())
+                .withAttestationMetadata(Optional.of(AttestationRegistration.builder()
+                    .aaguid(i < 5 ? model : "ee882879-721c-4913-9775-3dfcce97072a")
+                    .build())));
+        }
+        client.update("UPDATE credentialRegistrationsV2 SET aaguid = NULL");
+
+        AuthenticatorStatusScan scan = new AuthenticatorStatusScan(storage);
+        assertEquals(6, scan.backfill("", 4).get("updated"));
+        assertEquals(0, scan.backfill("", 4).get("updated"));
+
+        Path output = directory.resolve("affected.ndjson");
+        List<AuthenticatorStatusScan.Range> ranges = AuthenticatorStatusScan.ranges(
+            Collections.singletonList(new ByteArray(AbstractRegistrationStorage.parseAaguid(model).get())), 3);
+        AuthenticatorStatusScan.ScanOutcome outcome = scan.scan(ranges, 3, 1, Optional.of(output));
+        assertEquals(5, outcome.getFound());
+        assertTrue(outcome.getCursors().isEmpty());
+        assertEquals(5, Files.readAllLines(output).size());
+
+        storage.putAuthenticatorStatuses(Collections.singletonMap(new ByteArray(new byte[16]), "REVOKED"));
+        storage.putAuthenticatorStatuses(Collections.singletonMap(new ByteArray(new byte[16]), "FIDO_CERTIFIED"));
+        assertEquals(Collections.singletonMap(new ByteArray(new byte[16]), "FIDO_CERTIFIED"), storage.getAuthenticatorStatuses());
+    }
+
+    private static ReplicaRouting routing() {
+        return new ReplicaRouting(Duration.ofMinutes(1), Duration.ofSeconds(1), Duration.ofSeconds(1), Duration.ofSeconds(10),
+            Optional.empty(), Clock.systemUTC(), Runnable::run);
+    }
+
+    private static Optional<String> nickname(RegistrationStorage storage, String username) {
+        return storage.getRegistrationsByUsername(username).iterator().next().getCredentialNickname();
+    }
+
+    private static AssertionRequestWrapper assertionRequest(List<CredentialSnapshot> snapshot, Long generation) {
+        return new AssertionRequestWrapper(
+            new ByteArray(new byte[] { 9, 9, 9 }),
+            AssertionRequest.builder()
+                .publicKeyCredentialRequestOptions(PublicKeyCredentialRequestOptions.builder()
+                    .challenge(new ByteArray(new byte[16]))
+                    .build())
+                .username("foo-user")
+                .build(),
+            snapshot,
+            generation);
+    }
+
+    private static CredentialRegistration registration(String username) {
+        Instant now = Instant.now();
+        return CredentialRegistration.builder()
+            .userIdentity(UserIdentity.builder().name(username).displayName("Foo User").id(USER_HANDLE).build())
+            .credentialNickname(Optional.of("My Security Key"))
+            .registrationTime(now)
+            .lastUsedTime(now)
+            .lastUpdatedTime(now)
+            .credential(RegisteredCredential.builder()
+                .credentialId(CREDENTIAL_ID)
+                .userHandle(USER_HANDLE)
+                .publicKeyCose(new ByteArray(new byte[] { 0x0a }))
+                .signatureCount(42)
+                .build())
+            .signatureCount(42)
+            .attestationMetadata(Optional.empty())
+            .build();
+    }
+
+}
@@ -0,0 +1,132 @@
+package com.yubicolabs;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.yubico.webauthn.data.ByteArray;
+import com.yubicolabs.data.CredentialRegistration;
+import com.yubicolabs.data.CredentialSnapshot;
+import com.zaxxer.hikari.HikariDataSource;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Counts the queries each handler operation makes through {@link MemoizingRegistrationStorage}.
+ */
+public class MemoizingRegistrationStorageTest {
+
+    private static final ByteArray USER_HANDLE = new ByteArray(new byte[] { 1, 2, 3, 4 });
+    private static final ByteArray CREDENTIAL_ID = new ByteArray(new byte[] { 5, 6, 7, 8 });
+
+    private final AtomicInteger queries = new AtomicInteger();
+
+    private HikariDataSource dataSource;
+    private JdbcClient client;
+    private MemoizingRegistrationStorage storage;
+
+    @BeforeEach
+    void createSchema() {
+        dataSource = StorageTestFixtures.h2("memoizing");
+        client = new JdbcClient(dataSource) {
+            @Override
+            public <T> List<T> query(String sql, RowMapper<T> mapper, Object... parameters) {
+                queries.incrementAndGet();
+                return super.query(sql, mapper, parameters);
+            }
+        };
+
+        JdbcRegistrationStorage backend = new JdbcRegistrationStorage(client, StorageTestFixtures.executor());
+        backend.createTables();
+        storage = new MemoizingRegistrationStorage(backend);
+        storage.addRegistrationByUsername("foo-user", registration("foo-user"));
+        queries.set(0);
+    }
+
+    @AfterEach
+    void dropSchema() {
+        storage.endRequest();
+        client.update("DROP ALL OBJECTS");
+        dataSource.close();
+    }
+
+    @Test
+    public void startAuthentication_existsCheckPlusOneRegistrationsQuery() {
+        storage.beginRequest();
+
+        assertTrue(storage.userExists("foo-user"));
+        assertEquals(1, storage.getCredentialIdsForUsername("foo-user").size());
+        assertEquals(Optional.of(USER_HANDLE), storage.getUserHandleForUsername("foo-user"));
+
+        assertEquals(2, queries.get());
+    }
+
+    @Test
+    public void startRegistration_oneRegistrationsQuery() {
+        storage.beginRequest();
+
+        assertEquals(1, storage.getRegistrationsByUsernameAsync("foo-user").join().size());
+        assertEquals(1, storage.getCredentialIdsForUsername("foo-user").size());
+        assertTrue(storage.userExists("foo-user"));
+
+        assertEquals(1, queries.get());
+    }
+
+    @Test
+    public void finishAuthentication_eachLookupOnce() {
+        storage.beginRequest();
+
+        assertEquals(Optional.of("foo-user"), storage.getUsernameForUserHandle(USER_HANDLE));
+        assertTrue(storage.lookup(CREDENTIAL_ID, USER_HANDLE).isPresent());
+        assertTrue(storage.lookup(CREDENTIAL_ID, USER_HANDLE).isPresent());
+        assertEquals(1, storage.lookupAll(CREDENTIAL_ID).size());
+        assertEquals(1, storage.lookupAll(CREDENTIAL_ID).size());
+        assertEquals(Optional.of("foo-user"), storage.getUsernameForUserHandle(USER_HANDLE));
+
+        assertEquals(3, queries.get());
+    }
+
+    @Test
+    public void finishAuthentication_fromCredentialSnapshot_noQueries() {
+        storage.beginRequest();
+        CredentialSnapshot snapshot = CredentialSnapshot.of(registration("foo-user").getCredential());
+        storage.rememberCredentials("foo-user", Collections.singletonList(snapshot.toRegisteredCredential()));
+
+        assertEquals(Optional.of(USER_HANDLE), storage.getUserHandleForUsername("foo-user"));
+        assertEquals(42, storage.lookup(CREDENTIAL_ID, USER_HANDLE).get().getSignatureCount());
+        assertEquals(1, storage.lookupAll(CREDENTIAL_ID).size());
+
+        assertEquals(0, queries.get());
+    }
+
+    @Test
+    public void write_forgetsRememberedReads() {
+        storage.beginRequest();
+
+        assertTrue(storage.userExists("foo-user"));
+        storage.removeAllRegistrations("foo-user");
+        assertFalse(storage.userExists("foo-user"));
+
+        // The removal reads the user's credential IDs and user handle first, to keep later reads of them off replicas
+        assertEquals(3, queries.get());
+    }
+
+    @Test
+    public void outsideRequest_everyCallQueries() {
+        storage.getCredentialIdsForUsername("foo-user");
+        storage.getUserHandleForUsername("foo-user");
+
+        assertEquals(2, queries.get());
+    }
+
+    private static CredentialRegistration registration(String username) {
+        CredentialRegistration reg = StorageTestFixtures.registration(username, USER_HANDLE, CREDENTIAL_ID);
+        return reg.withSignatureCount(42).withCredential(reg.getCredential().toBuilder().signatureCount(42).build());
+    }
+
+}
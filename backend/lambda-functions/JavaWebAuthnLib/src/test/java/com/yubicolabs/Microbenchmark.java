@@ -0,0 +1,86 @@
+package com.yubicolabs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Times an operation in a loop after a warmup, for the opt-in benchmarks. Run them with
+ * {@code mvn test -Dbenchmarks=true -Dtest=<benchmark class>}; without the property they are skipped.
+ *
+ * <p>Results are only indicative: nothing stops the JIT from optimizing across iterations beyond consuming each
+ * result, and the numbers vary with the machine. Compare rows of one run rather than runs on different machines.
+ */
+public final class Microbenchmark {
+
+    public static final String PROPERTY = "benchmarks";
+
+    private static volatile int sink;
+
+    private Microbenchmark() {
+    }
+
+    /**
+     * @return mean nanoseconds per call of {@code operation}
+     */
+    public static double nanosPerOp(int warmup, int iterations, Callable<?> operation) throws Exception {
+        for (int i = 0; i < warmup; i++) {
+            consume(operation.call());
+        }
+        final long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            consume(operation.call());
+        }
+        return (System.nanoTime() - start) / (double) iterations;
+    }
+
+    /**
+     * Runs {@code operation} on {@code threads} threads at once, each after its own warmup.
+     *
+     * @return wall-clock nanoseconds per call across all threads, the inverse of their combined throughput
+     */
+    public static double nanosPerOp(int threads, int warmup, int iterations, Callable<?> operation) throws Exception {
+        final CyclicBarrier warm = new CyclicBarrier(threads + 1);
+        final CyclicBarrier done = new CyclicBarrier(threads + 1);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<?>> workers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                workers.add(executor.submit(() -> {
+                    for (int i = 0; i < warmup; i++) {
+                        consume(operation.call());
+                    }
+                    warm.await();
+                    for (int i = 0; i < iterations; i++) {
+                        consume(operation.call());
+                    }
+                    done.await();
+                    return null;
+                }));
+            }
+            warm.await();
+            final long start = System.nanoTime();
+            done.await();
+            final long elapsed = System.nanoTime() - start;
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+            return elapsed / ((double) threads * iterations);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public static void report(String benchmark, String variant, double nanosPerOp) {
+        System.out.printf("%-30s %-24s %12.1f ns/op%n", benchmark, variant, nanosPerOp);
+    }
+
+    private static void consume(Object result) {
+        sink += System.identityHashCode(result);
+    }
+
+}
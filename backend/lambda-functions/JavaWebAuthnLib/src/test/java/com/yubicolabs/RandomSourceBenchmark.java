@@ -0,0 +1,52 @@
+package com.yubicolabs;
+
+import java.security.SecureRandom;
+import java.time.Duration;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+/**
+ * Throughput of drawing 32-byte request IDs from one shared {@link SecureRandom}, as {@code App} used to, against
+ * {@link RandomSource} with and without a buffer, at increasing numbers of concurrent threads.
+ */
+@EnabledIfSystemProperty(named = Microbenchmark.PROPERTY, matches = "true")
+public class RandomSourceBenchmark {
+
+    private static final int WARMUP = 20_000;
+    private static final int ITERATIONS = 50_000;
+    private static final int ID_BYTES = 32;
+
+    @Test
+    public void oneThread() throws Exception {
+        run(1);
+    }
+
+    @Test
+    public void eightThreads() throws Exception {
+        run(8);
+    }
+
+    @Test
+    public void sixtyFourThreads() throws Exception {
+        run(64);
+    }
+
+    private static void run(int threads) throws Exception {
+        final SecureRandom shared = new SecureRandom();
+        final RandomSource striped = new RandomSource(16, 0, Duration.ofMinutes(10));
+        final RandomSource buffered = new RandomSource(16, 4096, Duration.ofMinutes(10));
+        final String benchmark = "RandomSource " + threads + (threads == 1 ? " thread" : " threads");
+
+        Microbenchmark.report(benchmark, "shared SecureRandom",
+            Microbenchmark.nanosPerOp(threads, WARMUP, ITERATIONS, () -> {
+                final byte[] bytes = new byte[ID_BYTES];
+                shared.nextBytes(bytes);
+                return bytes;
+            }));
+        Microbenchmark.report(benchmark, "striped",
+            Microbenchmark.nanosPerOp(threads, WARMUP, ITERATIONS, () -> striped.nextBytes(ID_BYTES)));
+        Microbenchmark.report(benchmark, "striped, 4 KiB buffer",
+            Microbenchmark.nanosPerOp(threads, WARMUP, ITERATIONS, () -> buffered.nextBytes(ID_BYTES)));
+    }
+
+}
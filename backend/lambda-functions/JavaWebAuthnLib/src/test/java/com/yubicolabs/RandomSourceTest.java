@@ -0,0 +1,88 @@
+package com.yubicolabs;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.security.SecureRandom;
+import java.security.SecureRandomSpi;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+public class RandomSourceTest {
+
+    private static final int[] DRAWS = { 0, 5, 16, 20, 3, 15, 7, 1 };
+
+    private final AtomicInteger generated = new AtomicInteger();
+    private final AtomicInteger reseeds = new AtomicInteger();
+
+    @Test
+    public void bufferedDraws_neverRepeatBytes() {
+        assertDistinctDraws(new RandomSource(1, 16, Duration.ofMinutes(10), this::counting));
+    }
+
+    @Test
+    public void unbufferedDraws_neverRepeatBytes() {
+        assertDistinctDraws(new RandomSource(1, 0, Duration.ofMinutes(10), this::counting));
+    }
+
+    @Test
+    public void bufferedDraws_continueWithinReseedInterval() {
+        final RandomSource random = new RandomSource(1, 16, Duration.ofMinutes(10), this::counting);
+
+        assertArrayEquals(new byte[] { 1, 2, 3, 4 }, random.nextBytes(4));
+        assertArrayEquals(new byte[] { 5, 6, 7, 8 }, random.nextBytes(4));
+        assertEquals(16, generated.get());
+        assertEquals(0, reseeds.get());
+    }
+
+    @Test
+    public void reseed_dropsBufferedRemainder() {
+        final RandomSource random = new RandomSource(1, 16, Duration.ZERO, this::counting);
+
+        assertArrayEquals(new byte[] { 1, 2, 3, 4 }, random.nextBytes(4));
+        assertArrayEquals(new byte[] { 17, 18, 19, 20 }, random.nextBytes(4));
+        assertEquals(2, reseeds.get());
+    }
+
+    private void assertDistinctDraws(RandomSource random) {
+        final Set<Byte> seen = new HashSet<>();
+        for (int length : DRAWS) {
+            final byte[] bytes = random.nextBytes(length);
+            assertEquals(length, bytes.length);
+            for (byte b : bytes) {
+                assertTrue(b != 0 && seen.add(b), "Byte " + b + " handed out twice or zeroed");
+            }
+        }
+        assertTrue(generated.get() < 256);
+    }
+
+    /**
+     * A generator returning 1, 2, 3, ... so that every byte it produced is distinct from the others.
+     */
+    private SecureRandom counting() {
+        return new SecureRandom(new SecureRandomSpi() {
+            @Override
+            protected void engineSetSeed(byte[] seed) {
+                reseeds.incrementAndGet();
+            }
+
+            @Override
+            protected void engineNextBytes(byte[] bytes) {
+                for (int i = 0; i < bytes.length; i++) {
+                    bytes[i] = (byte) generated.incrementAndGet();
+                }
+            }
+
+            @Override
+            protected byte[] engineGenerateSeed(int numBytes) {
+                return new byte[numBytes];
+            }
+        }, null) {
+        };
+    }
+
+}
@@ -0,0 +1,98 @@
+package com.yubicolabs;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.yubico.internal.util.JacksonCodecs;
+import com.yubico.webauthn.CredentialRepository;
+import com.yubico.webauthn.RegisteredCredential;
+import com.yubico.webauthn.RelyingParty;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.PublicKeyCredentialDescriptor;
+import com.yubico.webauthn.data.RelyingPartyIdentity;
+import com.yubicolabs.data.RegistrationResponse;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+public class ResponsePrecheckTest {
+
+    static final String REGISTRATION = "{\"type\":\"finishRegistration\",\"requestId\":\"YqtrUqVuH6Xm4l3Rd-nBmUaWHWVJLAgwqrAfW3mCqwY\",\"credential\":{\"type\":\"public-key\",\"id\":\"5tMHGvNM13Y3xWo5I2v7erJp7G7pGebOe6ke0RYDkGhbBqX5o98YTDieTK4m3jEoFrY5pC6oFvHB2pBib4hqkA\",\"rawId\":\"5tMHGvNM13Y3xWo5I2v7erJp7G7pGebOe6ke0RYDkGhbBqX5o98YTDieTK4m3jEoFrY5pC6oFvHB2pBib4hqkA\",\"response\":{\"clientDataJSON\":\"eyJ0eXBlIjoid2ViYXV0aG4uY3JlYXRlIiwiY2hhbGxlbmdlIjoieFI0YWJLTkQ2Q19GVFpKVkdKU2dTRDhSa3hLcDR6SmZoMlRDSDdjRXktYyIsIm9yaWdpbiI6Imh0dHBzOi8vZGV2LmRqczMwcTd3Z3Y1MnUuYW1wbGlmeWFwcC5jb20iLCJjcm9zc09yaWdpbiI6ZmFsc2UsIm90aGVyX2tleXNfY2FuX2JlX2FkZGVkX2hlcmUiOiJkbyBub3QgY29tcGFyZSBjbGllbnREYXRhSlNPTiBhZ2FpbnN0IGEgdGVtcGxhdGUuIFNlZSBodHRwczovL2dvby5nbC95YWJQZXgifQ\",\"attestationObject\":\"o2NmbXRmcGFja2VkZ2F0dFN0bXSjY2FsZyZjc2lnWEcwRQIhAPyyIlZC5IYIYBEuq3ra94xQLOYgF1OCKZ-KCUa5TDDAAiAZYAlyYq0Lq4_wr6zXvpYtmfJhF_shnHs7qxIqTmXBP2N4NWOBWQLBMIICvTCCAaWgAwIBAgIEGKxGwDANBgkqhkiG9w0BAQsFADAuMSwwKgYDVQQDEyNZdWJpY28gVTJGIFJvb3QgQ0EgU2VyaWFsIDQ1NzIwMDYzMTAgFw0xNDA4MDEwMDAwMDBaGA8yMDUwMDkwNDAwMDAwMFowbjELMAkGA1UEBhMCU0UxEjAQBgNVBAoMCVl1YmljbyBBQjEiMCAGA1UECwwZQXV0aGVudGljYXRvciBBdHRlc3RhdGlvbjEnMCUGA1UEAwweWXViaWNvIFUyRiBFRSBTZXJpYWwgNDEzOTQzNDg4MFkwEwYHKoZIzj0CAQYIKoZIzj0DAQcDQgAEeeo7LHxJcBBiIwzSP-tg5SkxcdSD8QC-hZ1rD4OXAwG1Rs3Ubs_K4-PzD4Hp7WK9Jo1MHr03s7y-kqjCrutOOqNsMGowIgYJKwYBBAGCxAoCBBUxLjMuNi4xLjQuMS40MTQ4Mi4xLjcwEwYLKwYBBAGC5RwCAQEEBAMCBSAwIQYLKwYBBAGC5RwBAQQEEgQQy2lIHo_3QDmT7AonKaFUqDAMBgNVHRMBAf8EAjAAMA0GCSqGSIb3DQEBCwUAA4IBAQCXnQOX2GD4LuFdMRx5brr7Ivqn4ITZurTGG7tX8-a0wYpIN7hcPE7b5IND9Nal2bHO2orh_tSRKSFzBY5e4cvda9rAdVfGoOjTaCW6FZ5_ta2M2vgEhoz5Do8fiuoXwBa1XCp61JfIlPtx11PXm5pIS2w3bXI7mY0uHUMGvxAzta74zKXLslaLaSQibSKjWKt9h-SsXy4JGqcVefOlaQlJfXL1Tga6wcO0QTu6Xq-Uw7ZPNPnrpBrLauKDd202RlN4SP7ohL3d9bG6V5hUz_3OusNEBZUn5W3VmPj1ZnFavkMB3RkRMOa58MZAORJT4imAPzrvJ0vtv94_y71C6tZ5aGF1dGhEYXRhWMQbryQXR7muZf6kijMdZ-GXxefmsOE1XX21TXeqdTmuwkUAAAIWy2lIHo_3QDmT7AonKaFUqABA5tMHGvNM13Y3xWo5I2v7erJp7G7pGebOe6ke0RYDkGhbBqX5o98YTDieTK4m3jEoFrY5pC6oFvHB2pBib4hqkKUBAgMmIAEhWCCBQa7SRfFIddrvyg5SqD1SqEmXcS-Nn-Q5N7YTrgn1HCJYID-LFrGHw9zjjIssZUC4lUiF_DaHH3wcd4L3yjUl2Kee\"},\"clientExtensionResults\":{}}}";
+
+    private final ObjectMapper jsonMapper = JacksonCodecs.json()
+        .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+
+    @Test
+    public void genuineRegistration_passes() throws Exception {
+        ResponsePrecheck precheck = precheck("djs30q7wgv52u.amplifyapp.com", "https://dev.djs30q7wgv52u.amplifyapp.com");
+
+        assertFalse(precheck.checkSize(REGISTRATION).isPresent());
+        assertFalse(precheck.checkRegistration(registration()).isPresent());
+    }
+
+    @Test
+    public void registrationFromOtherOrigin_isRejected() throws Exception {
+        ResponsePrecheck precheck = precheck("djs30q7wgv52u.amplifyapp.com", "https://djs30q7wgv52u.amplifyapp.com");
+
+        assertTrue(precheck.checkRegistration(registration()).isPresent());
+    }
+
+    @Test
+    public void registrationForOtherRelyingParty_isRejected() throws Exception {
+        ResponsePrecheck precheck = precheck("amplifyapp.com", "https://dev.djs30q7wgv52u.amplifyapp.com");
+
+        assertTrue(precheck.checkRegistration(registration()).isPresent());
+    }
+
+    @Test
+    public void oversizedResponse_isRejected() {
+        ResponsePrecheck precheck = new ResponsePrecheck(relyingParty("localhost", "https://localhost"), 1024);
+
+        assertTrue(precheck.checkSize(REGISTRATION).isPresent());
+    }
+
+    private RegistrationResponse registration() throws Exception {
+        return jsonMapper.readValue(REGISTRATION, RegistrationResponse.class);
+    }
+
+    private static ResponsePrecheck precheck(String rpId, String origin) {
+        return new ResponsePrecheck(relyingParty(rpId, origin), 65536);
+    }
+
+    private static RelyingParty relyingParty(String rpId, String origin) {
+        return RelyingParty.builder()
+            .identity(RelyingPartyIdentity.builder().id(rpId).name("Test party").build())
+            .credentialRepository(new CredentialRepository() {
+                @Override
+                public Set<PublicKeyCredentialDescriptor> getCredentialIdsForUsername(String username) {
+                    return Collections.emptySet();
+                }
+
+                @Override
+                public Optional<ByteArray> getUserHandleForUsername(String username) {
+                    return Optional.empty();
+                }
+
+                @Override
+                public Optional<String> getUsernameForUserHandle(ByteArray userHandle) {
+                    return Optional.empty();
+                }
+
+                @Override
+                public Optional<RegisteredCredential> lookup(ByteArray credentialId, ByteArray userHandle) {
+                    return Optional.empty();
+                }
+
+                @Override
+                public Set<RegisteredCredential> lookupAll(ByteArray credentialId) {
+                    return Collections.emptySet();
+                }
+            })
+            .origins(Collections.singleton(origin))
+            .build();
+    }
+
+}
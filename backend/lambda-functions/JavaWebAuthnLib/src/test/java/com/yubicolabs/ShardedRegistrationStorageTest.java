@@ -0,0 +1,152 @@
+package com.yubicolabs;
+
+import static com.yubicolabs.StorageTestFixtures.credentialId;
+import static com.yubicolabs.StorageTestFixtures.userHandle;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.yubico.webauthn.data.ByteArray;
+import com.yubicolabs.data.CredentialRegistration;
+import com.zaxxer.hikari.HikariDataSource;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs {@link ShardedRegistrationStorage} over two embedded H2 shards, with the routing index in a third database.
+ */
+public class ShardedRegistrationStorageTest {
+
+    private final List<HikariDataSource> dataSources = new ArrayList<>();
+    private final Map<String, AbstractRegistrationStorage> shards = new LinkedHashMap<>();
+
+    private final StorageExecutor executor = StorageTestFixtures.executor();
+
+    private ShardedRegistrationStorage storage;
+
+    @BeforeEach
+    void createSchema() {
+        for (String name : Arrays.asList("a", "b")) {
+            JdbcRegistrationStorage shard = new JdbcRegistrationStorage(client("shard-" + name), executor);
+            shard.createTables();
+            shards.put(name, shard);
+        }
+        JdbcRegistrationRoutes routes = new JdbcRegistrationRoutes(client("routes"), executor);
+        routes.createTables();
+
+        storage = new ShardedRegistrationStorage(shards, Arrays.asList("a", "b"), routes);
+    }
+
+    @AfterEach
+    void dropSchema() {
+        dataSources.forEach(dataSource -> {
+            new JdbcClient(dataSource).update("DROP ALL OBJECTS");
+            dataSource.close();
+        });
+    }
+
+    @Test
+    public void lookups_reachTheUsersShardOnly() {
+        for (int n = 0; n < 8; n++) {
+            storage.addRegistrationByUsername("user-" + n, registration("user-" + n, n));
+        }
+
+        for (int n = 0; n < 8; n++) {
+            String placed = storage.placementFor(userHandle(n));
+            String other = placed.equals("a") ? "b" : "a";
+            assertTrue(shards.get(placed).userExists("user-" + n));
+            assertFalse(shards.get(other).userExists("user-" + n));
+
+            assertTrue(storage.userExists("user-" + n));
+            assertEquals(Optional.of("user-" + n), storage.getUsernameForUserHandle(userHandle(n)));
+            assertEquals(1, storage.lookupAll(credentialId(n)).size());
+        }
+        assertFalse(storage.userExists("nobody"));
+        assertTrue(storage.lookupAll(credentialId(99)).isEmpty());
+    }
+
+    @Test
+    public void move_keepsRegistrationsReachable() {
+        storage.addRegistrationByUsername("foo-user", registration("foo-user", 1));
+        String from = storage.placementFor(userHandle(1));
+        String to = from.equals("a") ? "b" : "a";
+
+        new RegistrationResharding(storage).move(Collections.singletonList(userHandle(1)), to, Duration.ZERO);
+
+        assertFalse(shards.get(from).userExists("foo-user"));
+        assertTrue(shards.get(to).userExists("foo-user"));
+        assertEquals(1, storage.lookupAll(credentialId(1)).size());
+
+        storage.updateCredentialNickname("foo-user", credentialId(1), "Renamed");
+        assertEquals(
+            Optional.of("Renamed"),
+            shards.get(to).getRegistrationByUsernameAndCredentialId("foo-user", credentialId(1)).get().getCredentialNickname());
+
+        storage.removeAllRegistrations("foo-user");
+        assertFalse(storage.userExists("foo-user"));
+        assertTrue(storage.lookupAll(credentialId(1)).isEmpty());
+    }
+
+    @Test
+    public void move_keepsCredentialRegisteredDuringGracePeriod() {
+        storage.addRegistrationByUsername("foo-user", registration("foo-user", 1));
+        String from = storage.placementFor(userHandle(1));
+        String to = from.equals("a") ? "b" : "a";
+
+        // A request that resolved the old route registers a credential once the routes were repointed
+        RegistrationRoutes routes = new JdbcRegistrationRoutes(client("routes"), executor) {
+            private boolean registered;
+
+            @Override
+            public void moveUser(ByteArray userHandle, String shard) {
+                super.moveUser(userHandle, shard);
+                if (!registered) {
+                    registered = true;
+                    add(from, new RegistrationKey("foo-user", userHandle(1), credentialId(2)));
+                    shards.get(from).addRegistrationByUsername("foo-user", registration("foo-user", 1)
+                        .withCredential(registration("foo-user", 2).getCredential()));
+                }
+            }
+        };
+        ShardedRegistrationStorage moving = new ShardedRegistrationStorage(shards, Arrays.asList("a", "b"), routes);
+
+        new RegistrationResharding(moving).move(Collections.singletonList(userHandle(1)), to, Duration.ZERO);
+
+        assertFalse(shards.get(from).userExists("foo-user"));
+        assertEquals(2, shards.get(to).getRegistrationsByUsername("foo-user").size());
+        assertEquals(1, storage.lookupAll(credentialId(2)).size());
+    }
+
+    @Test
+    public void removal_dropsRouteOnlyWhenRowDeleted() {
+        storage.addRegistrationByUsername("foo-user", registration("foo-user", 1));
+        storage.addRegistrationByUsername("bar-user", registration("bar-user", 2));
+
+        // bar-user's shard holds no such credential of theirs
+        assertFalse(storage.removeRegistrationByUsername("bar-user", registration("foo-user", 1)));
+        assertEquals(1, storage.lookupAll(credentialId(1)).size());
+
+        assertTrue(storage.removeRegistrationByUsername("foo-user", registration("foo-user", 1)));
+        assertTrue(storage.lookupAll(credentialId(1)).isEmpty());
+    }
+
+    private JdbcClient client(String database) {
+        HikariDataSource dataSource = StorageTestFixtures.h2(database);
+        dataSources.add(dataSource);
+        return new JdbcClient(dataSource);
+    }
+
+    private static CredentialRegistration registration(String username, int n) {
+        return StorageTestFixtures.registration(username, userHandle(n), credentialId(n));
+    }
+
+}
@@ -0,0 +1,61 @@
+package com.yubicolabs;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.time.Clock;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+public class SingleFlightTest {
+
+    private final SingleFlight singleFlight = new SingleFlight(Clock.systemUTC());
+    private final AtomicInteger calls = new AtomicInteger();
+    private final CompletableFuture<String> pending = new CompletableFuture<>();
+
+    @Test
+    public void identicalReads_shareOneCall() {
+        CompletableFuture<String> first = read("foo-user", new byte[] { 1, 2 });
+        CompletableFuture<String> second = read("foo-user", new byte[] { 1, 2 });
+        pending.complete("result");
+
+        assertEquals(1, calls.get());
+        assertSame(first, second);
+        assertEquals("result", second.join());
+    }
+
+    @Test
+    public void differentParameters_callSeparately() {
+        read("foo-user", new byte[] { 1, 2 });
+        read("foo-user", new byte[] { 1, 3 });
+
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void readAfterWrite_doesNotJoinEarlierRead() {
+        read("foo-user", new byte[] { 1, 2 });
+        singleFlight.wrote("foo-user");
+        read("foo-user", new byte[] { 1, 2 });
+
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void completedRead_isNotShared() {
+        pending.complete("result");
+        read("foo-user", new byte[] { 1, 2 }).join();
+        read("foo-user", new byte[] { 1, 2 }).join();
+
+        assertEquals(2, calls.get());
+    }
+
+    private CompletableFuture<String> read(String subject, byte[] parameter) {
+        return singleFlight.async("lookup", subject, new Object[] { "SELECT", parameter }, () -> {
+            calls.incrementAndGet();
+            return pending;
+        });
+    }
+
+}
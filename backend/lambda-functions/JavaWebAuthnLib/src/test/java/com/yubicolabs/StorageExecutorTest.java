@@ -0,0 +1,130 @@
+package com.yubicolabs;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Drives {@link StorageExecutor} with stub attempts that complete only when the test completes them.
+ */
+public class StorageExecutorTest {
+
+    private static final Duration HEDGE_DELAY = Duration.ofMillis(20);
+
+    private final List<CompletableFuture<String>> attempts = new CopyOnWriteArrayList<>();
+    private final StorageExecutor executor = new StorageExecutor(
+        Collections.singletonMap(StorageExecutor.DEFAULT_OPERATION, Duration.ofSeconds(5)),
+        Optional.of(HEDGE_DELAY));
+
+    @AfterEach
+    void endRequest() {
+        RequestDeadline.end();
+    }
+
+    @Test
+    public void read_hedgedAfterDelayAndLoserCancelled() throws Exception {
+        final long start = System.nanoTime();
+        final CompletableFuture<String> result = executor.readAsync("read", this::newAttempt);
+        assertEquals(1, attempts.size());
+
+        awaitAttempts(2);
+        assertTrue(System.nanoTime() - start >= HEDGE_DELAY.toNanos());
+
+        attempts.get(1).complete("hedged");
+        assertEquals("hedged", result.get(1, TimeUnit.SECONDS));
+        assertTrue(attempts.get(0).isCancelled());
+    }
+
+    @Test
+    public void read_extraAttemptsLimitedByRetryBudget() throws Exception {
+        RequestDeadline.begin(null, Duration.ZERO, 1);
+        final CompletableFuture<String> result = executor.readAsync("read", this::newAttempt);
+
+        awaitAttempts(2);
+        Thread.sleep(HEDGE_DELAY.toMillis() * 5);
+        assertEquals(2, attempts.size());
+
+        // Budget spent on the hedge, so neither failure is retried
+        attempts.get(0).completeExceptionally(new IllegalStateException("Connection reset"));
+        attempts.get(1).completeExceptionally(new IllegalStateException("Connection reset"));
+        final ExecutionException e = assertThrows(ExecutionException.class, () -> result.get(1, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof IllegalStateException);
+        assertEquals(2, attempts.size());
+    }
+
+    @Test
+    public void write_neverRepeated() throws Exception {
+        final CompletableFuture<String> result = executor.writeAsync("write", this::newAttempt);
+
+        Thread.sleep(HEDGE_DELAY.toMillis() * 5);
+        assertEquals(1, attempts.size());
+
+        attempts.get(0).completeExceptionally(new IllegalStateException("Connection reset"));
+        assertThrows(ExecutionException.class, () -> result.get(1, TimeUnit.SECONDS));
+        assertEquals(1, attempts.size());
+    }
+
+    @Test
+    public void deadline_boundsOperationTimeout() {
+        RequestDeadline.begin(remainingMillis(100), Duration.ZERO, 0);
+        final long start = System.nanoTime();
+
+        assertThrows(StorageTimeoutException.class, () -> StorageExecutor.await(executor.writeAsync("write", this::newAttempt)));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertTrue(attempts.get(0).isCancelled());
+    }
+
+    @Test
+    public void deadline_spentBeforeCallMakesNoAttempt() {
+        RequestDeadline.begin(remainingMillis(0), Duration.ZERO, 0);
+
+        assertThrows(StorageTimeoutException.class, () -> StorageExecutor.await(executor.readAsync("read", this::newAttempt)));
+        assertTrue(attempts.isEmpty());
+    }
+
+    @Test
+    public void scan_retriedOnFailureButNeverHedged() throws Exception {
+        final CompletableFuture<String> result = executor.scanAsync("scan", this::newAttempt);
+
+        Thread.sleep(HEDGE_DELAY.toMillis() * 5);
+        assertEquals(1, attempts.size());
+
+        attempts.get(0).completeExceptionally(new IllegalStateException("Connection reset"));
+        assertEquals(2, attempts.size());
+        attempts.get(1).complete("rows");
+        assertEquals("rows", result.get(1, TimeUnit.SECONDS));
+    }
+
+    private void awaitAttempts(int n) throws InterruptedException {
+        final long giveUp = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (attempts.size() < n && System.nanoTime() < giveUp) {
+            Thread.sleep(1);
+        }
+        assertEquals(n, attempts.size());
+    }
+
+    private static Context remainingMillis(int millis) {
+        return (Context) Proxy.newProxyInstance(Context.class.getClassLoader(), new Class<?>[] { Context.class },
+            (proxy, method, args) -> "getRemainingTimeInMillis".equals(method.getName()) ? millis : null);
+    }
+
+    private CompletableFuture<String> newAttempt() {
+        final CompletableFuture<String> attempt = new CompletableFuture<>();
+        attempts.add(attempt);
+        return attempt;
+    }
+
+}
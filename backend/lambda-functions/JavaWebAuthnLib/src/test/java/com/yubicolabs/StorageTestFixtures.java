@@ -0,0 +1,90 @@
+package com.yubicolabs;
+
+import com.yubico.webauthn.RegisteredCredential;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.UserIdentity;
+import com.yubicolabs.data.CredentialRegistration;
+import com.zaxxer.hikari.HikariDataSource;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Collections;
+import java.util.Optional;
+
+/**
+ * Registrations, databases and clocks shared by the storage tests.
+ */
+final class StorageTestFixtures {
+
+    private StorageTestFixtures() {
+    }
+
+    static ByteArray userHandle(int n) {
+        return new ByteArray(new byte[] { 1, 2, 3, (byte) n });
+    }
+
+    static ByteArray credentialId(int n) {
+        return new ByteArray(new byte[] { 5, 6, 7, (byte) n });
+    }
+
+    /**
+     * A registration with signature count 0, registered, used and updated now.
+     */
+    static CredentialRegistration registration(String username, ByteArray userHandle, ByteArray credentialId) {
+        final Instant now = Instant.now();
+        return CredentialRegistration.builder()
+            .userIdentity(UserIdentity.builder().name(username).displayName(username).id(userHandle).build())
+            .credentialNickname(Optional.of("My Security Key"))
+            .registrationTime(now)
+            .lastUsedTime(now)
+            .lastUpdatedTime(now)
+            .credential(RegisteredCredential.builder()
+                .credentialId(credentialId)
+                .userHandle(userHandle)
+                .publicKeyCose(new ByteArray(new byte[] { 0x0a }))
+                .signatureCount(0)
+                .build())
+            .signatureCount(0)
+            .attestationMetadata(Optional.empty())
+            .build();
+    }
+
+    /**
+     * An in-memory H2 database in MySQL mode, kept until {@code DROP ALL OBJECTS} even while no connection is open.
+     */
+    static HikariDataSource h2(String database) {
+        return JdbcClient.createDataSource("jdbc:h2:mem:" + database + ";MODE=MySQL;DB_CLOSE_DELAY=-1", "sa", "", 2);
+    }
+
+    static StorageExecutor executor() {
+        return new StorageExecutor(
+            Collections.singletonMap(StorageExecutor.DEFAULT_OPERATION, Duration.ofSeconds(5)),
+            Optional.empty());
+    }
+
+    static class MutableClock extends Clock {
+        private Instant now = Instant.parse("2022-01-01T00:00:00Z");
+
+        void advance(Duration duration) {
+            now = now.plus(duration);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+
+}
@@ -0,0 +1,145 @@
+package com.yubicolabs;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.yubico.internal.util.JacksonCodecs;
+import com.yubico.webauthn.data.RelyingPartyIdentity;
+import com.yubicolabs.data.RegistrationResponse;
+import com.zaxxer.hikari.HikariDataSource;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Resolves tenants over embedded H2 databases, one per tenant.
+ */
+public class TenantRegistryTest {
+
+    private static final String RP_ID = "djs30q7wgv52u.amplifyapp.com";
+
+    private final StorageExecutor executor = new StorageExecutor(
+        Collections.singletonMap(StorageExecutor.DEFAULT_OPERATION, Duration.ofSeconds(5)),
+        Optional.empty());
+    private final Map<String, HikariDataSource> dataSources = new LinkedHashMap<>();
+    private final Map<String, TenantConfig> configs = new LinkedHashMap<>();
+
+    @AfterEach
+    void closeDataSources() {
+        // Each in-memory database goes away with the last connection to it
+        dataSources.values().forEach(HikariDataSource::close);
+    }
+
+    @Test
+    public void noTenantId_resolvesDefaultTenant() {
+        Tenant defaultTenant = tenant(new TenantConfig("default", identity(), Collections.singleton("https://" + RP_ID), "default"));
+        TenantRegistry registry = registry(1, defaultTenant);
+
+        assertSame(defaultTenant, registry.acquire(Optional.empty()));
+        defaultTenant.release();
+        assertFalse(dataSources.get("default").isClosed());
+    }
+
+    @Test
+    public void unknownTenant_isRejected() {
+        TenantRegistry registry = registry(1, null);
+
+        assertThrows(IllegalArgumentException.class, () -> registry.acquire(Optional.of("nobody")));
+        assertTrue(dataSources.isEmpty());
+    }
+
+    @Test
+    public void response_checkedAgainstItsOwnTenantsOrigins() throws Exception {
+        configure("dev", "https://dev." + RP_ID);
+        configure("prod", "https://" + RP_ID);
+        TenantRegistry registry = registry(2, null);
+        RegistrationResponse response = JacksonCodecs.json()
+            .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES)
+            .readValue(ResponsePrecheckTest.REGISTRATION, RegistrationResponse.class);
+
+        Tenant dev = registry.acquire(Optional.of("dev"));
+        Tenant prod = registry.acquire(Optional.of("prod"));
+
+        assertFalse(dev.getPrecheck().checkRegistration(response).isPresent());
+        assertTrue(prod.getPrecheck().checkRegistration(response).isPresent());
+        dev.release();
+        prod.release();
+    }
+
+    @Test
+    public void evictedTenant_closedOnceIdle() {
+        configure("dev", "https://dev." + RP_ID);
+        configure("prod", "https://" + RP_ID);
+        TenantRegistry registry = registry(1, null);
+
+        Tenant dev = registry.acquire(Optional.of("dev"));
+        Tenant prod = registry.acquire(Optional.of("prod"));
+
+        // Evicted while its request is still running
+        assertFalse(dataSources.get("dev").isClosed());
+        assertFalse(dev.getRegistrations().userExists("foo-user"));
+        dev.release();
+        assertTrue(dataSources.get("dev").isClosed());
+        prod.release();
+
+        Tenant rebuilt = registry.acquire(Optional.of("dev"));
+        assertNotSame(dev, rebuilt);
+        assertFalse(rebuilt.getRegistrations().userExists("foo-user"));
+        rebuilt.release();
+        // Evicted while idle
+        registry.acquire(Optional.of("prod")).release();
+        assertTrue(dataSources.get("dev").isClosed());
+    }
+
+    private TenantRegistry registry(int cacheSize, Tenant defaultTenant) {
+        return new TenantRegistry(defaultTenant, configs, cacheSize, this::tenant);
+    }
+
+    private void configure(String id, String origin) {
+        configs.put(id, new TenantConfig(id, identity(), Collections.singleton(origin), id));
+    }
+
+    private Tenant tenant(TenantConfig config) {
+        HikariDataSource dataSource = JdbcClient.createDataSource(
+            "jdbc:h2:mem:tenant-" + config.getDatabase() + ";MODE=MySQL", "sa", "", 2);
+        dataSources.put(config.getDatabase(), dataSource);
+        JdbcClient client = new JdbcClient(dataSource);
+
+        JdbcRegistrationStorage registrations = new JdbcRegistrationStorage(client, executor);
+        registrations.createTables();
+        JdbcUserGenerations generations = new JdbcUserGenerations(client, executor);
+        generations.createTables();
+        TenantStorage storage = new TenantStorage(
+            registrations,
+            generations,
+            new JdbcRegistrationRequestStorage(client, executor),
+            new JdbcAssertionRequestStorage(client, executor),
+            Optional.of(dataSource));
+
+        return new Tenant(
+            config.getId(),
+            config.getRpIdentity(),
+            config.getOrigins(),
+            storage,
+            new MemoizingRegistrationStorage(registrations),
+            (certificates, aaguid) -> {
+                throw new UnsupportedOperationException("No attestation in these tests");
+            },
+            new FinishResultCache(10, Duration.ofMinutes(1)),
+            65536);
+    }
+
+    private static RelyingPartyIdentity identity() {
+        return RelyingPartyIdentity.builder().id(RP_ID).name("Test party").build();
+    }
+
+}
@@ -0,0 +1,124 @@
+package com.yubicolabs;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.yubico.internal.util.JacksonCodecs;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.RelyingPartyIdentity;
+import com.yubicolabs.StorageTestFixtures.MutableClock;
+import com.zaxxer.hikari.HikariDataSource;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class WarmupTest {
+
+    private static final ByteArray REQUEST_ID = new ByteArray(new byte[] { 9, 9, 9, 9 });
+
+    private HikariDataSource dataSource;
+    private JdbcClient client;
+    private Tenant tenant;
+    private Warmup warmup;
+
+    @BeforeEach
+    void createTenant() {
+        dataSource = StorageTestFixtures.h2("warmup");
+        client = new JdbcClient(dataSource);
+        final StorageExecutor executor = StorageTestFixtures.executor();
+
+        final JdbcRegistrationStorage registrations = new JdbcRegistrationStorage(client, executor);
+        registrations.createTables();
+        final JdbcUserGenerations generations = new JdbcUserGenerations(client, executor);
+        generations.createTables();
+        client.update("CREATE TABLE registrationRequests (_key VARCHAR(1023), _value TEXT, creationDate DATETIME DEFAULT CURRENT_TIMESTAMP, lastUpdatedDate DATETIME DEFAULT CURRENT_TIMESTAMP)");
+        client.update("CREATE TABLE assertionRequests (_key VARCHAR(1023), _value TEXT, creationDate DATETIME DEFAULT CURRENT_TIMESTAMP, lastUpdatedDate DATETIME DEFAULT CURRENT_TIMESTAMP)");
+        final TenantStorage storage = new TenantStorage(
+            registrations,
+            generations,
+            new JdbcRegistrationRequestStorage(client, executor),
+            new JdbcAssertionRequestStorage(client, executor),
+            Optional.empty());
+        tenant = new Tenant(
+            "default",
+            RelyingPartyIdentity.builder().id("example.com").name("Test party").build(),
+            Collections.singleton("https://example.com"),
+            storage,
+            new MemoizingRegistrationStorage(registrations),
+            (certificates, aaguid) -> {
+                throw new UnsupportedOperationException("No attestation in these tests");
+            },
+            new FinishResultCache(10, Duration.ofMinutes(1)),
+            65536);
+
+        final CachingMetadataService.SnapshotLoader unavailable = () -> {
+            throw new IllegalStateException("Metadata service unavailable");
+        };
+        warmup = new Warmup(
+            new CachingMetadataService(unavailable, 10, Duration.ofHours(1), new MutableClock()),
+            JacksonCodecs.json(),
+            new GsonBuilder().setPrettyPrinting().create());
+    }
+
+    @AfterEach
+    void dropSchema() {
+        if (!dataSource.isClosed()) {
+            client.update("DROP ALL OBJECTS");
+            dataSource.close();
+        }
+    }
+
+    @Test
+    public void report_listsEveryComponent() {
+        final JsonObject report = warmup.run(tenant, REQUEST_ID);
+
+        assertEquals("warmup", report.get("type").getAsString());
+        assertEquals("default", report.get("tenant").getAsString());
+        assertEquals(0, report.get("previousWarmups").getAsLong());
+        final JsonObject components = report.getAsJsonObject("components");
+        assertEquals(
+            Arrays.asList("Storage", "Metadata", "RelyingParty", "Serializers", "Crypto"),
+            Arrays.asList(components.keySet().toArray()));
+        for (String name : components.keySet()) {
+            assertTrue(components.getAsJsonObject(name).get("ms").getAsDouble() >= 0, name);
+        }
+        assertEquals("ok", state(report, "Storage"));
+        assertEquals("no BLOB loaded", state(report, "Metadata"));
+        assertEquals("ok", state(report, "RelyingParty"));
+        assertEquals("ok", state(report, "Serializers"));
+        assertTrue(state(report, "Crypto").startsWith("ok"));
+
+        assertEquals(1, warmup.run(tenant, REQUEST_ID).get("previousWarmups").getAsLong());
+    }
+
+    @Test
+    public void failedComponent_doesNotStopOthers() {
+        client.update("DROP ALL OBJECTS");
+        dataSource.close();
+
+        final JsonObject report = warmup.run(tenant, REQUEST_ID);
+
+        assertTrue(state(report, "Storage").startsWith("failed: "));
+        assertEquals("ok", state(report, "RelyingParty"));
+        assertEquals("ok", state(report, "Serializers"));
+        assertTrue(state(report, "Crypto").startsWith("ok"));
+    }
+
+    @Test
+    public void probeUsername_cannotBeSignedUp() {
+        // The sign-up constraint of CreateAuthChallengeFIDO2
+        assertFalse(Warmup.PROBE_USERNAME.matches("[a-zA-Z0-9_\\-]{3,20}"));
+    }
+
+    private static String state(JsonObject report, String component) {
+        return report.getAsJsonObject("components").getAsJsonObject(component).get("state").getAsString();
+    }
+
+}